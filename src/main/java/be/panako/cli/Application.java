@@ -36,7 +36,9 @@ package be.panako.cli;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import be.panako.util.Config;
@@ -108,6 +110,17 @@ public abstract class Application {
 	 * @return A list of checked file.
 	 */
 	public List<File> getFilesFromArguments(String[] arguments){
+		return getFilesFromArguments(arguments, Collections.emptySet());
+	}
+
+	/**
+	 * Returns a list of exiting (checked) files in the argument list, except for the files to skip.
+	 * Files to skip are not checked, so they are not accessed at all.
+	 * @param arguments the list of command line arguments
+	 * @param absolutePathsToSkip The absolute paths of files to leave out of the list.
+	 * @return A list of checked file.
+	 */
+	public List<File> getFilesFromArguments(String[] arguments, Set<String> absolutePathsToSkip){
 		final List<File> files = new ArrayList<File>();
 		for(final String queryFile : arguments){
 			//skip options, starting with a -
@@ -117,12 +130,12 @@ public abstract class Application {
 					//it should an absolute path on each line of the file.
 					String[] lines = FileUtils.readFile(queryFile).split("\n");
 					for(String line : lines){
-						if(checkFile(line)){
+						if(!absolutePathsToSkip.contains(new File(line).getAbsolutePath()) && checkFile(line)){
 							files.add(new File(line));
 						}
 					}
 				}else{
-					if(checkFile(queryFile)){
+					if(!absolutePathsToSkip.contains(new File(queryFile).getAbsolutePath()) && checkFile(queryFile)){
 						files.add(new File(queryFile));
 					}
 				}	
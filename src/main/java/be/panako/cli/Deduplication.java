@@ -41,18 +41,31 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 
 import be.panako.strategy.QueryResult;
 import be.panako.strategy.QueryResultHandler;
 import be.panako.strategy.Strategy;
+import be.panako.strategy.olaf.OlafDeduplicator;
+import be.panako.strategy.olaf.OlafStrategy;
+import be.panako.util.Config;
 import be.panako.util.FileUtils;
+import be.panako.util.Key;
+import be.panako.util.StopWatch;
 
 
 /**
  * A command line application to deduplicate an archive of music files.
  */
 class Deduplication extends Application implements QueryResultHandler  {
+	private final static Logger LOG = Logger.getLogger(Deduplication.class.getName());
+
 	@Override
 	public void run(String... args) {
 
@@ -64,17 +77,52 @@ class Deduplication extends Application implements QueryResultHandler  {
 	}
 
 	private void deduplicateWithFileHashing(String... args){
-		final HashMap<Integer,List<String>> list = new HashMap<>();
-		final Strategy strategy = Strategy.getInstance();
 		List<File> files = getFilesFromArguments(args);
+
+		//only files with the same size can be duplicates: files with a unique size are never read
+		final HashMap<Long,List<Integer>> filesPerSize = new HashMap<>();
+		for(int i = 0 ; i < files.size() ; i++)
+			filesPerSize.computeIfAbsent(files.get(i).length(), k -> new ArrayList<>()).add(i);
+		List<Integer> filesToHash = new ArrayList<>();
+		filesPerSize.forEach((size, l) -> {
+			if(l.size() >= 2)
+				filesToHash.addAll(l);
+		});
+
+		//hash in parallel, reading files waits on storage more than on the processor
+		final String[] hashes = new String[files.size()];
+		StopWatch w = new StopWatch();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Config.getInt(Key.FILE_HASH_THREADS)));
+		List<Future<String>> futures = new ArrayList<>();
+		for(int i : filesToHash)
+			futures.add(executor.submit(() -> FileUtils.getFileHash128(files.get(i))));
+		executor.shutdown();
+		int failures = 0;
+		for(int j = 0 ; j < futures.size() ; j++){
+			int i = filesToHash.get(j);
+			try {
+				hashes[i] = futures.get(j).get();
+			} catch (ExecutionException e) {
+				LOG.severe(String.format("Could not hash %s: %s", files.get(i).getAbsolutePath(), e.getCause()));
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				LOG.severe("Did not finish hashing all files, thread was interrupted!");
+				return;
+			}
+			if(hashes[i] == null)
+				failures++;
+		}
+		if(failures > 0)
+			System.err.println(String.format("%d files could not be hashed, they are not compared with other files.", failures));
+		LOG.info(String.format("Hashed %d of %d files (others have a unique size) in %s", filesToHash.size(), files.size(), w.formattedToString()));
+
+		final LinkedHashMap<String,List<String>> list = new LinkedHashMap<>();
 		for(int i = 0 ; i < files.size() ; i++){
 			File f = files.get(i);
-			Integer fileHash = FileUtils.getFileHash(f);
-			if(!list.containsKey(fileHash)){
-				list.put(fileHash,new ArrayList<>());
-			}
-			list.get(fileHash).add(f.getAbsolutePath());
-			System.out.println(String.format("%d,%d,%d,%s",i,files.size(),fileHash,f.getAbsolutePath()));
+			String fileHash = hashes[i] == null ? "-" : hashes[i];
+			if(hashes[i] != null)
+				list.computeIfAbsent(f.length() + "_" + hashes[i], k -> new ArrayList<>()).add(f.getAbsolutePath());
+			System.out.println(String.format("%d,%d,%s,%s",i,files.size(),fileHash,f.getAbsolutePath()));
 		}
 		list.forEach((key,l) -> {
 			if(l.size() >= 2){
@@ -88,6 +136,19 @@ class Deduplication extends Application implements QueryResultHandler  {
 	}
 
 	private void deduplicateWithFingerprinting(String... args){
+		Strategy strategy = Strategy.getInstance();
+		if(strategy instanceof OlafStrategy) {
+			//fingerprint each file once and join the fingerprints, no store and monitor step
+			List<String> paths = new ArrayList<>();
+			for(File f : getFilesFromArguments(args))
+				paths.add(f.getAbsolutePath());
+			Panako.printQueryResultHeader();
+			OlafDeduplicator deduplicator = new OlafDeduplicator((OlafStrategy) strategy);
+			deduplicator.deduplicate(paths, this);
+			System.err.println(deduplicator.statistics());
+			return;
+		}
+
 		String[] storeArgs = new String[args.length+1];
 		storeArgs[0] = "store";
 		for(int i = 1 ; i < storeArgs.length ; i++){
@@ -97,7 +158,6 @@ class Deduplication extends Application implements QueryResultHandler  {
 
 		List<File> files = super.getFilesFromArguments(args);
 		//monitor
-		Strategy strategy = Strategy.getInstance();
 
 		for(File f: files){
 			HashSet<Integer> identifiersToAvoid = new HashSet<Integer>();
@@ -109,8 +169,11 @@ class Deduplication extends Application implements QueryResultHandler  {
 
 	@Override
 	public String description() {
-		return "Deduplication tries to find duplicates in a set of files. Basically a store operation and monitor step for all files." +
-				"if --file_hash is provided no acoustic fingerprinting is done but the files are compared using a file hash";
+		return "Deduplication tries to find duplicates in a set of files. With OLAF each file is fingerprinted once and the fingerprints of all files are joined, " +
+				"other strategies use a store operation and monitor step for all files." +
+				"if --file_hash is provided no acoustic fingerprinting is done but files with the same size are compared using a 128 bit file hash. " +
+				"The hash only covers the file size and three regions of 64KB, at the start, middle and end of a file: files with the same hash are candidate duplicates, " +
+				"compare their contents to verify them.";
 	}
 
 	@Override
@@ -40,7 +40,6 @@ package be.panako.cli;
 import java.io.File;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import be.panako.strategy.Strategy;
@@ -63,7 +62,7 @@ public class Delete extends Application {
 	public void run(final String... args) {
 		int processors = availableProcessors();
 		int counter=0;
-		final ExecutorService executor = Executors.newFixedThreadPool(processors);
+		final ExecutorService executor = TaskExecution.newTaskExecutor();
 		final List<File> files = this.getFilesFromArguments(args);
 		
 		System.out.println("Index;Audiofile;Audio duration;Processing time;Audio duration/processing time");
@@ -71,7 +70,7 @@ public class Delete extends Application {
 			counter++;
 			
 			DeleteTask task = new DeleteTask(file, counter, files.size());
-			if(processors == 1) {
+			if(processors == 1 && !TaskExecution.virtualThreads()) {
 				// Only one thread available:
 				// run on the main thread
 				task.run();
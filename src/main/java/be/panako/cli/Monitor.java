@@ -36,17 +36,21 @@ package be.panako.cli;
 
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import be.panako.strategy.QueryResult;
 import be.panako.strategy.QueryResultHandler;
 import be.panako.strategy.Strategy;
+import be.panako.strategy.StreamMonitor;
+import be.panako.strategy.olaf.OlafMonitorService;
+import be.panako.strategy.olaf.OlafStrategy;
 import be.panako.util.Config;
 import be.panako.util.Key;
+import be.panako.util.TaskExecution;
 import be.tarsos.dsp.util.AudioResourceUtils;
 
 /**
@@ -64,12 +68,29 @@ public class Monitor extends Application implements QueryResultHandler {
 		Strategy strategy = Strategy.getInstance();
 		int processors = availableProcessors();
 
-		if (args.length == 0){
-			String inputResource = Panako.DEFAULT_MICROPHONE;
+		List<String> streams = new ArrayList<>();
+		for(String arg : args)
+			if(StreamMonitor.isStream(arg))
+				streams.add(arg);
+		if (args.length == 0 || args.length == 1 && streams.size() == 1){
+			//the microphone, standard input or a URL is monitored until the stream ends
+			String inputResource = args.length == 0 ? Panako.DEFAULT_MICROPHONE : args[0];
 			Panako.printQueryResultHeader();
 			strategy.monitor(inputResource,1,new HashSet<Integer>(), this);
 			return;
 		}
+		if (!streams.isEmpty()){
+			if(streams.size() != args.length || new HashSet<>(streams).size() != streams.size()) {
+				System.err.println("Streams can not be monitored together with files or options, and each stream only once.");
+				return;
+			}
+			if(!(strategy instanceof OlafStrategy)) {
+				System.err.println("Monitoring several streams at once is only supported for the OLAF strategy.");
+				return;
+			}
+			monitorStreams((OlafStrategy) strategy, streams);
+			return;
+		}
 		// else get and process list of files
 
 		List<File> files = this.getFilesFromArguments(args);
@@ -80,14 +101,14 @@ public class Monitor extends Application implements QueryResultHandler {
 
 		Panako.printQueryResultHeader();
 
-		if(hasArgument("debug", args) || processors==1){
+		if(hasArgument("debug", args) || (processors==1 && !TaskExecution.virtualThreads())){
 			int taskNumber = 1;
 			for(File file: files){
 				new Monitor.MonitorTask(file.getAbsolutePath(),taskNumber,files.size()).run();
 				taskNumber++;
 			}
 		}else{
-			ExecutorService executor = Executors.newFixedThreadPool(processors);
+			ExecutorService executor = TaskExecution.newTaskExecutor();
 			int taskNumber = 1;
 			for(File file: files){
 				executor.submit(new Monitor.MonitorTask(file.getAbsolutePath(),taskNumber,files.size()));
@@ -105,6 +126,38 @@ public class Monitor extends Application implements QueryResultHandler {
 		}
 	}
 
+	/**
+	 * Monitors all streams on a shared monitor service until they end.
+	 */
+	private void monitorStreams(OlafStrategy strategy, List<String> streams){
+		OlafMonitorService service = new OlafMonitorService(strategy, 1, new HashSet<Integer>());
+		int sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+		System.out.println("Monitoring " + streams.size() + " streams.");
+		Panako.printQueryResultHeader();
+		try {
+			for(int i = 0 ; i < streams.size() ; i++){
+				String stream = streams.get(i);
+				final int taskNumber = i + 1;
+				service.addStream(stream, OlafMonitorService.fromBlockingInputStream(stream, StreamMonitor.inputStream(stream, sampleRate)), new QueryResultHandler() {
+					@Override
+					public void handleQueryResult(QueryResult r) {
+						Panako.printQueryResult(r, taskNumber, streams.size());
+					}
+
+					@Override
+					public void handleEmptyResult(QueryResult r) {
+						Panako.printQueryResult(r, taskNumber, streams.size());
+					}
+				});
+			}
+			service.awaitStreams();
+		} catch (InterruptedException e) {
+			LOG.severe("Did not finish monitoring the streams, thread was interrupted!");
+		} finally {
+			service.shutdown();
+		}
+	}
+
 	private static class MonitorTask implements Runnable, QueryResultHandler{
 		private final String path;
 		private final HashSet<Integer> emptyHashSet = new HashSet<Integer>();
@@ -139,12 +192,12 @@ public class Monitor extends Application implements QueryResultHandler {
 
 	@Override
 	public String description() {
-		return "Monitors a stream or a long audio file, the main difference with query is that more than one detection result is expected.";
+		return "Monitors a stream or a long audio file, the main difference with query is that more than one detection result is expected. Without arguments the microphone is monitored, - monitors 16bit mono PCM from standard input, e.g. piped from ffmpeg -re. Several streams, e.g. URLs, are monitored at once on a shared monitor service (OLAF only).";
 	}
 
 	@Override
 	public String synopsis() {
-		return "[pls|m3u|file|txt...]";
+		return "[pls|m3u|file|txt...|url...|-]";
 	}
 
 	@Override
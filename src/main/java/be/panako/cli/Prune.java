@@ -0,0 +1,82 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.cli;
+
+import be.panako.strategy.Strategy;
+import be.panako.strategy.olaf.OlafStopList;
+import be.panako.strategy.olaf.OlafStrategy;
+import be.panako.util.Config;
+import be.panako.util.Key;
+
+/**
+ * Index maintenance: creates a stop list with the hashes which are stored too often in the index.
+ */
+class Prune extends Application {
+
+	@Override
+	public void run(String... args) {
+		Strategy strategy = Strategy.getInstance();
+		if(!(strategy instanceof OlafStrategy)) {
+			System.err.println("A stop list is only supported for the OLAF strategy.");
+			return;
+		}
+		int minimumCount = getIntegerOption("--min_count", Config.getInt(Key.OLAF_STOP_LIST_MIN_COUNT), args);
+		OlafStopList stopList = ((OlafStrategy) strategy).createStopList(minimumCount);
+		System.out.printf("%d hashes are stored at least %d times, together %d fingerprints. Stop list written to %s\n",
+				stopList.size(), minimumCount, stopList.numberOfFingerprints(), Config.get(Key.OLAF_STOP_LIST_FILE));
+	}
+
+	@Override
+	public String description() {
+		return "Counts how many times each hash is stored in the index and writes the most frequent hashes\n" +
+				"\tto a stop list. Hashes on the stop list are skipped during a query.\n" +
+				"\t--min_count n\tHashes stored at least n times end up on the stop list.";
+	}
+
+	@Override
+	public String synopsis() {
+		return "prune [--min_count n]";
+	}
+
+	@Override
+	public boolean needsStorage() {
+		return true;
+	}
+
+	@Override
+	public boolean writesToStorage() {
+		return false;
+	}
+}
@@ -40,7 +40,6 @@ import java.io.File;
 import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import be.panako.strategy.QueryResult;
@@ -48,6 +47,7 @@ import be.panako.strategy.QueryResultHandler;
 import be.panako.strategy.Strategy;
 import be.panako.util.Config;
 import be.panako.util.Key;
+import be.panako.util.TaskExecution;
 
 
 /**
@@ -67,14 +67,14 @@ class Query extends Application{
 		
 		Panako.printQueryResultHeader();
 		
-		if(hasArgument("debug", args) || processors==1){
+		if(hasArgument("debug", args) || (processors==1 && !TaskExecution.virtualThreads())){
 			int taskNumber = 1;
 			for(File file: files){
 				new QueryTask(file.getAbsolutePath(),taskNumber,files.size()).run();
 				taskNumber++;
 			}
 		}else{
-			ExecutorService executor = Executors.newFixedThreadPool(processors);
+			ExecutorService executor = TaskExecution.newTaskExecutor();
 			int taskNumber = 1;
 			for(File file: files){
 				executor.submit(new QueryTask(file.getAbsolutePath(),taskNumber,files.size()));
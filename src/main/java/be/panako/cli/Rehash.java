@@ -0,0 +1,80 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.cli;
+
+import be.panako.strategy.Strategy;
+import be.panako.strategy.olaf.OlafHashLayout;
+import be.panako.strategy.olaf.OlafStrategy;
+
+/**
+ * Index maintenance: converts the cached fingerprints, the index and the stop list to another hash layout.
+ */
+class Rehash extends Application {
+
+	@Override
+	public void run(String... args) {
+		Strategy strategy = Strategy.getInstance();
+		if(!(strategy instanceof OlafStrategy)) {
+			System.err.println("Hash layouts are only supported for the OLAF strategy.");
+			return;
+		}
+		int layout = getIntegerOption("--layout", OlafHashLayout.configured(), args);
+		((OlafStrategy) strategy).rehash(layout);
+		if(layout != OlafHashLayout.configured())
+			System.out.printf("The fingerprints use hash layout %d, set OLAF_HASH_LAYOUT=%d to use them.\n", layout, layout);
+	}
+
+	@Override
+	public String description() {
+		return "Converts the cached fingerprints, the LMDB or PostgreSQL index and the stop list to another hash layout.\n" +
+				"\tThe original index is kept as a backup. The index should not be in use.\n" +
+				"\t--layout n\tThe new hash layout, by default OLAF_HASH_LAYOUT.";
+	}
+
+	@Override
+	public String synopsis() {
+		return "rehash [--layout n]";
+	}
+
+	@Override
+	public boolean needsStorage() {
+		return false;
+	}
+
+	@Override
+	public boolean writesToStorage() {
+		return true;
+	}
+}
@@ -37,8 +37,9 @@ package be.panako.cli;
 
 import java.io.File;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import be.panako.strategy.Strategy;
@@ -56,19 +57,41 @@ class Store extends Application {
 		int processors = availableProcessors();
 		int counter=0;
 		
-		final ExecutorService executor = Executors.newFixedThreadPool(processors);
-		
-		final List<File> files = this.getFilesFromArguments(args);
+		final ExecutorService executor = TaskExecution.newTaskExecutor();
+
+		//a journal of completed files lets an interrupted batch resume
+		final IngestJournal journal;
+		final List<File> files;
+		String journalPath = Config.get(Key.STORE_JOURNAL).trim();
+		if(journalPath.isEmpty()) {
+			journal = null;
+			files = this.getFilesFromArguments(args);
+		}else {
+			journal = new IngestJournal(journalPath);
+			files = this.getFilesFromArguments(args, journal.completedPaths());
+			journal.setResourcesToProcess(files.size());
+		}
 		if(files.size() > 1){
 			String msg = "Processing " + files.size() + " files on " + processors + " seperate threads.";
 			LOG.info("Store task started. " +  msg);
 		}
+		Timer progressTimer = null;
+		if(journal != null) {
+			long interval = Math.max(1, Config.getInt(Key.STORE_PROGRESS_INTERVAL)) * 1000L;
+			progressTimer = new Timer("Store progress", true);
+			progressTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					reportProgress(journal);
+				}
+			}, interval, interval);
+		}
 		System.out.println("index; length; audiofile; audio duration; fingerprinting duration; ratio");
 		for(File file: files){
 			counter++;
 			
-			StoreTask task = new StoreTask(file, counter, files.size());
-			if(processors == 1) {
+			StoreTask task = new StoreTask(file, counter, files.size(), journal);
+			if(processors == 1 && !TaskExecution.virtualThreads()) {
 				// Only one thread available:
 				// run on the main thread
 				task.run();
@@ -87,6 +110,19 @@ class Store extends Application {
 		} catch(Exception e){
 			e.printStackTrace();
 		}
+
+		if(journal != null) {
+			progressTimer.cancel();
+			reportProgress(journal);
+			journal.close();
+		}
+	}
+
+	private static void reportProgress(IngestJournal journal){
+		String progress = journal.progress();
+		LOG.info(progress);
+		//standard out is reserved for the results of each file
+		System.err.println(progress);
 	}
 
 	@Override
@@ -103,12 +139,14 @@ class Store extends Application {
 		private final File file;
 		private final int taskID;
 		private final int totalTasks;
+		private final IngestJournal journal;
 		
 		
-		public StoreTask(File file,int taskID,int totalTasks){
+		public StoreTask(File file,int taskID,int totalTasks,IngestJournal journal){
 			this.file = file;
 			this.taskID = taskID;
 			this.totalTasks = totalTasks;
+			this.journal = journal;
 		}
 
 		@Override
@@ -124,8 +162,12 @@ class Store extends Application {
 			String message=null;
 			if(isDouble){
 				message = String.format("%d; %d; %s; %s; 0; 0",taskID,totalTasks,file.getName(),"Skipped: resource already stored;");
+				if(journal != null)
+					journal.completed(strategy.resolve(file.getAbsolutePath()), file.getAbsolutePath(), 0);
 			}else{
 				double durationInSeconds = strategy.store(file.getAbsolutePath(), file.getName());
+				if(journal != null)
+					journal.completed(strategy.resolve(file.getAbsolutePath()), file.getAbsolutePath(), durationInSeconds);
 				double cpuSecondsPassed = w.timePassed(TimeUnit.SECONDS);
 				String audioDuration = StopWatch.toTime("", (int) Math.round(durationInSeconds));
 				String cpuTimeDuration = w.formattedToString();
@@ -0,0 +1,108 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy;
+
+import be.panako.cli.Application;
+import be.panako.util.BoundedPriorityQueue;
+import be.panako.util.Config;
+import be.panako.util.Key;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Verifies the candidate matches of a query and keeps the best results.
+ *
+ * A query against a large catalogue results in thousands of candidate
+ * resources, each with a list of hits to verify. The verifications are
+ * independent so, when there are more candidates than configured with
+ * {@link Key#PARALLEL_VERIFICATION_THRESHOLD}, they are spread over a fork-join
+ * pool. The verified results are collected in bounded heaps which are merged,
+ * so the results are never sorted as a whole.
+ */
+public class CandidateVerifier {
+
+	/**
+	 * Orders query results: a higher score is better, for equal scores the lowest identifier is preferred.
+	 */
+	public static final Comparator<QueryResult> RESULT_ORDER = Comparator.<QueryResult>comparingDouble(r -> r.score)
+			.thenComparing((QueryResult r) -> r.refIdentifier, Comparator.reverseOrder());
+
+	private static ForkJoinPool pool;
+
+	private CandidateVerifier(){
+	}
+
+	private static synchronized ForkJoinPool pool(){
+		if(pool == null){
+			pool = new ForkJoinPool(Application.availableProcessors());
+		}
+		return pool;
+	}
+
+	/**
+	 * Verifies each candidate and returns the best results.
+	 * @param candidates The candidates to verify.
+	 * @param verification Verifies a candidate and returns a result or null if the candidate is rejected.
+	 * @param maxNumberOfResults The maximum number of results to return.
+	 * @param <T> The type of the candidates.
+	 * @return At most maxNumberOfResults results, best first.
+	 */
+	public static <T> List<QueryResult> verify(Collection<T> candidates, Function<T,QueryResult> verification, int maxNumberOfResults){
+		int threshold = Config.getInt(Key.PARALLEL_VERIFICATION_THRESHOLD);
+		boolean parallel = candidates.size() > threshold && Application.availableProcessors() > 1;
+		if(!parallel)
+			return best(candidates.stream(), verification, maxNumberOfResults).toSortedList();
+
+		try {
+			return pool().submit(() -> best(candidates.parallelStream(), verification, maxNumberOfResults)).get().toSortedList();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Verification of query candidates failed", e);
+		}
+	}
+
+	private static <T> BoundedPriorityQueue<QueryResult> best(Stream<T> candidates, Function<T,QueryResult> verification, int maxNumberOfResults){
+		return candidates.map(verification).filter(Objects::nonNull).collect(
+				() -> new BoundedPriorityQueue<>(maxNumberOfResults, RESULT_ORDER),
+				BoundedPriorityQueue::offer,
+				BoundedPriorityQueue::addAll);
+	}
+}
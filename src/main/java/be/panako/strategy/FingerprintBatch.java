@@ -0,0 +1,226 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.strategy;
+
+import java.util.Arrays;
+
+/**
+ * A growable batch of fingerprints stored column wise in primitive arrays. Storage
+ * backends queue fingerprints in a batch before they are written to an index: one
+ * batch of a few arrays is much more compact than an object for each fingerprint.
+ * The arrays are reused after {@link #clear()}.
+ *
+ * A batch is not thread safe, each thread is expected to use its own batch.
+ */
+public class FingerprintBatch {
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private long[] hashes;
+	private int[] resourceIdentifiers;
+	private int[] t1s;
+	private int[] f1s;
+	private int size;
+
+	/**
+	 * Create an empty batch with a default initial capacity.
+	 */
+	public FingerprintBatch(){
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create an empty batch.
+	 * @param initialCapacity The number of fingerprints which fit in the batch before it grows.
+	 */
+	public FingerprintBatch(int initialCapacity){
+		int capacity = Math.max(1, initialCapacity);
+		hashes = new long[capacity];
+		resourceIdentifiers = new int[capacity];
+		t1s = new int[capacity];
+		f1s = new int[capacity];
+		size = 0;
+	}
+
+	/**
+	 * Add a fingerprint to the batch.
+	 * @param hash The hash of the fingerprint.
+	 * @param resourceIdentifier The identifier of the resource the fingerprint belongs to.
+	 * @param t1 The time of the first event point, in analysis frames.
+	 * @param f1 The frequency bin of the first event point.
+	 */
+	public void add(long hash, int resourceIdentifier, int t1, int f1){
+		if(size == hashes.length)
+			grow();
+		hashes[size] = hash;
+		resourceIdentifiers[size] = resourceIdentifier;
+		t1s[size] = t1;
+		f1s[size] = f1;
+		size++;
+	}
+
+	/**
+	 * Add a fingerprint without frequency information to the batch.
+	 * @param hash The hash of the fingerprint.
+	 * @param resourceIdentifier The identifier of the resource the fingerprint belongs to.
+	 * @param t1 The time of the first event point, in analysis frames.
+	 */
+	public void add(long hash, int resourceIdentifier, int t1){
+		add(hash, resourceIdentifier, t1, 0);
+	}
+
+	private void grow(){
+		int capacity = hashes.length + (hashes.length >> 1) + 1;
+		hashes = Arrays.copyOf(hashes, capacity);
+		resourceIdentifiers = Arrays.copyOf(resourceIdentifiers, capacity);
+		t1s = Arrays.copyOf(t1s, capacity);
+		f1s = Arrays.copyOf(f1s, capacity);
+	}
+
+	/**
+	 * Returns a sink which adds the fingerprints it accepts to this batch.
+	 * @param resourceIdentifier The identifier of the resource the accepted fingerprints belong to.
+	 * @return A sink writing into this batch.
+	 */
+	public FingerprintSink sinkFor(int resourceIdentifier){
+		return (hash, t1, f1) -> add(hash, resourceIdentifier, t1, f1);
+	}
+
+	/**
+	 * @return The number of fingerprints in the batch.
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return True if there are no fingerprints in the batch.
+	 */
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	/**
+	 * @param index The index of the fingerprint in the batch.
+	 * @return The hash of the fingerprint.
+	 */
+	public long hash(int index){
+		return hashes[index];
+	}
+
+	/**
+	 * @param index The index of the fingerprint in the batch.
+	 * @return The identifier of the resource the fingerprint belongs to.
+	 */
+	public int resourceIdentifier(int index){
+		return resourceIdentifiers[index];
+	}
+
+	/**
+	 * @param index The index of the fingerprint in the batch.
+	 * @return The time of the first event point.
+	 */
+	public int t1(int index){
+		return t1s[index];
+	}
+
+	/**
+	 * @param index The index of the fingerprint in the batch.
+	 * @return The frequency bin of the first event point.
+	 */
+	public int f1(int index){
+		return f1s[index];
+	}
+
+	/**
+	 * Sorts the fingerprints in the batch by hash, then by resource identifier and time. The
+	 * columns are sorted in place, no objects are created for the fingerprints.
+	 */
+	public void sortByHash(){
+		sort(0, size - 1);
+	}
+
+	private void sort(int from, int to){
+		while(to - from > 16){
+			//median of three as pivot, moved to the end
+			int middle = (from + to) >>> 1;
+			if(compare(middle, from) < 0) swap(middle, from);
+			if(compare(to, from) < 0) swap(to, from);
+			if(compare(to, middle) < 0) swap(to, middle);
+			swap(middle, to);
+			int store = from;
+			for(int i = from ; i < to ; i++)
+				if(compare(i, to) < 0)
+					swap(i, store++);
+			swap(store, to);
+			//recurse into the smaller part to bound the stack depth
+			if(store - from < to - store){
+				sort(from, store - 1);
+				from = store + 1;
+			}else{
+				sort(store + 1, to);
+				to = store - 1;
+			}
+		}
+		for(int i = from + 1 ; i <= to ; i++)
+			for(int j = i ; j > from && compare(j, j - 1) < 0 ; j--)
+				swap(j, j - 1);
+	}
+
+	private int compare(int a, int b){
+		int c = Long.compare(hashes[a], hashes[b]);
+		if(c != 0)
+			return c;
+		c = Integer.compare(resourceIdentifiers[a], resourceIdentifiers[b]);
+		if(c != 0)
+			return c;
+		return Integer.compare(t1s[a], t1s[b]);
+	}
+
+	private void swap(int a, int b){
+		long hash = hashes[a]; hashes[a] = hashes[b]; hashes[b] = hash;
+		int resourceIdentifier = resourceIdentifiers[a]; resourceIdentifiers[a] = resourceIdentifiers[b]; resourceIdentifiers[b] = resourceIdentifier;
+		int t1 = t1s[a]; t1s[a] = t1s[b]; t1s[b] = t1;
+		int f1 = f1s[a]; f1s[a] = f1s[b]; f1s[b] = f1;
+	}
+
+	/**
+	 * Removes all fingerprints from the batch, the allocated arrays are kept for reuse.
+	 */
+	public void clear(){
+		size = 0;
+	}
+}
@@ -0,0 +1,206 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.strategy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable direct buffers to exchange keys and values with an LMDB key value store.
+ *
+ * A direct buffer is expensive to allocate and is only freed by the garbage collector,
+ * allocating one for each call to the store adds up quickly. Each thread gets its own
+ * set of buffers via {@link #get()}, the buffers are overwritten by the next call on
+ * the same thread so they should be handed to the store right away.
+ *
+ * The static methods decode keys and values with absolute reads: the buffers returned by
+ * the store are neither moved nor reordered.
+ */
+public final class KeyValueBuffers {
+
+	private static final ThreadLocal<KeyValueBuffers> BUFFERS = ThreadLocal.withInitial(KeyValueBuffers::new);
+
+	private static final int INITIAL_METADATA_CAPACITY = 512;
+
+	private final ByteBuffer hashKey;
+	private final ByteBuffer resourceKey;
+	private final ByteBuffer fingerprintValue;
+	private ByteBuffer metadataValue;
+	private long[] longs;
+
+	private KeyValueBuffers(){
+		//fingerprint hashes are integer keys in native (little endian) order
+		hashKey = ByteBuffer.allocateDirect(8).order(ByteOrder.LITTLE_ENDIAN);
+		//resource identifiers have always been stored in big endian order
+		resourceKey = ByteBuffer.allocateDirect(8);
+		fingerprintValue = ByteBuffer.allocateDirect(16);
+		metadataValue = ByteBuffer.allocateDirect(INITIAL_METADATA_CAPACITY);
+		longs = new long[1024];
+	}
+
+	/**
+	 * @return The buffers of the current thread.
+	 */
+	public static KeyValueBuffers get(){
+		return BUFFERS.get();
+	}
+
+	/**
+	 * @param hash A fingerprint hash.
+	 * @return The key buffer filled with the hash, ready to be read.
+	 */
+	public ByteBuffer hashKey(long hash){
+		hashKey.clear();
+		hashKey.putLong(0, hash);
+		hashKey.limit(8);
+		return hashKey;
+	}
+
+	/**
+	 * @param resourceIdentifier The identifier of a resource.
+	 * @return The key buffer filled with the identifier, ready to be read.
+	 */
+	public ByteBuffer resourceKey(long resourceIdentifier){
+		resourceKey.clear();
+		resourceKey.putLong(0, resourceIdentifier);
+		resourceKey.limit(8);
+		return resourceKey;
+	}
+
+	/**
+	 * @param resourceIdentifier The identifier of the resource.
+	 * @param t1 The time of the fingerprint.
+	 * @return The value buffer with the two values, ready to be read.
+	 */
+	public ByteBuffer fingerprintValue(int resourceIdentifier, int t1){
+		fingerprintValue.clear();
+		fingerprintValue.putInt(0, resourceIdentifier);
+		fingerprintValue.putInt(4, t1);
+		fingerprintValue.limit(8);
+		return fingerprintValue;
+	}
+
+	/**
+	 * @param resourceIdentifier The identifier of the resource.
+	 * @param t1 The time of the fingerprint.
+	 * @param f1 The frequency of the fingerprint.
+	 * @return The value buffer with the three values, ready to be read.
+	 */
+	public ByteBuffer fingerprintValue(int resourceIdentifier, int t1, int f1){
+		fingerprintValue.clear();
+		fingerprintValue.putInt(0, resourceIdentifier);
+		fingerprintValue.putInt(4, t1);
+		fingerprintValue.putInt(8, f1);
+		fingerprintValue.limit(12);
+		return fingerprintValue;
+	}
+
+	/**
+	 * Encodes the meta-data of a resource: the duration, the number of fingerprints and the UTF-8 path.
+	 * The buffer only grows when a path does not fit.
+	 * @param duration The duration of the resource in seconds.
+	 * @param numberOfFingerprints The number of fingerprints of the resource.
+	 * @param path The path of the resource.
+	 * @return The value buffer with the meta-data, ready to be read.
+	 */
+	public ByteBuffer metadataValue(float duration, int numberOfFingerprints, String path){
+		byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+		int size = pathBytes.length + 8;
+		if(metadataValue.capacity() < size)
+			metadataValue = ByteBuffer.allocateDirect(Math.max(size, 2 * metadataValue.capacity()));
+		metadataValue.clear();
+		metadataValue.putFloat(duration);
+		metadataValue.putInt(numberOfFingerprints);
+		metadataValue.put(pathBytes).flip();
+		return metadataValue;
+	}
+
+	/**
+	 * @param minimumLength The number of longs needed.
+	 * @return A reusable array of at least the requested length, its contents are undefined.
+	 */
+	public long[] longs(int minimumLength){
+		if(longs.length < minimumLength)
+			longs = new long[Math.max(minimumLength, 2 * longs.length)];
+		return longs;
+	}
+
+	/**
+	 * @param key A fingerprint key as returned by the store.
+	 * @return The fingerprint hash, stored in little endian order.
+	 */
+	public static long hash(ByteBuffer key){
+		long value = key.getLong(key.position());
+		return key.order() == ByteOrder.LITTLE_ENDIAN ? value : Long.reverseBytes(value);
+	}
+
+	/**
+	 * @param value A value as returned by the store.
+	 * @param index The index of the integer in the value.
+	 * @return The integer at the index, stored in big endian order.
+	 */
+	public static int intAt(ByteBuffer value, int index){
+		int i = value.getInt(value.position() + 4 * index);
+		return value.order() == ByteOrder.BIG_ENDIAN ? i : Integer.reverseBytes(i);
+	}
+
+	/**
+	 * @param value A meta-data value as returned by the store.
+	 * @return The duration of the resource in seconds.
+	 */
+	public static float duration(ByteBuffer value){
+		return Float.intBitsToFloat(intAt(value, 0));
+	}
+
+	/**
+	 * @param value A meta-data value as returned by the store.
+	 * @return The number of fingerprints of the resource.
+	 */
+	public static int numberOfFingerprints(ByteBuffer value){
+		return intAt(value, 1);
+	}
+
+	/**
+	 * @param value A meta-data value as returned by the store.
+	 * @return The path of the resource.
+	 */
+	public static String path(ByteBuffer value){
+		ByteBuffer path = value.duplicate();
+		path.position(value.position() + 8);
+		return StandardCharsets.UTF_8.decode(path).toString();
+	}
+}
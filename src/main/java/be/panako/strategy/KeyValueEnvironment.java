@@ -0,0 +1,283 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.strategy;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Env;
+import org.lmdbjava.EnvFlags;
+import org.lmdbjava.Txn;
+
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.panako.util.TaskExecution;
+
+/**
+ * An LMDB environment opened with the tuning options of the configuration.
+ *
+ * <ul>
+ * <li>The map starts at LMDB_MAP_SIZE_MB and grows, by doubling, up to LMDB_MAX_MAP_SIZE_MB
+ * when a write transaction finds the map full. See {@link #grow(long)}.</li>
+ * <li>The number of reader slots does not depend on the number of cores, see {@link #maxReaders()}.</li>
+ * <li>LMDB_READ_AHEAD can be switched off for random probes in an index larger than memory.</li>
+ * <li>LMDB_SYNC can skip the (meta) sync after each commit for bulk loads. The environment is
+ * then synced explicitly when it is closed or when the JVM exits.</li>
+ * <li>LMDB_WRITE_MAP writes to a writable memory map instead of with write calls.</li>
+ * </ul>
+ *
+ * A map can only be resized while no transaction is active. Each read transaction is therefore
+ * started within {@link #shared()}, a resize waits until the shared sections end. Write
+ * transactions go via {@link #write(Consumer)} which grows the map and retries when needed.
+ */
+public final class KeyValueEnvironment implements AutoCloseable {
+	private final static Logger LOG = Logger.getLogger(KeyValueEnvironment.class.getName());
+
+	private static final int LMDB_DEFAULT_MAX_READERS = 126;
+	private static final long MB = 1024L * 1024L;
+
+	private final Env<ByteBuffer> env;
+	private final String folder;
+	private final long maximumMapSize;
+	private final boolean deferredSync;
+	private final ReentrantReadWriteLock resizeLock;
+	private final Thread syncOnExit;
+
+	/**
+	 * A section in which the map stays in place. Close it after the transaction is closed.
+	 */
+	public interface Shared extends AutoCloseable {
+		@Override
+		void close();
+	}
+
+	private KeyValueEnvironment(Env<ByteBuffer> env, String folder){
+		this.env = env;
+		this.folder = folder;
+		this.maximumMapSize = Math.max(1, Config.getInt(Key.LMDB_MAX_MAP_SIZE_MB)) * MB;
+		this.deferredSync = !syncMode().equals("SYNC");
+		this.resizeLock = new ReentrantReadWriteLock();
+		if(deferredSync) {
+			syncOnExit = new Thread(this::sync, "LMDB sync " + folder);
+			Runtime.getRuntime().addShutdownHook(syncOnExit);
+		}else {
+			syncOnExit = null;
+		}
+	}
+
+	/**
+	 * Opens or creates an environment in a folder.
+	 * @param folder The folder with the LMDB data and lock file.
+	 * @param maxDbs The number of named databases in the environment.
+	 * @return The opened environment.
+	 */
+	public static KeyValueEnvironment open(String folder, int maxDbs){
+		Env<ByteBuffer> env = org.lmdbjava.Env.create()
+			.setMapSize(Math.max(1, Config.getInt(Key.LMDB_MAP_SIZE_MB)) * MB)
+			.setMaxDbs(maxDbs)
+			.setMaxReaders(maxReaders())
+			.open(new File(folder), flags());
+		return new KeyValueEnvironment(env, folder);
+	}
+
+	/**
+	 * The number of reader slots is LMDB_MAX_READERS or, when zero, enough for all tasks in flight.
+	 * A slot is only a few bytes in the lock file.
+	 * @return The maximum number of concurrent read transactions.
+	 */
+	public static int maxReaders(){
+		int configured = Config.getInt(Key.LMDB_MAX_READERS);
+		if(configured > 0)
+			return configured;
+		return Math.max(LMDB_DEFAULT_MAX_READERS, TaskExecution.maxTasksInFlight());
+	}
+
+	private static String syncMode(){
+		return Config.get(Key.LMDB_SYNC).trim().toUpperCase();
+	}
+
+	/**
+	 * @return The environment flags for the configured tuning options.
+	 */
+	static EnvFlags[] flags(){
+		List<EnvFlags> flags = new ArrayList<>();
+		//Read transactions are bound to the OS thread unless MDB_NOTLS is set, virtual threads
+		//migrate between carrier threads so the binding is dropped when they are used.
+		if(TaskExecution.virtualThreads())
+			flags.add(EnvFlags.MDB_NOTLS);
+		if(!Config.getBoolean(Key.LMDB_READ_AHEAD))
+			flags.add(EnvFlags.MDB_NORDAHEAD);
+		if(Config.getBoolean(Key.LMDB_WRITE_MAP))
+			flags.add(EnvFlags.MDB_WRITEMAP);
+		String syncMode = syncMode();
+		if(syncMode.equals("NOSYNC"))
+			flags.add(EnvFlags.MDB_NOSYNC);
+		else if(syncMode.equals("NOMETASYNC"))
+			flags.add(EnvFlags.MDB_NOMETASYNC);
+		else if(!syncMode.equals("SYNC"))
+			throw new RuntimeException("Unknown LMDB_SYNC mode '" + syncMode + "', expected SYNC, NOMETASYNC or NOSYNC");
+		return flags.toArray(new EnvFlags[0]);
+	}
+
+	/**
+	 * Opens or creates a named database.
+	 * @param name The name of the database.
+	 * @param flags The database flags.
+	 * @return The database.
+	 */
+	public Dbi<ByteBuffer> openDbi(String name, DbiFlags... flags){
+		return env.openDbi(name, flags);
+	}
+
+	/**
+	 * Starts a shared section: the map is not resized until it is closed.
+	 * @return The section, to close after the transaction.
+	 */
+	public Shared shared(){
+		final Lock lock = resizeLock.readLock();
+		lock.lock();
+		return lock::unlock;
+	}
+
+	/**
+	 * @return A new read transaction, start it within {@link #shared()}.
+	 */
+	public Txn<ByteBuffer> txnRead(){
+		return env.txnRead();
+	}
+
+	/**
+	 * @return A new write transaction, start it within {@link #shared()}.
+	 */
+	public Txn<ByteBuffer> txnWrite(){
+		return env.txnWrite();
+	}
+
+	/**
+	 * Runs and commits a write transaction. When the map is full it grows and the
+	 * transaction is retried, so the work should only depend on its own input.
+	 * @param work The work in the write transaction, it should not commit.
+	 */
+	public void write(Consumer<Txn<ByteBuffer>> work){
+		while(true) {
+			long mapSize = mapSize();
+			try (Shared shared = shared(); Txn<ByteBuffer> txn = env.txnWrite()) {
+				work.accept(txn);
+				txn.commit();
+				return;
+			} catch (Env.MapFullException e) {
+				grow(mapSize);
+			}
+		}
+	}
+
+	/**
+	 * @return The current size of the map in bytes.
+	 */
+	public long mapSize(){
+		return env.info().mapSize;
+	}
+
+	/**
+	 * Doubles the size of the map after a write transaction found it full. When several
+	 * writers find the map full at the same time it is only grown once. The caller should
+	 * retry the transaction afterwards and not be in a shared section.
+	 * @param fullMapSize The size of the map when it was found full.
+	 */
+	public void grow(long fullMapSize){
+		final Lock lock = resizeLock.writeLock();
+		lock.lock();
+		try {
+			long current = mapSize();
+			if(current > fullMapSize)
+				return;
+			if(current >= maximumMapSize)
+				throw new RuntimeException(String.format("The LMDB map in %s is full at %d MB, raise LMDB_MAX_MAP_SIZE_MB", folder, current / MB));
+			long grown = Math.min(maximumMapSize, 2 * current);
+			env.setMapSize(grown);
+			LOG.info(String.format("Grew the LMDB map in %s from %d MB to %d MB", folder, current / MB, grown / MB));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes the data to disk. Only needed when LMDB_SYNC defers syncing.
+	 */
+	public void sync(){
+		if(!deferredSync)
+			return;
+		final Lock lock = resizeLock.readLock();
+		lock.lock();
+		try {
+			if(!env.isClosed())
+				env.sync(true);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return True if the environment is closed.
+	 */
+	public boolean isClosed(){
+		return env.isClosed();
+	}
+
+	/**
+	 * Syncs, if needed, and closes the environment.
+	 */
+	@Override
+	public void close(){
+		sync();
+		env.close();
+		if(syncOnExit != null) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(syncOnExit);
+			} catch (IllegalStateException e) {
+				//the JVM is shutting down, the hook finds the environment closed
+			}
+		}
+	}
+}
@@ -0,0 +1,400 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy;
+
+import be.panako.cli.Panako;
+import be.panako.util.AudioDecoder;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.tarsos.dsp.AudioDispatcher;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.AudioProcessor;
+import be.tarsos.dsp.io.PipedAudioStream;
+import be.tarsos.dsp.io.TarsosDSPAudioInputStream;
+import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
+import be.tarsos.dsp.io.jvm.JVMAudioInputStream;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Monitors an unbounded audio stream. Fingerprints are accepted as soon as they are extracted and
+ * every interval the fingerprints of the last window are queried.
+ *
+ * Queries run on a separate thread so extraction keeps up with the stream. At most one window waits
+ * while a query runs. If queries can not keep up with a live stream, the oldest waiting window is
+ * dropped, so the results of a window are reported at most two query durations after the window
+ * closes and the thread accepting the fingerprints never waits. For other streams extraction waits
+ * for the queries instead.
+ */
+public class StreamMonitor implements FingerprintSink {
+
+	private final static Logger LOG = Logger.getLogger(StreamMonitor.class.getName());
+
+	/**
+	 * The resource which reads 16bit mono little endian PCM, at the sample rate of the strategy, from standard input.
+	 */
+	public static final String STANDARD_INPUT = "-";
+
+	/**
+	 * Queries the fingerprints of a window.
+	 */
+	@FunctionalInterface
+	public interface WindowQuery {
+		/**
+		 * Query the fingerprints of a window and report the results.
+		 * @param window The fingerprints of the window, in order of t1.
+		 * @param start The start of the window in seconds since the start of the stream.
+		 * @param stop The end of the window in seconds since the start of the stream.
+		 */
+		void query(FingerprintBatch window, double start, double stop);
+	}
+
+	private final double secondsPerFrame;
+	private final double windowSize;
+	private final double interval;
+	private final WindowQuery windowQuery;
+
+	private FingerprintBatch prints;
+	private double nextWindowStop;
+	private boolean printsSinceLastWindow;
+
+	private final ThreadPoolExecutor queryThread;
+	private final boolean live;
+	private final Semaphore waitingWindows;
+	private final AtomicInteger queriedWindows;
+	private final AtomicInteger droppedWindows;
+	private final AtomicLong maxLatency;
+	private final AtomicLong totalLatency;
+
+	/**
+	 * Create a new stream monitor.
+	 * @param secondsPerFrame The duration of an analysis frame, to convert t1 to seconds.
+	 * @param windowSize The duration of a queried window in seconds.
+	 * @param interval The time between the start of subsequent windows in seconds.
+	 * @param windowQuery Queries the windows.
+	 * @param live If true windows are dropped when queries can not keep up, otherwise extraction waits.
+	 */
+	public StreamMonitor(double secondsPerFrame, double windowSize, double interval, WindowQuery windowQuery, boolean live){
+		this(secondsPerFrame, windowSize, interval, windowQuery, live, true);
+	}
+
+	/**
+	 * Create a new stream monitor which queries each window on the thread accepting the fingerprints, as
+	 * soon as the window closes. Use this when the window query itself hands the window to another
+	 * stage, e.g. to combine the windows of many streams.
+	 * @param secondsPerFrame The duration of an analysis frame, to convert t1 to seconds.
+	 * @param windowSize The duration of a queried window in seconds.
+	 * @param interval The time between the start of subsequent windows in seconds.
+	 * @param windowQuery Queries the windows.
+	 */
+	public StreamMonitor(double secondsPerFrame, double windowSize, double interval, WindowQuery windowQuery){
+		this(secondsPerFrame, windowSize, interval, windowQuery, false, false);
+	}
+
+	private StreamMonitor(double secondsPerFrame, double windowSize, double interval, WindowQuery windowQuery, boolean live, boolean useQueryThread){
+		if(interval <= 0 || windowSize <= 0)
+			throw new IllegalArgumentException("Window size and interval should be positive");
+		this.secondsPerFrame = secondsPerFrame;
+		this.windowSize = windowSize;
+		this.interval = interval;
+		this.windowQuery = windowQuery;
+		this.prints = new FingerprintBatch();
+		this.nextWindowStop = windowSize;
+		this.printsSinceLastWindow = false;
+		this.live = live;
+		queriedWindows = new AtomicInteger();
+		droppedWindows = new AtomicInteger();
+		maxLatency = new AtomicLong();
+		totalLatency = new AtomicLong();
+
+		if(!useQueryThread) {
+			this.waitingWindows = null;
+			this.queryThread = null;
+			return;
+		}
+
+		//a live stream never waits: the queue holds one window and the oldest waiting window is dropped.
+		//Otherwise the semaphore limits the running query and the waiting windows to two.
+		this.waitingWindows = live ? null : new Semaphore(2);
+		BlockingQueue<Runnable> queue = live ? new ArrayBlockingQueue<>(1) : new LinkedBlockingQueue<>();
+		queryThread = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, queue, r -> {
+			Thread t = new Thread(r, "Stream monitor query");
+			t.setDaemon(true);
+			return t;
+		}, new ThreadPoolExecutor.DiscardOldestPolicy() {
+			@Override
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+				droppedWindows.incrementAndGet();
+				super.rejectedExecution(r, e);
+			}
+		});
+	}
+
+	@Override
+	public void accept(long hash, int t1, int f1) {
+		double time = t1 * secondsPerFrame;
+		while(time >= nextWindowStop) {
+			closeWindow(nextWindowStop);
+			nextWindowStop += interval;
+		}
+		prints.add(hash, 0, t1, f1);
+		printsSinceLastWindow = true;
+	}
+
+	private void closeWindow(double stop) {
+		double start = Math.max(0, stop - windowSize);
+		FingerprintBatch window = new FingerprintBatch(prints.size());
+		FingerprintBatch remaining = new FingerprintBatch(prints.size());
+		double nextStart = stop + interval - windowSize;
+		for(int i = 0 ; i < prints.size() ; i++) {
+			double time = prints.t1(i) * secondsPerFrame;
+			if(time >= start)
+				window.add(prints.hash(i), prints.resourceIdentifier(i), prints.t1(i), prints.f1(i));
+			if(time >= nextStart)
+				remaining.add(prints.hash(i), prints.resourceIdentifier(i), prints.t1(i), prints.f1(i));
+		}
+		prints = remaining;
+		printsSinceLastWindow = false;
+		if(window.isEmpty())
+			return;
+
+		if(waitingWindows != null)
+			waitingWindows.acquireUninterruptibly();
+		final long closed = System.nanoTime();
+		Runnable query = () -> {
+			try {
+				windowQuery.query(window, start, stop);
+			}catch (RuntimeException e) {
+				LOG.severe("Query of stream window failed: " + e.getMessage());
+				e.printStackTrace();
+			}
+			long latency = System.nanoTime() - closed;
+			maxLatency.accumulateAndGet(latency, Math::max);
+			totalLatency.addAndGet(latency);
+			queriedWindows.incrementAndGet();
+			if(waitingWindows != null)
+				waitingWindows.release();
+		};
+		if(queryThread == null)
+			query.run();
+		else
+			queryThread.execute(query);
+	}
+
+	/**
+	 * Queries the last, partial window and waits until all windows are queried. Call this when the stream ends.
+	 */
+	public void finish() {
+		if(printsSinceLastWindow)
+			closeWindow(nextWindowStop);
+		if(queryThread != null) {
+			queryThread.shutdown();
+			try {
+				queryThread.awaitTermination(1, TimeUnit.DAYS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		LOG.info(String.format("Monitored %d windows, %d windows dropped, maximum latency %.1fms", queriedWindows.get(), droppedWindows.get(), getMaximumLatency() * 1000));
+	}
+
+	/**
+	 * @return The number of queried windows.
+	 */
+	public int getNumberOfQueriedWindows() {
+		return queriedWindows.get();
+	}
+
+	/**
+	 * @return The number of windows which were dropped because queries could not keep up.
+	 */
+	public int getNumberOfDroppedWindows() {
+		return droppedWindows.get();
+	}
+
+	/**
+	 * @return The maximum time in seconds between the end of a window and its reported results.
+	 */
+	public double getMaximumLatency() {
+		return maxLatency.get() / 1e9;
+	}
+
+	/**
+	 * @return The average time in seconds between the end of a window and its reported results.
+	 */
+	public double getAverageLatency() {
+		int queried = queriedWindows.get();
+		return queried == 0 ? 0 : totalLatency.get() / 1e9 / queried;
+	}
+
+	/**
+	 * Checks whether a resource is an unbounded stream: the microphone, standard input or a URL.
+	 * @param resource The resource to monitor.
+	 * @return True if the resource is a stream.
+	 */
+	public static boolean isStream(String resource) {
+		return resource.equals(Panako.DEFAULT_MICROPHONE) || resource.equals(STANDARD_INPUT) || resource.contains("://");
+	}
+
+	/**
+	 * Opens a stream, or a file which is then played at real time speed if {@link Key#MONITOR_REAL_TIME} is set.
+	 * The microphone is read with javax.sound, standard input is expected to contain 16bit mono little endian
+	 * PCM at the requested sample rate and URLs are decoded with the pipe decoder.
+	 * @param resource The resource to monitor.
+	 * @param sampleRate The requested sample rate.
+	 * @param size The size of the audio blocks in samples.
+	 * @param overlap The overlap of the audio blocks in samples.
+	 * @return An audio dispatcher for the stream.
+	 */
+	public static AudioDispatcher dispatcher(String resource, int sampleRate, int size, int overlap) {
+		if(resource.equals(Panako.DEFAULT_MICROPHONE)) {
+			try {
+				return AudioDispatcherFactory.fromDefaultMicrophone(sampleRate, size, overlap);
+			} catch (LineUnavailableException e) {
+				throw new RuntimeException("Microphone not available", e);
+			}
+		}
+		if(resource.equals(STANDARD_INPUT)) {
+			AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+			AudioInputStream stream = new AudioInputStream(new BufferedInputStream(System.in), format, AudioSystem.NOT_SPECIFIED);
+			return new AudioDispatcher(new JVMAudioInputStream(stream), size, overlap);
+		}
+		if(resource.contains("://"))
+			return AudioDispatcherFactory.fromPipe(resource, sampleRate, size, overlap);
+
+		AudioDispatcher d = AudioDecoder.fromResource(resource, sampleRate, size, overlap);
+		if(Config.getBoolean(Key.MONITOR_REAL_TIME))
+			d.addAudioProcessor(new RealTimeProcessor(sampleRate, size - overlap));
+		return d;
+	}
+
+	/**
+	 * Opens a stream as 16bit mono little endian PCM. The microphone is read with javax.sound, standard
+	 * input is expected to contain PCM at the requested sample rate already and URLs are decoded with the
+	 * pipe decoder.
+	 * @param resource The stream to open, see {@link #isStream(String)}.
+	 * @param sampleRate The requested sample rate.
+	 * @return The PCM of the stream, reading blocks until audio is available.
+	 */
+	public static InputStream inputStream(String resource, int sampleRate) {
+		AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+		if(resource.equals(Panako.DEFAULT_MICROPHONE)) {
+			try {
+				TargetDataLine line = AudioSystem.getTargetDataLine(format);
+				line.open(format);
+				line.start();
+				return new AudioInputStream(line);
+			} catch (LineUnavailableException e) {
+				throw new RuntimeException("Microphone not available", e);
+			}
+		}
+		if(resource.equals(STANDARD_INPUT))
+			return new BufferedInputStream(System.in);
+		if(!resource.contains("://"))
+			throw new IllegalArgumentException(resource + " is not a stream");
+
+		final TarsosDSPAudioInputStream stream = new PipedAudioStream(resource).getMonoStream(sampleRate, 0);
+		return new InputStream() {
+			private final byte[] single = new byte[1];
+
+			@Override
+			public int read() throws IOException {
+				int read;
+				while((read = read(single, 0, 1)) == 0);
+				return read < 0 ? -1 : single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				return stream.read(buffer, offset, length);
+			}
+
+			@Override
+			public void close() throws IOException {
+				stream.close();
+			}
+		};
+	}
+
+	/**
+	 * Slows processing down to real time speed, to simulate a live stream with a file.
+	 */
+	private static class RealTimeProcessor implements AudioProcessor {
+		private final double secondsPerBlock;
+		private long start = -1;
+		private long blocks = 0;
+
+		RealTimeProcessor(int sampleRate, int stepSize) {
+			secondsPerBlock = stepSize / (double) sampleRate;
+		}
+
+		@Override
+		public boolean process(AudioEvent audioEvent) {
+			if(start < 0)
+				start = System.nanoTime();
+			blocks++;
+			long due = start + (long) (blocks * secondsPerBlock * 1e9);
+			long wait = due - System.nanoTime();
+			if(wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void processingFinished() {
+		}
+	}
+}
@@ -0,0 +1,536 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.strategy.olaf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import be.panako.strategy.CandidateVerifier;
+import be.panako.strategy.FingerprintBatch;
+import be.panako.strategy.QueryResult;
+import be.panako.strategy.QueryResultHandler;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+import be.panako.util.StopWatch;
+import be.panako.util.TaskExecution;
+import be.panako.util.TimeUnit;
+
+/**
+ * Finds duplicates in a set of audio files without storing them first.
+ *
+ * Each file is fingerprinted once. The fingerprints of all files are collected in one index,
+ * which is sorted on hash: in memory or, for large catalogues, as sorted runs in temporary files
+ * which are merged. A single pass over the sorted fingerprints joins the index with itself: each
+ * pair of fingerprints of different files with a hash within the query range is a hit for the
+ * pair of files. Pairs of files with enough hits are verified with the same delta t line fit as a
+ * query.
+ *
+ * Compared to storing each file and monitoring each file again, the audio is decoded once
+ * and the index is not probed window by window.
+ */
+public class OlafDeduplicator {
+	private final static Logger LOG = Logger.getLogger(OlafDeduplicator.class.getName());
+
+	private final OlafStrategy strategy;
+	private final int queryRange;
+	private final int maxHashFrequency;
+	private final int minimumHits;
+	private final int printsInMemory;
+
+	private FingerprintBatch prints;
+	private final List<File> runs;
+
+	private int numberOfFiles;
+	private long numberOfPrints;
+	private long candidatePairs;
+	private int duplicatePairs;
+	private double extractionSeconds;
+	private double joinSeconds;
+	private double verificationSeconds;
+
+	/**
+	 * Create a new deduplicator.
+	 * @param strategy The strategy used to extract and verify fingerprints.
+	 */
+	public OlafDeduplicator(OlafStrategy strategy){
+		this.strategy = strategy;
+		this.queryRange = Config.getInt(Key.OLAF_QUERY_RANGE);
+		this.maxHashFrequency = Config.getInt(Key.OLAF_DEDUP_MAX_HASH_FREQUENCY);
+		this.minimumHits = Config.getInt(Key.OLAF_MIN_HITS_UNFILTERED);
+		this.printsInMemory = Math.max(1, Config.getInt(Key.OLAF_DEDUP_PRINTS_IN_MEMORY));
+		this.runs = new ArrayList<>();
+	}
+
+	/**
+	 * Finds the duplicates in a list of audio files. Each pair of duplicates is reported once:
+	 * the query path is the file first in the list, the reference the other file.
+	 * @param paths The paths of the audio files.
+	 * @param handler Receives a result for each pair of duplicates.
+	 * @return The number of pairs of duplicates.
+	 */
+	public int deduplicate(List<String> paths, QueryResultHandler handler){
+		prints = new FingerprintBatch(Math.min(printsInMemory, 1 << 20));
+		runs.clear();
+		numberOfFiles = paths.size();
+		numberOfPrints = 0;
+
+		try {
+			StopWatch w = new StopWatch();
+			extract(paths);
+			extractionSeconds = w.timePassed(TimeUnit.SECONDS);
+
+			w.start();
+			Map<Long,List<OlafMatch>> hitsPerPair = join();
+			joinSeconds = w.timePassed(TimeUnit.SECONDS);
+
+			w.start();
+			duplicatePairs = verify(paths, hitsPerPair, handler);
+			verificationSeconds = w.timePassed(TimeUnit.SECONDS);
+		} finally {
+			prints = null;
+			for(File run : runs)
+				if(!run.delete())
+					LOG.warning("Could not delete temporary file " + run.getAbsolutePath());
+		}
+		LOG.info(statistics());
+		return duplicatePairs;
+	}
+
+	private void extract(List<String> paths){
+		ExecutorService executor = TaskExecution.newTaskExecutor();
+		List<Future<?>> tasks = new ArrayList<>();
+		for(int i = 0 ; i < paths.size() ; i++){
+			final int fileIndex = i;
+			final String path = paths.get(i);
+			tasks.add(executor.submit(() -> {
+				FingerprintBatch filePrints = new FingerprintBatch();
+				strategy.extractFingerprints(path, filePrints.sinkFor(fileIndex));
+				add(filePrints);
+				LOG.info(String.format("Extracted %d fingerprints from %s for deduplication", filePrints.size(), path));
+			}));
+		}
+		executor.shutdown();
+		try {
+			for(Future<?> task : tasks)
+				task.get();
+		} catch (Exception e) {
+			executor.shutdownNow();
+			throw new RuntimeException("Fingerprint extraction for deduplication failed", e);
+		}
+	}
+
+	private synchronized void add(FingerprintBatch filePrints){
+		for(int i = 0 ; i < filePrints.size() ; i++) {
+			prints.add(filePrints.hash(i), filePrints.resourceIdentifier(i), filePrints.t1(i));
+			if(prints.size() >= printsInMemory)
+				spill();
+		}
+		numberOfPrints += filePrints.size();
+	}
+
+	/**
+	 * Writes the sorted in memory fingerprints to a temporary file.
+	 */
+	private void spill(){
+		prints.sortByHash();
+		try {
+			File run = File.createTempFile("panako_dedup_", ".run", new File(FileUtils.temporaryDirectory()));
+			run.deleteOnExit();
+			runs.add(run);
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))){
+				for(int i = 0 ; i < prints.size() ; i++){
+					out.writeLong(prints.hash(i));
+					out.writeInt(prints.resourceIdentifier(i));
+					out.writeInt(prints.t1(i));
+				}
+			}
+			LOG.info(String.format("Spilled %d sorted fingerprints to %s", prints.size(), run.getAbsolutePath()));
+		} catch (IOException e) {
+			throw new RuntimeException("Could not spill fingerprints to a temporary file", e);
+		}
+		prints.clear();
+	}
+
+	/**
+	 * Joins the sorted fingerprints with themselves, in two passes: the first pass counts
+	 * the hits of each pair of files, the second only collects the hits of pairs with enough hits.
+	 */
+	private Map<Long,List<OlafMatch>> join(){
+		prints.sortByHash();
+
+		Map<Long,int[]> hitCountPerPair = new HashMap<>();
+		sweep((a, b) -> {
+			long pair = pairKey(a, b);
+			int[] count = hitCountPerPair.get(pair);
+			if(count == null)
+				hitCountPerPair.put(pair, new int[]{1});
+			else
+				count[0]++;
+		});
+
+		Map<Long,List<OlafMatch>> hitsPerPair = new HashMap<>();
+		hitCountPerPair.forEach((pair, count) -> {
+			if(count[0] >= minimumHits)
+				hitsPerPair.put(pair, new ArrayList<>(count[0]));
+		});
+		candidatePairs = hitsPerPair.size();
+		LOG.info(String.format("%d pairs of files share fingerprints, %d pairs with at least %d hits", hitCountPerPair.size(), candidatePairs, minimumHits));
+		hitCountPerPair.clear();
+
+		if(!hitsPerPair.isEmpty()) {
+			sweep((a, b) -> {
+				List<OlafMatch> hits = hitsPerPair.get(pairKey(a, b));
+				if(hits == null)
+					return;
+				//the file first in the list is the query
+				Cursor query = a.resourceIdentifier < b.resourceIdentifier ? a : b;
+				Cursor reference = query == a ? b : a;
+				OlafMatch hit = new OlafMatch();
+				hit.identifier = reference.resourceIdentifier;
+				hit.queryTime = query.t1;
+				hit.matchTime = reference.t1;
+				hit.originalHash = query.hash;
+				hit.matchedNearHash = reference.hash;
+				hits.add(hit);
+			});
+		}
+		return hitsPerPair;
+	}
+
+	private static long pairKey(Cursor a, Cursor b){
+		int first = Math.min(a.resourceIdentifier, b.resourceIdentifier);
+		int second = Math.max(a.resourceIdentifier, b.resourceIdentifier);
+		return ((long) first << 32) | second;
+	}
+
+	/**
+	 * Passes each pair of fingerprints of different files with a hash within the query range to the visitor.
+	 */
+	private void sweep(PairVisitor visitor){
+		Cursor cursor = openSortedPrints();
+		try {
+			//the previous fingerprints with a hash within the query range of the current one
+			Window window = new Window();
+			Cursor previous = new Cursor();
+			while(cursor.next()) {
+				window.evictBelow(cursor.hash - queryRange);
+				//frequent hashes only add random hits, like hashes on the stop list
+				if(window.size < maxHashFrequency) {
+					for(int i = 0 ; i < window.size ; i++) {
+						window.get(i, previous);
+						if(previous.resourceIdentifier != cursor.resourceIdentifier)
+							visitor.visit(previous, cursor);
+					}
+				}
+				window.add(cursor);
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private Cursor openSortedPrints(){
+		if(runs.isEmpty())
+			return new BatchCursor(prints);
+		List<Cursor> cursors = new ArrayList<>();
+		cursors.add(new BatchCursor(prints));
+		for(File run : runs)
+			cursors.add(new RunCursor(run));
+		return new MergeCursor(cursors);
+	}
+
+	private int verify(List<String> paths, Map<Long,List<OlafMatch>> hitsPerPair, QueryResultHandler handler){
+		if(hitsPerPair.isEmpty())
+			return 0;
+		boolean fallbackToHistogram = Config.getBoolean(Key.OLAF_MATCH_FALLBACK_TO_HIST);
+		List<QueryResult> results = CandidateVerifier.verify(hitsPerPair.entrySet(), entry -> {
+			String queryPath = paths.get((int) (entry.getKey() >>> 32));
+			int reference = (int) (long) entry.getKey();
+			QueryResult result = strategy.verifyWithLineFit(queryPath, reference, entry.getValue());
+			if(result == null && fallbackToHistogram)
+				result = strategy.verifyWithHistogram(queryPath, reference, entry.getValue());
+			return result;
+		}, hitsPerPair.size());
+
+		for(QueryResult r : results) {
+			String refPath = paths.get(Integer.parseInt(r.refIdentifier));
+			String refIdentifier = String.valueOf(FileUtils.getIdentifier(refPath));
+			handler.handleQueryResult(new QueryResult(r.queryPath, r.queryStart, r.queryStop, refPath, refIdentifier, r.refStart, r.refStop, r.score, r.timeFactor, r.frequencyFactor, r.percentOfSecondsWithMatches));
+		}
+		return results.size();
+	}
+
+	/**
+	 * @return The number of files of the last deduplication.
+	 */
+	public int getNumberOfFiles(){
+		return numberOfFiles;
+	}
+
+	/**
+	 * @return The number of fingerprints extracted during the last deduplication.
+	 */
+	public long getNumberOfPrints(){
+		return numberOfPrints;
+	}
+
+	/**
+	 * @return The number of pairs of files with enough hits to be verified.
+	 */
+	public long getNumberOfCandidatePairs(){
+		return candidatePairs;
+	}
+
+	/**
+	 * @return The number of verified pairs of duplicates.
+	 */
+	public int getNumberOfDuplicatePairs(){
+		return duplicatePairs;
+	}
+
+	/**
+	 * @return The number of temporary files with sorted fingerprints.
+	 */
+	public int getNumberOfSpilledRuns(){
+		return runs.size();
+	}
+
+	/**
+	 * @return The number of files processed per second, extraction included.
+	 */
+	public double getFilesPerSecond(){
+		double seconds = extractionSeconds + joinSeconds + verificationSeconds;
+		return seconds == 0 ? 0 : numberOfFiles / seconds;
+	}
+
+	/**
+	 * @return A summary of the last deduplication.
+	 */
+	public String statistics(){
+		return String.format(Locale.US, "Deduplicated %d files (%d fingerprints, %d spilled runs): %d candidate pairs, %d duplicate pairs. Extraction %.2fs, join %.2fs, verification %.2fs, %.1f files/s",
+				numberOfFiles, numberOfPrints, runs.size(), candidatePairs, duplicatePairs, extractionSeconds, joinSeconds, verificationSeconds, getFilesPerSecond());
+	}
+
+	private interface PairVisitor {
+		void visit(Cursor a, Cursor b);
+	}
+
+	/**
+	 * Iterates fingerprints in hash order.
+	 */
+	private static class Cursor {
+		long hash;
+		int resourceIdentifier;
+		int t1;
+
+		boolean next(){
+			return false;
+		}
+
+		void close(){
+		}
+
+		int compareTo(Cursor other){
+			int c = Long.compare(hash, other.hash);
+			if(c != 0)
+				return c;
+			c = Integer.compare(resourceIdentifier, other.resourceIdentifier);
+			if(c != 0)
+				return c;
+			return Integer.compare(t1, other.t1);
+		}
+	}
+
+	private static class BatchCursor extends Cursor {
+		private final FingerprintBatch batch;
+		private int index;
+
+		BatchCursor(FingerprintBatch batch){
+			this.batch = batch;
+			this.index = -1;
+		}
+
+		@Override
+		boolean next(){
+			index++;
+			if(index >= batch.size())
+				return false;
+			hash = batch.hash(index);
+			resourceIdentifier = batch.resourceIdentifier(index);
+			t1 = batch.t1(index);
+			return true;
+		}
+	}
+
+	private static class RunCursor extends Cursor {
+		private final DataInputStream in;
+
+		RunCursor(File run){
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+			} catch (IOException e) {
+				throw new RuntimeException("Could not read spilled fingerprints " + run.getAbsolutePath(), e);
+			}
+		}
+
+		@Override
+		boolean next(){
+			try {
+				hash = in.readLong();
+				resourceIdentifier = in.readInt();
+				t1 = in.readInt();
+				return true;
+			} catch (EOFException e) {
+				return false;
+			} catch (IOException e) {
+				throw new RuntimeException("Could not read spilled fingerprints", e);
+			}
+		}
+
+		@Override
+		void close(){
+			try {
+				in.close();
+			} catch (IOException e) {
+				LOG.warning("Could not close spilled fingerprints: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Merges sorted cursors into one sorted cursor.
+	 */
+	private static class MergeCursor extends Cursor {
+		private final List<Cursor> cursors;
+		private final PriorityQueue<Cursor> heap;
+		private Cursor current;
+
+		MergeCursor(List<Cursor> cursors){
+			this.cursors = cursors;
+			this.heap = new PriorityQueue<>(Math.max(1, cursors.size()), Cursor::compareTo);
+			for(Cursor c : cursors)
+				if(c.next())
+					heap.add(c);
+		}
+
+		@Override
+		boolean next(){
+			if(current != null && current.next())
+				heap.add(current);
+			current = heap.poll();
+			if(current == null)
+				return false;
+			hash = current.hash;
+			resourceIdentifier = current.resourceIdentifier;
+			t1 = current.t1;
+			return true;
+		}
+
+		@Override
+		void close(){
+			for(Cursor c : cursors)
+				c.close();
+		}
+	}
+
+	/**
+	 * A ring buffer with the fingerprints preceding the current one.
+	 */
+	private static class Window {
+		private long[] hashes = new long[64];
+		private int[] resourceIdentifiers = new int[64];
+		private int[] t1s = new int[64];
+		private int head = 0;
+		int size = 0;
+
+		void evictBelow(long minimumHash){
+			while(size > 0 && hashes[head] < minimumHash) {
+				head = (head + 1) % hashes.length;
+				size--;
+			}
+		}
+
+		void get(int i, Cursor target){
+			int index = (head + i) % hashes.length;
+			target.hash = hashes[index];
+			target.resourceIdentifier = resourceIdentifiers[index];
+			target.t1 = t1s[index];
+		}
+
+		void add(Cursor c){
+			if(size == hashes.length)
+				grow();
+			int index = (head + size) % hashes.length;
+			hashes[index] = c.hash;
+			resourceIdentifiers[index] = c.resourceIdentifier;
+			t1s[index] = c.t1;
+			size++;
+		}
+
+		private void grow(){
+			long[] newHashes = new long[hashes.length * 2];
+			int[] newResourceIdentifiers = new int[hashes.length * 2];
+			int[] newT1s = new int[hashes.length * 2];
+			for(int i = 0 ; i < size ; i++) {
+				int index = (head + i) % hashes.length;
+				newHashes[i] = hashes[index];
+				newResourceIdentifiers[i] = resourceIdentifiers[index];
+				newT1s[i] = t1s[index];
+			}
+			hashes = newHashes;
+			resourceIdentifiers = newResourceIdentifiers;
+			t1s = newT1s;
+			head = 0;
+		}
+	}
+}
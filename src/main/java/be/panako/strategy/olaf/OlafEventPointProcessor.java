@@ -41,7 +41,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import be.panako.strategy.FingerprintSink;
 import be.panako.util.Config;
+import be.panako.util.EventPointIndex;
 import be.panako.util.Key;
 import be.panako.util.LemireMinMaxFilter;
 import be.tarsos.dsp.AudioEvent;
@@ -78,6 +80,21 @@ public class OlafEventPointProcessor implements AudioProcessor {
 	private final List<OlafEventPoint> eventPoints = new ArrayList<>();
 	private final List<OlafFingerprint> fingerprints = new ArrayList<>();
 
+	/**
+	 * Receives the fingerprints, null if fingerprints are kept in the list.
+	 */
+	private final FingerprintSink fingerprintSink;
+
+	/**
+	 * The time of the last event point of the last fingerprint.
+	 */
+	private int lastFingerprintTime = -1;
+
+	/**
+	 * The index of the first event point which is not yet packed into fingerprints.
+	 */
+	private int packIndex = 0;
+
 	private int analysisFrameIndex = 0;
 	
 	private final LemireMinMaxFilter maxFilterVertical;
@@ -89,14 +106,44 @@ public class OlafEventPointProcessor implements AudioProcessor {
 
 	private final int[] frequencyFilterMinIndexes;
 	private final int[] frequencyFilterMaxIndexes;
+
+	private final int minFreqDistance = Config.getInt(Key.OLAF_FP_MIN_FREQ_DIST);
+	private final int maxFreqDistance = Config.getInt(Key.OLAF_FP_MAX_FREQ_DIST);
+	private final int minTimeDistance = Config.getInt(Key.OLAF_FP_MIN_TIME_DIST);
+	private final int maxTimeDistance = Config.getInt(Key.OLAF_FP_MAX_TIME_DIST);
+	private final int eventPointsPerFingerprint = Config.getInt(Key.OLAF_EPS_PER_FP);
+	private final int hashLayout = OlafHashLayout.configured();
+
+	/**
+	 * The times and frequencies of the event points, to enumerate only the event
+	 * points within the valid time and frequency distance when packing fingerprints.
+	 */
+	private final EventPointIndex eventPointIndex = new EventPointIndex(minTimeDistance, maxTimeDistance, minFreqDistance, maxFreqDistance);
+	private final EventPointIndex.PairConsumer pairConsumer = (i, j) -> emit(i, j, j);
+	private final EventPointIndex.TripletConsumer tripletConsumer = this::emit;
 	
 	//private final int maxFingerprintsPerEventPoint = 10;
 
 	/**
-	 * Create a new event point processor for this fft size
+	 * Create a new event point processor for this fft size. All
+	 * event points and fingerprints are kept in memory.
 	 * @param fftSize The size of the fft
 	 */
 	public OlafEventPointProcessor(final int fftSize){
+		this(fftSize, null);
+	}
+
+	/**
+	 * Create a new event point processor for this fft size which streams
+	 * fingerprints to a sink. Fingerprints are passed on as soon as all event points
+	 * they can be combined with are known. Event points which are no longer needed
+	 * are forgotten and no fingerprint objects are created, so memory use does not
+	 * grow with the length of the audio.
+	 * @param fftSize The size of the fft
+	 * @param fingerprintSink Receives the fingerprints.
+	 */
+	public OlafEventPointProcessor(final int fftSize, final FingerprintSink fingerprintSink){
+		this.fingerprintSink = fingerprintSink;
 		fft = new FFT(fftSize, new HammingWindow());		
 		
 		magnitudesIndex=0;
@@ -215,6 +262,7 @@ public class OlafEventPointProcessor implements AudioProcessor {
 								+ frameMagnitudes[f-1] + prevFrameMagnitudes[f-1] + nextFrameMagnitudes[f-1];
 						
 						eventPoints.add(new OlafEventPoint(t, f,totalMagnitude));
+						eventPointIndex.add(t, f);
 					}
 				}
 			}
@@ -222,6 +270,9 @@ public class OlafEventPointProcessor implements AudioProcessor {
 			//Remove analysis frames that are not needed any more:
 			previousMaxMagnitudes.remove(analysisFrameIndex-maxFilterWindowSizeTime+1);
 			previousMagnitudes.remove(analysisFrameIndex-maxFilterWindowSizeTime+1);
+
+			//all event points up to and including t are known
+			packEventPointsIntoFingerprints(t);
 		}
 				
 		//magnitude index counter
@@ -262,11 +313,12 @@ public class OlafEventPointProcessor implements AudioProcessor {
 	
 	@Override
 	public void processingFinished() {
-		packEventPointsIntoFingerprints();
+		packEventPointsIntoFingerprints(Integer.MAX_VALUE);
 	}
 
 	/**
-	 * Returns the extracted fingerprints.
+	 * Returns the extracted fingerprints. When the fingerprints are streamed
+	 * to a sink this list is empty.
 	 * @return Returns the extracted fingerprints.
 	 */
 	public List<OlafFingerprint> getFingerprints(){
@@ -274,99 +326,73 @@ public class OlafEventPointProcessor implements AudioProcessor {
 	}
 
 	/**
-	 * Returns the extracted event points.
+	 * Returns the extracted event points. When the fingerprints are streamed
+	 * to a sink, only the event points which are still needed are returned.
 	 * @return Returns the extracted event points.
 	 */
 	public List<OlafEventPoint> getEventPoints() {
 		return eventPoints;
 	}
 
-	private void packEventPointsIntoFingerprintsTwo(){
-
-		int minFreqDistance = Config.getInt(Key.OLAF_FP_MIN_FREQ_DIST);
-		int maxFreqDistance = Config.getInt(Key.OLAF_FP_MAX_FREQ_DIST);
-
-		int minTimeDistance = Config.getInt(Key.OLAF_FP_MIN_TIME_DIST);
-		int maxTimeDistance = Config.getInt(Key.OLAF_FP_MAX_TIME_DIST);
-
-		for(int i = 0; i < eventPoints.size();i++){
-			int t1 = eventPoints.get(i).t;
-			int f1 = eventPoints.get(i).f;
-
-			for(int j = i + 1; j < eventPoints.size() ;j++){
-				int t2 = eventPoints.get(j).t;
-				int f2 = eventPoints.get(j).f;
-
-				int fDiff = Math.abs(f1 - f2);
-				int tDiff = t2-t1;
-
-				if(tDiff > maxTimeDistance) break;
-				if(tDiff < minTimeDistance) continue;
-
-				if(fDiff < minFreqDistance) continue;
-				if(fDiff > maxFreqDistance ) continue;
-
-				OlafFingerprint fingerprint;
-				fingerprint = new OlafFingerprint(eventPoints.get(i),eventPoints.get(j),eventPoints.get(j));
-				fingerprints.add(fingerprint);
+	/**
+	 * Packs each event point into fingerprints once all the event points it can be
+	 * combined with are known: those within the maximum time distance, or twice
+	 * that distance for fingerprints with three event points.
+	 * @param lastCompleteTime All event points up to and including this time are known.
+	 */
+	private void packEventPointsIntoFingerprints(int lastCompleteTime){
+		if(eventPointsPerFingerprint != 2 && eventPointsPerFingerprint != 3){
+			throw new RuntimeException("Key.OLAF_EPS_PER_FP should be either 2 or 3");
+		}
+		final long lookahead = (eventPointsPerFingerprint - 1) * (long) maxTimeDistance;
+
+		//the index only holds the event points which are not packed yet
+		int packed = indexOffset();
+		while(packIndex < eventPoints.size() && eventPoints.get(packIndex).t + lookahead <= lastCompleteTime){
+			if(eventPointsPerFingerprint == 2){
+				eventPointIndex.packPairs(packIndex - packed, pairConsumer);
+			}else{
+				eventPointIndex.packTriplets(packIndex - packed, tripletConsumer);
 			}
+			packIndex++;
 		}
-	}
+		eventPointIndex.removeFirst(packIndex - packed);
 
-	private void packEventPointsIntoFingerprints(){
-		if(Config.getInt(Key.OLAF_EPS_PER_FP) == 2){
-			packEventPointsIntoFingerprintsTwo();
-		}else if(Config.getInt(Key.OLAF_EPS_PER_FP) == 3){
-			packEventPointsIntoFingerprintsThree();
-		}else {
-			throw new RuntimeException("Key.OLAF_EPS_PER_FP should be either 2 or 3");
+		//forget event points which are packed and are too old to be combined with new ones
+		if(fingerprintSink != null && packIndex > 0){
+			eventPoints.subList(0, packIndex).clear();
+			packIndex = 0;
 		}
 	}
 
-	private void packEventPointsIntoFingerprintsThree(){
-		
-		int minFreqDistance = Config.getInt(Key.OLAF_FP_MIN_FREQ_DIST);
-		int maxFreqDistance = Config.getInt(Key.OLAF_FP_MAX_FREQ_DIST);
-		
-		int minTimeDistance = Config.getInt(Key.OLAF_FP_MIN_TIME_DIST);
-		int maxTimeDistance = Config.getInt(Key.OLAF_FP_MAX_TIME_DIST);
-		
-		for(int i = 0; i < eventPoints.size();i++){
-			int t1 = eventPoints.get(i).t;
-			int f1 = eventPoints.get(i).f;
-				
-			for(int j = i + 1; j < eventPoints.size() ;j++){
-				int t2 = eventPoints.get(j).t;
-				int f2 = eventPoints.get(j).f;
-				
-				int fDiff = Math.abs(f1 - f2);
-				int tDiff = t2-t1;
-				
-				if(tDiff > maxTimeDistance) break;
-				if(tDiff < minTimeDistance) continue;
-				
-				if(fDiff < minFreqDistance) continue;
-				if(fDiff > maxFreqDistance ) continue;
-				
-				for(int k = j + 1 ; k <eventPoints.size(); k++) {
-					int t3 = eventPoints.get(k).t;
-					int f3 = eventPoints.get(k).f;
-					
-					fDiff = Math.abs(f2 - f3);
-					tDiff = t3-t2;
-					
-					if(tDiff > maxTimeDistance) break;
-					if(tDiff < minTimeDistance) continue;
-					
-					if(fDiff < minFreqDistance) continue;
-					if(fDiff > maxFreqDistance ) continue;
-					
-					OlafFingerprint fingerprint;
-					fingerprint = new OlafFingerprint(eventPoints.get(i),eventPoints.get(j),eventPoints.get(k));
-					fingerprints.add(fingerprint);
-				}
-			}
-		}
+	/**
+	 * Returns the time of the last event point of the last extracted fingerprint.
+	 * @return The time in analysis frames, or -1 if no fingerprints were extracted.
+	 */
+	public int getLastFingerprintTime(){
+		return lastFingerprintTime;
+	}
+
+	/**
+	 * @return The index in the list of event points of the first event point in the index.
+	 */
+	private int indexOffset(){
+		return eventPoints.size() - eventPointIndex.size();
+	}
+
+	/**
+	 * Creates a fingerprint from event points in the index.
+	 */
+	private void emit(int i, int j, int k){
+		int offset = indexOffset();
+		OlafEventPoint e1 = eventPoints.get(i + offset);
+		OlafEventPoint e2 = eventPoints.get(j + offset);
+		OlafEventPoint e3 = eventPoints.get(k + offset);
+		lastFingerprintTime = e3.t;
+		if(fingerprintSink == null)
+			fingerprints.add(new OlafFingerprint(e1,e2,e3));
+		else
+			fingerprintSink.accept(OlafFingerprint.hash(hashLayout,e1.t,e1.f,e1.m,e2.t,e2.f,e2.m,e3.t,e3.f,e3.m), e1.t, e1.f);
 	}
 
 	private float binToHz(int f) {
@@ -383,7 +409,10 @@ public class OlafEventPointProcessor implements AudioProcessor {
 	 */
 	public void reset() {
 		eventPoints.clear();
+		eventPointIndex.clear();
 		fingerprints.clear();
+		packIndex=0;
+		lastFingerprintTime=-1;
 		analysisFrameIndex=0;
 		magnitudesIndex=0;
 		previousMagnitudes.clear();
@@ -155,7 +155,43 @@ public class OlafFingerprint {
 		if(hash!=0)
 			return hash;
 		//else
-		
+		hash = hash(t1,f1,m1,t2,f2,m2,t3,f3,m3);
+		return hash;
+	}
+
+	/**
+	 * Calculates the hash of a fingerprint from its components, without creating a fingerprint.
+	 * The configured hash layout is used.
+	 * @param t1 time component of the event point 1
+	 * @param f1 frequency component of the event point 1
+	 * @param m1 magnitude component of the event point 1
+	 * @param t2 time component of the event point 2
+	 * @param f2 frequency component of the event point 2
+	 * @param m2 magnitude component of the event point 2
+	 * @param t3 time component of the event point 3
+	 * @param f3 frequency component of the event point 3
+	 * @param m3 magnitude component of the event point 3
+	 * @return The calculated hash.
+	 */
+	public static long hash(int t1,int f1,float m1,int t2,int f2,float m2,int t3,int f3,float m3){
+		return hash(OlafHashLayout.configured(),t1,f1,m1,t2,f2,m2,t3,f3,m3);
+	}
+
+	/**
+	 * Calculates the hash of a fingerprint from its components with a hash layout.
+	 * @param layout The hash layout, see {@link OlafHashLayout}.
+	 * @param t1 time component of the event point 1
+	 * @param f1 frequency component of the event point 1
+	 * @param m1 magnitude component of the event point 1
+	 * @param t2 time component of the event point 2
+	 * @param f2 frequency component of the event point 2
+	 * @param m2 magnitude component of the event point 2
+	 * @param t3 time component of the event point 3
+	 * @param f3 frequency component of the event point 3
+	 * @param m3 magnitude component of the event point 3
+	 * @return The calculated hash.
+	 */
+	public static long hash(int layout,int t1,int f1,float m1,int t2,int f2,float m2,int t3,int f3,float m3){
 		long f1LargerThanF2 = f1 > f2 ? 1 : 0;
 		long f2LargerThanF3 = f2 > f3 ? 1 : 0;
 		long f3LargerThanF1 = f3 > f1 ? 1 : 0;
@@ -176,23 +212,19 @@ public class OlafFingerprint {
 		
 		//6 bits max
 		long diffT = t3 - t1;
-	    
+
+		long comparisons =
+				(f1LargerThanF2      << 0) +
+				(f2LargerThanF3      << 1) +
+				(f3LargerThanF1      << 2) +
+				(m1LargerThanm2      << 3) +
+				(m2LargerThanm3      << 4) +
+				(m3LargerThanm1      << 5) +
+				(dt1t2LargerThant3t2 << 6) +
+				(df1f2LargerThanf3f2 << 7);
+
 		//combine the hash components into a single 64-bit integer
-		hash = 
-				((diffT                &  ((1<<6)  -1)   ) << 0 ) +
-		        ((f1LargerThanF2       &  ((1<<1 ) -1)   ) << 6 ) +
-		        ((f2LargerThanF3       &  ((1<<1 ) -1)   ) << 7 ) +
-		        ((f3LargerThanF1       &  ((1<<1 ) -1)   ) << 8 ) +
-		        ((m1LargerThanm2       &  ((1<<1 ) -1)   ) << 9 ) +
-		        ((m2LargerThanm3       &  ((1<<1 ) -1)   ) << 10) +
-		        ((m3LargerThanm1       &  ((1<<1 ) -1)   ) << 11) +
-		        ((dt1t2LargerThant3t2  &  ((1<<1 ) -1)   ) << 12) +
-		        ((df1f2LargerThanf3f2  &  ((1<<1 ) -1)   ) << 13) +
-		        ((f1Range              &  ((1<<8 ) -1)   ) << 14) +
-		        ((df2f1                &  ((1<<6 ) -1)   ) << 22) +
-		        ((df3f2                &  ((long) (1<<6 ) -1)   ) << 28) ;
-		
-		return hash;
+		return OlafHashLayout.hash(layout, f1Range, df2f1, df3f2, diffT, comparisons);
 	}
 	
 	@Override
@@ -0,0 +1,241 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.strategy.olaf;
+
+import java.io.File;
+import java.util.function.IntConsumer;
+
+import be.panako.strategy.olaf.storage.OlafStoragePostgres;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+
+/**
+ * Defines how the components of an OLAF fingerprint are packed into a hash.
+ *
+ * Both layouts use the same 34 bits: the coarse frequency of the first event point (8 bits),
+ * the frequency differences between the event points (2 x 6 bits), the time difference between
+ * the first and last event point (6 bits) and eight bits comparing the event points.
+ *
+ * <ul>
+ * <li>Layout 1 is the original layout. The time difference is in the lowest bits and the
+ * frequency differences in the highest bits. A query range of two only allows a different time
+ * difference and hashes of similar sounding audio are scattered over the whole key space.</li>
+ * <li>Layout 2 puts the coarse frequency, without its lowest bit, in the highest bits, followed
+ * by the frequency differences. Hashes in the same frequency band are stored close together in
+ * the index, so probes for a query end up in fewer pages. The lowest bit is the lowest bit of the
+ * coarse frequency, followed by the time difference: a query range of two allows a time
+ * difference which is one block longer or shorter. Only the neighbouring coarse frequency which
+ * differs in the lowest bit is within range, e.g. 4 and 5 but not 5 and 6: the other neighbour
+ * differs in the highest bits and is far away in the index.</li>
+ * </ul>
+ *
+ * The layout of an index is recorded in a file next to the index, or as a setting in a PostgreSQL
+ * index. Once fingerprints are stored the layout can only be changed by rehashing the index.
+ */
+public final class OlafHashLayout {
+
+	/**
+	 * The original hash layout.
+	 */
+	public static final int V1 = 1;
+
+	/**
+	 * The frequency ordered hash layout.
+	 */
+	public static final int V2 = 2;
+
+	/**
+	 * The name of the file which records the layout of an index.
+	 */
+	public static final String RECORD_FILE_NAME = "olaf_hash_layout.txt";
+
+	/**
+	 * The name of the setting which records the layout of a PostgreSQL index.
+	 */
+	public static final String SETTING_NAME = "olaf_hash_layout";
+
+	private OlafHashLayout(){
+	}
+
+	/**
+	 * @return The configured hash layout.
+	 */
+	public static int configured(){
+		return validate(Config.getInt(Key.OLAF_HASH_LAYOUT));
+	}
+
+	/**
+	 * Checks whether a layout is known.
+	 * @param layout The layout.
+	 * @return The layout.
+	 */
+	public static int validate(int layout){
+		if(layout != V1 && layout != V2)
+			throw new RuntimeException("Unknown OLAF hash layout " + layout + ", expected " + V1 + " or " + V2);
+		return layout;
+	}
+
+	/**
+	 * Packs fingerprint components into a hash.
+	 * @param layout The hash layout.
+	 * @param f1Range The coarse frequency of the first event point (8 bits).
+	 * @param df2f1 The coarse frequency difference between the first and second event point (6 bits).
+	 * @param df3f2 The coarse frequency difference between the second and third event point (6 bits).
+	 * @param diffT The time difference between the first and third event point (6 bits).
+	 * @param comparisons Eight bits comparing frequencies, magnitudes and distances of the event points.
+	 * @return The hash.
+	 */
+	public static long hash(int layout, long f1Range, long df2f1, long df3f2, long diffT, long comparisons){
+		f1Range &= (1 << 8) - 1;
+		df2f1 &= (1 << 6) - 1;
+		df3f2 &= (1 << 6) - 1;
+		diffT &= (1 << 6) - 1;
+		comparisons &= (1 << 8) - 1;
+		if(layout == V1)
+			return (diffT << 0) + (comparisons << 6) + (f1Range << 14) + (df2f1 << 22) + (df3f2 << 28);
+		//most significant bits first: frequency band, frequency differences, comparisons, time difference
+		return (f1Range & 1) + (diffT << 1) + (comparisons << 7) + (df3f2 << 15) + (df2f1 << 21) + ((f1Range >> 1) << 27);
+	}
+
+	/**
+	 * Converts a hash from one layout to another. No information is lost.
+	 * @param hash The hash in the original layout.
+	 * @param from The original layout.
+	 * @param to The new layout.
+	 * @return The hash in the new layout.
+	 */
+	public static long convert(long hash, int from, int to){
+		if(from == to)
+			return hash;
+		long f1Range, df2f1, df3f2, diffT, comparisons;
+		if(from == V1){
+			diffT = hash & 63;
+			comparisons = (hash >> 6) & 255;
+			f1Range = (hash >> 14) & 255;
+			df2f1 = (hash >> 22) & 63;
+			df3f2 = (hash >> 28) & 63;
+		}else{
+			f1Range = (hash & 1) | (((hash >> 27) & 127) << 1);
+			diffT = (hash >> 1) & 63;
+			comparisons = (hash >> 7) & 255;
+			df3f2 = (hash >> 15) & 63;
+			df2f1 = (hash >> 21) & 63;
+		}
+		return hash(to, f1Range, df2f1, df3f2, diffT, comparisons);
+	}
+
+	/**
+	 * Returns the layout recorded for an index or cache folder.
+	 * @param folder The folder with the index or cached fingerprints.
+	 * @return The recorded layout. Folders with data but without a record are created with the original layout,
+	 * -1 is returned for a folder without data.
+	 */
+	public static int recorded(String folder){
+		String recordPath = FileUtils.combine(folder, RECORD_FILE_NAME);
+		if(FileUtils.exists(recordPath))
+			return validate(Integer.parseInt(FileUtils.readFile(recordPath).trim()));
+		return containsData(folder) ? V1 : -1;
+	}
+
+	/**
+	 * Records the layout of an index or cache folder.
+	 * @param folder The folder with the index or cached fingerprints.
+	 * @param layout The layout of the hashes in the folder.
+	 */
+	public static void record(String folder, int layout){
+		if(!FileUtils.exists(folder))
+			FileUtils.mkdirs(folder);
+		FileUtils.writeFile(validate(layout) + "\n", FileUtils.combine(folder, RECORD_FILE_NAME));
+	}
+
+	/**
+	 * Returns the layout recorded for a PostgreSQL index.
+	 * @param db The index.
+	 * @return The recorded layout. An index with fingerprints but without a record is created with the original
+	 * layout, -1 is returned for an index without fingerprints.
+	 */
+	public static int recorded(OlafStoragePostgres db){
+		String setting = db.getSetting(SETTING_NAME);
+		if(setting != null)
+			return validate(Integer.parseInt(setting.trim()));
+		return db.containsFingerprints() ? V1 : -1;
+	}
+
+	/**
+	 * Records the layout of a PostgreSQL index.
+	 * @param db The index.
+	 * @param layout The layout of the hashes in the index.
+	 */
+	public static void record(OlafStoragePostgres db, int layout){
+		db.storeSetting(SETTING_NAME, String.valueOf(validate(layout)));
+	}
+
+	/**
+	 * Makes sure the configured layout is used for an index or cache folder. A new folder
+	 * gets the configured layout.
+	 * @param folder The folder with the index or cached fingerprints.
+	 */
+	public static void check(String folder){
+		check("'" + folder + "'", recorded(folder), layout -> record(folder, layout));
+	}
+
+	/**
+	 * Makes sure the configured layout is used for a PostgreSQL index. A new index gets the configured layout.
+	 * @param db The index.
+	 */
+	public static void check(OlafStoragePostgres db){
+		check("the PostgreSQL index", recorded(db), layout -> record(db, layout));
+	}
+
+	private static void check(String location, int recorded, IntConsumer record){
+		int configured = configured();
+		if(recorded == -1)
+			record.accept(configured);
+		else if(recorded != configured)
+			throw new RuntimeException(String.format("The fingerprints in %s use hash layout %d while OLAF_HASH_LAYOUT is %d. Use 'panako rehash' to convert them.", location, recorded, configured));
+	}
+
+	private static boolean containsData(String folder){
+		File[] files = new File(folder).listFiles();
+		if(files == null)
+			return false;
+		for(File file : files)
+			if(!file.getName().equals(RECORD_FILE_NAME))
+				return true;
+		return false;
+	}
+}
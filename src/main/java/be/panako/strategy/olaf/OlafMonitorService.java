@@ -0,0 +1,658 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.strategy.olaf;
+
+import be.panako.strategy.QueryResultHandler;
+import be.panako.strategy.StreamMonitor;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Monitors many live streams at once with a small, fixed number of threads.
+ *
+ * Monitoring a stream with {@link OlafStrategy#monitor} keeps a reading thread and a query thread busy
+ * for each stream, which does not scale to hundreds of channels. This service polls all sources from a
+ * single reading thread, extracts fingerprints on a shared pool of {@link Key#MONITOR_SERVICE_THREADS}
+ * workers and queries the windows of all channels on a single query thread.
+ *
+ * Each channel keeps its own extraction state: the samples of the current frame, an event point
+ * processor and a {@link StreamMonitor} which cuts the fingerprints into overlapping windows. The audio
+ * of a channel is processed in order by at most one worker at a time, so this state needs no locking.
+ * Closed windows of all channels wait for the query thread, which takes all waiting windows at once and
+ * queries them with a single probe of the index: a hash present in several windows is looked up once.
+ * While a batch is queried new windows accumulate, so batches grow with the load. The results of a
+ * window are reported to the handler of its channel.
+ *
+ * Both queues are bounded. A channel with {@link Key#MONITOR_SERVICE_MAX_PENDING_AUDIO} seconds of
+ * unprocessed audio is not read until its worker catches up, so the source buffers or drops audio
+ * instead of the service. If more than {@link Key#MONITOR_SERVICE_MAX_WAITING_WINDOWS} windows wait
+ * for a query, the oldest waiting window is dropped, as with a live {@link StreamMonitor}.
+ */
+public class OlafMonitorService {
+	private final static Logger LOG = Logger.getLogger(OlafMonitorService.class.getName());
+
+	/**
+	 * A source of 16bit mono little endian PCM, at the OLAF sample rate, which does not block.
+	 */
+	public interface Source {
+		/**
+		 * Reads the audio which is available, without waiting for more.
+		 * @param buffer The buffer to read into.
+		 * @param offset The offset in the buffer.
+		 * @param length The maximum number of bytes to read.
+		 * @return The number of bytes read, zero if no audio is available yet or -1 at the end of the stream.
+		 * @throws IOException If the source can not be read.
+		 */
+		int read(byte[] buffer, int offset, int length) throws IOException;
+
+		/**
+		 * Closes the source.
+		 * @throws IOException If the source can not be closed.
+		 */
+		void close() throws IOException;
+	}
+
+	private final OlafStrategy strategy;
+	private final int maxNumberOfResults;
+	private final Set<Integer> avoid;
+
+	private final int sampleRate;
+	private final int size;
+	private final int stepSize;
+	private final double windowSize;
+	private final double interval;
+	private final long pollInterval;
+	private final int maxPendingBytes;
+
+	private final List<Channel> channels;
+	private final List<Channel> activeChannels;
+	private final ExecutorService workers;
+	private final BlockingQueue<Window> windows;
+	private final Thread readingThread;
+	private final Thread queryThread;
+	private volatile boolean running;
+
+	private final AtomicInteger queriedWindows;
+	private final AtomicInteger droppedWindows;
+	private final AtomicInteger batches;
+	private final AtomicLong maxLatency;
+	private final AtomicLong totalLatency;
+
+	/**
+	 * Create and start a new monitor service. Windows are MONITOR_STEP_SIZE seconds long and start every
+	 * MONITOR_STEP_SIZE - MONITOR_OVERLAP seconds.
+	 * @param strategy The strategy to query with.
+	 * @param maxNumberOfResults The maximum number of results per window.
+	 * @param avoid Resources to ignore.
+	 */
+	public OlafMonitorService(OlafStrategy strategy, int maxNumberOfResults, Set<Integer> avoid) {
+		this.strategy = strategy;
+		this.maxNumberOfResults = maxNumberOfResults;
+		this.avoid = avoid;
+
+		sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+		size = Config.getInt(Key.OLAF_SIZE);
+		stepSize = Config.getInt(Key.OLAF_STEP_SIZE);
+		windowSize = Config.getInt(Key.MONITOR_STEP_SIZE);
+		interval = windowSize - Config.getInt(Key.MONITOR_OVERLAP);
+		pollInterval = Config.getInt(Key.MONITOR_SERVICE_POLL_INTERVAL);
+		maxPendingBytes = Math.max(1, Config.getInt(Key.MONITOR_SERVICE_MAX_PENDING_AUDIO)) * sampleRate * 2;
+
+		channels = new CopyOnWriteArrayList<>();
+		activeChannels = new CopyOnWriteArrayList<>();
+		windows = new LinkedBlockingQueue<>(Math.max(1, Config.getInt(Key.MONITOR_SERVICE_MAX_WAITING_WINDOWS)));
+		queriedWindows = new AtomicInteger();
+		droppedWindows = new AtomicInteger();
+		batches = new AtomicInteger();
+		maxLatency = new AtomicLong();
+		totalLatency = new AtomicLong();
+
+		int threads = Math.max(1, Config.getInt(Key.MONITOR_SERVICE_THREADS));
+		workers = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "Monitor service worker");
+			t.setDaemon(true);
+			return t;
+		});
+		running = true;
+		readingThread = new Thread(this::read, "Monitor service reader");
+		readingThread.setDaemon(true);
+		readingThread.start();
+		queryThread = new Thread(this::query, "Monitor service query");
+		queryThread.setDaemon(true);
+		queryThread.start();
+		LOG.info(String.format("Started monitor service with %d extraction threads", threads));
+	}
+
+	/**
+	 * Start monitoring a stream.
+	 * @param name The name of the stream, used as query path in the results.
+	 * @param source The audio of the stream.
+	 * @param handler Receives the results of each window of the stream.
+	 * @return The channel of the stream.
+	 */
+	public Channel addStream(String name, Source source, QueryResultHandler handler) {
+		Channel channel = new Channel(name, source, handler);
+		channels.add(channel);
+		activeChannels.add(channel);
+		return channel;
+	}
+
+	/**
+	 * Stop monitoring a stream. The audio which is already read is still processed and queried.
+	 * @param channel The channel of the stream.
+	 */
+	public void removeStream(Channel channel) {
+		//only the reading thread reads and closes sources
+		channel.removed = true;
+	}
+
+	/**
+	 * Waits until all streams have ended and all their windows are queried, or until the service is shut down.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void awaitStreams() throws InterruptedException {
+		for(Channel channel : channels)
+			channel.done.await();
+	}
+
+	/**
+	 * Stops the service. Streams are not processed any further and threads waiting for the streams are released.
+	 */
+	public void shutdown() {
+		running = false;
+		readingThread.interrupt();
+		queryThread.interrupt();
+		workers.shutdownNow();
+		for(Channel channel : activeChannels)
+			closeSource(channel);
+		windows.clear();
+		for(Channel channel : channels)
+			channel.done.countDown();
+		LOG.info(String.format("Monitored %d windows in %d batches, %d windows dropped, maximum latency %.1fms", getNumberOfQueriedWindows(), getNumberOfBatches(), getNumberOfDroppedWindows(), getMaximumLatency() * 1000));
+	}
+
+	/**
+	 * Polls all sources. New audio is handed to the workers, one chunk at a time per channel. A channel
+	 * with too much pending audio is skipped until its worker catches up.
+	 */
+	private void read() {
+		byte[] buffer = new byte[stepSize * 2 * 64];
+		while(running) {
+			boolean readAudio = false;
+			for(Channel channel : activeChannels) {
+				if(!channel.removed && channel.pendingBytes.get() >= maxPendingBytes)
+					continue;
+				int read;
+				try {
+					read = channel.removed ? -1 : channel.source.read(buffer, 0, buffer.length);
+				} catch (IOException e) {
+					LOG.warning("Could not read stream " + channel.name + ": " + e.getMessage());
+					read = -1;
+				}
+				if(read > 0) {
+					channel.pendingBytes.addAndGet(read);
+					channel.pending.add(Arrays.copyOf(buffer, read));
+					schedule(channel);
+					readAudio = true;
+				} else if(read < 0) {
+					closeSource(channel);
+					activeChannels.remove(channel);
+					channel.ended = true;
+					schedule(channel);
+				}
+			}
+			if(!readAudio) {
+				try {
+					Thread.sleep(pollInterval);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void closeSource(Channel channel) {
+		try {
+			channel.source.close();
+		} catch (IOException e) {
+			LOG.warning("Could not close stream " + channel.name + ": " + e.getMessage());
+		}
+	}
+
+	private void schedule(Channel channel) {
+		if(channel.scheduled.compareAndSet(false, true))
+			workers.execute(() -> drain(channel));
+	}
+
+	/**
+	 * Processes the pending audio of a channel. The channel is scheduled again if audio arrived after
+	 * the last chunk was taken.
+	 */
+	private void drain(Channel channel) {
+		try {
+			byte[] chunk;
+			while((chunk = channel.pending.poll()) != null) {
+				channel.pendingBytes.addAndGet(-chunk.length);
+				channel.process(chunk);
+			}
+			if(channel.ended && !channel.finished)
+				channel.finish();
+		} catch (RuntimeException e) {
+			LOG.severe("Extraction of stream " + channel.name + " failed: " + e.getMessage());
+			e.printStackTrace();
+		}
+		channel.scheduled.set(false);
+		if(!channel.pending.isEmpty() || (channel.ended && !channel.finished))
+			schedule(channel);
+	}
+
+	/**
+	 * Queries all waiting windows at once, until the service stops.
+	 */
+	private void query() {
+		List<Window> batch = new ArrayList<>();
+		while(running) {
+			try {
+				batch.add(windows.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			windows.drainTo(batch);
+
+			List<String> queryPaths = new ArrayList<>(batch.size());
+			List<List<OlafFingerprint>> prints = new ArrayList<>(batch.size());
+			List<QueryResultHandler> handlers = new ArrayList<>(batch.size());
+			for(Window window : batch) {
+				queryPaths.add(window.channel.name + "-" + window.start + "_" + window.stop);
+				prints.add(window.prints);
+				handlers.add(window.channel.handler);
+			}
+			try {
+				strategy.queryBatch(queryPaths, prints, maxNumberOfResults, avoid, handlers);
+			} catch (RuntimeException e) {
+				LOG.severe("Query of " + batch.size() + " stream windows failed: " + e.getMessage());
+				e.printStackTrace();
+			}
+
+			long now = System.nanoTime();
+			for(Window window : batch) {
+				long latency = now - window.closed;
+				maxLatency.accumulateAndGet(latency, Math::max);
+				totalLatency.addAndGet(latency);
+				window.channel.windowQueried();
+			}
+			queriedWindows.addAndGet(batch.size());
+			batches.incrementAndGet();
+			batch.clear();
+		}
+	}
+
+	/**
+	 * @return The number of queried windows of all streams.
+	 */
+	public int getNumberOfQueriedWindows() {
+		return queriedWindows.get();
+	}
+
+	/**
+	 * @return The number of windows which were dropped because queries could not keep up.
+	 */
+	public int getNumberOfDroppedWindows() {
+		return droppedWindows.get();
+	}
+
+	/**
+	 * Adds a closed window to the queue of the query thread. If the queue is full the oldest waiting
+	 * window is dropped.
+	 */
+	private void enqueue(Window window) {
+		while(!windows.offer(window)) {
+			Window oldest = windows.poll();
+			if(oldest != null) {
+				droppedWindows.incrementAndGet();
+				oldest.channel.windowDropped();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of batched queries.
+	 */
+	public int getNumberOfBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * @return The maximum time in seconds between the end of a window and its reported results.
+	 */
+	public double getMaximumLatency() {
+		return maxLatency.get() / 1e9;
+	}
+
+	/**
+	 * @return The average time in seconds between the end of a window and its reported results.
+	 */
+	public double getAverageLatency() {
+		int queried = queriedWindows.get();
+		return queried == 0 ? 0 : totalLatency.get() / 1e9 / queried;
+	}
+
+	/**
+	 * A source which reads the bytes an input stream reports as available, so it never blocks.
+	 * Streams which report nothing available at their end, e.g. sockets, should be removed from the
+	 * service when they end.
+	 * @param in The input stream with 16bit mono little endian PCM at the OLAF sample rate.
+	 * @return A source for the stream.
+	 */
+	public static Source fromInputStream(InputStream in) {
+		return new Source() {
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				int available = in.available();
+				if(available <= 0)
+					return 0;
+				return in.read(buffer, offset, Math.min(available, length));
+			}
+
+			@Override
+			public void close() throws IOException {
+				in.close();
+			}
+		};
+	}
+
+	/**
+	 * A source for an input stream which blocks while it waits for audio, e.g. the microphone, standard
+	 * input or the output of a decoder. A daemon thread reads the stream and hands the audio over, so the
+	 * source itself never blocks and ends when the stream ends. Reading stops while more than a second
+	 * of audio is waiting to be polled.
+	 * @param name The name of the stream, used to name the reading thread.
+	 * @param in The input stream with 16bit mono little endian PCM at the OLAF sample rate.
+	 * @return A source for the stream.
+	 */
+	public static Source fromBlockingInputStream(String name, InputStream in) {
+		final int chunkSize = 4096;
+		final byte[] end = new byte[0];
+		final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>(Math.max(1, Config.getInt(Key.OLAF_SAMPLE_RATE) * 2 / chunkSize));
+		final Thread reader = new Thread(() -> {
+			byte[] buffer = new byte[chunkSize];
+			try {
+				int read;
+				while((read = in.read(buffer)) != -1) {
+					if(read > 0)
+						chunks.put(Arrays.copyOf(buffer, read));
+				}
+			} catch (IOException e) {
+				LOG.warning("Could not read stream " + name + ": " + e.getMessage());
+			} catch (InterruptedException e) {
+				//the source is closed
+				return;
+			}
+			try {
+				chunks.put(end);
+			} catch (InterruptedException e) {
+				//the source is closed
+			}
+		}, "Monitor service source " + name);
+		reader.setDaemon(true);
+		reader.start();
+		return new Source() {
+			private byte[] chunk;
+			private int position;
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) {
+				if(chunk == null || (chunk != end && position == chunk.length)) {
+					chunk = chunks.poll();
+					position = 0;
+					if(chunk == null)
+						return 0;
+				}
+				if(chunk == end)
+					return -1;
+				int read = Math.min(length, chunk.length - position);
+				System.arraycopy(chunk, position, buffer, offset, read);
+				position += read;
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException {
+				reader.interrupt();
+				in.close();
+			}
+		};
+	}
+
+	/**
+	 * A source which releases the audio of an input stream at a steady pace, to simulate a live stream
+	 * with e.g. a decoded file.
+	 * @param in The input stream with 16bit mono little endian PCM at the OLAF sample rate.
+	 * @param speed The speed relative to real time, one for real time.
+	 * @return A source releasing the audio at the requested speed.
+	 */
+	public static Source atRealTime(InputStream in, double speed) {
+		final double bytesPerNano = Config.getInt(Key.OLAF_SAMPLE_RATE) * 2 * speed / 1e9;
+		return new Source() {
+			private long start = -1;
+			private long released = 0;
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				long now = System.nanoTime();
+				if(start < 0)
+					start = now;
+				long due = (long) ((now - start) * bytesPerNano) & ~1L;
+				int toRead = (int) Math.min(length, due - released);
+				if(toRead <= 0)
+					return 0;
+				int read = in.readNBytes(buffer, offset, toRead);
+				if(read == 0)
+					return -1;
+				released += read;
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException {
+				in.close();
+			}
+		};
+	}
+
+	/**
+	 * The state of a monitored stream.
+	 */
+	public class Channel {
+		private final String name;
+		private final Source source;
+		private final QueryResultHandler handler;
+
+		private final Queue<byte[]> pending;
+		private final AtomicInteger pendingBytes;
+		private final AtomicBoolean scheduled;
+		private volatile boolean ended;
+		private volatile boolean removed;
+		private volatile boolean finished;
+		private final AtomicInteger waitingWindows;
+		private final CountDownLatch done;
+		private final AtomicInteger channelWindows;
+
+		private final OlafEventPointProcessor processor;
+		private final StreamMonitor monitor;
+		private final AudioEvent event;
+		private final float[] frame;
+		private float[] samples;
+		private int numberOfSamples;
+		private int oddByte;
+
+		private Channel(String name, Source source, QueryResultHandler handler) {
+			this.name = name;
+			this.source = source;
+			this.handler = handler;
+			pending = new ConcurrentLinkedQueue<>();
+			pendingBytes = new AtomicInteger();
+			scheduled = new AtomicBoolean();
+			waitingWindows = new AtomicInteger();
+			done = new CountDownLatch(1);
+			channelWindows = new AtomicInteger();
+
+			monitor = new StreamMonitor(stepSize / (double) sampleRate, windowSize, interval, (window, start, stop) -> {
+				List<OlafFingerprint> prints = new ArrayList<>(window.size());
+				for(int i = 0 ; i < window.size() ; i++)
+					prints.add(new OlafFingerprint(window.hash(i), window.t1(i)));
+				waitingWindows.incrementAndGet();
+				enqueue(new Window(this, prints, start, stop));
+			});
+			processor = new OlafEventPointProcessor(size, monitor);
+			event = new AudioEvent(new TarsosDSPAudioFormat(sampleRate, 16, 1, true, false));
+			frame = new float[size];
+			samples = new float[size * 2];
+			numberOfSamples = 0;
+			oddByte = -1;
+		}
+
+		/**
+		 * Converts a chunk of PCM to samples and processes each complete frame.
+		 */
+		private void process(byte[] chunk) {
+			int offset = 0;
+			int needed = numberOfSamples + (chunk.length + 1) / 2;
+			if(needed > samples.length)
+				samples = Arrays.copyOf(samples, Math.max(needed, samples.length * 2));
+			if(oddByte >= 0 && chunk.length > 0) {
+				samples[numberOfSamples++] = ((short) ((chunk[0] << 8) | oddByte)) / 32768f;
+				oddByte = -1;
+				offset = 1;
+			}
+			for( ; offset + 1 < chunk.length ; offset += 2)
+				samples[numberOfSamples++] = ((short) ((chunk[offset + 1] << 8) | (chunk[offset] & 0xFF))) / 32768f;
+			if(offset < chunk.length)
+				oddByte = chunk[offset] & 0xFF;
+
+			int first = 0;
+			while(numberOfSamples - first >= size) {
+				System.arraycopy(samples, first, frame, 0, size);
+				event.setFloatBuffer(frame);
+				processor.process(event);
+				first += stepSize;
+			}
+			numberOfSamples -= first;
+			System.arraycopy(samples, first, samples, 0, numberOfSamples);
+		}
+
+		private void finish() {
+			processor.processingFinished();
+			monitor.finish();
+			finished = true;
+			if(waitingWindows.get() == 0)
+				done.countDown();
+		}
+
+		private void windowQueried() {
+			channelWindows.incrementAndGet();
+			if(waitingWindows.decrementAndGet() == 0 && finished)
+				done.countDown();
+		}
+
+		private void windowDropped() {
+			if(waitingWindows.decrementAndGet() == 0 && finished)
+				done.countDown();
+		}
+
+		/**
+		 * @return The name of the stream.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The number of queried windows of the stream.
+		 */
+		public int getNumberOfQueriedWindows() {
+			return channelWindows.get();
+		}
+
+		/**
+		 * @return True if the stream has ended and all its windows are queried or dropped, or if the service is shut down.
+		 */
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+	}
+
+	/**
+	 * A closed window of a channel, waiting to be queried.
+	 */
+	private static class Window {
+		final Channel channel;
+		final List<OlafFingerprint> prints;
+		final double start;
+		final double stop;
+		final long closed;
+
+		Window(Channel channel, List<OlafFingerprint> prints, double start, double stop) {
+			this.channel = channel;
+			this.prints = prints;
+			this.start = start;
+			this.stop = stop;
+			this.closed = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.strategy.olaf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import be.panako.strategy.CandidateVerifier;
+import be.panako.strategy.FingerprintSink;
+import be.panako.strategy.QueryResult;
+import be.panako.strategy.olaf.storage.OlafHit;
+import be.panako.strategy.olaf.storage.OlafStorage;
+import be.panako.util.BoundedPriorityQueue;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.panako.util.TaskExecution;
+
+/**
+ * A query which probes the index while the query audio is fingerprinted. Each time a
+ * number of seconds of query fingerprints are available, they are probed and the candidates
+ * with new hits are verified again. Once a candidate is verified with enough filtered hits
+ * and enough seconds with matches, the query is confident: the remaining fingerprints can be
+ * ignored and decoding can stop.
+ *
+ * Like a full query, each hash is probed once and its hits use the time of the last
+ * fingerprint with that hash. A hash which returns in a later window is not probed again,
+ * its hits are moved to the new time and the candidates are verified again. So when the
+ * query is never confident the results are the same as when all fingerprints are queried
+ * at once.
+ */
+public class OlafProgressiveQuery implements FingerprintSink {
+
+	private final static Logger LOG = Logger.getLogger(OlafProgressiveQuery.class.getName());
+
+	private final OlafStorage db;
+	private final OlafStopList stopList;
+	private final Set<Integer> avoid;
+	private final int maxNumberOfResults;
+	private final Function<Map.Entry<Integer,List<OlafMatch>>,QueryResult> verification;
+	private final Function<Map.Entry<Integer,List<OlafMatch>>,QueryResult> fallbackVerification;
+
+	private final int queryRange;
+	private final int minimumUnfilteredHits;
+	private final int probeStep;
+	private final int minimumScore;
+	private final float minimumCoverage;
+
+	/**
+	 * The time of the last fingerprint with each hash, for all fingerprints of the query.
+	 */
+	private final Map<Long,Integer> queryTimePerHash;
+	/**
+	 * The hashes which are not probed yet.
+	 */
+	private final Set<Long> pendingHashes;
+	/**
+	 * Probed hashes with hits which returned with a different time since the last probe.
+	 */
+	private final Set<Long> movedHashes;
+	private final Map<Long,List<OlafHit>> hitsPerHash;
+	private final Map<Integer,List<OlafMatch>> hitsPerIdentifier;
+	private final Map<Integer,QueryResult> resultPerIdentifier;
+
+	private int nextProbeTime;
+	private int numberOfProbes;
+	private int lastPrintTime;
+	private boolean confident;
+
+	/**
+	 * Create a new progressive query.
+	 * @param db The storage to probe.
+	 * @param stopList Hits with a hash on the stop list are ignored.
+	 * @param avoid Resources to ignore.
+	 * @param maxNumberOfResults The maximum number of results.
+	 * @param verification Verifies the hits of a candidate, returns a result without meta-data or null.
+	 * @param fallbackVerification Verifies candidates when there are no results at all, may be null.
+	 */
+	public OlafProgressiveQuery(OlafStorage db, OlafStopList stopList, Set<Integer> avoid, int maxNumberOfResults,
+			Function<Map.Entry<Integer,List<OlafMatch>>,QueryResult> verification,
+			Function<Map.Entry<Integer,List<OlafMatch>>,QueryResult> fallbackVerification){
+		this.db = db;
+		this.stopList = stopList;
+		this.avoid = avoid;
+		this.maxNumberOfResults = maxNumberOfResults;
+		this.verification = verification;
+		this.fallbackVerification = fallbackVerification;
+
+		queryRange = Config.getInt(Key.OLAF_QUERY_RANGE);
+		minimumUnfilteredHits = Config.getInt(Key.OLAF_MIN_HITS_UNFILTERED);
+		float blocksPerSecond = Config.getFloat(Key.OLAF_SAMPLE_RATE) / Config.getFloat(Key.OLAF_STEP_SIZE);
+		probeStep = Math.max(1, Math.round(Config.getFloat(Key.OLAF_PROGRESSIVE_QUERY_STEP) * blocksPerSecond));
+		minimumScore = Config.getInt(Key.OLAF_PROGRESSIVE_QUERY_MIN_SCORE);
+		minimumCoverage = Config.getFloat(Key.OLAF_PROGRESSIVE_QUERY_MIN_COVERAGE);
+
+		queryTimePerHash = new HashMap<>();
+		pendingHashes = new HashSet<>();
+		movedHashes = new HashSet<>();
+		hitsPerHash = new HashMap<>();
+		hitsPerIdentifier = new HashMap<>();
+		resultPerIdentifier = new HashMap<>();
+		nextProbeTime = probeStep;
+		lastPrintTime = -1;
+		confident = false;
+	}
+
+	/**
+	 * Adds a query fingerprint, fingerprints should arrive in order of t1. Once the query
+	 * is confident, fingerprints are ignored.
+	 */
+	@Override
+	public void accept(long hash, int t1, int f1) {
+		if(confident)
+			return;
+		if(t1 >= nextProbeTime){
+			//probing waits for storage, it does not need an extraction permit
+			TaskExecution.outsideExtraction(this::probe);
+			nextProbeTime = (t1 / probeStep + 1) * probeStep;
+			if(confident)
+				return;
+		}
+		lastPrintTime = t1;
+		Integer previousTime = queryTimePerHash.put(hash, t1);
+		if(previousTime == null)
+			pendingHashes.add(hash);
+		else if(previousTime != t1 && hitsPerHash.containsKey(hash))
+			movedHashes.add(hash);
+	}
+
+	/**
+	 * @return True if a candidate is verified with enough filtered hits and seconds with matches.
+	 */
+	public boolean isConfident(){
+		return confident;
+	}
+
+	/**
+	 * @return The time of the first event point of the last fingerprint which was used, in blocks.
+	 */
+	public int getLastPrintTime(){
+		return lastPrintTime;
+	}
+
+	/**
+	 * @return The number of times the index was probed.
+	 */
+	public int getNumberOfProbes(){
+		return numberOfProbes;
+	}
+
+	/**
+	 * Probes the remaining fingerprints, if the query is not yet confident, and returns the
+	 * results.
+	 * @return The best results without meta-data, best score first.
+	 */
+	public List<QueryResult> finish(){
+		if(!confident)
+			probe();
+		LOG.info(String.format("Progressive query for %d prints (%d stop hashes skipped) in %d probes, %d candidates, confident: %s",
+				queryTimePerHash.size(), stopList.size(), numberOfProbes, hitsPerIdentifier.size(), confident));
+
+		BoundedPriorityQueue<QueryResult> best = new BoundedPriorityQueue<>(maxNumberOfResults, CandidateVerifier.RESULT_ORDER);
+		for(QueryResult result : resultPerIdentifier.values())
+			best.offer(result);
+		List<QueryResult> results = best.toSortedList();
+
+		if(results.isEmpty() && fallbackVerification != null) {
+			Set<Integer> identifiers = new HashSet<>(hitsPerIdentifier.keySet());
+			identifiers.removeIf(identifier -> hitsPerIdentifier.get(identifier).size() < minimumUnfilteredHits);
+			results = CandidateVerifier.verify(candidates(identifiers), fallbackVerification, maxNumberOfResults);
+		}
+		return results;
+	}
+
+	/**
+	 * Probes the pending hashes and verifies the candidates with new or moved hits again.
+	 */
+	private void probe(){
+		Set<Integer> changed = new HashSet<>();
+		if(!pendingHashes.isEmpty()){
+			numberOfProbes++;
+			for(long hash : pendingHashes)
+				db.addToQueryQueue(hash);
+			Map<Long,List<OlafHit>> matchAccumulator = new HashMap<>();
+			//hashes on the stop list only flood the verification with useless hits: the scan skips them
+			db.processQueryQueue(matchAccumulator, queryRange, avoid, stopList);
+			pendingHashes.clear();
+			hitsPerHash.putAll(matchAccumulator);
+			matchAccumulator.values().forEach(dbHits -> dbHits.forEach(dbHit -> changed.add(dbHit.resourceID)));
+		}
+		for(long hash : movedHashes)
+			hitsPerHash.get(hash).forEach(dbHit -> changed.add(dbHit.resourceID));
+		movedHashes.clear();
+		if(changed.isEmpty())
+			return;
+
+		//rebuild the hits of the changed candidates with the last time of each hash
+		for(Integer identifier : changed)
+			hitsPerIdentifier.put(identifier, new ArrayList<>());
+		hitsPerHash.forEach((fingerprintHash, dbHits) -> {
+			int queryTime = queryTimePerHash.get(fingerprintHash);
+			for(OlafHit dbHit : dbHits){
+				if(!changed.contains(dbHit.resourceID))
+					continue;
+				OlafMatch hit = new OlafMatch();
+				hit.identifier = dbHit.resourceID;
+				hit.matchTime = dbHit.t;
+				hit.originalHash = dbHit.originalHash;
+				hit.matchedNearHash = dbHit.matchedNearHash;
+				hit.queryTime = queryTime;
+				hitsPerIdentifier.get(hit.identifier).add(hit);
+			}
+		});
+
+		//the result of a changed candidate is replaced, it may no longer match at all
+		changed.forEach(resultPerIdentifier::remove);
+		changed.removeIf(identifier -> hitsPerIdentifier.get(identifier).size() < minimumUnfilteredHits);
+		List<QueryResult> verified = CandidateVerifier.verify(candidates(changed), verification, Integer.MAX_VALUE);
+		for(QueryResult result : verified){
+			resultPerIdentifier.put(Integer.valueOf(result.refIdentifier), result);
+			if(result.score >= minimumScore && result.percentOfSecondsWithMatches >= minimumCoverage)
+				confident = true;
+		}
+	}
+
+	private List<Map.Entry<Integer,List<OlafMatch>>> candidates(Set<Integer> identifiers){
+		List<Map.Entry<Integer,List<OlafMatch>>> candidates = new ArrayList<>();
+		for(Integer identifier : identifiers)
+			candidates.add(new HashMap.SimpleEntry<>(identifier, hitsPerIdentifier.get(identifier)));
+		return candidates;
+	}
+}
@@ -0,0 +1,360 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.strategy.olaf;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import be.panako.strategy.FingerprintBatch;
+import be.panako.strategy.FingerprintSink;
+import be.panako.util.AudioDecoder;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.panako.util.TaskExecution;
+import be.tarsos.dsp.AudioDispatcher;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.AudioProcessor;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+
+/**
+ * Extracts the fingerprints of a single audio file on multiple cores.
+ *
+ * The audio is decoded once. The analysis frames are split into segments which are
+ * extracted in parallel, each with its own event point processor. A segment owns the
+ * fingerprints with a first event point within its frames. To find exactly the same event
+ * points and fingerprints as a single processor, each segment is extended with the frames
+ * needed by the max filter before its start, and after its end with the frames needed by the
+ * max filter and for packing: twice the maximum time distance between event points. Fingerprints
+ * of the extended part are dropped, they are owned by the neighbouring segment.
+ *
+ * Fingerprints are passed to the sink in the same order as they are extracted by a single
+ * processor. Decoding continues while segments are extracted, only a limited number of segments
+ * are kept in memory. The segments run on the extraction workers shared by all tasks, see
+ * {@link TaskExecution#extractionWorkers()}.
+ */
+public class OlafSegmentedExtractor {
+
+	private final int numberOfThreads;
+	private final int segmentFrames;
+
+	private final int size;
+	private final int stepSize;
+	private final int sampleRate;
+	/**
+	 * The number of frames before the start of a segment needed to find its first event points.
+	 */
+	private final int leadingFrames;
+	/**
+	 * The number of frames after the end of a segment needed to find and pack its last event points.
+	 */
+	private final int trailingFrames;
+
+	/**
+	 * Create a new extractor with the configured number of threads and segment size.
+	 */
+	public OlafSegmentedExtractor(){
+		this(Config.getInt(Key.OLAF_EXTRACTION_THREADS), Config.getFloat(Key.OLAF_EXTRACTION_SEGMENT_SIZE));
+	}
+
+	/**
+	 * Create a new extractor.
+	 * @param numberOfThreads The number of segments of a file to extract in parallel.
+	 * @param segmentSizeInSeconds The length of a segment in seconds.
+	 */
+	public OlafSegmentedExtractor(int numberOfThreads, float segmentSizeInSeconds){
+		this.numberOfThreads = Math.max(1, numberOfThreads);
+		size = Config.getInt(Key.OLAF_SIZE);
+		stepSize = Config.getInt(Key.OLAF_STEP_SIZE);
+		sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+		int halfTimeFilter = Config.getInt(Key.OLAF_TIME_MAX_FILTER_SIZE) / 2;
+		leadingFrames = halfTimeFilter;
+		trailingFrames = (Config.getInt(Key.OLAF_EPS_PER_FP) - 1) * Config.getInt(Key.OLAF_FP_MAX_TIME_DIST) + halfTimeFilter + 1;
+		//a segment should be much longer than the frames it is extended with
+		segmentFrames = Math.max(4 * (leadingFrames + trailingFrames), Math.round(segmentSizeInSeconds * sampleRate / stepSize));
+	}
+
+	/**
+	 * Decodes the audio resource and extracts its fingerprints.
+	 * @param resource The path to the audio resource.
+	 * @param sink Receives the fingerprints, in order of t1.
+	 * @return The time of the last event point of the last fingerprint, or -1 if there are no fingerprints.
+	 */
+	public int extract(String resource, FingerprintSink sink){
+		final Extraction extraction = new Extraction(sink);
+		AudioDispatcher d = AudioDecoder.fromResource(resource, sampleRate, stepSize, 0);
+		d.addAudioProcessor(new AudioProcessor() {
+			@Override
+			public boolean process(AudioEvent audioEvent) {
+				float[] buffer = audioEvent.getFloatBuffer();
+				extraction.addSamples(buffer, 0, buffer.length);
+				return true;
+			}
+
+			@Override
+			public void processingFinished() {
+			}
+		});
+		try {
+			d.run();
+			return extraction.finish();
+		}finally {
+			extraction.close();
+		}
+	}
+
+	/**
+	 * Extracts the fingerprints of decoded audio.
+	 * @param samples The audio samples, at the configured sample rate.
+	 * @param sink Receives the fingerprints, in order of t1.
+	 * @return The time of the last event point of the last fingerprint, or -1 if there are no fingerprints.
+	 */
+	public int extract(float[] samples, FingerprintSink sink){
+		Extraction extraction = new Extraction(sink);
+		try {
+			//feed the samples in blocks, as a decoder would
+			int blockSize = stepSize * 1024;
+			for(int from = 0 ; from < samples.length ; from += blockSize)
+				extraction.addSamples(samples, from, Math.min(blockSize, samples.length - from));
+			return extraction.finish();
+		}finally {
+			extraction.close();
+		}
+	}
+
+	/**
+	 * @param numberOfSamples The total number of samples.
+	 * @return The number of analysis frames: frames step through the samples until a frame reaches the end.
+	 */
+	private int numberOfFrames(long numberOfSamples){
+		if(numberOfSamples <= size)
+			return numberOfSamples == 0 ? 0 : 1;
+		return (int) (1 + (numberOfSamples - size + stepSize - 1) / stepSize);
+	}
+
+	/**
+	 * The fingerprints owned by a segment.
+	 */
+	private static class SegmentResult {
+		final FingerprintBatch fingerprints = new FingerprintBatch();
+		int lastFingerprintTime = -1;
+	}
+
+	/**
+	 * Extracts the fingerprints of a segment. The extraction holds an extraction permit, see
+	 * {@link TaskExecution#beginExtraction()}, the samples are already decoded.
+	 * @param samples The samples of the frames of the segment, starting at the first frame.
+	 * @param firstFrame The index of the first frame in the samples.
+	 * @param numberOfFrames The number of frames to process.
+	 * @param ownedStart The first frame owned by the segment.
+	 * @param ownedStop The frame after the last frame owned by the segment.
+	 */
+	private SegmentResult extractSegment(float[] samples, int firstFrame, int numberOfFrames, int ownedStart, int ownedStop){
+		final SegmentResult result = new SegmentResult();
+		final OlafEventPointProcessor[] processor = new OlafEventPointProcessor[1];
+		processor[0] = new OlafEventPointProcessor(size, (hash, t1, f1) -> {
+			int t = t1 + firstFrame;
+			if(t >= ownedStart && t < ownedStop){
+				result.fingerprints.add(hash, 0, t, f1);
+				result.lastFingerprintTime = processor[0].getLastFingerprintTime() + firstFrame;
+			}
+		});
+		AudioEvent event = new AudioEvent(new TarsosDSPAudioFormat(sampleRate, 16, 1, true, false));
+		float[] frame = new float[size];
+		TaskExecution.beginExtraction();
+		try {
+			for(int i = 0 ; i < numberOfFrames ; i++){
+				int from = i * stepSize;
+				int available = Math.max(0, Math.min(size, samples.length - from));
+				System.arraycopy(samples, from, frame, 0, available);
+				//zero pad the last frames
+				Arrays.fill(frame, available, size, 0);
+				event.setFloatBuffer(frame);
+				processor[0].process(event);
+			}
+			processor[0].processingFinished();
+		}finally {
+			TaskExecution.endExtraction();
+		}
+		return result;
+	}
+
+	/**
+	 * The state of the extraction of one audio file: the samples which are still needed and
+	 * the segments which are being extracted.
+	 */
+	private class Extraction {
+		private final FingerprintSink sink;
+		private final ExecutorService executor;
+		private final Deque<Future<SegmentResult>> segments;
+
+		private float[] samples;
+		private int numberOfSamples;
+		/**
+		 * The index, in the audio, of the first sample in the buffer.
+		 */
+		private long firstSample;
+		private long totalSamples;
+		private int nextSegment;
+		private int lastFingerprintTime;
+
+		Extraction(FingerprintSink sink){
+			this.sink = sink;
+			executor = numberOfThreads == 1 ? null : TaskExecution.extractionWorkers();
+			segments = new ArrayDeque<>();
+			samples = new float[stepSize * 4096];
+			numberOfSamples = 0;
+			firstSample = 0;
+			totalSamples = 0;
+			nextSegment = 0;
+			lastFingerprintTime = -1;
+		}
+
+		void addSamples(float[] buffer, int from, int length){
+			if(numberOfSamples + length > samples.length)
+				samples = Arrays.copyOf(samples, Math.max(numberOfSamples + length, samples.length * 2));
+			System.arraycopy(buffer, from, samples, numberOfSamples, length);
+			numberOfSamples += length;
+			totalSamples += length;
+
+			//start segments for which all samples are available
+			while(sampleAfterSegment(nextSegment) <= totalSamples)
+				submit(nextSegment, -1);
+		}
+
+		/**
+		 * @return The index of the first frame needed by the segment.
+		 */
+		private int firstFrame(int segment){
+			return Math.max(0, segment * segmentFrames - leadingFrames);
+		}
+
+		/**
+		 * @return The index of the sample after the last sample needed by the segment, if the audio is long enough.
+		 */
+		private long sampleAfterSegment(int segment){
+			long frameAfterSegment = (segment + 1L) * segmentFrames + trailingFrames;
+			return (frameAfterSegment - 1) * stepSize + size;
+		}
+
+		/**
+		 * Starts the extraction of a segment.
+		 * @param segment The index of the segment.
+		 * @param numberOfFrames The total number of frames if the audio is completely decoded, -1 otherwise.
+		 */
+		private void submit(int segment, int numberOfFrames){
+			final int firstFrame = firstFrame(segment);
+			final int ownedStart = segment * segmentFrames;
+			final int ownedStop;
+			final int frameAfterSegment;
+			if(numberOfFrames < 0){
+				ownedStop = ownedStart + segmentFrames;
+				frameAfterSegment = ownedStop + trailingFrames;
+			}else{
+				//the last segments run up to the end of the audio
+				ownedStop = Math.min(ownedStart + segmentFrames, numberOfFrames);
+				frameAfterSegment = Math.min(ownedStop + trailingFrames, numberOfFrames);
+			}
+			long fromSample = (long) firstFrame * stepSize;
+			long toSample = Math.min(totalSamples, (frameAfterSegment - 1L) * stepSize + size);
+			final float[] segmentSamples = Arrays.copyOfRange(samples, (int) (fromSample - firstSample), (int) (toSample - firstSample));
+			final int frames = frameAfterSegment - firstFrame;
+
+			if(executor == null){
+				emit(extractSegment(segmentSamples, firstFrame, frames, ownedStart, ownedStop));
+			}else{
+				segments.add(executor.submit(() -> extractSegment(segmentSamples, firstFrame, frames, ownedStart, ownedStop)));
+				//limit the number of segments in memory, finished segments are emitted in order
+				while(!segments.isEmpty() && (segments.size() >= 2 * numberOfThreads || segments.peek().isDone()))
+					emit(await(segments.poll()));
+			}
+			nextSegment = segment + 1;
+
+			//forget the samples which are not needed by the next segment
+			long needed = (long) firstFrame(nextSegment) * stepSize;
+			int forget = (int) Math.min(numberOfSamples, Math.max(0, needed - firstSample));
+			if(forget > 0){
+				System.arraycopy(samples, forget, samples, 0, numberOfSamples - forget);
+				numberOfSamples -= forget;
+				firstSample += forget;
+			}
+		}
+
+		/**
+		 * Extracts the remaining segments, once all samples are added, and waits for all segments.
+		 * @return The time of the last event point of the last fingerprint, or -1 if there are no fingerprints.
+		 */
+		int finish(){
+			int numberOfFrames = numberOfFrames(totalSamples);
+			while((long) nextSegment * segmentFrames < numberOfFrames)
+				submit(nextSegment, numberOfFrames);
+			while(!segments.isEmpty())
+				emit(await(segments.poll()));
+			return lastFingerprintTime;
+		}
+
+		private SegmentResult await(Future<SegmentResult> segment){
+			try {
+				return segment.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		private void emit(SegmentResult result){
+			FingerprintBatch fingerprints = result.fingerprints;
+			for(int i = 0 ; i < fingerprints.size() ; i++)
+				sink.accept(fingerprints.hash(i), fingerprints.t1(i), fingerprints.f1(i));
+			if(result.lastFingerprintTime >= 0)
+				lastFingerprintTime = result.lastFingerprintTime;
+		}
+
+		/**
+		 * Cancels the segments which are still running, e.g. after a decoding error.
+		 */
+		void close(){
+			for(Future<SegmentResult> segment : segments)
+				segment.cancel(true);
+			segments.clear();
+		}
+	}
+}
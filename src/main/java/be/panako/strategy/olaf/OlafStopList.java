@@ -0,0 +1,203 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.olaf;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongPredicate;
+import java.util.function.LongUnaryOperator;
+import java.util.logging.Logger;
+
+import be.panako.util.FileUtils;
+
+/**
+ * A stop list of fingerprint hashes which are stored so often in the index that
+ * they are of no use to identify audio. Silence, pure tones and clicks result in such
+ * hashes. A single query hitting them floods the match accumulator and the verification
+ * step with useless hits, so during a query the fingerprints with these hashes are skipped:
+ * as a {@link LongPredicate} the stop list tells the storage which hashes not to read.
+ *
+ * The stop list is stored as a text file with a hash and its count on each line. The first
+ * line records the hash layout of the stop hashes.
+ */
+public class OlafStopList implements LongPredicate {
+
+	private final static Logger LOG = Logger.getLogger(OlafStopList.class.getName());
+
+	private final static String LAYOUT_HEADER = "# hash layout ";
+
+	/**
+	 * The sorted stop hashes
+	 */
+	private final long[] hashes;
+
+	/**
+	 * The number of fingerprints stored in the index for each stop hash
+	 */
+	private final int[] counts;
+
+	/**
+	 * Create a stop list from hashes and their counts.
+	 * @param frequentHashes The frequent hashes with the number of times they are stored.
+	 */
+	public OlafStopList(Map<Long,Integer> frequentHashes) {
+		TreeMap<Long,Integer> sorted = new TreeMap<>(frequentHashes);
+		hashes = new long[sorted.size()];
+		counts = new int[sorted.size()];
+		int i = 0;
+		for(Map.Entry<Long,Integer> entry : sorted.entrySet()) {
+			hashes[i] = entry.getKey();
+			counts[i] = entry.getValue();
+			i++;
+		}
+	}
+
+	/**
+	 * Read a stop list from a file. If the file does not exist an empty stop list is returned.
+	 * @param path The path of the stop list file.
+	 * @return The stop list.
+	 */
+	public static OlafStopList read(String path) {
+		Map<Long,Integer> frequentHashes = new TreeMap<>();
+		if(FileUtils.exists(path)) {
+			for(String line : FileUtils.readFile(path).split("\n")) {
+				String[] data = line.trim().split(" ");
+				if(data.length == 2)
+					frequentHashes.put(Long.valueOf(data[0]), Integer.valueOf(data[1]));
+			}
+			LOG.info(String.format("Read %d stop hashes from '%s'", frequentHashes.size(), path));
+		}
+		return new OlafStopList(frequentHashes);
+	}
+
+	/**
+	 * Returns the hash layout recorded in a stop list file.
+	 * @param path The path of the stop list file.
+	 * @return The recorded layout. A file without a record is written with the original layout, -1 is
+	 * returned if the file does not exist.
+	 */
+	public static int layout(String path) {
+		if(!FileUtils.exists(path))
+			return -1;
+		String firstLine = FileUtils.readFile(path).split("\n", 2)[0].trim();
+		if(firstLine.startsWith(LAYOUT_HEADER))
+			return OlafHashLayout.validate(Integer.parseInt(firstLine.substring(LAYOUT_HEADER.length()).trim()));
+		return OlafHashLayout.V1;
+	}
+
+	/**
+	 * Write the stop list to a file. The file is replaced only when it is completely written.
+	 * @param path The path of the stop list file.
+	 * @param layout The hash layout of the stop hashes.
+	 */
+	public void write(String path, int layout) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(LAYOUT_HEADER).append(OlafHashLayout.validate(layout)).append("\n");
+		for(int i = 0 ; i < hashes.length ; i++) {
+			sb.append(hashes[i]).append(" ").append(counts[i]).append("\n");
+		}
+		String writtenPath = path + ".tmp";
+		FileUtils.writeFile(sb.toString(), writtenPath);
+		try {
+			Files.move(Paths.get(writtenPath), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not replace " + path + " with " + writtenPath, e);
+		}
+	}
+
+	/**
+	 * Converts the stop hashes, for example to another hash layout.
+	 * @param conversion Converts a hash.
+	 * @return A new stop list with the converted hashes.
+	 */
+	public OlafStopList convert(LongUnaryOperator conversion) {
+		Map<Long,Integer> frequentHashes = new TreeMap<>();
+		for(int i = 0 ; i < hashes.length ; i++)
+			frequentHashes.merge(conversion.applyAsLong(hashes[i]), counts[i], Integer::sum);
+		return new OlafStopList(frequentHashes);
+	}
+
+	/**
+	 * Checks whether a hash is on the stop list. A query print is still probed when
+	 * its hash is near a stop hash: only the hits with a stop hash are of no use.
+	 * @param hash The hash of a stored fingerprint.
+	 * @return True if the hash is a stop hash.
+	 */
+	public boolean contains(long hash) {
+		return hashes.length > 0 && Arrays.binarySearch(hashes, hash) >= 0;
+	}
+
+	/**
+	 * Same as {@link #contains(long)}, lets the storage skip the stop hashes while scanning the index.
+	 * @param hash The hash of a stored fingerprint.
+	 * @return True if the hash is a stop hash.
+	 */
+	@Override
+	public boolean test(long hash) {
+		return contains(hash);
+	}
+
+	/**
+	 * @return The number of stop hashes.
+	 */
+	public int size() {
+		return hashes.length;
+	}
+
+	/**
+	 * @return The total number of fingerprints in the index with a stop hash.
+	 */
+	public long numberOfFingerprints() {
+		long total = 0;
+		for(int count : counts)
+			total += count;
+		return total;
+	}
+
+	/**
+	 * @return The number of fingerprints stored for the most frequent hash, zero for an empty stop list.
+	 */
+	public int maxCount() {
+		int max = 0;
+		for(int count : counts)
+			max = Math.max(max, count);
+		return max;
+	}
+}
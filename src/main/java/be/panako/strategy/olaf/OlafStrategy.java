@@ -41,13 +41,15 @@ import java.io.IOException;
 import java.util.*;
 import java.util.logging.Logger;
 
+import be.panako.strategy.CandidateVerifier;
+import be.panako.strategy.FingerprintSink;
 import be.panako.strategy.QueryResult;
 import be.panako.strategy.QueryResultHandler;
 import be.panako.strategy.Strategy;
+import be.panako.strategy.StreamMonitor;
 import be.panako.strategy.olaf.storage.*;
 import be.panako.util.*;
 import be.tarsos.dsp.AudioDispatcher;
-import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
 import be.tarsos.dsp.util.PitchConverter;
 
 /**
@@ -60,10 +62,24 @@ import be.tarsos.dsp.util.PitchConverter;
  */
 public class OlafStrategy extends Strategy {
 	private static final int MAX_TIME = 5_000_000;
+
+	/**
+	 * While storing or deleting, the queue is processed each time this number of fingerprints
+	 * is added. This bounds the memory needed to store long audio files.
+	 */
+	private static final int STORE_QUEUE_FLUSH_SIZE = 100_000;
 	
 	private final static Logger LOG = Logger.getLogger(OlafStrategy.class.getName());
 
-	private OlafStorage db;
+	/**
+	 * The storage chain, built once on first use. Queries may run concurrently,
+	 * so the lazily built fields are volatile and built while holding the lock.
+	 */
+	private volatile OlafStorage db;
+
+	private volatile OlafStopList stopList;
+
+	private volatile boolean hashLayoutChecked = false;
 
 	/**
 	 * Create an instance
@@ -72,8 +88,25 @@ public class OlafStrategy extends Strategy {
 
 	}
 
+	/**
+	 * Create an instance which uses the given storage instead of the configured storage chain.
+	 * @param storage The storage to store fingerprints in and to query.
+	 */
+	public OlafStrategy(OlafStorage storage){
+		this.db = storage;
+		this.hashLayoutChecked = true;
+	}
+
 	private OlafStorage getStorage(){
+		OlafStorage db = this.db;
+		if (db == null)
+			db = createStorage();
+		return db;
+	}
+
+	private synchronized OlafStorage createStorage(){
 		if (db ==null){
+			checkHashLayout();
 			OlafStorage db;
 			if (Config.get(Key.OLAF_STORAGE).equalsIgnoreCase("LMDB")) {
 				db = OlafStorageKV.getInstance();
@@ -91,39 +124,127 @@ public class OlafStrategy extends Strategy {
 			}else {
 				LOG.info("Using " + db.getClass().getSimpleName() + " as storage.");
 			}
+
+			if(Config.getBoolean(Key.OLAF_QUERY_COALESCE)) {
+				LOG.info("Merging the probes of concurrent queries.");
+				db = new OlafQueryCoalescingStorage(db, Config.getInt(Key.OLAF_QUERY_COALESCE_WINDOW));
+			}
+
+			if(Config.getBoolean(Key.OLAF_QUERY_CACHE)) {
+				LOG.info("Caching hits of frequently queried hashes.");
+				db = new OlafQueryCachingStorage(db, Config.getInt(Key.OLAF_QUERY_CACHE_SIZE));
+			}
+
+			if(Config.getBoolean(Key.OLAF_METADATA_CACHE)) {
+				LOG.info("Caching meta-data of matched resources.");
+				db = new OlafMetadataCachingStorage(db, Config.getInt(Key.OLAF_METADATA_CACHE_SIZE));
+			}
 			this.db = db;
 		}
 		return db;
 	}
 	
+	/**
+	 * Makes sure the index and the cached fingerprints use the configured hash layout.
+	 */
+	private synchronized void checkHashLayout(){
+		if(hashLayoutChecked)
+			return;
+		String storage = Config.get(Key.OLAF_STORAGE);
+		if(storage.equalsIgnoreCase("LMDB"))
+			OlafHashLayout.check(FileUtils.expandHomeDir(Config.get(Key.OLAF_LMDB_FOLDER)));
+		else if(storage.equalsIgnoreCase("POSTGRES"))
+			OlafHashLayout.check(OlafStoragePostgres.getInstance());
+		if(storage.equalsIgnoreCase("FILE") || Config.getBoolean(Key.OLAF_CACHE_TO_FILE) || Config.getBoolean(Key.OLAF_USE_CACHED_PRINTS))
+			OlafHashLayout.check(FileUtils.expandHomeDir(Config.get(Key.OLAF_CACHE_FOLDER)));
+		hashLayoutChecked = true;
+	}
+
+	private OlafStopList getStopList(){
+		OlafStopList stopList = this.stopList;
+		if (stopList == null)
+			stopList = readStopList();
+		return stopList;
+	}
+
+	private synchronized OlafStopList readStopList(){
+		if (stopList == null){
+			if(Config.getBoolean(Key.OLAF_USE_STOP_LIST)) {
+				String path = FileUtils.expandHomeDir(Config.get(Key.OLAF_STOP_LIST_FILE));
+				int layout = OlafStopList.layout(path);
+				if(layout != -1 && layout != OlafHashLayout.configured())
+					throw new RuntimeException(String.format("The stop list '%s' uses hash layout %d while OLAF_HASH_LAYOUT is %d. Use 'panako rehash' to convert it.", path, layout, OlafHashLayout.configured()));
+				stopList = OlafStopList.read(path);
+			}else
+				stopList = new OlafStopList(new HashMap<>());
+		}
+		return stopList;
+	}
+
+	/**
+	 * Counts how many times each hash is stored in the index and writes the hashes
+	 * which are stored at least a minimum amount of times to the stop list file.
+	 * @param minimumCount Hashes stored at least this many times are added to the stop list.
+	 * @return The new stop list.
+	 */
+	public OlafStopList createStopList(int minimumCount){
+		StopWatch w = new StopWatch();
+		OlafStopList newStopList = new OlafStopList(getStorage().frequentHashes(minimumCount));
+		String path = FileUtils.expandHomeDir(Config.get(Key.OLAF_STOP_LIST_FILE));
+		newStopList.write(path, OlafHashLayout.configured());
+		LOG.info(String.format("Wrote %d stop hashes to '%s' in %s", newStopList.size(), path, w.formattedToString()));
+		stopList = newStopList;
+		return newStopList;
+	}
+
 	@Override
 	public double store(String resource, String description) {
 
-		OlafStorage db = getStorage();
-		
-		List<OlafFingerprint> prints = toFingerprints(resource);
-		
-		int resourceID = FileUtils.getIdentifier(resource);
-		//store
-		for(OlafFingerprint print : prints) {
-			long hash = print.hash();			
-			int printT1 = print.t1;
-			db.addToStoreQueue(hash, resourceID, printT1);
-		}
-		db.processStoreQueue();
+		final OlafStorage db = getStorage();
 		
-		//store meta-data as well
+		final int resourceID = FileUtils.getIdentifier(resource);
+		//the number of prints
+		final int[] printCount = {0};
 		float duration = 0;
-		if(prints.size() != 0) {
-			duration = blocksToSeconds(prints.get(prints.size()-1).t3);
-			LOG.info(String.format("Stored %d fingerprints for '%s', id: %d", prints.size() , resource ,resourceID));
-		}else {
-			LOG.warning("Warning: no prints extracted for " + resource);
-			
+		boolean stored = false;
+		try {
+			//store the prints while they are extracted
+			int lastPrintTime = extractFingerprints(resource, (hash, t1, f1) -> {
+				db.addToStoreQueue(hash, resourceID, t1);
+				printCount[0]++;
+				if(printCount[0] % STORE_QUEUE_FLUSH_SIZE == 0)
+					TaskExecution.outsideExtraction(db::processStoreQueue);
+			});
+			db.processStoreQueue();
+
+			//store meta-data as well
+			int numberOfPrints = printCount[0];
+			if(numberOfPrints != 0) {
+				duration = blocksToSeconds(lastPrintTime);
+				LOG.info(String.format("Stored %d fingerprints for '%s', id: %d", numberOfPrints , resource ,resourceID));
+			}else {
+				LOG.warning("Warning: no prints extracted for " + resource);
+
+			}
+
+			db.storeMetadata(resourceID,resource,duration,numberOfPrints);
+			stored = true;
+		} catch (RuntimeException e) {
+			//the batches flushed before the failure are in the index already: remove them again
+			db.clearStoreQueue();
+			if(printCount[0] > 0) {
+				try {
+					removePartialStore(db, resource, resourceID, printCount[0]);
+				} catch (RuntimeException rollbackFailure) {
+					e.addSuppressed(rollbackFailure);
+				}
+			}
+			throw e;
+		} finally {
+			//a failed store does not leave pending fingerprints behind
+			if(!stored)
+				db.clearStoreQueue();
 		}
-		int numberOfPrints = prints.size();
-		
-		db.storeMetadata(resourceID,resource,duration,numberOfPrints);
 		
 		//storage is done: 
 		//try to clear memory
@@ -132,25 +253,48 @@ public class OlafStrategy extends Strategy {
 		return duration;
 	}
 
+	/**
+	 * Removes the fingerprints of a failed store. They are not kept in memory during the store, so
+	 * they are extracted once more: the first prints are the ones queued before the failure.
+	 */
+	private void removePartialStore(OlafStorage db, String resource, int resourceID, int numberOfPrints){
+		LOG.warning(String.format("Store of '%s' failed after %d fingerprints, removing them from the index", resource, numberOfPrints));
+		final int[] printCount = {0};
+		try {
+			extractFingerprints(resource, (hash, t1, f1) -> {
+				if(printCount[0] >= numberOfPrints)
+					return;
+				db.addToDeleteQueue(hash, resourceID, t1);
+				printCount[0]++;
+				if(printCount[0] % STORE_QUEUE_FLUSH_SIZE == 0)
+					TaskExecution.outsideExtraction(db::processDeleteQueue);
+			});
+		} finally {
+			//an extraction which fails again still removes the prints it found
+			db.processDeleteQueue();
+		}
+	}
+
 	@Override
 	public double delete(String resource) {
-		OlafStorage db = getStorage();
-
-		List<OlafFingerprint> prints = toFingerprints(resource);
+		final OlafStorage db = getStorage();
 
-		int resourceID = FileUtils.getIdentifier(resource);
-		//delete
-		for(OlafFingerprint print : prints) {
-			long hash = print.hash();
-			int printT1 = print.t1;
-			db.addToDeleteQueue(hash, resourceID, printT1);
-		}
+		final int resourceID = FileUtils.getIdentifier(resource);
+		//the number of prints
+		final int[] printCount = {0};
+		//delete the prints while they are extracted
+		int lastPrintTime = extractFingerprints(resource, (hash, t1, f1) -> {
+			db.addToDeleteQueue(hash, resourceID, t1);
+			printCount[0]++;
+			if(printCount[0] % STORE_QUEUE_FLUSH_SIZE == 0)
+				TaskExecution.outsideExtraction(db::processDeleteQueue);
+		});
 		db.processDeleteQueue();
 
 		//delete meta-data as well
 		float duration = 0;
-		if(prints.size() != 0) {
-			duration = blocksToSeconds(prints.get(prints.size()-1).t3);
+		if(printCount[0] != 0) {
+			duration = blocksToSeconds(lastPrintTime);
 		}else {
 			LOG.warning("Warning: no prints extracted for " + resource);
 		}
@@ -174,8 +318,69 @@ public class OlafStrategy extends Strategy {
 		return toFingerprints(resource,0,MAX_TIME);
 	}
 
+	/**
+	 * Extracts fingerprints and passes them to a sink as soon as they are available, so that
+	 * long audio files can be processed without keeping all fingerprints in memory.
+	 * @param resource The path to the audio resource
+	 * @param sink Receives the fingerprints, in order of t1.
+	 * @return The time of the last event point of the last fingerprint, for cached fingerprints
+	 * only the time of the first event point is known. Returns -1 if there are no fingerprints.
+	 */
+	int extractFingerprints(String resource, FingerprintSink sink){
+		List<OlafFingerprint> cachedPrints = readCachedFingerprints(resource,0,MAX_TIME);
+		if(cachedPrints != null) {
+			for(OlafFingerprint print : cachedPrints)
+				sink.accept(print.hash(), print.t1, print.f1);
+			return cachedPrints.isEmpty() ? -1 : cachedPrints.get(cachedPrints.size()-1).t1;
+		}
+
+		//split long files into segments which are extracted in parallel
+		if(Config.getInt(Key.OLAF_EXTRACTION_THREADS) > 1)
+			return new OlafSegmentedExtractor().extract(resource, sink);
+
+		int samplerate, size, overlap;
+		samplerate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+		size = Config.getInt(Key.OLAF_SIZE);
+		overlap = size - Config.getInt(Key.OLAF_STEP_SIZE);
+
+		AudioDispatcher d = AudioDecoder.fromResource(resource, samplerate, size, overlap,0);
+		OlafEventPointProcessor eventPointProcessor = new OlafEventPointProcessor(size,sink);
+		d.addAudioProcessor(TaskExecution.boundedExtraction(eventPointProcessor));
+		d.run();
+		return eventPointProcessor.getLastFingerprintTime();
+	}
+
 	private List<OlafFingerprint> toFingerprints(String resource,double startTimeOffset,double numberOfSeconds){
+		List<OlafFingerprint> cachedPrints = readCachedFingerprints(resource,startTimeOffset,numberOfSeconds);
+		if(cachedPrints != null)
+			return cachedPrints;
+
+		int samplerate, size, overlap;
+		samplerate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+		size = Config.getInt(Key.OLAF_SIZE);
+		overlap = size - Config.getInt(Key.OLAF_STEP_SIZE);
+		
+		AudioDispatcher d;
+		
+		if(numberOfSeconds==MAX_TIME)
+			d = AudioDecoder.fromResource(resource, samplerate, size, overlap,startTimeOffset);
+		else
+			d = AudioDecoder.fromResource(resource, samplerate, size, overlap,startTimeOffset,numberOfSeconds);
+		
+		OlafEventPointProcessor eventPointProcessor = new OlafEventPointProcessor(size);
+		d.addAudioProcessor(TaskExecution.boundedExtraction(eventPointProcessor));
+		d.run();
+		
+		return eventPointProcessor.getFingerprints();
+	}
+
+	/**
+	 * Reads fingerprints from the cache folder, if caching is enabled and the fingerprints are cached.
+	 * @return The cached fingerprints or null if there are none.
+	 */
+	private List<OlafFingerprint> readCachedFingerprints(String resource,double startTimeOffset,double numberOfSeconds){
 		if(Config.getBoolean(Key.OLAF_USE_CACHED_PRINTS)) {
+			checkHashLayout();
 			String folder = Config.get(Key.OLAF_CACHE_FOLDER);
 			folder = FileUtils.expandHomeDir(folder);
 			String tdbPath =  FileUtils.combine(folder,resolve(resource) + ".tdb");
@@ -201,24 +406,7 @@ public class OlafStrategy extends Strategy {
 				LOG.info(String.format("Could not read cached fingerprints from file '%s' for '%s'",tdbPath,resource));
 			}
 		} //else no cached prints are found
-
-		int samplerate, size, overlap;
-		samplerate = Config.getInt(Key.OLAF_SAMPLE_RATE);
-		size = Config.getInt(Key.OLAF_SIZE);
-		overlap = size - Config.getInt(Key.OLAF_STEP_SIZE);
-		
-		AudioDispatcher d;
-		
-		if(numberOfSeconds==MAX_TIME)
-			d = AudioDispatcherFactory.fromPipe(resource, samplerate, size, overlap,startTimeOffset);
-		else
-			d = AudioDispatcherFactory.fromPipe(resource, samplerate, size, overlap,startTimeOffset,numberOfSeconds);
-		
-		OlafEventPointProcessor eventPointProcessor = new OlafEventPointProcessor(size);
-		d.addAudioProcessor(eventPointProcessor);
-		d.run();
-		
-		return eventPointProcessor.getFingerprints();
+		return null;
 	}
 
 	private List<OlafEventPoint> toEventpoints(String resource){
@@ -228,9 +416,9 @@ public class OlafStrategy extends Strategy {
 		overlap = size - Config.getInt(Key.OLAF_STEP_SIZE);
 
 		AudioDispatcher d;
-		d = AudioDispatcherFactory.fromPipe(resource, samplerate, size, overlap,0);
+		d = AudioDecoder.fromResource(resource, samplerate, size, overlap,0);
 		OlafEventPointProcessor eventPointProcessor = new OlafEventPointProcessor(size);
-		d.addAudioProcessor(eventPointProcessor);
+		d.addAudioProcessor(TaskExecution.boundedExtraction(eventPointProcessor));
 		d.run();
 
 		return eventPointProcessor.getEventPoints();
@@ -271,7 +459,49 @@ public class OlafStrategy extends Strategy {
 
 	@Override
 	public void query(String query, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
-		query(query,maxNumberOfResults,avoid,handler,0,MAX_TIME);
+		if(Config.getBoolean(Key.OLAF_PROGRESSIVE_QUERY))
+			progressiveQuery(query,maxNumberOfResults,avoid,handler);
+		else
+			query(query,maxNumberOfResults,avoid,handler,0,MAX_TIME);
+	}
+
+	/**
+	 * Probes the index while the query is fingerprinted and stops decoding as soon as
+	 * a confident match is found.
+	 */
+	private void progressiveQuery(String query, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
+		final OlafStorage db = getStorage();
+		final OlafProgressiveQuery progressiveQuery = new OlafProgressiveQuery(db, getStopList(), avoid, maxNumberOfResults,
+				entry -> verifyWithLineFit(query, entry.getKey(), entry.getValue()),
+				Config.getBoolean(Key.OLAF_MATCH_FALLBACK_TO_HIST) ? entry -> verifyWithHistogram(query, entry.getKey(), entry.getValue()) : null);
+
+		StopWatch w = new StopWatch();
+		List<OlafFingerprint> cachedPrints = readCachedFingerprints(query,0,MAX_TIME);
+		if(cachedPrints != null) {
+			for(OlafFingerprint print : cachedPrints) {
+				progressiveQuery.accept(print.hash(), print.t1, print.f1);
+				if(progressiveQuery.isConfident())
+					break;
+			}
+		}else {
+			int samplerate, size, overlap;
+			samplerate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+			size = Config.getInt(Key.OLAF_SIZE);
+			overlap = size - Config.getInt(Key.OLAF_STEP_SIZE);
+
+			final AudioDispatcher d = AudioDecoder.fromResource(query, samplerate, size, overlap,0);
+			d.addAudioProcessor(TaskExecution.boundedExtraction(new OlafEventPointProcessor(size, (hash, t1, f1) -> {
+				progressiveQuery.accept(hash, t1, f1);
+				//stop decoding once a confident match is found
+				if(progressiveQuery.isConfident() && !d.isStopped())
+					d.stop();
+			})));
+			d.run();
+		}
+		List<QueryResult> queryResults = progressiveQuery.finish();
+		LOG.info(String.format("Progressive query used %.2fs of query audio in %s", blocksToSeconds(Math.max(0, progressiveQuery.getLastPrintTime())), w.formattedToString()));
+
+		handleQueryResults(db, query, queryResults, handler);
 	}
 
 
@@ -286,53 +516,100 @@ public class OlafStrategy extends Strategy {
 			queryPath = query;
 			prints = toFingerprints(query);
 		}
-		
-		final OlafStorage db = getStorage();;
-		
-		Map<Long,OlafFingerprint> printMap = new HashMap<>();
-		
+		queryPrints(queryPath, prints, maxNumberOfResults, avoid, handler);
+	}
+
+	private void queryPrints(String queryPath, List<OlafFingerprint> prints, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
+		queryBatch(Collections.singletonList(queryPath), Collections.singletonList(prints), maxNumberOfResults, avoid, Collections.singletonList(handler));
+	}
+
+	/**
+	 * Queries the fingerprints of several queries with a single probe of the index. The
+	 * hashes of all queries are merged so that a hash shared by several queries, e.g. windows
+	 * of monitored streams, is looked up only once. The hits are routed back to each query
+	 * and verified separately, the results are reported to the handler of each query.
+	 *
+	 * @param queryPaths The name of each query.
+	 * @param queries The fingerprints of each query.
+	 * @param maxNumberOfResults The maximum number of results per query.
+	 * @param avoid Resources to ignore.
+	 * @param handlers The result handler of each query.
+	 */
+	void queryBatch(List<String> queryPaths, List<List<OlafFingerprint>> queries, int maxNumberOfResults, Set<Integer> avoid, List<QueryResultHandler> handlers) {
+		final OlafStorage db = getStorage();
+
+		int queryRange = Config.getInt(Key.OLAF_QUERY_RANGE);
+		final OlafStopList stopList = getStopList();
+		int numberOfPrints = 0;
+
+		List<Map<Long,OlafFingerprint>> printMaps = new ArrayList<>(queries.size());
+		//fingerprint hash to the queries containing it
+		Map<Long,List<Integer>> queriesPerHash = new HashMap<>();
+
 		//query
-		for(OlafFingerprint print : prints) {
-			long hash = print.hash();
-			db.addToQueryQueue(hash);
-			printMap.put(hash, print);
+		for(int q = 0 ; q < queries.size() ; q++) {
+			Map<Long,OlafFingerprint> printMap = new HashMap<>();
+			for(OlafFingerprint print : queries.get(q)) {
+				long hash = print.hash();
+				if(printMap.put(hash, print) != null)
+					continue;
+				List<Integer> containingQueries = queriesPerHash.get(hash);
+				if(containingQueries == null) {
+					containingQueries = new ArrayList<>(1);
+					queriesPerHash.put(hash, containingQueries);
+					db.addToQueryQueue(hash);
+				}
+				containingQueries.add(q);
+			}
+			numberOfPrints += printMap.size();
+			printMaps.add(printMap);
 		}
-		
+
 		//fingerprint hash to info
 		Map<Long,List<OlafHit>> matchAccumulator = new HashMap<>();
-		
+
 		StopWatch w = new StopWatch();
-		int queryRange = Config.getInt(Key.OLAF_QUERY_RANGE); 
-		db.processQueryQueue(matchAccumulator,queryRange , avoid);
-		
-		LOG.info(String.format("Query for %d prints, %d matches in %s \n", printMap.size(),matchAccumulator.size(), w.formattedToString()));
-		
-		 HashMap<Integer,List<OlafMatch>> hitsPerIdentifer = new HashMap<>();
-		 
-		 final List<QueryResult> queryResults = new ArrayList<>();
-		 
+		//hashes on the stop list only flood the verification with useless hits: the scan skips them
+		db.processQueryQueue(matchAccumulator,queryRange , avoid, stopList);
+
+		if(queries.size() == 1)
+			LOG.info(String.format("Query for %d prints (%d stop hashes skipped), %d matches in %s \n", numberOfPrints, stopList.size(), matchAccumulator.size(), w.formattedToString()));
+		else
+			LOG.info(String.format("Batched query of %d queries for %d prints (%d unique, %d stop hashes skipped), %d matches in %s \n", queries.size(), numberOfPrints, queriesPerHash.size(), stopList.size(), matchAccumulator.size(), w.formattedToString()));
+
+		List<HashMap<Integer,List<OlafMatch>>> hitsPerQuery = new ArrayList<>(queries.size());
+		for(int q = 0 ; q < queries.size() ; q++)
+			hitsPerQuery.add(new HashMap<>());
+
 		 matchAccumulator.forEach((fingerprintHash, dbHits) -> {
-			 
-			 dbHits.forEach((dbHit)->{
-				//long matchingHash  = data[0];
-				 int identifier = dbHit.resourceID;
-				 int matchTime = dbHit.t;
-				 if(!hitsPerIdentifer.containsKey(identifier)){
-					hitsPerIdentifer.put(identifier, new ArrayList<OlafMatch>());
-				 }
-				 OlafMatch hit = new OlafMatch();
-				 hit.identifier = identifier;
-				 hit.matchTime = matchTime;
-				 hit.originalHash = dbHit.originalHash;
-				 hit.matchedNearHash = dbHit.matchedNearHash;
-				 hit.queryTime = printMap.get(fingerprintHash).t1;
-				 hitsPerIdentifer.get(identifier).add(hit);
-			 });
+			 for(int q : queriesPerHash.get(fingerprintHash)) {
+				 HashMap<Integer,List<OlafMatch>> hitsPerIdentifer = hitsPerQuery.get(q);
+				 int queryTime = printMaps.get(q).get(fingerprintHash).t1;
+				 dbHits.forEach((dbHit)->{
+					//long matchingHash  = data[0];
+					 int identifier = dbHit.resourceID;
+					 int matchTime = dbHit.t;
+					 if(!hitsPerIdentifer.containsKey(identifier)){
+						hitsPerIdentifer.put(identifier, new ArrayList<OlafMatch>());
+					 }
+					 OlafMatch hit = new OlafMatch();
+					 hit.identifier = identifier;
+					 hit.matchTime = matchTime;
+					 hit.originalHash = dbHit.originalHash;
+					 hit.matchedNearHash = dbHit.matchedNearHash;
+					 hit.queryTime = queryTime;
+					 hitsPerIdentifer.get(identifier).add(hit);
+				 });
+			 }
 		 });
-		 
+
+		 for(int q = 0 ; q < queries.size() ; q++)
+			 verifyHits(db, queryPaths.get(q), hitsPerQuery.get(q), maxNumberOfResults, handlers.get(q));
+	}
+
+	private void verifyHits(OlafStorage db, String queryPath, HashMap<Integer,List<OlafMatch>> hitsPerIdentifer, int maxNumberOfResults, QueryResultHandler handler) {
 		 int minimumUnfilteredHits = Config.getInt(Key.OLAF_MIN_HITS_UNFILTERED);
-		 int minimumFilteredHits = Config.getInt(Key.OLAF_MIN_HITS_FILTERED);
-		 
+
 		 List<Integer> matchesToDelete = new ArrayList<>();
 		 hitsPerIdentifer.forEach((identifier, hitlist) -> {
 			 if(hitlist.size() < minimumUnfilteredHits) {
@@ -345,222 +622,240 @@ public class OlafStrategy extends Strategy {
 			 //System.out.println("Removed " + identifier);
 		 });
 		 
-		 hitsPerIdentifer.forEach((identifier, hitlist) -> {
-			 //System.out.println("Matches " + identifier + " matches " + hitlist.size());
-			 
-			 //sort by query time
-			 Collections.sort(hitlist, (Comparator<? super OlafMatch>) (OlafMatch a, OlafMatch b) -> Integer.valueOf(a.queryTime).compareTo(Integer.valueOf(b.queryTime)));
-			
-			 //view the first and last hits (max 250)
-			 int maxPartListSize = Config.getInt(Key.OLAF_HIT_PART_MAX_SIZE);
-			 int partDivider = Config.getInt(Key.OLAF_HIT_PART_DIVIDER);
-			 int partListLength = Math.min(maxPartListSize,Math.max(minimumUnfilteredHits,hitlist.size()/partDivider));
+		 List<QueryResult> queryResults = CandidateVerifier.verify(hitsPerIdentifer.entrySet(),
+				 entry -> verifyWithLineFit(queryPath, entry.getKey(), entry.getValue()), maxNumberOfResults);
 
-			 List<OlafMatch> firstHits = hitlist.subList(0, partListLength);
-			 List<OlafMatch> lastHits  = hitlist.subList(hitlist.size()-partListLength, hitlist.size());
-			 
-			//find the first x1 where delta t is equals to the median delta t
-			 float y1 = mostCommonDeltaTforHitList(firstHits);
-			 float x1 = 0;
-			 for(int i = 0 ; i < firstHits.size() ; i++) {
-				 OlafMatch hit = firstHits.get(i);
-				 int diff = hit.deltaT();
-				 if(diff == y1) {
-					 x1 = hit.queryTime;
-					 break;
-				 }
+		 //fallback to simple histogram method
+		if (queryResults.isEmpty() && Config.getBoolean(Key.OLAF_MATCH_FALLBACK_TO_HIST)) {
+			queryResults = CandidateVerifier.verify(hitsPerIdentifer.entrySet(),
+					entry -> verifyWithHistogram(queryPath, entry.getKey(), entry.getValue()), maxNumberOfResults);
+		}
+		 
+		 handleQueryResults(db, queryPath, queryResults, handler);
+	}
+
+	private void handleQueryResults(OlafStorage db, String queryPath, List<QueryResult> queryResults, QueryResultHandler handler){
+		 if (queryResults.isEmpty()) {
+			 handler.handleEmptyResult(QueryResult.emptyQueryResult(queryPath,0,0));
+		 }else {
+			 //handle the results in order (best score first), meta-data is only retrieved for these, in one batch
+			 List<Long> identifiers = new ArrayList<>();
+			 for(QueryResult r : queryResults)
+				 identifiers.add(Long.parseLong(r.refIdentifier));
+			 Map<Long,OlafResourceMetadata> metadata = db.getMetadata(identifiers);
+			 for(QueryResult r : queryResults) {
+				 handler.handleQueryResult(withMetadata(metadata.get(Long.parseLong(r.refIdentifier)), r));
 			 }
+		 }
+	}
 
-			//find the first x2 where delta t is equals to the median delta t
-			 float y2 = mostCommonDeltaTforHitList(lastHits);
-			 float x2 = 0;
-			 for(int i = lastHits.size() - 1 ; i >= 0 ; i--) {
-				 OlafMatch hit = lastHits.get(i);
-				 int diff = hit.deltaT();
-				 if(diff == y2) {
-					 x2 = hit.queryTime;
-					 break;
-				 }
+	private QueryResult withMetadata(OlafResourceMetadata metadata, QueryResult r){
+		String refPath = "metadata unavailable!";
+		if(metadata != null )
+			refPath = metadata.path;
+		return new QueryResult(r.queryPath, r.queryStart, r.queryStop, refPath, r.refIdentifier, r.refStart, r.refStop, r.score, r.timeFactor, r.frequencyFactor, r.percentOfSecondsWithMatches);
+	}
+
+	/**
+	 * Verifies the hits of a candidate by fitting a line through the time differences of the first and last hits.
+	 * @return A result without meta-data or null if the hits do not match.
+	 */
+	QueryResult verifyWithLineFit(String queryPath, int identifier, List<OlafMatch> hitlist){
+		 int minimumUnfilteredHits = Config.getInt(Key.OLAF_MIN_HITS_UNFILTERED);
+		 int minimumFilteredHits = Config.getInt(Key.OLAF_MIN_HITS_FILTERED);
+
+		 //sort by query time
+		 Collections.sort(hitlist, (Comparator<? super OlafMatch>) (OlafMatch a, OlafMatch b) -> Integer.valueOf(a.queryTime).compareTo(Integer.valueOf(b.queryTime)));
+		
+		 //view the first and last hits (max 250)
+		 int maxPartListSize = Config.getInt(Key.OLAF_HIT_PART_MAX_SIZE);
+		 int partDivider = Config.getInt(Key.OLAF_HIT_PART_DIVIDER);
+		 int partListLength = Math.min(maxPartListSize,Math.max(minimumUnfilteredHits,hitlist.size()/partDivider));
+
+		 List<OlafMatch> firstHits = hitlist.subList(0, partListLength);
+		 List<OlafMatch> lastHits  = hitlist.subList(hitlist.size()-partListLength, hitlist.size());
+		 
+		//find the first x1 where delta t is equals to the median delta t
+		 float y1 = mostCommonDeltaTforHitList(firstHits);
+		 float x1 = 0;
+		 for(int i = 0 ; i < firstHits.size() ; i++) {
+			 OlafMatch hit = firstHits.get(i);
+			 int diff = hit.deltaT();
+			 if(diff == y1) {
+				 x1 = hit.queryTime;
+				 break;
 			 }
-			 
-			 float slope = (y2-y1)/(x2-x1);
-			 float offset = -x1 * slope + y1;
-			 float timeFactor = 1-slope;
+		 }
 
-			 //System.out.printf("slope %f  offset %f (blocks) time factor %f (percentage) hit list size %d , last hit list size %d, first hit list size %d, id %d\n",slope,offset,timeFactor, hitlist.size(), lastHits.size(), firstHits.size() , identifier);
-			 
-			 //threshold in time bins
-			 double threshold = Config.getFloat(Key.OLAF_QUERY_RANGE);
+		//find the first x2 where delta t is equals to the median delta t
+		 float y2 = mostCommonDeltaTforHitList(lastHits);
+		 float x2 = 0;
+		 for(int i = lastHits.size() - 1 ; i >= 0 ; i--) {
+			 OlafMatch hit = lastHits.get(i);
+			 int diff = hit.deltaT();
+			 if(diff == y2) {
+				 x2 = hit.queryTime;
+				 break;
+			 }
+		 }
+		 
+		 float slope = (y2-y1)/(x2-x1);
+		 float offset = -x1 * slope + y1;
+		 float timeFactor = 1-slope;
+
+		 //System.out.printf("slope %f  offset %f (blocks) time factor %f (percentage) hit list size %d , last hit list size %d, first hit list size %d, id %d\n",slope,offset,timeFactor, hitlist.size(), lastHits.size(), firstHits.size() , identifier);
+		 
+		 //threshold in time bins
+		 double threshold = Config.getFloat(Key.OLAF_QUERY_RANGE);
+		 
+		 //only continue processing when time factor is reasonable
+		 if(timeFactor > Config.getFloat(Key.OLAF_MIN_TIME_FACTOR) && timeFactor < Config.getFloat(Key.OLAF_MAX_TIME_FACTOR)) {
+			 List<OlafMatch> filteredHits = new ArrayList<>();
 			 
-			 //only continue processing when time factor is reasonable
-			 if(timeFactor > Config.getFloat(Key.OLAF_MIN_TIME_FACTOR) && timeFactor < Config.getFloat(Key.OLAF_MAX_TIME_FACTOR)) {
-				 List<OlafMatch> filteredHits = new ArrayList<>();
+			 hitlist.forEach( hit ->{				 
+				 float yActual = hit.deltaT();
+				 float x = hit.queryTime;
+				 float yPredicted = slope * x + offset;
 				 
-				 hitlist.forEach( hit ->{				 
-					 float yActual = hit.deltaT();
-					 float x = hit.queryTime;
-					 float yPredicted = slope * x + offset;
-					 
-					 //should be within an expected range
-					 boolean yInExpectedRange = Math.abs(yActual-yPredicted) <= threshold ; 
+				 //should be within an expected range
+				 boolean yInExpectedRange = Math.abs(yActual-yPredicted) <= threshold ; 
+				 
+				 //if(hit.identifier!= FileUtils.getIdentifier(queryPath))
+					 //System.out.printf("pred: %f  actual: %f   dif abs: %f  threshold %f \n",yPredicted, yActual,Math.abs(yActual-yPredicted), threshold);
+				 
+				 if(yInExpectedRange) {
+					 filteredHits.add(hit);
+				 }
+			 });
+			 
+			 //ignore resources with too few filtered hits remaining
+			 if(filteredHits.size() > minimumFilteredHits) {
+				 float minDuration = Config.getFloat(Key.OLAF_MIN_MATCH_DURATION);
+				 float queryStart = blocksToSeconds(filteredHits.get(0).queryTime);
+				 float queryStop = blocksToSeconds(filteredHits.get(filteredHits.size()-1).queryTime);
+				 float duration = queryStop - queryStart;
+				 System.out.printf("Matches %d (id) Filtered hits: %d (#) query start %.2f (s) , query stop %.2f (s) \n",identifier, filteredHits.size(),queryStart,queryStop);
+
+				 if(duration >= minDuration) {
+					 int score = filteredHits.size();
+					 float frequencyFactor = 1.0f;
 					 
-					 //if(hit.identifier!= FileUtils.getIdentifier(queryPath))
-						 //System.out.printf("pred: %f  actual: %f   dif abs: %f  threshold %f \n",yPredicted, yActual,Math.abs(yActual-yPredicted), threshold);
+					 float refStart = blocksToSeconds(filteredHits.get(0).matchTime);
+					 float refStop =  blocksToSeconds(filteredHits.get(filteredHits.size()-1).matchTime);
 					 
-					 if(yInExpectedRange) {
-						 filteredHits.add(hit);
+					 //Construct a histogram with the number of matches for each second
+					 //Ideally there is a more or less equal number of matches each second
+					 // note that the last second might not be a full second
+					 TreeMap<Integer,Integer> matchesPerSecondHistogram = new TreeMap<>();
+					 for(OlafMatch hit : filteredHits) {
+						 //if(hit.identifier!= FileUtils.getIdentifier(queryPath))
+							 //System.out.printf("%d %d %d %d %d\n", hit.identifier, hit.matchTime, hit.queryTime, hit.originalHash, hit.matchedNearHash);
+						 float offsetInSec = blocksToSeconds(hit.matchTime) - refStart;
+						 int secondBin = (int) offsetInSec;
+						 if(!matchesPerSecondHistogram.containsKey(secondBin))
+							 matchesPerSecondHistogram.put(secondBin, 0);
+						 matchesPerSecondHistogram.put(secondBin, matchesPerSecondHistogram.get(secondBin)+1);
 					 }
-				 });
-				 
-				 //ignore resources with too few filtered hits remaining
-				 if(filteredHits.size() > minimumFilteredHits) {
-					 float minDuration = Config.getFloat(Key.OLAF_MIN_MATCH_DURATION);
-					 float queryStart = blocksToSeconds(filteredHits.get(0).queryTime);
-					 float queryStop = blocksToSeconds(filteredHits.get(filteredHits.size()-1).queryTime);
-					 float duration = queryStop - queryStart;
-					 System.out.printf("Matches %d (id) Filtered hits: %d (#) query start %.2f (s) , query stop %.2f (s) \n",identifier, filteredHits.size(),queryStart,queryStop);
-
-					 if(duration >= minDuration) {
-						 int score = filteredHits.size();
-						 float frequencyFactor = 1.0f;
-						 
-						 float refStart = blocksToSeconds(filteredHits.get(0).matchTime);
-						 float refStop =  blocksToSeconds(filteredHits.get(filteredHits.size()-1).matchTime);
-						 
-						 //retrieve meta-data
-						 OlafResourceMetadata metadata = db.getMetadata((long) identifier);
-						 String refPath = "metadata unavailable!";
-						 if(metadata != null )
-							 refPath = metadata.path;
-						 
-						 //Construct a histogram with the number of matches for each second
-						 //Ideally there is a more or less equal number of matches each second
-						 // note that the last second might not be a full second
-						 TreeMap<Integer,Integer> matchesPerSecondHistogram = new TreeMap<>();
-						 for(OlafMatch hit : filteredHits) {
-							 //if(hit.identifier!= FileUtils.getIdentifier(queryPath))
-								 //System.out.printf("%d %d %d %d %d\n", hit.identifier, hit.matchTime, hit.queryTime, hit.originalHash, hit.matchedNearHash);
-							 float offsetInSec = blocksToSeconds(hit.matchTime) - refStart;
-							 int secondBin = (int) offsetInSec;
-							 if(!matchesPerSecondHistogram.containsKey(secondBin))
-								 matchesPerSecondHistogram.put(secondBin, 0);
-							 matchesPerSecondHistogram.put(secondBin, matchesPerSecondHistogram.get(secondBin)+1);
-						 }
-						
-						 //number of seconds bins
-						 float numberOfMatchingSeconds = (float) Math.ceil(refStop - refStart);
-						 float emptySeconds = numberOfMatchingSeconds - matchesPerSecondHistogram.size();
-						 float percentOfSecondsWithMatches = 1 - (emptySeconds / numberOfMatchingSeconds);
-						 
-						 if(percentOfSecondsWithMatches >= Config.getFloat(Key.OLAF_MIN_SEC_WITH_MATCH)){
-						 	QueryResult r = new QueryResult(queryPath,queryStart, queryStop, refPath, "" + identifier, refStart, refStop,  score, timeFactor, frequencyFactor,percentOfSecondsWithMatches);
-						 	queryResults.add(r);
-						 }
+					
+					 //number of seconds bins
+					 float numberOfMatchingSeconds = (float) Math.ceil(refStop - refStart);
+					 float emptySeconds = numberOfMatchingSeconds - matchesPerSecondHistogram.size();
+					 float percentOfSecondsWithMatches = 1 - (emptySeconds / numberOfMatchingSeconds);
+					 
+					 if(percentOfSecondsWithMatches >= Config.getFloat(Key.OLAF_MIN_SEC_WITH_MATCH)){
+					 	return new QueryResult(queryPath,queryStart, queryStop, null, "" + identifier, refStart, refStop,  score, timeFactor, frequencyFactor,percentOfSecondsWithMatches);
 					 }
 				 }
 			 }
-		 });
+		 }
+		 return null;
+	}
 
-		 //fallback to simple histogram method
-		if (queryResults.isEmpty() && Config.getBoolean(Key.OLAF_MATCH_FALLBACK_TO_HIST)) {
-			int histogramBinSize = 5;
-			hitsPerIdentifer.forEach((identifier, hitlist) -> {
-				Map<Integer,Integer> countPerDiff = new HashMap<>();
-				hitlist.forEach((hit)->{
-					//Histogram per 5 time bins to allow some variation in tdiff
-					int deltaT = hit.deltaT() / histogramBinSize;
-					if(!countPerDiff.containsKey(deltaT)) countPerDiff.put(deltaT, 0);
-					countPerDiff.put(deltaT, countPerDiff.get(deltaT)+1);
-				});
-
-				int maxCount = 0;
-				int mostCommonDeltaT = 0;
-				for(Map.Entry<Integer,Integer> entry : countPerDiff.entrySet()) {
-					int count = entry.getValue();
-					if(count > maxCount) {
-						maxCount = count;
-						mostCommonDeltaT = entry.getKey();
-					}
-				}
+	/**
+	 * Verifies the hits of a candidate with a histogram of time differences.
+	 * @return A result without meta-data or null if the hits do not match.
+	 */
+	QueryResult verifyWithHistogram(String queryPath, int identifier, List<OlafMatch> hitlist){
+		int minimumUnfilteredHits = Config.getInt(Key.OLAF_MIN_HITS_UNFILTERED);
+		int minimumFilteredHits = Config.getInt(Key.OLAF_MIN_HITS_FILTERED);
+		int histogramBinSize = 5;
+		Map<Integer,Integer> countPerDiff = new HashMap<>();
+		hitlist.forEach((hit)->{
+			//Histogram per 5 time bins to allow some variation in tdiff
+			int deltaT = hit.deltaT() / histogramBinSize;
+			if(!countPerDiff.containsKey(deltaT)) countPerDiff.put(deltaT, 0);
+			countPerDiff.put(deltaT, countPerDiff.get(deltaT)+1);
+		});
 
-				final int mostDeltaT = mostCommonDeltaT * histogramBinSize;
-				List<OlafMatch> filteredHits = new ArrayList<>();
-				if(maxCount > minimumUnfilteredHits){
-					hitlist.forEach( hit ->{
-						if( Math.abs(mostDeltaT - hit.deltaT() ) <= histogramBinSize)
-							filteredHits.add(hit);
-					});
-				}
+		int maxCount = 0;
+		int mostCommonDeltaT = 0;
+		for(Map.Entry<Integer,Integer> entry : countPerDiff.entrySet()) {
+			int count = entry.getValue();
+			if(count > maxCount) {
+				maxCount = count;
+				mostCommonDeltaT = entry.getKey();
+			}
+		}
+
+		final int mostDeltaT = mostCommonDeltaT * histogramBinSize;
+		List<OlafMatch> filteredHits = new ArrayList<>();
+		if(maxCount > minimumUnfilteredHits){
+			hitlist.forEach( hit ->{
+				if( Math.abs(mostDeltaT - hit.deltaT() ) <= histogramBinSize)
+					filteredHits.add(hit);
+			});
+		}
+
+
+
+		if(filteredHits.size() > minimumFilteredHits) {
+			float minDuration = Config.getFloat(Key.OLAF_MIN_MATCH_DURATION);
+			float queryStart = blocksToSeconds(filteredHits.get(0).queryTime);
+			float queryStop = blocksToSeconds(filteredHits.get(filteredHits.size() - 1).queryTime);
+			float duration = queryStop - queryStart;
+			System.out.printf("Matches %d (id) Filtered hits: %d (#) query start %.2f (s) , query stop %.2f (s) \n", identifier, filteredHits.size(), queryStart, queryStop);
 
+			if (duration >= minDuration) {
+				int score = filteredHits.size();
+				float frequencyFactor = 1.0f;
 
+				float refStart = blocksToSeconds(filteredHits.get(0).matchTime);
+				float refStop = blocksToSeconds(filteredHits.get(filteredHits.size() - 1).matchTime);
 
-				if(filteredHits.size() > minimumFilteredHits) {
-					float minDuration = Config.getFloat(Key.OLAF_MIN_MATCH_DURATION);
-					float queryStart = blocksToSeconds(filteredHits.get(0).queryTime);
-					float queryStop = blocksToSeconds(filteredHits.get(filteredHits.size() - 1).queryTime);
-					float duration = queryStop - queryStart;
-					System.out.printf("Matches %d (id) Filtered hits: %d (#) query start %.2f (s) , query stop %.2f (s) \n", identifier, filteredHits.size(), queryStart, queryStop);
-
-					if (duration >= minDuration) {
-						int score = filteredHits.size();
-						float frequencyFactor = 1.0f;
-
-						float refStart = blocksToSeconds(filteredHits.get(0).matchTime);
-						float refStop = blocksToSeconds(filteredHits.get(filteredHits.size() - 1).matchTime);
-
-						//retrieve meta-data
-						OlafResourceMetadata metadata = db.getMetadata((long) identifier);
-						String refPath = "metadata unavailable!";
-						if (metadata != null)
-							refPath = metadata.path;
-
-						//Construct a histogram with the number of matches for each second
-						//Ideally there is a more or less equal number of matches each second
-						// note that the last second might not be a full second
-						TreeMap<Integer, Integer> matchesPerSecondHistogram = new TreeMap<>();
-						for (OlafMatch hit : filteredHits) {
-							//if(hit.identifier!= FileUtils.getIdentifier(queryPath))
-							//System.out.printf("%d %d %d %d %d\n", hit.identifier, hit.matchTime, hit.queryTime, hit.originalHash, hit.matchedNearHash);
-							float offsetInSec = blocksToSeconds(hit.matchTime) - refStart;
-							int secondBin = (int) offsetInSec;
-							if (!matchesPerSecondHistogram.containsKey(secondBin))
-								matchesPerSecondHistogram.put(secondBin, 0);
-							matchesPerSecondHistogram.put(secondBin, matchesPerSecondHistogram.get(secondBin) + 1);
-						}
-
-						//number of seconds bins
-						float numberOfMatchingSeconds = (float) Math.ceil(refStop - refStart);
-						float emptySeconds = numberOfMatchingSeconds - matchesPerSecondHistogram.size();
-						float percentOfSecondsWithMatches = 1 - (emptySeconds / numberOfMatchingSeconds);
-
-						if (percentOfSecondsWithMatches >= Config.getFloat(Key.OLAF_MIN_SEC_WITH_MATCH) ) {
-							QueryResult r = new QueryResult(queryPath, queryStart, queryStop, refPath, "" + identifier, refStart, refStop, score, 1.0f, frequencyFactor, percentOfSecondsWithMatches);
-							queryResults.add(r);
-						}
-					}
+				//Construct a histogram with the number of matches for each second
+				//Ideally there is a more or less equal number of matches each second
+				// note that the last second might not be a full second
+				TreeMap<Integer, Integer> matchesPerSecondHistogram = new TreeMap<>();
+				for (OlafMatch hit : filteredHits) {
+					//if(hit.identifier!= FileUtils.getIdentifier(queryPath))
+					//System.out.printf("%d %d %d %d %d\n", hit.identifier, hit.matchTime, hit.queryTime, hit.originalHash, hit.matchedNearHash);
+					float offsetInSec = blocksToSeconds(hit.matchTime) - refStart;
+					int secondBin = (int) offsetInSec;
+					if (!matchesPerSecondHistogram.containsKey(secondBin))
+						matchesPerSecondHistogram.put(secondBin, 0);
+					matchesPerSecondHistogram.put(secondBin, matchesPerSecondHistogram.get(secondBin) + 1);
 				}
-			});
+
+				//number of seconds bins
+				float numberOfMatchingSeconds = (float) Math.ceil(refStop - refStart);
+				float emptySeconds = numberOfMatchingSeconds - matchesPerSecondHistogram.size();
+				float percentOfSecondsWithMatches = 1 - (emptySeconds / numberOfMatchingSeconds);
+
+				if (percentOfSecondsWithMatches >= Config.getFloat(Key.OLAF_MIN_SEC_WITH_MATCH) ) {
+					return new QueryResult(queryPath, queryStart, queryStop, null, "" + identifier, refStart, refStop, score, 1.0f, frequencyFactor, percentOfSecondsWithMatches);
+				}
+			}
 		}
-		 
-		 if (queryResults.isEmpty()) {
-			 handler.handleEmptyResult(QueryResult.emptyQueryResult(queryPath,0,0));
-		 }else {
-			 //sort results by score desc
-			 queryResults.sort((Comparator<? super QueryResult>) (QueryResult a, QueryResult b) -> Integer.valueOf((int) b.score).compareTo(Integer.valueOf((int) a.score)));
-			 //limit results to max number of results, if needed
-			 List<QueryResult> finalResults = queryResults;
-			 if(queryResults.size()>maxNumberOfResults) {
-				 finalResults = queryResults.subList(0, maxNumberOfResults);
-			 }
-			 //handle the results in order (best score first)
-			 for(QueryResult r : finalResults) {
-				 handler.handleQueryResult(r);
-			 }
-		 }
+		return null;
 	}
 
 	@Override
 	public void monitor(String query, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
+		if(StreamMonitor.isStream(query) || Config.getBoolean(Key.MONITOR_REAL_TIME)) {
+			monitorStream(query, maxNumberOfResults, avoid, handler);
+			return;
+		}
+
 		int overlapInSeconds = Config.getInt(Key.MONITOR_OVERLAP); // 5
 		int stepSizeInSeconds = Config.getInt(Key.MONITOR_STEP_SIZE); //25
 
@@ -574,6 +869,33 @@ public class OlafStrategy extends Strategy {
 		}
 	}
 
+	/**
+	 * Fingerprints an unbounded stream continuously and queries the last MONITOR_STEP_SIZE seconds
+	 * every MONITOR_STEP_SIZE - MONITOR_OVERLAP seconds. Standard input may be piped faster than
+	 * real time, so no windows are dropped for it.
+	 */
+	private void monitorStream(String query, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
+		int overlapInSeconds = Config.getInt(Key.MONITOR_OVERLAP);
+		int stepSizeInSeconds = Config.getInt(Key.MONITOR_STEP_SIZE);
+
+		int samplerate, size, overlap;
+		samplerate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+		size = Config.getInt(Key.OLAF_SIZE);
+		overlap = size - Config.getInt(Key.OLAF_STEP_SIZE);
+
+		StreamMonitor monitor = new StreamMonitor(blocksToSeconds(1), stepSizeInSeconds, stepSizeInSeconds - overlapInSeconds, (window, start, stop) -> {
+			List<OlafFingerprint> prints = new ArrayList<>(window.size());
+			for(int i = 0 ; i < window.size() ; i++)
+				prints.add(new OlafFingerprint(window.hash(i), window.t1(i)));
+			queryPrints(query + "-" + start + "_" + stop, prints, maxNumberOfResults, avoid, handler);
+		}, !query.equals(StreamMonitor.STANDARD_INPUT));
+
+		AudioDispatcher d = StreamMonitor.dispatcher(query, samplerate, size, overlap);
+		d.addAudioProcessor(new OlafEventPointProcessor(size, monitor));
+		d.run();
+		monitor.finish();
+	}
+
 	@Override
 	public boolean hasResource(String resource) {
 		int identifier = FileUtils.getIdentifier(resource);
@@ -591,6 +913,17 @@ public class OlafStrategy extends Strategy {
 	public void printStorageStatistics() {
 		final OlafStorage db = getStorage();
 		db.printStatistics(true);
+
+		OlafStopList stopList = getStopList();
+		if(stopList.size() > 0) {
+			System.out.printf("[Stop list statistics]\n");
+			System.out.printf("=========================\n");
+			System.out.printf("> Stop list file:               %s\n", Config.get(Key.OLAF_STOP_LIST_FILE));
+			System.out.printf("> Number of stop hashes:        %d\n", stopList.size());
+			System.out.printf("> Fingerprints with stop hash:  %d\n", stopList.numberOfFingerprints());
+			System.out.printf("> Most frequent hash count:     %d\n", stopList.maxCount());
+			System.out.printf("=========================\n\n");
+		}
 	}
 
 	@Override
@@ -623,6 +956,7 @@ public class OlafStrategy extends Strategy {
 	 * Load cached fingerprints into the key value store
 	 */
 	public void load() {
+		checkHashLayout();
 		OlafStorage db = OlafStorageKV.getInstance();
 		OlafStorage fileDb = OlafStorageFile.getInstance();
 		
@@ -665,6 +999,74 @@ public class OlafStrategy extends Strategy {
 		}
 	}
 	
+	/**
+	 * Converts the cached fingerprints, the LMDB or PostgreSQL index and the stop list to another hash layout.
+	 * The index should not be in use. The original index is kept as a backup next to the converted one.
+	 * @param layout The new hash layout.
+	 */
+	public void rehash(int layout) {
+		OlafHashLayout.validate(layout);
+
+		//the cached fingerprints are rewritten file by file
+		String cacheFolder = FileUtils.expandHomeDir(Config.get(Key.OLAF_CACHE_FOLDER));
+		final int cacheLayout = OlafHashLayout.recorded(cacheFolder);
+		if(cacheLayout != -1 && cacheLayout != layout) {
+			List<String> tdbFiles = FileUtils.glob(cacheFolder,".*.tdb", false);
+			int index = 1;
+			for(String fingerprintFilePath : tdbFiles) {
+				StringBuilder sb = new StringBuilder();
+				List<long[]> fingerprints = readFingerprintFile(fingerprintFilePath);
+				for(long[] data : fingerprints) {
+					sb.append(OlafHashLayout.convert(data[0], cacheLayout, layout)).append(" ").append(data[1]).append(" ").append(data[2]).append("\n");
+				}
+				//replace the file only when it is completely written
+				String rehashedPath = fingerprintFilePath + ".rehash";
+				FileUtils.writeFile(sb.toString(), rehashedPath);
+				FileUtils.rm(fingerprintFilePath);
+				if(!new File(rehashedPath).renameTo(new File(fingerprintFilePath)))
+					throw new RuntimeException("Could not replace " + fingerprintFilePath + " with " + rehashedPath);
+				System.out.printf("%d/%d Rehashed %d cached fingerprints in %s\n",index,tdbFiles.size(),fingerprints.size(),fingerprintFilePath);
+				index++;
+			}
+			OlafHashLayout.record(cacheFolder, layout);
+		}
+
+		//the LMDB index is copied to a new folder with converted keys
+		String lmdbFolder = FileUtils.expandHomeDir(Config.get(Key.OLAF_LMDB_FOLDER));
+		final int indexLayout = OlafHashLayout.recorded(lmdbFolder);
+		if(indexLayout != -1 && indexLayout != layout) {
+			String rehashedFolder = lmdbFolder + "_rehash";
+			String backupFolder = lmdbFolder + "_layout" + indexLayout;
+			if(FileUtils.exists(rehashedFolder) || FileUtils.exists(backupFolder))
+				throw new RuntimeException("Remove " + rehashedFolder + " and " + backupFolder + " before rehashing the index.");
+			long numberOfFingerprints = OlafStorageKV.rehash(lmdbFolder, rehashedFolder, hash -> OlafHashLayout.convert(hash, indexLayout, layout));
+			//the record moves with the folder: the rename of the converted folder is the commit point
+			OlafHashLayout.record(rehashedFolder, layout);
+			if(!new File(lmdbFolder).renameTo(new File(backupFolder)) || !new File(rehashedFolder).renameTo(new File(lmdbFolder)))
+				throw new RuntimeException("Could not replace " + lmdbFolder + " with " + rehashedFolder);
+			System.out.printf("Rehashed %d fingerprints in the index %s, the original index is kept in %s\n",numberOfFingerprints,lmdbFolder,backupFolder);
+		}
+
+		//the PostgreSQL index is converted in a new table which replaces the original in one transaction
+		if(Config.get(Key.OLAF_STORAGE).equalsIgnoreCase("POSTGRES")) {
+			OlafStoragePostgres postgres = OlafStoragePostgres.getInstance();
+			final int postgresLayout = OlafHashLayout.recorded(postgres);
+			if(postgresLayout != -1 && postgresLayout != layout) {
+				long numberOfFingerprints = postgres.rehash(hash -> OlafHashLayout.convert(hash, postgresLayout, layout), OlafHashLayout.SETTING_NAME, String.valueOf(layout));
+				System.out.printf("Rehashed %d fingerprints in the PostgreSQL index, the original fingerprints are kept in the table fingerprints_backup\n",numberOfFingerprints);
+			}
+		}
+
+		//the stop list records its own layout
+		String stopListPath = FileUtils.expandHomeDir(Config.get(Key.OLAF_STOP_LIST_FILE));
+		final int stopListLayout = OlafStopList.layout(stopListPath);
+		if(stopListLayout != -1 && stopListLayout != layout) {
+			OlafStopList.read(stopListPath).convert(hash -> OlafHashLayout.convert(hash, stopListLayout, layout)).write(stopListPath, layout);
+			System.out.printf("Rehashed the stop list %s\n",stopListPath);
+		}
+		stopList = null;
+	}
+
 	private void addToMap(TreeMap<Integer,float[]> map,int t,int f,float m) {
 		if(!map.containsKey(t)) {
 			map.put(t, new float[Config.getInt(Key.OLAF_SIZE)/2]);
@@ -721,6 +1123,11 @@ public class OlafStrategy extends Strategy {
 	@Override
 	public void clear() {
 		getStorage().clear();
+		//the stop list is only valid for the cleared index
+		String stopListPath = FileUtils.expandHomeDir(Config.get(Key.OLAF_STOP_LIST_FILE));
+		if(FileUtils.exists(stopListPath))
+			FileUtils.rm(stopListPath);
+		stopList = null;
 	}
 
 	@Override
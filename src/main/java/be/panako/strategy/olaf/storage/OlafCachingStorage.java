@@ -1,8 +1,10 @@
 package be.panako.strategy.olaf.storage;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.LongPredicate;
 
 /**
  * This is a caching front for a storage engine.
@@ -64,6 +66,11 @@ public class OlafCachingStorage implements OlafStorage{
         return invertedIndex.getMetadata(identifier);
     }
 
+    @Override
+    public Map<Long, OlafResourceMetadata> getMetadata(Collection<Long> identifiers) {
+        return invertedIndex.getMetadata(identifiers);
+    }
+
     @Override
     public void addToQueryQueue(long queryHash) {
         //it does not make sense to use the non optimized caching index for query tasks
@@ -76,6 +83,11 @@ public class OlafCachingStorage implements OlafStorage{
         invertedIndex.processQueryQueue(matchAccumulator,range,resourcesToAvoid);
     }
 
+    @Override
+    public void processQueryQueue(Map<Long, List<OlafHit>> matchAccumulator, int range, Set<Integer> resourcesToAvoid, LongPredicate skippedHashes) {
+        invertedIndex.processQueryQueue(matchAccumulator,range,resourcesToAvoid,skippedHashes);
+    }
+
     @Override
     public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1) {
         cachingIndex.addToDeleteQueue(fingerprintHash,resourceIdentifier,t1);
@@ -99,4 +111,9 @@ public class OlafCachingStorage implements OlafStorage{
         cachingIndex.clear();
         invertedIndex.clear();
     }
+
+    @Override
+    public Map<Long, Integer> frequentHashes(int minimumCount) {
+        return invertedIndex.frequentHashes(minimumCount);
+    }
 }
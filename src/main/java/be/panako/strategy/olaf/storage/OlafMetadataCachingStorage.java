@@ -0,0 +1,195 @@
+package be.panako.strategy.olaf.storage;
+
+import be.panako.util.TinyLFUCache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+
+/**
+ * A meta-data cache in front of a storage system.
+ *
+ * Each accepted query result needs the meta-data of the matching resource. For a key value
+ * store this is a read transaction, for a database a round trip. Popular references are
+ * matched over and over again, so their meta-data is kept in a size bounded, frequency
+ * aware cache. Meta-data which is not cached is fetched with one batch lookup.
+ *
+ * Only present meta-data is cached: a resource which is stored without this front is
+ * found on the next lookup. Storing or deleting meta-data via this front invalidates the
+ * cached entry.
+ */
+public class OlafMetadataCachingStorage implements OlafStorage {
+
+    private final OlafStorage invertedIndex;
+    private final TinyLFUCache<Long, OlafResourceMetadata> cache;
+
+    /**
+     * Incremented on each change, prevents caching meta-data which was read during a change.
+     */
+    private final AtomicLong modifications;
+
+    /**
+     * Create a new meta-data caching front.
+     * @param invertedIndex The actual storage.
+     * @param maximumSize The maximum number of cached meta-data records.
+     */
+    public OlafMetadataCachingStorage(OlafStorage invertedIndex, int maximumSize){
+        this.invertedIndex = invertedIndex;
+        this.cache = new TinyLFUCache<>(maximumSize);
+        this.modifications = new AtomicLong(0);
+    }
+
+    @Override
+    public void storeMetadata(long resourceID, String resourcePath, float duration, int numberOfFingerprints) {
+        invertedIndex.storeMetadata(resourceID,resourcePath,duration,numberOfFingerprints);
+        modifications.incrementAndGet();
+        cache.invalidate(resourceID);
+    }
+
+    @Override
+    public OlafResourceMetadata getMetadata(long identifier) {
+        OlafResourceMetadata metadata = cache.get(identifier);
+        if(metadata != null)
+            return metadata;
+
+        long modificationsBeforeLookup = modifications.get();
+        metadata = invertedIndex.getMetadata(identifier);
+        if(metadata != null)
+            cacheIfUnchanged(identifier,metadata,modificationsBeforeLookup);
+        return metadata;
+    }
+
+    @Override
+    public Map<Long, OlafResourceMetadata> getMetadata(Collection<Long> identifiers) {
+        Map<Long, OlafResourceMetadata> metadata = new HashMap<>();
+        List<Long> misses = new ArrayList<>();
+        for(long identifier : identifiers){
+            OlafResourceMetadata cached = cache.get(identifier);
+            if(cached != null)
+                metadata.put(identifier,cached);
+            else
+                misses.add(identifier);
+        }
+        if(misses.isEmpty())
+            return metadata;
+
+        long modificationsBeforeLookup = modifications.get();
+        Map<Long, OlafResourceMetadata> fetched = invertedIndex.getMetadata(misses);
+        fetched.forEach((identifier, m) -> {
+            metadata.put(identifier,m);
+            cacheIfUnchanged(identifier,m,modificationsBeforeLookup);
+        });
+        return metadata;
+    }
+
+    /**
+     * Caches meta-data unless it changed since the lookup started. A change which happens
+     * while the entry is added is caught by the second check.
+     */
+    private void cacheIfUnchanged(long identifier, OlafResourceMetadata metadata, long modificationsBeforeLookup){
+        if(modificationsBeforeLookup != modifications.get())
+            return;
+        cache.put(identifier,metadata);
+        if(modificationsBeforeLookup != modifications.get())
+            cache.invalidate(identifier);
+    }
+
+    /**
+     * @return The ratio of meta-data lookups served from the cache, between zero and one.
+     */
+    public double hitRate(){
+        return cache.hitRate();
+    }
+
+    /**
+     * @return The number of meta-data lookups served from the cache.
+     */
+    public long hitCount(){
+        return cache.hitCount();
+    }
+
+    /**
+     * @return The number of meta-data lookups which were passed to the storage.
+     */
+    public long missCount(){
+        return cache.missCount();
+    }
+
+    @Override
+    public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1) {
+        invertedIndex.addToStoreQueue(fingerprintHash,resourceIdentifier,t1);
+    }
+
+    @Override
+    public void processStoreQueue() {
+        invertedIndex.processStoreQueue();
+    }
+
+    @Override
+    public void clearStoreQueue() {
+        invertedIndex.clearStoreQueue();
+    }
+
+    @Override
+    public void printStatistics(boolean printDetailedStats) {
+        invertedIndex.printStatistics(printDetailedStats);
+        if(printDetailedStats) {
+            System.out.printf("[Meta-data cache statistics]\n");
+            System.out.printf("=========================\n");
+            System.out.printf("> Cached meta-data records:     %d (max %d)\n", cache.size(), cache.maximumSize());
+            System.out.printf("> Cache hits:                   %d\n", cache.hitCount());
+            System.out.printf("> Cache misses:                 %d\n", cache.missCount());
+            System.out.printf("> Hit rate:                     %.2f%%\n", cache.hitRate() * 100);
+            System.out.printf("=========================\n\n");
+        }
+    }
+
+    @Override
+    public void addToQueryQueue(long queryHash) {
+        invertedIndex.addToQueryQueue(queryHash);
+    }
+
+    @Override
+    public void processQueryQueue(Map<Long, List<OlafHit>> matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
+        invertedIndex.processQueryQueue(matchAccumulator,range,resourcesToAvoid);
+    }
+
+    @Override
+    public void processQueryQueue(Map<Long, List<OlafHit>> matchAccumulator, int range, Set<Integer> resourcesToAvoid, LongPredicate skippedHashes) {
+        invertedIndex.processQueryQueue(matchAccumulator,range,resourcesToAvoid,skippedHashes);
+    }
+
+    @Override
+    public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1) {
+        invertedIndex.addToDeleteQueue(fingerprintHash,resourceIdentifier,t1);
+    }
+
+    @Override
+    public void processDeleteQueue() {
+        invertedIndex.processDeleteQueue();
+    }
+
+    @Override
+    public void deleteMetadata(long resourceID) {
+        invertedIndex.deleteMetadata(resourceID);
+        modifications.incrementAndGet();
+        cache.invalidate(resourceID);
+    }
+
+    @Override
+    public void clear() {
+        invertedIndex.clear();
+        modifications.incrementAndGet();
+        cache.clear();
+    }
+
+    @Override
+    public Map<Long, Integer> frequentHashes(int minimumCount) {
+        return invertedIndex.frequentHashes(minimumCount);
+    }
+}
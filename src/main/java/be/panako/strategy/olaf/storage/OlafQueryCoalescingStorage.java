@@ -0,0 +1,291 @@
+package be.panako.strategy.olaf.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+
+/**
+ * Merges the probes of concurrent queries into one sweep of the inverted index.
+ *
+ * When many queries run in parallel each query normally opens its own read transaction and
+ * cursor and seeks through the index on its own. This front gathers the query hashes of all
+ * queries which arrive while a sweep runs, or within a short gather window, and lets one of the
+ * querying threads probe the union of the hashes: sorted, each unique hash once, in a single
+ * transaction. The hits are then handed back to each query.
+ *
+ * Resources to avoid are filtered per query, so queries with different resources to avoid can
+ * be merged. Queries with a different range, or skipping different hashes, are probed in separate sweeps.
+ */
+public class OlafQueryCoalescingStorage implements OlafStorage {
+
+    private final OlafStorage invertedIndex;
+    private final long gatherWindowNanos;
+
+    private final ThreadLocal<List<Long>> queryQueue;
+
+    private final Object lock;
+    private final List<Request> pending;
+    private boolean sweeping;
+
+    private final AtomicLong coalescedQueries;
+    private final AtomicLong sweeps;
+    private final AtomicLong probedHashes;
+
+    /**
+     * Create a new query coalescing front.
+     * @param invertedIndex The actual inverted index storage (key value store).
+     * @param gatherWindowMicros The time, in microseconds, a sweep waits for other queries to join.
+     */
+    public OlafQueryCoalescingStorage(OlafStorage invertedIndex, int gatherWindowMicros){
+        this.invertedIndex = invertedIndex;
+        this.gatherWindowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, gatherWindowMicros));
+        this.queryQueue = ThreadLocal.withInitial(ArrayList::new);
+        this.lock = new Object();
+        this.pending = new ArrayList<>();
+        this.sweeping = false;
+        this.coalescedQueries = new AtomicLong(0);
+        this.sweeps = new AtomicLong(0);
+        this.probedHashes = new AtomicLong(0);
+    }
+
+    @Override
+    public void storeMetadata(long resourceID, String resourcePath, float duration, int numberOfFingerprints) {
+        invertedIndex.storeMetadata(resourceID,resourcePath,duration,numberOfFingerprints);
+    }
+
+    @Override
+    public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1) {
+        invertedIndex.addToStoreQueue(fingerprintHash,resourceIdentifier,t1);
+    }
+
+    @Override
+    public void processStoreQueue() {
+        invertedIndex.processStoreQueue();
+    }
+
+    @Override
+    public void clearStoreQueue() {
+        invertedIndex.clearStoreQueue();
+    }
+
+    @Override
+    public void printStatistics(boolean printDetailedStats) {
+        invertedIndex.printStatistics(printDetailedStats);
+        if(printDetailedStats) {
+            System.out.printf("[Query coalescing statistics]\n");
+            System.out.printf("=========================\n");
+            System.out.printf("> Queries:                      %d\n", coalescedQueries.get());
+            System.out.printf("> Index sweeps:                 %d\n", sweeps.get());
+            System.out.printf("> Queries per sweep:            %.2f\n", queriesPerSweep());
+            System.out.printf("> Probed unique hashes:         %d\n", probedHashes.get());
+            System.out.printf("=========================\n\n");
+        }
+    }
+
+    /**
+     * @return The number of queries processed by this front.
+     */
+    public long queryCount(){
+        return coalescedQueries.get();
+    }
+
+    /**
+     * @return The number of sweeps of the inverted index.
+     */
+    public long sweepCount(){
+        return sweeps.get();
+    }
+
+    /**
+     * @return The average number of queries served by one sweep of the inverted index.
+     */
+    public double queriesPerSweep(){
+        long s = sweeps.get();
+        return s == 0 ? 0 : coalescedQueries.get() / (double) s;
+    }
+
+    @Override
+    public OlafResourceMetadata getMetadata(long identifier) {
+        return invertedIndex.getMetadata(identifier);
+    }
+
+    @Override
+    public Map<Long, OlafResourceMetadata> getMetadata(Collection<Long> identifiers) {
+        return invertedIndex.getMetadata(identifiers);
+    }
+
+    @Override
+    public void addToQueryQueue(long queryHash) {
+        queryQueue.get().add(queryHash);
+    }
+
+    @Override
+    public void processQueryQueue(Map<Long, List<OlafHit>> matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
+        processQueryQueue(matchAccumulator, range, resourcesToAvoid, hash -> false);
+    }
+
+    @Override
+    public void processQueryQueue(Map<Long, List<OlafHit>> matchAccumulator, int range, Set<Integer> resourcesToAvoid, LongPredicate skippedHashes) {
+        List<Long> queue = queryQueue.get();
+        if(queue.isEmpty())
+            return;
+
+        Request request = new Request(new ArrayList<>(queue), range, skippedHashes, resourcesToAvoid, matchAccumulator);
+        queue.clear();
+
+        synchronized (lock) {
+            pending.add(request);
+            //wait while another thread sweeps, it may serve this request as well
+            while(sweeping && !request.done) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for a coalesced query", e);
+                }
+            }
+            if(request.done) {
+                request.rethrow();
+                return;
+            }
+            sweeping = true;
+        }
+
+        //this thread sweeps: give concurrent queries the chance to join
+        if(gatherWindowNanos > 0)
+            sleepNanos(gatherWindowNanos);
+
+        List<Request> batch;
+        synchronized (lock) {
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+
+        RuntimeException failure = null;
+        try {
+            sweep(batch);
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            synchronized (lock) {
+                for(Request r : batch) {
+                    r.failure = failure;
+                    r.done = true;
+                }
+                sweeping = false;
+                lock.notifyAll();
+            }
+        }
+        request.rethrow();
+    }
+
+    private static void sleepNanos(long nanos){
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Probes the union of the hashes of the requests, once per range and skipped hashes, and routes the hits back.
+     */
+    private void sweep(List<Request> batch){
+        Map<Integer, Map<LongPredicate, List<Request>>> requestsPerRange = new HashMap<>();
+        for(Request r : batch)
+            requestsPerRange.computeIfAbsent(r.range, k -> new HashMap<>())
+                    .computeIfAbsent(r.skippedHashes, k -> new ArrayList<>()).add(r);
+
+        for(Map.Entry<Integer, Map<LongPredicate, List<Request>>> perRange : requestsPerRange.entrySet())
+            for(List<Request> requests : perRange.getValue().values())
+                sweep(requests, perRange.getKey(), requests.get(0).skippedHashes);
+    }
+
+    private void sweep(List<Request> requests, int range, LongPredicate skippedHashes){
+        Set<Long> uniqueHashes = new HashSet<>();
+        for(Request r : requests)
+            for(long queryHash : r.hashes)
+                if(uniqueHashes.add(queryHash))
+                    invertedIndex.addToQueryQueue(queryHash);
+
+        Map<Long, List<OlafHit>> fetched = new HashMap<>();
+        invertedIndex.processQueryQueue(fetched,range,Collections.emptySet(),skippedHashes);
+        sweeps.incrementAndGet();
+        coalescedQueries.addAndGet(requests.size());
+        probedHashes.addAndGet(uniqueHashes.size());
+
+        //hand the hits back, as if each query probed the index itself
+        for(Request r : requests) {
+            for(long queryHash : r.hashes) {
+                List<OlafHit> hits = fetched.get(queryHash);
+                if(hits == null)
+                    continue;
+                for(OlafHit hit : hits) {
+                    if(r.resourcesToAvoid.contains(hit.resourceID))
+                        continue;
+                    r.matchAccumulator.computeIfAbsent(queryHash, k -> new ArrayList<>()).add(hit);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1) {
+        invertedIndex.addToDeleteQueue(fingerprintHash,resourceIdentifier,t1);
+    }
+
+    @Override
+    public void processDeleteQueue() {
+        invertedIndex.processDeleteQueue();
+    }
+
+    @Override
+    public void deleteMetadata(long resourceID) {
+        invertedIndex.deleteMetadata(resourceID);
+    }
+
+    @Override
+    public void clear() {
+        invertedIndex.clear();
+    }
+
+    @Override
+    public Map<Long, Integer> frequentHashes(int minimumCount) {
+        return invertedIndex.frequentHashes(minimumCount);
+    }
+
+    /**
+     * The probe of one query, waiting to be served by a sweep.
+     */
+    private static class Request {
+        final List<Long> hashes;
+        final int range;
+        final LongPredicate skippedHashes;
+        final Set<Integer> resourcesToAvoid;
+        final Map<Long, List<OlafHit>> matchAccumulator;
+        //guarded by the lock
+        boolean done;
+        RuntimeException failure;
+
+        Request(List<Long> hashes, int range, LongPredicate skippedHashes, Set<Integer> resourcesToAvoid, Map<Long, List<OlafHit>> matchAccumulator){
+            this.hashes = hashes;
+            this.range = range;
+            this.skippedHashes = skippedHashes;
+            this.resourcesToAvoid = resourcesToAvoid;
+            this.matchAccumulator = matchAccumulator;
+        }
+
+        void rethrow(){
+            if(failure != null)
+                throw new RuntimeException("Coalesced query failed", failure);
+        }
+    }
+}
@@ -35,9 +35,12 @@
 
 package be.panako.strategy.olaf.storage;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.LongPredicate;
 
 /**
  * The interface to a storage system.
@@ -85,6 +88,22 @@ public interface OlafStorage {
 	 */
 	OlafResourceMetadata getMetadata(long identifier);
 
+	/**
+	 * Return meta-data for a number of identifiers at once. Storage systems which
+	 * fetch several records in one transaction or round trip override this method.
+	 * @param identifiers The internal identifiers.
+	 * @return The meta-data of each identifier which is present, keyed by identifier.
+	 */
+	default Map<Long,OlafResourceMetadata> getMetadata(Collection<Long> identifiers) {
+		Map<Long,OlafResourceMetadata> metadata = new HashMap<>();
+		for(long identifier : identifiers) {
+			OlafResourceMetadata m = getMetadata(identifier);
+			if(m != null)
+				metadata.put(identifier, m);
+		}
+		return metadata;
+	}
+
 	/**
 	 * Query operations are done in batches this method adds a fingerprint hash to the query queue
 	 * @param queryHash The hash to add to the queue
@@ -99,6 +118,22 @@ public interface OlafStorage {
 	 */
 	void processQueryQueue(Map<Long,List<OlafHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid);
 
+	/**
+	 * Actually query the database for the queued fingerprint hashes, without the fingerprints
+	 * stored with a skipped hash. A storage which reads the fingerprints of a hash in one go
+	 * leaves the skipped hashes out of its scan: their fingerprints, often the bulk of a
+	 * stop-listed index, are never read. This default drops them only after the scan.
+	 * @param matchAccumulator Add the matches to this list
+	 * @param range The range determines how much the reference hashes might differ from the query hash
+	 * @param resourcesToAvoid For deduplication it might be of interest to filter out some resources.
+	 * @param skippedHashes The stored hashes of which the fingerprints are skipped, e.g. the stop list.
+	 */
+	default void processQueryQueue(Map<Long,List<OlafHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid,LongPredicate skippedHashes){
+		processQueryQueue(matchAccumulator, range, resourcesToAvoid);
+		matchAccumulator.values().forEach(hits -> hits.removeIf(hit -> skippedHashes.test(hit.matchedNearHash)));
+		matchAccumulator.values().removeIf(List::isEmpty);
+	}
+
 
 	/**
 	 * Adds a fingerprint hash to the delete queue.
@@ -124,5 +159,14 @@ public interface OlafStorage {
 	 */
 	void clear();
 
+	/**
+	 * Count the number of stored fingerprints for each hash and return the hashes
+	 * which are stored at least a minimum number of times. These are typically hashes
+	 * of silence, tones or clicks which occur in many resources.
+	 * @param minimumCount The minimum number of stored fingerprints for a hash to be returned.
+	 * @return A map with each frequent hash and the number of times it is stored, ordered by hash.
+	 */
+	Map<Long,Integer> frequentHashes(int minimumCount);
+
 
 }
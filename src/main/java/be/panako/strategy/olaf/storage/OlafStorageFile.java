@@ -36,13 +36,14 @@
 package be.panako.strategy.olaf.storage;
 
 import java.io.File;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
+import be.panako.strategy.FingerprintBatch;
 import be.panako.util.Config;
 import be.panako.util.FileUtils;
 import be.panako.util.Key;
@@ -80,9 +81,15 @@ public class OlafStorageFile implements OlafStorage {
 	}
 	
 	
-	final Map<Long,List<long[]>> storeQueue;
+	final ThreadLocal<FingerprintBatch> storeQueue;
 	final File storeDir;
 
+	/**
+	 * For each thread, the resources for which fingerprints are written since the meta-data was
+	 * stored. Fingerprints of these resources are appended to the fingerprint file.
+	 */
+	final ThreadLocal<Set<Integer>> resourcesInProgress;
+
 	/**
 	 * Checks whether the folder used to
 	 */
@@ -98,7 +105,8 @@ public class OlafStorageFile implements OlafStorage {
 		
 		storeDir = new File(folder);
 		
-		storeQueue = new HashMap<Long,List<long[]>>();
+		storeQueue = ThreadLocal.withInitial(FingerprintBatch::new);
+		resourcesInProgress = ThreadLocal.withInitial(HashSet::new);
 	}
 
 
@@ -108,6 +116,9 @@ public class OlafStorageFile implements OlafStorage {
 		StringBuilder sb = new StringBuilder();		
 		sb.append(resourceID).append("\n").append(duration).append("\n").append(fingerprints).append("\n").append(resourcePath).append("\n");	
 		FileUtils.writeFile(sb.toString(), path);		
+
+		//the fingerprints of this resource are complete
+		resourcesInProgress.get().remove((int) resourceID);
 	}
 	
 	@Override
@@ -128,25 +139,19 @@ public class OlafStorageFile implements OlafStorage {
 	
 	@Override
 	public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1) {
-		long[] data = {fingerprintHash,resourceIdentifier,t1};
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			storeQueue.put(threadID, new ArrayList<long[]>());
-		storeQueue.get(threadID).add(data);
+		storeQueue.get().add(fingerprintHash,resourceIdentifier,t1);
 	}
 
 	/**
 	 * Iterates all the hashes in the store queue and prints them into
 	 * a formatted string
-	 * @param queue The list of fingerprint information to print
+	 * @param queue The batch of fingerprints to print
 	 * @return The string representing the hashes.
 	 */
-	public String storeQueueToString(List<long[]> queue ) {		
-		//sort by hash asc
-		//storeQueue.sort((a, b) -> Long.valueOf(a[0]).compareTo(b[0]));
+	public String storeQueueToString(FingerprintBatch queue ) {		
 		StringBuilder sb = new StringBuilder();
-		for(long[] data : queue) {
-			sb.append(data[0]).append(" ").append(data[1]).append(" ").append(data[2]).append("\n");
+		for(int i = 0 ; i < queue.size() ; i++) {
+			sb.append(queue.hash(i)).append(" ").append(queue.resourceIdentifier(i)).append(" ").append(queue.t1(i)).append("\n");
 		}
 		
 		// Clears the store queue
@@ -161,11 +166,7 @@ public class OlafStorageFile implements OlafStorage {
 	 * @return The string representing the hashes.
 	 */
 	public String storeQueueToString( ) {
-		if(storeQueue.isEmpty()) return null;
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID)) return null;
-		
-		List<long[]> queue = storeQueue.get(threadID);
+		FingerprintBatch queue = storeQueue.get();
 		
 		if (queue.isEmpty()) return null;
 		
@@ -174,25 +175,37 @@ public class OlafStorageFile implements OlafStorage {
 
 	@Override
 	public void processStoreQueue() {
-		if(storeQueue.isEmpty()) return;
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID)) return;
-		
-		List<long[]> queue = storeQueue.get(threadID);
+		FingerprintBatch queue = storeQueue.get();
 		
 		if (queue.isEmpty()) return;
 		
-		int resourceIdentifier = (int) queue.get(0)[1];
+		int resourceIdentifier = queue.resourceIdentifier(0);
 		
 		// Clears the store queue
 		String fingerprintsAsString = storeQueueToString(queue);
 		String path = FileUtils.combine(storeDir.getAbsolutePath(),resourceIdentifier + ".tdb");
-		FileUtils.writeFile(fingerprintsAsString, path);
+		//the first part of the fingerprints replaces an older file, the next parts are appended
+		Set<Integer> inProgress = resourcesInProgress.get();
+		if(inProgress.add(resourceIdentifier))
+			FileUtils.writeFile(fingerprintsAsString, path);
+		else
+			FileUtils.appendFile(fingerprintsAsString, path);
 	}
 
+	/**
+	 * Drops the pending fingerprints. The fingerprint files of the resources without stored
+	 * meta-data, e.g. after a failed extraction, are incomplete and are removed.
+	 */
 	@Override
 	public void clearStoreQueue() {
-
+		storeQueue.get().clear();
+		Set<Integer> inProgress = resourcesInProgress.get();
+		for(int resourceIdentifier : inProgress) {
+			String path = FileUtils.combine(storeDir.getAbsolutePath(),resourceIdentifier + ".tdb");
+			if(FileUtils.exists(path))
+				FileUtils.rm(path);
+		}
+		inProgress.clear();
 	}
 
 	@Override
@@ -247,5 +260,11 @@ public class OlafStorageFile implements OlafStorage {
 		}
 		LOG.info(String.format("Removed %d files from file storage",filesToDelete.length));
 	}
+
+	@Override
+	public Map<Long, Integer> frequentHashes(int minimumCount) {
+		//the file storage is not an inverted index: counting hashes is not supported
+		return new HashMap<>();
+	}
 }
 
@@ -37,23 +37,28 @@ package be.panako.strategy.olaf.storage;
 
 import java.io.File;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.LongPredicate;
+import java.util.function.LongUnaryOperator;
 
 import org.lmdbjava.Cursor;
 import org.lmdbjava.Dbi;
 import org.lmdbjava.DbiFlags;
-import org.lmdbjava.Env;
 import org.lmdbjava.GetOp;
 import org.lmdbjava.SeekOp;
 import org.lmdbjava.Stat;
 import org.lmdbjava.Txn;
 
-import be.panako.cli.Application;
+import be.panako.strategy.FingerprintBatch;
+import be.panako.strategy.KeyValueBuffers;
+import be.panako.strategy.KeyValueEnvironment;
 import be.panako.util.Config;
 import be.panako.util.FileUtils;
 import be.panako.util.Key;
@@ -92,11 +97,11 @@ public class OlafStorageKV implements OlafStorage {
 		
 	final Dbi<ByteBuffer> fingerprints;
 	final Dbi<ByteBuffer> resourceMap;
-	final Env<ByteBuffer> env;
+	final KeyValueEnvironment env;
 	
-	final Map<Long,List<long[]>> storeQueue;
-	final Map<Long,List<long[]>> deleteQueue;
-	final Map<Long,List<Long>> queryQueue;
+	final ThreadLocal<FingerprintBatch> storeQueue;
+	final ThreadLocal<FingerprintBatch> deleteQueue;
+	final ThreadLocal<List<Long>> queryQueue;
 
 	/**
 	 * Create a new instance of the key value store.
@@ -115,25 +120,96 @@ public class OlafStorageKV implements OlafStorage {
 		}
 
 		
-		env =  org.lmdbjava.Env.create()
-        .setMapSize(1024L * 1024L * 1024L * 1024L)//1 TB max!
-        .setMaxDbs(2)
-        .setMaxReaders(Application.availableProcessors())
-        .open(new File(folder));
+		env = openEnv(folder);
+		fingerprints = openFingerprints(env);
+		resourceMap = openResourceMap(env);
 		
+		storeQueue = ThreadLocal.withInitial(FingerprintBatch::new);
+		deleteQueue = ThreadLocal.withInitial(FingerprintBatch::new);
+		queryQueue = ThreadLocal.withInitial(ArrayList::new);
+	}
+
+	private static KeyValueEnvironment openEnv(String folder){
+		return KeyValueEnvironment.open(folder, 2);
+	}
+
+	private static Dbi<ByteBuffer> openFingerprints(KeyValueEnvironment env){
 		final String fingerprintName = "olaf_fingerprints";
-		fingerprints = env.openDbi(fingerprintName, DbiFlags.MDB_CREATE, DbiFlags.MDB_INTEGERKEY, DbiFlags.MDB_DUPSORT, DbiFlags.MDB_DUPFIXED);
-		
-		final String resourceName = "olaf_resource_map";		
-		resourceMap = env.openDbi(resourceName,DbiFlags.MDB_CREATE, DbiFlags.MDB_INTEGERKEY);
-		
-		storeQueue = new HashMap<>();
-		deleteQueue = new HashMap<>();
-		queryQueue = new HashMap<>();
+		return env.openDbi(fingerprintName, DbiFlags.MDB_CREATE, DbiFlags.MDB_INTEGERKEY, DbiFlags.MDB_DUPSORT, DbiFlags.MDB_DUPFIXED);
+	}
+
+	private static Dbi<ByteBuffer> openResourceMap(KeyValueEnvironment env){
+		final String resourceName = "olaf_resource_map";
+		return env.openDbi(resourceName,DbiFlags.MDB_CREATE, DbiFlags.MDB_INTEGERKEY);
 	}
 
 	/**
-	 * Close the environment (move this to interface?)
+	 * Copies an index to a new folder while converting each fingerprint hash, for example to
+	 * change the hash layout. The meta-data is copied as is. The index should not be in use.
+	 * @param sourceFolder The folder of the index to convert.
+	 * @param targetFolder The folder for the converted index, it should not contain an index yet.
+	 * @param conversion Converts a fingerprint hash.
+	 * @return The number of fingerprints copied.
+	 */
+	public static long rehash(String sourceFolder, String targetFolder, LongUnaryOperator conversion) {
+		if(!new File(targetFolder).exists())
+			FileUtils.mkdirs(targetFolder);
+		final int batchSize = 1_000_000;
+		long copied = 0;
+		try (KeyValueEnvironment source = openEnv(sourceFolder); KeyValueEnvironment target = openEnv(targetFolder)) {
+			final Dbi<ByteBuffer> sourcePrints = openFingerprints(source);
+			final Dbi<ByteBuffer> sourceResources = openResourceMap(source);
+			final Dbi<ByteBuffer> targetPrints = openFingerprints(target);
+			final Dbi<ByteBuffer> targetResources = openResourceMap(target);
+
+			//the meta-data
+			try (Txn<ByteBuffer> read = source.txnRead()) {
+				target.write(write -> {
+					final Cursor<ByteBuffer> c = sourceResources.openCursor(read);
+					while(c.seek(SeekOp.MDB_NEXT)) {
+						//LMDB copies the key and value, the source buffers can be written directly
+						targetResources.put(write, c.key(), c.val());
+					}
+					c.close();
+				});
+			}
+
+			//the fingerprints, written in batches to limit the size of a write transaction
+			final FingerprintBatch batch = new FingerprintBatch();
+			try (Txn<ByteBuffer> read = source.txnRead()) {
+				final Cursor<ByteBuffer> c = sourcePrints.openCursor(read);
+				boolean hasNext = c.seek(SeekOp.MDB_FIRST);
+				while(hasNext) {
+					long fingerprintHash = KeyValueBuffers.hash(c.key());
+					int resourceID = KeyValueBuffers.intAt(c.val(), 0);
+					int t = KeyValueBuffers.intAt(c.val(), 1);
+					batch.add(conversion.applyAsLong(fingerprintHash), resourceID, t);
+					hasNext = c.seek(SeekOp.MDB_NEXT);
+					if(batch.size() == batchSize || !hasNext) {
+						copied += batch.size();
+						write(target, targetPrints, batch);
+					}
+				}
+				c.close();
+			}
+		}
+		return copied;
+	}
+
+	private static void write(KeyValueEnvironment env, Dbi<ByteBuffer> fingerprints, FingerprintBatch batch){
+		env.write(txn -> {
+			final KeyValueBuffers buffers = KeyValueBuffers.get();
+			final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
+			for (int i = 0 ; i < batch.size() ; i++) {
+				c.put(buffers.hashKey(batch.hash(i)), buffers.fingerprintValue(batch.resourceIdentifier(i), batch.t1(i)));
+			}
+			c.close();
+		});
+		batch.clear();
+	}
+
+	/**
+	 * Close the environment (move this to interface?). With a deferred LMDB_SYNC the data is synced first.
 	 */
 	public void close() {
 		env.close();
@@ -145,16 +221,8 @@ public class OlafStorageKV implements OlafStorage {
 	 */
 	@Override
 	public void storeMetadata(long resourceID,String resourcePath,float duration, int fingerprints) {
-		final ByteBuffer key = ByteBuffer.allocateDirect(8);
-		byte[] resourcePathBytes = resourcePath.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-		final ByteBuffer val = ByteBuffer.allocateDirect(resourcePathBytes.length + 16); 
-		key.putLong(resourceID).flip();
-		
-		val.putFloat(duration);
-		val.putInt(fingerprints);
-	    val.put(resourcePathBytes).flip();
-	    
-	    resourceMap.put(key, val);
+		final KeyValueBuffers buffers = KeyValueBuffers.get();
+		env.write(txn -> resourceMap.put(txn, buffers.resourceKey(resourceID), buffers.metadataValue(duration, fingerprints, resourcePath)));
 	}
 	
 	@Override
@@ -162,19 +230,11 @@ public class OlafStorageKV implements OlafStorage {
 		
 		OlafResourceMetadata metadata = null;
 	    
-		try (Txn<ByteBuffer> txn = env.txnRead()) {
-			final ByteBuffer key = ByteBuffer.allocateDirect(8);
-			key.putLong(resourceID).flip();
-			
-		    final ByteBuffer found = resourceMap.get(txn, key);
+		try (KeyValueEnvironment.Shared shared = env.shared(); Txn<ByteBuffer> txn = env.txnRead()) {
+		    final ByteBuffer found = resourceMap.get(txn, KeyValueBuffers.get().resourceKey(resourceID));
 		    
 		    if(found != null) {
-		    	metadata = new OlafResourceMetadata();
-		    	final ByteBuffer fetchedVal = txn.val();
-		    	metadata.duration = fetchedVal.getFloat();
-		    	metadata.numFingerprints = fetchedVal.getInt();
-		    	metadata.path = StandardCharsets.UTF_8.decode(fetchedVal).toString();
-		    	metadata.identifier =(int) resourceID;
+		    	metadata = decodeMetadata(resourceID, found);
 		    }
 		    txn.close();
 		}catch(Exception e) {
@@ -183,17 +243,45 @@ public class OlafStorageKV implements OlafStorage {
 		
 		return metadata;    
 	}
+
+	/**
+	 * Fetches the meta-data of all identifiers in a single read transaction.
+	 */
+	@Override
+	public Map<Long,OlafResourceMetadata> getMetadata(Collection<Long> identifiers) {
+		Map<Long,OlafResourceMetadata> metadata = new HashMap<>();
+		if(identifiers.isEmpty())
+			return metadata;
+		
+		try (KeyValueEnvironment.Shared shared = env.shared(); Txn<ByteBuffer> txn = env.txnRead()) {
+			final KeyValueBuffers buffers = KeyValueBuffers.get();
+			for(long resourceID : identifiers) {
+				final ByteBuffer found = resourceMap.get(txn, buffers.resourceKey(resourceID));
+				if(found != null)
+					metadata.put(resourceID, decodeMetadata(resourceID, found));
+			}
+			txn.close();
+		}catch(Exception e) {
+			e.printStackTrace();
+		}
+		return metadata;
+	}
+	
+	private static OlafResourceMetadata decodeMetadata(long resourceID, ByteBuffer value) {
+		OlafResourceMetadata metadata = new OlafResourceMetadata();
+		metadata.duration = KeyValueBuffers.duration(value);
+		metadata.numFingerprints = KeyValueBuffers.numberOfFingerprints(value);
+		metadata.path = KeyValueBuffers.path(value);
+		metadata.identifier =(int) resourceID;
+		return metadata;
+	}
 	
 	/* (non-Javadoc)
 	 * @see be.panako.strategy.olaf.OlafStorage#addToStoreQueue(long, int, int)
 	 */
 	@Override
 	public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1) {
-		long[] data = {fingerprintHash,resourceIdentifier,t1};
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			storeQueue.put(threadID, new ArrayList<>());
-		storeQueue.get(threadID).add(data);
+		storeQueue.get().add(fingerprintHash,resourceIdentifier,t1);
 	}
 	
 	/* (non-Javadoc)
@@ -201,39 +289,25 @@ public class OlafStorageKV implements OlafStorage {
 	 */
 	@Override	
 	public void processStoreQueue() {
-		if (storeQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			return;
-		
-		List<long[]> queue = storeQueue.get(threadID);
+		FingerprintBatch queue = storeQueue.get();
 		
 		if (queue.isEmpty())
 			return;
 		
 		
-		try (Txn<ByteBuffer> txn = env.txnWrite()) {
-
-			final ByteBuffer key = ByteBuffer.allocateDirect(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-			final ByteBuffer val = ByteBuffer.allocateDirect(8);
-
-			// A cursor always belongs to a particular Dbi.
-			final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
-			
-			for (long[] data : queue) {
-				key.putLong(data[0]).flip();
-				val.putInt((int) data[1]).putInt((int) data[2]).flip();
+		try {
+			env.write(txn -> {
+				final KeyValueBuffers buffers = KeyValueBuffers.get();
 
-				c.put(key, val);
-
-				key.clear();
-				val.clear();
-			}
+				// A cursor always belongs to a particular Dbi.
+				final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
+				
+				for (int i = 0 ; i < queue.size() ; i++) {
+					c.put(buffers.hashKey(queue.hash(i)), buffers.fingerprintValue(queue.resourceIdentifier(i), queue.t1(i)));
+				}
 
-			c.close();
-			txn.commit();
+				c.close();
+			});
 			queue.clear();
 
 		} catch (Exception e) {
@@ -243,156 +317,179 @@ public class OlafStorageKV implements OlafStorage {
 
 	@Override
 	public void clearStoreQueue() {
-		storeQueue.clear();
+		storeQueue.remove();
 	}
 	
 	public void addToDeleteQueue(long key, int val1, int val2) {
-		long[] data = {key,val1,val2};
-		long threadID = Thread.currentThread().getId();
-		if(!deleteQueue.containsKey(threadID))
-			deleteQueue.put(threadID, new ArrayList<long[]>());
-		deleteQueue.get(threadID).add(data);
+		deleteQueue.get().add(key,val1,val2);
 	}
 	
 	public void processDeleteQueue() {
-		if (storeQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			return;
-		
-		List<long[]> queue = storeQueue.get(threadID);
+		FingerprintBatch queue = deleteQueue.get();
 		
 		if (queue.isEmpty())
 			return;
 		
-		try (Txn<ByteBuffer> txn = env.txnWrite()) {
-			
-			final ByteBuffer key = ByteBuffer.allocateDirect(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-		    final ByteBuffer val = ByteBuffer.allocateDirect(8);
-		    
-		      // A cursor always belongs to a particular Dbi.
-		      final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
-		      
-		      for(long[] data : queue) {
-		    	  key.putLong(data[0]).flip();
-		    	  val.putInt((int) data[1]).putInt((int) data[2]).flip();
-		    	  if(c.get(key,val,SeekOp.MDB_GET_BOTH)) {
-		    		  c.delete();
-		    	  }
-		    	  key.clear();
-		    	  val.clear();
-		      }  
-		      
-		      c.close();
-		      txn.commit();
-		      queue.clear();
+		try {
+			env.write(txn -> {
+				final KeyValueBuffers buffers = KeyValueBuffers.get();
+			    
+			      // A cursor always belongs to a particular Dbi.
+			      final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
+			      
+			      for(int i = 0 ; i < queue.size() ; i++) {
+			    	  final ByteBuffer key = buffers.hashKey(queue.hash(i));
+			    	  final ByteBuffer val = buffers.fingerprintValue(queue.resourceIdentifier(i), queue.t1(i));
+			    	  if(c.get(key,val,SeekOp.MDB_GET_BOTH)) {
+			    		  c.delete();
+			    	  }
+			      }  
+			      
+			      c.close();
+			});
+			queue.clear();
 		    }catch (Exception e) {
 		    	e.printStackTrace();
 		    }
 	}
 	
 	public void addToQueryQueue(long queryHash) {
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			queryQueue.put(threadID, new ArrayList<Long>());
-		queryQueue.get(threadID).add(queryHash);
+		queryQueue.get().add(queryHash);
 	}
 
 
 
 	
 	public void processQueryQueue(Map<Long,List<OlafHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
+		processQueryQueue(matchAccumulator, range, resourcesToAvoid, hash -> false);
+	}
+
+	@Override
+	public void processQueryQueue(Map<Long,List<OlafHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid,LongPredicate skippedHashes) {
 		
-		if (queryQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			return;
-		
-		List<Long> queue = queryQueue.get(threadID);
+		List<Long> queue = queryQueue.get();
 		
 		if (queue.isEmpty())
 			return;
 		
-		try (Txn<ByteBuffer> txn = env.txnRead()) {
+		try (KeyValueEnvironment.Shared shared = env.shared(); Txn<ByteBuffer> txn = env.txnRead()) {
 			  // A cursor always belongs to a particular Dbi.
 		      final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
 		      
-		      final ByteBuffer keyBuffer = ByteBuffer.allocateDirect(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+		      final KeyValueBuffers buffers = KeyValueBuffers.get();
 		      
-		      for(long originalKey : queue) {
-		    	  
-		    	  long startKey = originalKey - range;
-		    	  long stopKey = originalKey + range;
+		      //probe in key order: neighbouring probes visit the same pages of the B-tree
+		      final int queueSize = queue.size();
+		      final long[] sortedQueue = buffers.longs(queueSize);
+		      for(int i = 0 ; i < queueSize ; i++)
+		    	  sortedQueue[i] = queue.get(i);
+		      Arrays.sort(sortedQueue, 0, queueSize);
+
+		      for(int q = 0 ; q < queueSize ; q++) {
+		    	  long originalKey = sortedQueue[q];
 		    	  
-		    	  keyBuffer.putLong(startKey).flip();
+		    	  //scan the runs of hashes in the range which are not skipped:
+		    	  //the duplicates of a skipped hash are never read
+		    	  long fromKey = originalKey - range;
+		    	  while(fromKey <= originalKey + range) {
+		    		  if(skippedHashes.test(fromKey)) {
+		    			  fromKey++;
+		    			  continue;
+		    		  }
+		    		  long toKey = fromKey;
+		    		  while(toKey < originalKey + range && !skippedHashes.test(toKey + 1))
+		    			  toKey++;
+		    		  scan(c, buffers, originalKey, fromKey, toKey, resourcesToAvoid, matchAccumulator);
+		    		  fromKey = toKey + 1;
+		    	  }
+		      }
+		      c.close();
+		      txn.commit();
+		      queue.clear();
+		}
+		
+	}
+
+	/**
+	 * Adds the hits of the stored hashes from startKey up to and including stopKey.
+	 */
+	private void scan(Cursor<ByteBuffer> c, KeyValueBuffers buffers, long originalKey, long startKey, long stopKey, Set<Integer> resourcesToAvoid, Map<Long,List<OlafHit>> matchAccumulator) {
+		      if(c.get(buffers.hashKey(startKey), GetOp.MDB_SET_RANGE)) {
+		    	  long fingerprintHash =  KeyValueBuffers.hash(c.key());
+	    		  long resourceID = KeyValueBuffers.intAt(c.val(), 0);
+			      long t = KeyValueBuffers.intAt(c.val(), 1);
+			      
+			      //System.out.printf("Direct match: %d id %d t1 %d\n",fingerprintHash , resourceID,t);
 			      
-			      if(c.get(keyBuffer, GetOp.MDB_SET_RANGE)) {
-			    	  long fingerprintHash =  c.key().order(java.nio.ByteOrder.LITTLE_ENDIAN).getLong();
-		    		  long resourceID = c.val().getInt();
-				      long t = c.val().getInt();
-				      
-				      //System.out.printf("Direct match: %d id %d t1 %d\n",fingerprintHash , resourceID,t);
-				      
-				      if(fingerprintHash <= stopKey) {
-				    	  if(!resourcesToAvoid.contains((int) resourceID)) {
-				    		  if(!matchAccumulator.containsKey(originalKey))
-				    			  matchAccumulator.put(originalKey,new ArrayList<>());
-				    		  matchAccumulator.get(originalKey).add(new OlafHit(originalKey, fingerprintHash, t, resourceID));
-				    	  }
-				   
-					      while(true) {
-					    	  while(c.seek(SeekOp.MDB_NEXT_DUP)) {
-					    		  fingerprintHash =  c.key().order(java.nio.ByteOrder.LITTLE_ENDIAN).getLong();
-					    		  resourceID = c.val().getInt();
-							      t = c.val().getInt();
-							      //System.out.printf("Dup Hash: %d id %d t1 %d\n",fingerprintHash , resourceID,t);
-							      
-							      if(!resourcesToAvoid.contains((int) resourceID)) {
-						    		  if(!matchAccumulator.containsKey(originalKey))
-						    			  matchAccumulator.put(originalKey,new ArrayList<>());
-						    		  matchAccumulator.get(originalKey).add(new OlafHit(originalKey, fingerprintHash, t, resourceID));
-						    	  }
-						      }
+			      if(fingerprintHash <= stopKey) {
+			    	  if(!resourcesToAvoid.contains((int) resourceID)) {
+			    		  if(!matchAccumulator.containsKey(originalKey))
+			    			  matchAccumulator.put(originalKey,new ArrayList<>());
+			    		  matchAccumulator.get(originalKey).add(new OlafHit(originalKey, fingerprintHash, t, resourceID));
+			    	  }
+			   
+				      while(true) {
+				    	  while(c.seek(SeekOp.MDB_NEXT_DUP)) {
+				    		  fingerprintHash =  KeyValueBuffers.hash(c.key());
+				    		  resourceID = KeyValueBuffers.intAt(c.val(), 0);
+						      t = KeyValueBuffers.intAt(c.val(), 1);
+						      //System.out.printf("Dup Hash: %d id %d t1 %d\n",fingerprintHash , resourceID,t);
 						      
-						      if(c.seek(SeekOp.MDB_NEXT)) {
-						    	  fingerprintHash =  c.key().order(java.nio.ByteOrder.LITTLE_ENDIAN).getLong();
-						    	  resourceID = c.val().getInt();
-							      t = c.val().getInt();
-							      if(fingerprintHash > stopKey)
-							    	  break;
-							      
-							      //System.out.printf("Next Hash: %d id %d t1 %d\n",fingerprintHash , resourceID,t);
-							      
-							      
-							      if(!resourcesToAvoid.contains((int) resourceID)) {
-						    		  if(!matchAccumulator.containsKey(originalKey))
-						    			  matchAccumulator.put(originalKey,new ArrayList<>());
-						    		  matchAccumulator.get(originalKey).add(new OlafHit(originalKey, fingerprintHash, t, resourceID));
-						    	  }
-						      } else {
-						    	  //no next found, end of db
+						      if(!resourcesToAvoid.contains((int) resourceID)) {
+					    		  if(!matchAccumulator.containsKey(originalKey))
+					    			  matchAccumulator.put(originalKey,new ArrayList<>());
+					    		  matchAccumulator.get(originalKey).add(new OlafHit(originalKey, fingerprintHash, t, resourceID));
+					    	  }
+					      }
+					      
+					      if(c.seek(SeekOp.MDB_NEXT)) {
+					    	  fingerprintHash =  KeyValueBuffers.hash(c.key());
+					    	  resourceID = KeyValueBuffers.intAt(c.val(), 0);
+						      t = KeyValueBuffers.intAt(c.val(), 1);
+						      if(fingerprintHash > stopKey)
 						    	  break;
-						      }
+						      
+						      //System.out.printf("Next Hash: %d id %d t1 %d\n",fingerprintHash , resourceID,t);
+						      
+						      
+						      if(!resourcesToAvoid.contains((int) resourceID)) {
+					    		  if(!matchAccumulator.containsKey(originalKey))
+					    			  matchAccumulator.put(originalKey,new ArrayList<>());
+					    		  matchAccumulator.get(originalKey).add(new OlafHit(originalKey, fingerprintHash, t, resourceID));
+					    	  }
+					      } else {
+					    	  //no next found, end of db
+					    	  break;
 					      }
 				      }
 			      }
 		      }
-		      c.close();
-		      txn.commit();
-		      queue.clear();
+	}
+
+	@Override
+	public Map<Long,Integer> frequentHashes(int minimumCount) {
+		Map<Long,Integer> frequentHashes = new TreeMap<>();
+		try (KeyValueEnvironment.Shared shared = env.shared(); Txn<ByteBuffer> txn = env.txnRead()) {
+			final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
+			// visit each distinct key once, the count is the number of duplicates
+			while(c.seek(SeekOp.MDB_NEXT_NODUP)) {
+				long count = c.count();
+				if(count >= minimumCount) {
+					long fingerprintHash = KeyValueBuffers.hash(c.key());
+					frequentHashes.put(fingerprintHash, (int) count);
+				}
+			}
+			c.close();
+			txn.close();
 		}
-		
+		return frequentHashes;
 	}
 
 	@Override
 	public void printStatistics(boolean printDetailedStats){
 		long entries;
 		final Stat stats;
-	    try (Txn<ByteBuffer> txn = env.txnRead()) {
+	    try (KeyValueEnvironment.Shared shared = env.shared(); Txn<ByteBuffer> txn = env.txnRead()) {
 	      stats = fingerprints.stat(txn);
 	      entries = stats.entries;
 	      
@@ -413,13 +510,10 @@ public class OlafStorageKV implements OlafStorage {
 	      txn.close();     
 	    }
 	    
-	    try (Txn<ByteBuffer> txn = env.txnRead()) {
+	    try (KeyValueEnvironment.Shared shared = env.shared(); Txn<ByteBuffer> txn = env.txnRead()) {
 			  // A cursor always belongs to a particular Dbi.
 		      final Cursor<ByteBuffer> c = resourceMap.openCursor(txn);
 		      
-		      final ByteBuffer keyBuffer = ByteBuffer.allocateDirect(8);
-		      keyBuffer.putLong(0L).flip();
-		      
 		      double totalDuration = 0;
 		      long totalPrints = 0;
 		      long totalResources = 0;
@@ -432,10 +526,10 @@ public class OlafStorageKV implements OlafStorage {
 		      while(c.seek(SeekOp.MDB_NEXT)) {
 		    	  
 		    	 //long resourceIdentifier =  c.key().getLong();
-			     float duration = c.val().getFloat();
-			     int numFingerprints =  c.val().getInt();
+			     float duration = KeyValueBuffers.duration(c.val());
+			     int numFingerprints =  KeyValueBuffers.numberOfFingerprints(c.val());
 			     float printsPerSecond =  (float) numFingerprints / duration;
-			     String path = StandardCharsets.UTF_8.decode(c.val()).toString();
+			     String path = KeyValueBuffers.path(c.val());
 			     
 			     if(printsPerSecond > maxPrintsPerSecond) {
 			    	 maxPrintsPerSecond = printsPerSecond;
@@ -479,19 +573,17 @@ public class OlafStorageKV implements OlafStorage {
 	@Override
 	public void deleteMetadata(long resourceID) {
 		
-		try (Txn<ByteBuffer> txn = env.txnWrite()) {
-			
-			final ByteBuffer key = ByteBuffer.allocateDirect(8);
-			key.putLong(resourceID).flip();
-			
-			final ByteBuffer found = resourceMap.get(txn, key);
-			if(found !=null) {
-				resourceMap.delete(txn, key);
-			}//else {
-				//not found, not deleted
-			//}
-			
-		    txn.commit();
+		try {
+			env.write(txn -> {
+				final ByteBuffer key = KeyValueBuffers.get().resourceKey(resourceID);
+				
+				final ByteBuffer found = resourceMap.get(txn, key);
+				if(found !=null) {
+					resourceMap.delete(txn, key);
+				}//else {
+					//not found, not deleted
+				//}
+			});
 		 
 	    }catch (Exception e) {
 	    	e.printStackTrace();
@@ -41,6 +41,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.function.LongPredicate;
 
 /**
  * An in memory storage system: mainly used for debugging.
@@ -77,7 +78,7 @@ public class OlafStorageMemory implements OlafStorage {
 	private final TreeMap<Long, List<int[]>> fingerprints;
 	private final HashMap<Long, OlafResourceMetadata> resourceMap;
 	
-	final Map<Long,List<Long>> queryQueue;
+	final ThreadLocal<List<Long>> queryQueue;
 
 	/**
 	 * Create a new empty memory storage instance
@@ -85,7 +86,7 @@ public class OlafStorageMemory implements OlafStorage {
 	public OlafStorageMemory() {
 		fingerprints = new TreeMap<>();
 		resourceMap = new HashMap<>();
-		queryQueue = new HashMap<>();
+		queryQueue = ThreadLocal.withInitial(ArrayList::new);
 	}
 	
 	@Override
@@ -131,22 +132,17 @@ public class OlafStorageMemory implements OlafStorage {
 	}
 
 	public void addToQueryQueue(long queryHash) {
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			queryQueue.put(threadID, new ArrayList<>());
-		queryQueue.get(threadID).add(queryHash);
+		queryQueue.get().add(queryHash);
 	}
 
 	@Override
 	public void processQueryQueue(Map<Long,List<OlafHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
-		if (queryQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			return;
-		
-		List<Long> queue = queryQueue.get(threadID);
+		processQueryQueue(matchAccumulator, range, resourcesToAvoid, hash -> false);
+	}
+
+	@Override
+	public void processQueryQueue(Map<Long,List<OlafHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid,LongPredicate skippedHashes) {
+		List<Long> queue = queryQueue.get();
 		
 		if (queue.isEmpty())
 			return;
@@ -155,6 +151,8 @@ public class OlafStorageMemory implements OlafStorage {
 			long startKey = originalKey - range;
 			long stopKey = originalKey + range;
 			for (long key = startKey; key <= stopKey; key++) {
+				if (skippedHashes.test(key))
+					continue;
 				List<int[]> results = fingerprints.get(key);
 				if (results != null) {
 					for (int[] result : results) {
@@ -193,4 +191,14 @@ public class OlafStorageMemory implements OlafStorage {
 		fingerprints.clear();
 		resourceMap.clear();
 	}
+
+	@Override
+	public Map<Long, Integer> frequentHashes(int minimumCount) {
+		Map<Long,Integer> frequentHashes = new TreeMap<>();
+		for(Map.Entry<Long,List<int[]>> entry : fingerprints.entrySet()) {
+			if(entry.getValue().size() >= minimumCount)
+				frequentHashes.put(entry.getKey(), entry.getValue().size());
+		}
+		return frequentHashes;
+	}
 }
@@ -6,6 +6,7 @@
 
 package be.panako.strategy.olaf.storage;
 
+import be.panako.strategy.FingerprintBatch;
 import be.panako.util.Config;
 import be.panako.util.Key;
 import com.zaxxer.hikari.HikariConfig;
@@ -13,6 +14,8 @@ import com.zaxxer.hikari.HikariDataSource;
 
 import java.sql.*;
 import java.util.*;
+import java.util.function.LongPredicate;
+import java.util.function.LongUnaryOperator;
 
 /**
  * OlafStorage implementation backed by PostgreSQL.
@@ -20,6 +23,7 @@ import java.util.*;
  *  - fingerprints(hash BIGINT NOT NULL, resource_id INT NOT NULL, t1 INT NOT NULL)
  *    Index: CREATE INDEX IF NOT EXISTS fp_hash_idx ON fingerprints(hash);
  *  - resource_metadata(resource_id INT PRIMARY KEY, path TEXT, duration REAL, num_fingerprints INT)
+ *  - olaf_settings(name TEXT PRIMARY KEY, value TEXT), e.g. the hash layout of the fingerprints
  */
 public class OlafStoragePostgres implements OlafStorage {
 
@@ -28,9 +32,9 @@ public class OlafStoragePostgres implements OlafStorage {
 
     private final HikariDataSource dataSource;
 
-    private final Map<Long, List<long[]>> storeQueue;
-    private final Map<Long, List<long[]>> deleteQueue;
-    private final Map<Long, List<Long>> queryQueue;
+    private final ThreadLocal<FingerprintBatch> storeQueue;
+    private final ThreadLocal<FingerprintBatch> deleteQueue;
+    private final ThreadLocal<List<Long>> queryQueue;
 
     public static OlafStoragePostgres getInstance() {
         if (instance == null) {
@@ -76,9 +80,9 @@ public class OlafStoragePostgres implements OlafStorage {
             throw new RuntimeException("Could not initialize database schema: " + e.getMessage(), e);
         }
         
-        storeQueue = new HashMap<>();
-        deleteQueue = new HashMap<>();
-        queryQueue = new HashMap<>();
+        storeQueue = ThreadLocal.withInitial(FingerprintBatch::new);
+        deleteQueue = ThreadLocal.withInitial(FingerprintBatch::new);
+        queryQueue = ThreadLocal.withInitial(ArrayList::new);
     }
 
     private void ensureSchema(Connection conn) throws SQLException {
@@ -93,6 +97,9 @@ public class OlafStoragePostgres implements OlafStorage {
                     "path TEXT NOT NULL, " +
                     "duration REAL NOT NULL, " +
                     "num_fingerprints INT NOT NULL)");
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS olaf_settings (" +
+                    "name TEXT PRIMARY KEY, " +
+                    "value TEXT NOT NULL)");
             conn.commit();
         }
     }
@@ -138,25 +145,60 @@ public class OlafStoragePostgres implements OlafStorage {
         return null;
     }
 
+    /**
+     * Fetches the meta-data of all identifiers in a single round trip.
+     */
+    @Override
+    public Map<Long, OlafResourceMetadata> getMetadata(Collection<Long> identifiers) {
+        Map<Long, OlafResourceMetadata> metadata = new HashMap<>();
+        if (identifiers.isEmpty()) return metadata;
+        Integer[] ids = new Integer[identifiers.size()];
+        int i = 0;
+        for (long identifier : identifiers) {
+            ids[i++] = (int) identifier;
+        }
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                "SELECT resource_id, path, duration, num_fingerprints FROM resource_metadata WHERE resource_id = ANY(?)")) {
+            Array idArray = conn.createArrayOf("integer", ids);
+            try {
+                ps.setArray(1, idArray);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        OlafResourceMetadata m = new OlafResourceMetadata();
+                        m.identifier = rs.getInt(1);
+                        m.path = rs.getString(2);
+                        m.duration = rs.getFloat(3);
+                        m.numFingerprints = rs.getInt(4);
+                        metadata.put((long) m.identifier, m);
+                    }
+                }
+            } finally {
+                idArray.free();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return metadata;
+    }
+
     @Override
     public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1) {
-        long[] data = {fingerprintHash, resourceIdentifier, t1};
-        long threadID = Thread.currentThread().getId();
-        storeQueue.computeIfAbsent(threadID, k -> new ArrayList<>()).add(data);
+        storeQueue.get().add(fingerprintHash, resourceIdentifier, t1);
     }
 
     @Override
     public void processStoreQueue() {
-        long threadID = Thread.currentThread().getId();
-        List<long[]> queue = storeQueue.get(threadID);
-        if (queue == null || queue.isEmpty()) return;
+        FingerprintBatch queue = storeQueue.get();
+        if (queue.isEmpty()) return;
         try (Connection conn = dataSource.getConnection();
              PreparedStatement ps = conn.prepareStatement(
                 "INSERT INTO fingerprints(hash, resource_id, t1) VALUES(?,?,?)")) {
-            for (long[] d : queue) {
-                ps.setLong(1, d[0]);
-                ps.setInt(2, (int) d[1]);
-                ps.setInt(3, (int) d[2]);
+            for (int i = 0; i < queue.size(); i++) {
+                ps.setLong(1, queue.hash(i));
+                ps.setInt(2, queue.resourceIdentifier(i));
+                ps.setInt(3, queue.t1(i));
                 ps.addBatch();
             }
             ps.executeBatch();
@@ -169,28 +211,25 @@ public class OlafStoragePostgres implements OlafStorage {
 
     @Override
     public void clearStoreQueue() {
-        storeQueue.clear();
+        storeQueue.remove();
     }
 
     @Override
     public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1) {
-        long[] data = {fingerprintHash, resourceIdentifier, t1};
-        long threadID = Thread.currentThread().getId();
-        deleteQueue.computeIfAbsent(threadID, k -> new ArrayList<>()).add(data);
+        deleteQueue.get().add(fingerprintHash, resourceIdentifier, t1);
     }
 
     @Override
     public void processDeleteQueue() {
-        long threadID = Thread.currentThread().getId();
-        List<long[]> queue = deleteQueue.get(threadID);
-        if (queue == null || queue.isEmpty()) return;
+        FingerprintBatch queue = deleteQueue.get();
+        if (queue.isEmpty()) return;
         try (Connection conn = dataSource.getConnection();
              PreparedStatement ps = conn.prepareStatement(
                 "DELETE FROM fingerprints WHERE hash = ? AND resource_id = ? AND t1 = ?")) {
-            for (long[] d : queue) {
-                ps.setLong(1, d[0]);
-                ps.setInt(2, (int) d[1]);
-                ps.setInt(3, (int) d[2]);
+            for (int i = 0; i < queue.size(); i++) {
+                ps.setLong(1, queue.hash(i));
+                ps.setInt(2, queue.resourceIdentifier(i));
+                ps.setInt(3, queue.t1(i));
                 ps.addBatch();
             }
             ps.executeBatch();
@@ -203,33 +242,46 @@ public class OlafStoragePostgres implements OlafStorage {
 
     @Override
     public void addToQueryQueue(long queryHash) {
-        long threadID = Thread.currentThread().getId();
-        queryQueue.computeIfAbsent(threadID, k -> new ArrayList<>()).add(queryHash);
+        queryQueue.get().add(queryHash);
     }
 
     @Override
     public void processQueryQueue(Map<Long, List<OlafHit>> matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
-        long threadID = Thread.currentThread().getId();
-        List<Long> queue = queryQueue.get(threadID);
-        if (queue == null || queue.isEmpty()) return;
+        processQueryQueue(matchAccumulator, range, resourcesToAvoid, hash -> false);
+    }
+
+    @Override
+    public void processQueryQueue(Map<Long, List<OlafHit>> matchAccumulator, int range, Set<Integer> resourcesToAvoid, LongPredicate skippedHashes) {
+        List<Long> queue = queryQueue.get();
+        if (queue.isEmpty()) return;
         try (Connection conn = dataSource.getConnection();
              PreparedStatement ps = conn.prepareStatement(
                 "SELECT hash, resource_id, t1 FROM fingerprints WHERE hash BETWEEN ? AND ? ORDER BY hash")) {
             for (long originalKey : queue) {
+                // select the runs of hashes which are not skipped, the rows of a skipped hash are never fetched
                 long startKey = originalKey - range;
-                long stopKey = originalKey + range;
-                ps.setLong(1, startKey);
-                ps.setLong(2, stopKey);
-                try (ResultSet rs = ps.executeQuery()) {
-                    while (rs.next()) {
-                        long matchedHash = rs.getLong(1);
-                        int resourceId = rs.getInt(2);
-                        int t1 = rs.getInt(3);
-                        if (!resourcesToAvoid.contains(resourceId)) {
-                            matchAccumulator.computeIfAbsent(originalKey, k -> new ArrayList<>())
-                                    .add(new OlafHit(originalKey, matchedHash, t1, resourceId));
+                while (startKey <= originalKey + range) {
+                    if (skippedHashes.test(startKey)) {
+                        startKey++;
+                        continue;
+                    }
+                    long stopKey = startKey;
+                    while (stopKey < originalKey + range && !skippedHashes.test(stopKey + 1))
+                        stopKey++;
+                    ps.setLong(1, startKey);
+                    ps.setLong(2, stopKey);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            long matchedHash = rs.getLong(1);
+                            int resourceId = rs.getInt(2);
+                            int t1 = rs.getInt(3);
+                            if (!resourcesToAvoid.contains(resourceId)) {
+                                matchAccumulator.computeIfAbsent(originalKey, k -> new ArrayList<>())
+                                        .add(new OlafHit(originalKey, matchedHash, t1, resourceId));
+                            }
                         }
                     }
+                    startKey = stopKey + 1;
                 }
             }
             conn.commit();
@@ -318,6 +370,160 @@ public class OlafStoragePostgres implements OlafStorage {
         }
     }
     
+    @Override
+    public Map<Long, Integer> frequentHashes(int minimumCount) {
+        Map<Long, Integer> frequentHashes = new TreeMap<>();
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                "SELECT hash, COUNT(*) FROM fingerprints GROUP BY hash HAVING COUNT(*) >= ?")) {
+            ps.setInt(1, minimumCount);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    frequentHashes.put(rs.getLong(1), rs.getInt(2));
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return frequentHashes;
+    }
+
+    /**
+     * @param name The name of a setting.
+     * @return The value of the setting or null if it is not set.
+     */
+    public String getSetting(String name) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                "SELECT value FROM olaf_settings WHERE name = ?")) {
+            ps.setString(1, name);
+            String value = null;
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    value = rs.getString(1);
+                }
+            }
+            conn.commit();
+            return value;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stores a setting, e.g. the hash layout of the fingerprints.
+     * @param name The name of the setting.
+     * @param value The new value.
+     */
+    public void storeSetting(String name, String value) {
+        try (Connection conn = dataSource.getConnection()) {
+            storeSetting(conn, name, value);
+            conn.commit();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void storeSetting(Connection conn, String name, String value) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO olaf_settings(name, value) VALUES(?,?) ON CONFLICT (name) DO UPDATE SET value=EXCLUDED.value")) {
+            ps.setString(1, name);
+            ps.setString(2, value);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * @return True if at least one fingerprint is stored.
+     */
+    public boolean containsFingerprints() {
+        try (Connection conn = dataSource.getConnection();
+             Statement st = conn.createStatement()) {
+            boolean contains;
+            try (ResultSet rs = st.executeQuery("SELECT EXISTS(SELECT 1 FROM fingerprints)")) {
+                rs.next();
+                contains = rs.getBoolean(1);
+            }
+            conn.commit();
+            return contains;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Converts the hashes of all fingerprints, for example to another hash layout. The converted
+     * fingerprints are written to a new table. In a single transaction the original table is
+     * kept as fingerprints_backup, the new table replaces it and the setting is stored: either
+     * all fingerprints and the setting are converted or nothing changes.
+     * @param conversion Converts a hash.
+     * @param settingName The setting which describes the converted hashes.
+     * @param settingValue The value of the setting for the converted hashes.
+     * @return The number of converted fingerprints.
+     */
+    public long rehash(LongUnaryOperator conversion, String settingName, String settingValue) {
+        final int batchSize = 100_000;
+        long copied = 0;
+        try (Connection read = dataSource.getConnection();
+             Connection write = dataSource.getConnection()) {
+            try (Statement st = write.createStatement()) {
+                if (tableExists(st, "fingerprints_backup")) {
+                    throw new RuntimeException("Drop the table fingerprints_backup before rehashing the index.");
+                }
+                st.executeUpdate("DROP TABLE IF EXISTS fingerprints_rehash");
+                st.executeUpdate("CREATE TABLE fingerprints_rehash (" +
+                        "hash BIGINT NOT NULL, " +
+                        "resource_id INT NOT NULL, " +
+                        "t1 INT NOT NULL) ");
+                write.commit();
+            }
+            // the rows are fetched with a cursor, not all at once
+            try (PreparedStatement select = read.prepareStatement("SELECT hash, resource_id, t1 FROM fingerprints");
+                 PreparedStatement insert = write.prepareStatement("INSERT INTO fingerprints_rehash(hash, resource_id, t1) VALUES(?,?,?)")) {
+                select.setFetchSize(batchSize);
+                try (ResultSet rs = select.executeQuery()) {
+                    int batched = 0;
+                    while (rs.next()) {
+                        insert.setLong(1, conversion.applyAsLong(rs.getLong(1)));
+                        insert.setInt(2, rs.getInt(2));
+                        insert.setInt(3, rs.getInt(3));
+                        insert.addBatch();
+                        batched++;
+                        if (batched == batchSize) {
+                            insert.executeBatch();
+                            write.commit();
+                            copied += batched;
+                            batched = 0;
+                        }
+                    }
+                    insert.executeBatch();
+                    copied += batched;
+                }
+                read.commit();
+            }
+            try (Statement st = write.createStatement()) {
+                st.executeUpdate("CREATE INDEX fp_hash_rehash_idx ON fingerprints_rehash(hash)");
+                st.executeUpdate("ALTER INDEX fp_hash_idx RENAME TO fp_hash_backup_idx");
+                st.executeUpdate("ALTER TABLE fingerprints RENAME TO fingerprints_backup");
+                st.executeUpdate("ALTER INDEX fp_hash_rehash_idx RENAME TO fp_hash_idx");
+                st.executeUpdate("ALTER TABLE fingerprints_rehash RENAME TO fingerprints");
+                storeSetting(write, settingName, settingValue);
+                write.commit();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return copied;
+    }
+
+    private static boolean tableExists(Statement st, String table) throws SQLException {
+        try (ResultSet rs = st.executeQuery("SELECT to_regclass('" + table + "') IS NOT NULL")) {
+            rs.next();
+            return rs.getBoolean(1);
+        }
+    }
+
     /**
      * Closes the HikariCP connection pool and releases all database resources.
      * Should be called when the storage is no longer needed (e.g., application shutdown).
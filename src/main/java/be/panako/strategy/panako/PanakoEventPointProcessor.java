@@ -38,11 +38,14 @@ package be.panako.strategy.panako;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import be.panako.strategy.FingerprintSink;
 import be.panako.util.Config;
+import be.panako.util.EventPointIndex;
 import be.panako.util.Key;
 import be.panako.util.LemireMinMaxFilter;
 import be.tarsos.dsp.AudioEvent;
@@ -77,6 +80,16 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 	private final List<PanakoEventPoint> eventPoints = new ArrayList<>();
 	private final List<PanakoFingerprint> fingerprints = new ArrayList<>();
 
+	/**
+	 * Receives the fingerprints, null if fingerprints are kept in the list.
+	 */
+	private final FingerprintSink fingerprintSink;
+
+	/**
+	 * The time of the last event point of the last fingerprint.
+	 */
+	private int lastFingerprintTime = -1;
+
 	private int analysisFrameIndex = 0;
 	
 	private final LemireMinMaxFilter maxFilterVertical;
@@ -93,6 +106,17 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 	 * @param fftSize The size of the fft to use
 	 */
 	public PanakoEventPointProcessor(final int fftSize){
+		this(fftSize, null);
+	}
+
+	/**
+	 * Create a new event point extractor which passes fingerprints to a sink
+	 * instead of keeping fingerprint objects in memory.
+	 * @param fftSize The size of the fft to use
+	 * @param fingerprintSink Receives the fingerprints.
+	 */
+	public PanakoEventPointProcessor(final int fftSize, final FingerprintSink fingerprintSink){
+		this.fingerprintSink = fingerprintSink;
 		
 		int stepSize = Config.getInt(Key.PANAKO_AUDIO_BLOCK_SIZE);
 		int sampleRate = Config.getInt(Key.PANAKO_SAMPLE_RATE);
@@ -212,7 +236,10 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 			analysisFrameIndex++;
 		}
 		
-		packEventPointsIntoFingerprints(eventPoints,fingerprints);
+		if(fingerprintSink == null)
+			packEventPointsIntoFingerprints(eventPoints,fingerprints);
+		else
+			lastFingerprintTime = packEventPointsIntoFingerprints(eventPoints,fingerprintSink);
 	}
 
 	/**
@@ -223,6 +250,14 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 		return fingerprints;
 	}
 
+	/**
+	 * Returns the time of the last event point of the last fingerprint passed to the sink.
+	 * @return The time in analysis frames, or -1 if no fingerprints were passed to the sink.
+	 */
+	public int getLastFingerprintTime(){
+		return lastFingerprintTime;
+	}
+
 	/**
 	 * Get the list of extracted event points
 	 * @return the list of event points.
@@ -237,49 +272,63 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 	 * @param fingerprints The list of fingerprints to add new fingerprints to.
 	 */
 	public static void packEventPointsIntoFingerprints(List<PanakoEventPoint> eventPoints,List<PanakoFingerprint> fingerprints){
+		pack(eventPoints, (e1, e2, e3) -> fingerprints.add(new PanakoFingerprint(e1,e2,e3)));
+	}
+
+	/**
+	 * Packs event points into fingerprints and passes them to a sink without
+	 * creating fingerprint objects.
+	 * @param eventPoints The list of event points to process.
+	 * @param sink Receives the fingerprints.
+	 * @return The time of the last event point of the last fingerprint, -1 if there are no fingerprints.
+	 */
+	public static int packEventPointsIntoFingerprints(List<PanakoEventPoint> eventPoints,FingerprintSink sink){
+		final int[] lastFingerprintTime = {-1};
+		pack(eventPoints, (e1, e2, e3) -> {
+			sink.accept(PanakoFingerprint.hash(e1.t,e1.f,e1.m,e2.t,e2.f,e2.m,e3.t,e3.f,e3.m), e1.t, e1.f);
+			lastFingerprintTime[0] = e3.t;
+		});
+		return lastFingerprintTime[0];
+	}
+
+	private static final Comparator<PanakoEventPoint> EVENT_POINT_ORDER = Comparator.<PanakoEventPoint>comparingInt(e -> e.t).thenComparingInt(e -> e.f);
+
+	private interface EventPointTriplets {
+		void accept(PanakoEventPoint e1, PanakoEventPoint e2, PanakoEventPoint e3);
+	}
+
+	private static void pack(List<PanakoEventPoint> eventPoints,EventPointTriplets triplets){
 		
 		int minFreqDistance = Config.getInt(Key.PANAKO_FP_MIN_FREQ_DIST);
 		int maxFreqDistance = Config.getInt(Key.PANAKO_FP_MAX_FREQ_DIST);
 		
 		int minTimeDistance = Config.getInt(Key.PANAKO_FP_MIN_TIME_DIST);
 		int maxTimeDistance = Config.getInt(Key.PANAKO_FP_MAX_TIME_DIST);
-		
-		for(int i = 0; i < eventPoints.size();i++){
-			int t1 = eventPoints.get(i).t;
-			int f1 = eventPoints.get(i).f;
-				
-			for(int j = i + 1; j < eventPoints.size() ;j++){
-				int t2 = eventPoints.get(j).t;
-				int f2 = eventPoints.get(j).f;
-				
-				int fDiff = Math.abs(f1 - f2);
-				int tDiff = t2-t1;
-				
-				if(tDiff > maxTimeDistance) break;
-				if(tDiff < minTimeDistance) continue;
-				
-				if(fDiff < minFreqDistance) continue;
-				if(fDiff > maxFreqDistance ) continue;
-				
-				for(int k = j + 1 ; k <eventPoints.size(); k++) {
-					int t3 = eventPoints.get(k).t;
-					int f3 = eventPoints.get(k).f;
-					
-					fDiff = Math.abs(f2 - f3);
-					tDiff = t3-t2;
-					
-					if(tDiff > maxTimeDistance) break;
-					if(tDiff < minTimeDistance) continue;
-					
-					if(fDiff < minFreqDistance) continue;
-					if(fDiff > maxFreqDistance ) continue;
-					
-					PanakoFingerprint fingerprint;
-					fingerprint = new PanakoFingerprint(eventPoints.get(i),eventPoints.get(j),eventPoints.get(k));
-					fingerprints.add(fingerprint);
-				}
+
+		//the index expects event points in order of time and frequency,
+		//extracted event points are in this order already
+		List<PanakoEventPoint> orderedEventPoints = eventPoints;
+		for(int i = 1; i < eventPoints.size();i++){
+			if(EVENT_POINT_ORDER.compare(eventPoints.get(i-1),eventPoints.get(i)) > 0){
+				orderedEventPoints = new ArrayList<>(eventPoints);
+				orderedEventPoints.sort(EVENT_POINT_ORDER);
+				break;
 			}
 		}
+
+		EventPointIndex index = new EventPointIndex(minTimeDistance, maxTimeDistance, minFreqDistance, maxFreqDistance);
+		for(PanakoEventPoint eventPoint : orderedEventPoints)
+			index.add(eventPoint.t, eventPoint.f);
+
+		final List<PanakoEventPoint> points = orderedEventPoints;
+		final int[] packed = {0};
+		EventPointIndex.TripletConsumer consumer = (i, j, k) -> triplets.accept(points.get(packed[0] + i),points.get(packed[0] + j),points.get(packed[0] + k));
+		for(int i = 0; i < points.size();i++){
+			index.packTriplets(0, consumer);
+			//packed event points are removed, the index of the rest shifts
+			index.removeFirst(1);
+			packed[0]++;
+		}
 	}
 
 	/**
@@ -288,6 +337,7 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 	public void reset() {
 		eventPoints.clear();
 		fingerprints.clear();
+		lastFingerprintTime=-1;
 		analysisFrameIndex=0;
 		magnitudesIndex=0;
 		previousMagnitudes.clear();
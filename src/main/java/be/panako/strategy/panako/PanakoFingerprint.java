@@ -232,7 +232,24 @@ public class PanakoFingerprint {
 		if(hash!=0)
 			return hash;
 		//else
-		
+		hash = hash(t1,f1,m1,t2,f2,m2,t3,f3,m3);
+		return hash;
+	}
+
+	/**
+	 * Calculates the hash of a fingerprint from its components, without creating a fingerprint.
+	 * @param t1 time component of the event point 1
+	 * @param f1 frequency component of the event point 1
+	 * @param m1 magnitude component of the event point 1
+	 * @param t2 time component of the event point 2
+	 * @param f2 frequency component of the event point 2
+	 * @param m2 magnitude component of the event point 2
+	 * @param t3 time component of the event point 3
+	 * @param f3 frequency component of the event point 3
+	 * @param m3 magnitude component of the event point 3
+	 * @return The calculated hash.
+	 */
+	public static long hash(int t1,int f1,float m1,int t2,int f2,float m2,int t3,int f3,float m3){
 		long f1LargerThanF2 = f1 > f2 ? 1 : 0;
 		long f2LargerThanF3 = f2 > f3 ? 1 : 0;
 		long f3LargerThanF1 = f3 > f1 ? 1 : 0;
@@ -255,7 +272,7 @@ public class PanakoFingerprint {
 		long ratioT = (long) ( (t2 - t1) / (float) (t3 - t1) * 64 ) ;
 	    
 		//combine the hash components into a single 64 bit integer
-		hash = 
+		return 
 				((ratioT               &  ((1<<6)  -1)   ) << 0 ) +
 		        ((f1LargerThanF2       &  ((1<<1 ) -1)   ) << 6 ) +
 		        ((f2LargerThanF3       &  ((1<<1 ) -1)   ) << 7 ) +
@@ -268,8 +285,6 @@ public class PanakoFingerprint {
 		        ((f1Range              &  ((1<<8 ) -1)   ) << 14) +
 		        ((df2f1                &  ((1<<6 ) -1)   ) << 22) +
 		        ((df3f2                &  ((long) (1<<6 ) -1)   ) << 28) ;
-		
-		return hash;
 	}
 	
 	
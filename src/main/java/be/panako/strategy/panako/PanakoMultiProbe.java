@@ -0,0 +1,203 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.strategy.panako;
+
+import be.panako.util.Config;
+import be.panako.util.Key;
+
+/**
+ * Generates the hashes to probe for a query fingerprint. Next to the hash itself, the
+ * variants which are most likely to be stored for a slightly distorted version of the same
+ * fingerprint are probed. A variant is a hash with one borderline component changed:
+ *
+ * <ul>
+ * <li>A comparison bit is flipped when the compared frequencies, magnitudes or time
+ * differences are almost equal.</li>
+ * <li>A quantized frequency or frequency difference moves to the neighbouring cell when
+ * the original value is close to the border of its cell.</li>
+ * </ul>
+ *
+ * The time ratio is in the lowest bits of the hash, a deviation is already covered by the query range.
+ * Variants are ranked by how close their component is to the border and only the most likely are probed,
+ * this improves recall under distortion without the cost of a larger query range.
+ */
+public class PanakoMultiProbe {
+
+	private final int maxVariants;
+	private final int frequencyMargin;
+	private final float magnitudeMargin;
+	private final int timeMargin;
+
+	/**
+	 * The minimum difference between a variant and the hash, variants closer by are already found by the query range.
+	 */
+	private final long minimumDistance;
+
+	/**
+	 * The scores and hashes of the candidate variants, reused for each fingerprint.
+	 */
+	private final float[] scores = new float[14];
+	private final long[] hashes = new long[14];
+
+	/**
+	 * Create a multi probe generator with the configured margins.
+	 */
+	public PanakoMultiProbe(){
+		this(Config.getInt(Key.PANAKO_MULTI_PROBE_VARIANTS),
+				Config.getInt(Key.PANAKO_MULTI_PROBE_FREQUENCY_MARGIN),
+				Config.getFloat(Key.PANAKO_MULTI_PROBE_MAGNITUDE_MARGIN),
+				Config.getInt(Key.PANAKO_MULTI_PROBE_TIME_MARGIN),
+				Config.getInt(Key.PANAKO_QUERY_RANGE));
+	}
+
+	/**
+	 * Create a multi probe generator.
+	 * @param maxVariants The maximum number of variants for each fingerprint.
+	 * @param frequencyMargin Frequencies, in bins, within this margin of each other or of a cell border are borderline.
+	 * @param magnitudeMargin Magnitudes which differ less than this fraction are borderline.
+	 * @param timeMargin Time differences, in blocks, within this margin of each other are borderline.
+	 * @param queryRange The query range used to probe each hash.
+	 */
+	public PanakoMultiProbe(int maxVariants, int frequencyMargin, float magnitudeMargin, int timeMargin, int queryRange){
+		this.maxVariants = Math.max(0, Math.min(maxVariants, scores.length));
+		this.frequencyMargin = frequencyMargin;
+		this.magnitudeMargin = magnitudeMargin;
+		this.timeMargin = timeMargin;
+		this.minimumDistance = 2L * queryRange;
+	}
+
+	/**
+	 * @return The maximum number of hashes returned for a fingerprint: the hash and its variants.
+	 */
+	public int maxProbes(){
+		return maxVariants + 1;
+	}
+
+	/**
+	 * Generates the hashes to probe for a fingerprint with all event point components.
+	 * @param print The query fingerprint.
+	 * @param probes Receives the hashes, the first one is the hash of the fingerprint itself. Should have room for {@link #maxProbes()} hashes.
+	 * @return The number of hashes.
+	 */
+	public int probes(PanakoFingerprint print, long[] probes){
+		long hash = print.hash();
+		probes[0] = hash;
+		//without event points, e.g. cached fingerprints, there are no variants
+		if(print.t2 < 0 || maxVariants == 0)
+			return 1;
+
+		int n = 0;
+		//comparison bits
+		n = flip(n, hash, 6, print.f1 - print.f2, frequencyMargin);
+		n = flip(n, hash, 7, print.f2 - print.f3, frequencyMargin);
+		n = flip(n, hash, 8, print.f3 - print.f1, frequencyMargin);
+		n = flip(n, hash, 9, relativeDifference(print.m1, print.m2), magnitudeMargin);
+		n = flip(n, hash, 10, relativeDifference(print.m2, print.m3), magnitudeMargin);
+		n = flip(n, hash, 11, relativeDifference(print.m3, print.m1), magnitudeMargin);
+		n = flip(n, hash, 12, (print.t2 - print.t1) - (print.t3 - print.t2), timeMargin);
+		n = flip(n, hash, 13, Math.abs(print.f2 - print.f1) - Math.abs(print.f3 - print.f2), frequencyMargin);
+
+		//quantized frequency components: the neighbouring cell
+		n = neighbour(n, hash, 14, 8, 5, print.f1);
+		n = neighbour(n, hash, 22, 6, 2, Math.abs(print.f2 - print.f1));
+		n = neighbour(n, hash, 28, 6, 2, Math.abs(print.f3 - print.f2));
+
+		//the most borderline variants first
+		int count = 1;
+		for(int k = 0 ; k < maxVariants && k < n ; k++){
+			int best = k;
+			for(int i = k + 1 ; i < n ; i++)
+				if(scores[i] < scores[best])
+					best = i;
+			swap(k, best);
+			probes[count++] = hashes[k];
+		}
+		return count;
+	}
+
+	private static float relativeDifference(float a, float b){
+		float max = Math.max(Math.abs(a), Math.abs(b));
+		return max == 0 ? 0 : (a - b) / max;
+	}
+
+	/**
+	 * Adds the hash with a comparison bit flipped if the compared values are within the margin.
+	 */
+	private int flip(int n, long hash, int bit, float difference, float margin){
+		float distance = Math.abs(difference);
+		if(distance > margin)
+			return n;
+		//an exact tie is the most likely to flip
+		return add(n, hash, hash ^ (1L << bit), margin == 0 ? 0 : distance / margin);
+	}
+
+	/**
+	 * Adds the hash with a quantized component in the neighbouring cell if the value is within the
+	 * frequency margin of the border of its cell.
+	 */
+	private int neighbour(int n, long hash, int shift, int bits, int quantizationBits, int value){
+		int cell = value >> quantizationBits;
+		int cellSize = 1 << quantizationBits;
+		int offset = value - (cell << quantizationBits);
+		long mask = ((1L << bits) - 1) << shift;
+		//distances to the lower and upper border, measured in frequency bins
+		int lowerDistance = offset + 1;
+		int upperDistance = cellSize - offset;
+		if(lowerDistance <= frequencyMargin && cell > 0)
+			n = add(n, hash, (hash & ~mask) | ((long) (cell - 1) << shift), lowerDistance / (float) (frequencyMargin + 1));
+		if(upperDistance <= frequencyMargin && cell + 1 < (1 << bits))
+			n = add(n, hash, (hash & ~mask) | ((long) (cell + 1) << shift), upperDistance / (float) (frequencyMargin + 1));
+		return n;
+	}
+
+	private int add(int n, long hash, long variant, float score){
+		//a variant within the query range of the hash would return the same hits twice
+		if(Math.abs(variant - hash) <= minimumDistance)
+			return n;
+		hashes[n] = variant;
+		scores[n] = score;
+		return n + 1;
+	}
+
+	private void swap(int i, int j){
+		float score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
+		long hash = hashes[i];
+		hashes[i] = hashes[j];
+		hashes[j] = hash;
+	}
+}
@@ -49,13 +49,15 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 
+import be.panako.strategy.CandidateVerifier;
+import be.panako.strategy.FingerprintSink;
 import be.panako.strategy.QueryResult;
 import be.panako.strategy.QueryResultHandler;
 import be.panako.strategy.Strategy;
+import be.panako.strategy.StreamMonitor;
 import be.panako.strategy.panako.storage.*;
 import be.panako.util.*;
 import be.tarsos.dsp.AudioDispatcher;
-import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
 import be.tarsos.dsp.util.PitchConverter;
 
 /**
@@ -92,6 +94,8 @@ public class PanakoStrategy extends Strategy {
 			db = PanakoStorageKV.getInstance();
 		}else if (Config.get(Key.PANAKO_STORAGE).equalsIgnoreCase("FILE")) {
 			db = PanakoStorageFile.getInstance();
+		}else if (Config.get(Key.PANAKO_STORAGE).equalsIgnoreCase("SNAPSHOT")) {
+			db = PanakoStorageSnapshot.getInstance();
 		}else {
 			db = PanakoStorageMemory.getInstance();
 		}
@@ -101,6 +105,11 @@ public class PanakoStrategy extends Strategy {
 		}else {
 			LOG.info("Using " + db.getClass().getSimpleName() + " as storage.");
 		}
+
+		if(Config.getBoolean(Key.PANAKO_QUERY_CACHE)) {
+			LOG.info("Caching hits of frequently queried hashes.");
+			db = new PanakoQueryCachingStorage(db, Config.getInt(Key.PANAKO_QUERY_CACHE_SIZE));
+		}
 		this.db = db;
 	}
 
@@ -110,26 +119,27 @@ public class PanakoStrategy extends Strategy {
 	
 	@Override
 	public double store(String resource, String description) {
-		PanakoStorage db = getStorage();
-		List<PanakoFingerprint> prints = toFingerprints(resource);
+		final PanakoStorage db = getStorage();
 		
-		int resourceID = FileUtils.getIdentifier(resource);
-		//store
-		for(PanakoFingerprint print : prints) {
-			long hash = print.hash();
-			db.addToStoreQueue(hash, resourceID, print.t1,print.f1);
-		}
+		final int resourceID = FileUtils.getIdentifier(resource);
+		//the number of prints
+		final int[] printCount = {0};
+		//store, the prints are queued while they are packed
+		int lastPrintTime = extractFingerprints(resource, (hash, t1, f1) -> {
+			db.addToStoreQueue(hash, resourceID, t1, f1);
+			printCount[0]++;
+		});
 		db.processStoreQueue();
 
 		//store meta-data as well
+		int numberOfPrints = printCount[0];
 		float duration = 0;
-		if(prints.size() != 0) {
-			duration = blocksToSeconds(prints.get(prints.size()-1).t3);
-			LOG.info(String.format("Stored %d fingerprints for '%s', id: %d", prints.size() , resource ,resourceID));
+		if(numberOfPrints != 0) {
+			duration = blocksToSeconds(lastPrintTime);
+			LOG.info(String.format("Stored %d fingerprints for '%s', id: %d", numberOfPrints , resource ,resourceID));
 		}else {
 			LOG.warning("Warning: no prints extracted for " + resource);
 		}
-		int numberOfPrints = prints.size();
 		
 		db.storeMetadata((long) resourceID,resource,duration,numberOfPrints);
 		
@@ -143,22 +153,22 @@ public class PanakoStrategy extends Strategy {
 	@Override
 	public double delete(String resource) {
 
-		PanakoStorage db = getStorage();
-		
-		List<PanakoFingerprint> prints = toFingerprints(resource);
+		final PanakoStorage db = getStorage();
 		
-		int resourceID = FileUtils.getIdentifier(resource);
-		//delete
-		for(PanakoFingerprint print : prints) {
-			long hash = print.hash();
-			db.addToDeleteQueue(hash, resourceID, print.t1,print.f1);
-		}
+		final int resourceID = FileUtils.getIdentifier(resource);
+		//the number of prints
+		final int[] printCount = {0};
+		//delete, the prints are queued while they are packed
+		int lastPrintTime = extractFingerprints(resource, (hash, t1, f1) -> {
+			db.addToDeleteQueue(hash, resourceID, t1, f1);
+			printCount[0]++;
+		});
 		db.processDeleteQueue();
 		
 		//delete meta-data as well
 		float duration = 0;
-		if(prints.size() != 0) {
-			duration = blocksToSeconds(prints.get(prints.size()-1).t3);
+		if(printCount[0] != 0) {
+			duration = blocksToSeconds(lastPrintTime);
 		}else {
 			LOG.warning("Warning: no prints extracted for " + resource);
 		}
@@ -175,6 +185,43 @@ public class PanakoStrategy extends Strategy {
 	private List<PanakoFingerprint> toFingerprints(String resource){
 		return toFingerprints(resource,0,MAX_TIME);
 	}
+
+	/**
+	 * Extracts fingerprints and passes them to a sink, without keeping fingerprint objects in memory.
+	 * @param resource The path to the audio resource
+	 * @param sink Receives the fingerprints, in order of t1.
+	 * @return The time of the last event point of the last fingerprint, for cached fingerprints
+	 * only the time of the first event point is known. Returns -1 if there are no fingerprints.
+	 */
+	private int extractFingerprints(String resource, FingerprintSink sink){
+		boolean extractOnCpu = !Config.getBoolean(Key.PANAKO_USE_GPU_EP_EXTRACTOR);
+		if(Config.getBoolean(Key.PANAKO_USE_CACHED_PRINTS)) {
+			String folder = FileUtils.expandHomeDir(Config.get(Key.PANAKO_CACHE_FOLDER));
+			extractOnCpu = extractOnCpu && !FileUtils.exists(FileUtils.combine(folder,resolve(resource) + ".tdb"));
+		}
+
+		if(extractOnCpu) {
+			int samplerate, size, overlap;
+			samplerate = Config.getInt(Key.PANAKO_SAMPLE_RATE);
+			size = Config.getInt(Key.PANAKO_AUDIO_BLOCK_SIZE);
+			overlap = Config.getInt(Key.PANAKO_AUDIO_BLOCK_OVERLAP);
+
+			AudioDispatcher d = AudioDecoder.fromResource(resource, samplerate, size, overlap,0);
+			PanakoEventPointProcessor eventPointProcessor = new PanakoEventPointProcessor(size,sink);
+			d.addAudioProcessor(TaskExecution.boundedExtraction(eventPointProcessor));
+			d.run();
+			return eventPointProcessor.getLastFingerprintTime();
+		}
+
+		//cached or GPU extracted prints are already materialized
+		List<PanakoFingerprint> prints = toFingerprints(resource);
+		for(PanakoFingerprint print : prints)
+			sink.accept(print.hash(), print.t1, print.f1);
+		if(prints.isEmpty())
+			return -1;
+		PanakoFingerprint last = prints.get(prints.size()-1);
+		return last.t3 < 0 ? last.t1 : last.t3;
+	}
 	
 	private List<PanakoFingerprint> toFingerprints(String resource,double startTimeOffset,double numberOfSeconds){
 
@@ -228,12 +275,12 @@ public class PanakoStrategy extends Strategy {
 			AudioDispatcher d;
 
 			if(numberOfSeconds==MAX_TIME)
-				d = AudioDispatcherFactory.fromPipe(resource, samplerate, size, overlap,startTimeOffset);
+				d = AudioDecoder.fromResource(resource, samplerate, size, overlap,startTimeOffset);
 			else
-				d = AudioDispatcherFactory.fromPipe(resource, samplerate, size, overlap,startTimeOffset,numberOfSeconds);
+				d = AudioDecoder.fromResource(resource, samplerate, size, overlap,startTimeOffset,numberOfSeconds);
 
 			PanakoEventPointProcessor eventPointProcessor = new PanakoEventPointProcessor(size);
-			d.addAudioProcessor(eventPointProcessor);
+			d.addAudioProcessor(TaskExecution.boundedExtraction(eventPointProcessor));
 			d.run();
 
 			return eventPointProcessor.getFingerprints();
@@ -308,6 +355,24 @@ public class PanakoStrategy extends Strategy {
 			db.addToQueryQueue(hash);
 			printMap.put(hash, print);
 		}
+
+		//probe the most likely variants of each hash as well
+		if(Config.getBoolean(Key.PANAKO_MULTI_PROBE)) {
+			PanakoMultiProbe multiProbe = new PanakoMultiProbe();
+			long[] probes = new long[multiProbe.maxProbes()];
+			int numberOfVariants = 0;
+			for(PanakoFingerprint print : prints) {
+				int numberOfProbes = multiProbe.probes(print, probes);
+				for(int i = 1 ; i < numberOfProbes ; i++) {
+					//hashes which are already probed would return the same hits twice
+					if(printMap.putIfAbsent(probes[i], print) == null) {
+						db.addToQueryQueue(probes[i]);
+						numberOfVariants++;
+					}
+				}
+			}
+			LOG.info(String.format("Multi probe query: %d variants for %d prints", numberOfVariants, prints.size()));
+		}
 		
 		//fingerprint hash to info
 		Map<Long,List<PanakoHit>> matchAccumulator = new HashMap<>();
@@ -318,8 +383,6 @@ public class PanakoStrategy extends Strategy {
 		
 
 		 HashMap<Integer,List<PanakoMatch>> hitsPerIdentifer = new HashMap<>();
-		 
-		 final List<QueryResult> queryResults = new ArrayList<>();
 
 		 matchAccumulator.forEach((fingerprintHash, dbHits) -> {
 
@@ -347,7 +410,6 @@ public class PanakoStrategy extends Strategy {
 		 LOG.info(String.format("Query for %d prints, %d matches in %s \n", printMap.size(),matchAccumulator.size(), w.formattedToString()));
 
 		 int minimumUnfilteredHits = Config.getInt(Key.PANAKO_MIN_HITS_UNFILTERED);
-		 int minimumFilteredHits = Config.getInt(Key.PANAKO_MIN_HITS_FILTERED);
 		 
 		 List<Integer> matchesToDelete = new ArrayList<>();
 		 hitsPerIdentifer.forEach((identifier, hitlist) -> {
@@ -360,143 +422,156 @@ public class PanakoStrategy extends Strategy {
 			 hitsPerIdentifer.remove(identifier);
 		 });
 		 
-		 hitsPerIdentifer.forEach((identifier, hitlist) -> {
-			 
-			 //sort by query time
-			 Collections.sort(hitlist, (Comparator<? super PanakoMatch>) (PanakoMatch a, PanakoMatch b) -> Integer.valueOf(a.queryTime).compareTo(Integer.valueOf(b.queryTime)));
-			
-			 //view the first and last hits (max 250)
-			 int maxPartListSize = Config.getInt(Key.PANAKO_HIT_PART_MAX_SIZE);
-			 int partDivider = Config.getInt(Key.PANAKO_HIT_PART_DIVIDER);
-			 int partListLength = Math.min(maxPartListSize,Math.max(minimumUnfilteredHits,hitlist.size()/partDivider));
-			 List<PanakoMatch> firstHits = hitlist.subList(0, partListLength);
-			 List<PanakoMatch> lastHits  = hitlist.subList(hitlist.size() - partListLength, hitlist.size());
-			 
-			//find the first x1 where delta t is equals to the median delta t
-			 float y1 = mostCommonDeltaTforHitList(firstHits);
-			 float x1 = 0;
-			 float frequencyFactor = 0;
-			 for(int i = 0 ; i < firstHits.size() ; i++) {
-				 PanakoMatch hit = firstHits.get(i);
-				 int diff = hit.deltaT();
-				 if(diff == y1) {
-					 x1 = hit.queryTime;
-					 frequencyFactor = binToHz(hit.matchF1) / binToHz(hit.queryF1);
-					 break;
-				 }
+		 List<QueryResult> queryResults = CandidateVerifier.verify(hitsPerIdentifer.entrySet(),
+				 entry -> verifyWithLineFit(queryPath, entry.getKey(), entry.getValue()), maxNumberOfResults);
+		 
+		 if (queryResults.isEmpty()) {
+			 handler.handleEmptyResult(QueryResult.emptyQueryResult(queryPath,0,0));
+		 }else {
+			 //handle the results in order (best score first), meta-data is only retrieved for these, in one batch
+			 List<Long> identifiers = new ArrayList<>();
+			 for(QueryResult r : queryResults)
+				 identifiers.add(Long.parseLong(r.refIdentifier));
+			 Map<Long,PanakoResourceMetadata> metadata = db.getMetadata(identifiers);
+			 for(QueryResult r : queryResults) {
+				 handler.handleQueryResult(withMetadata(metadata.get(Long.parseLong(r.refIdentifier)), r));
 			 }
+		 }
+	}
 
-			//find the first x2 where delta t is equals to the median delta t
-			 float y2 = mostCommonDeltaTforHitList(lastHits);
-			 float x2 = 0;
-			 for(int i = lastHits.size() - 1 ; i >= 0 ; i--) {
-				 PanakoMatch hit = lastHits.get(i);
-				 int diff = hit.deltaT();
-				 if(diff == y2) {
-					 x2 = hit.queryTime;
-					 break;
-				 }
+	private QueryResult withMetadata(PanakoResourceMetadata metadata, QueryResult r){
+		String refPath = "metadata unavailable!";
+		if(metadata != null )
+			refPath = metadata.path;
+		return new QueryResult(r.queryPath, r.queryStart, r.queryStop, refPath, r.refIdentifier, r.refStart, r.refStop, r.score, r.timeFactor, r.frequencyFactor, r.percentOfSecondsWithMatches);
+	}
+
+	/**
+	 * Verifies the hits of a candidate by fitting a line through the time differences of the first and last hits.
+	 * @return A result without meta-data or null if the hits do not match.
+	 */
+	private QueryResult verifyWithLineFit(String queryPath, int identifier, List<PanakoMatch> hitlist){
+		 int minimumUnfilteredHits = Config.getInt(Key.PANAKO_MIN_HITS_UNFILTERED);
+		 int minimumFilteredHits = Config.getInt(Key.PANAKO_MIN_HITS_FILTERED);
+
+		 //sort by query time
+		 Collections.sort(hitlist, (Comparator<? super PanakoMatch>) (PanakoMatch a, PanakoMatch b) -> Integer.valueOf(a.queryTime).compareTo(Integer.valueOf(b.queryTime)));
+		
+		 //view the first and last hits (max 250)
+		 int maxPartListSize = Config.getInt(Key.PANAKO_HIT_PART_MAX_SIZE);
+		 int partDivider = Config.getInt(Key.PANAKO_HIT_PART_DIVIDER);
+		 int partListLength = Math.min(maxPartListSize,Math.max(minimumUnfilteredHits,hitlist.size()/partDivider));
+		 List<PanakoMatch> firstHits = hitlist.subList(0, partListLength);
+		 List<PanakoMatch> lastHits  = hitlist.subList(hitlist.size() - partListLength, hitlist.size());
+		 
+		//find the first x1 where delta t is equals to the median delta t
+		 float y1 = mostCommonDeltaTforHitList(firstHits);
+		 float x1 = 0;
+		 float frequencyFactor = 0;
+		 for(int i = 0 ; i < firstHits.size() ; i++) {
+			 PanakoMatch hit = firstHits.get(i);
+			 int diff = hit.deltaT();
+			 if(diff == y1) {
+				 x1 = hit.queryTime;
+				 frequencyFactor = binToHz(hit.matchF1) / binToHz(hit.queryF1);
+				 break;
 			 }
-			 	 
-			 float slope = (y2-y1)/(x2-x1);
-			 float offset = -x1 * slope + y1;
-			 float timeFactor = 1.0f/(1-slope);
-			 	 
-			 //System.out.printf("slope %f offset %f  timefactor %f  freqfactor %f \n",slope,offset,timeFactor,frequencyFactor);
+		 }
+
+		//find the first x2 where delta t is equals to the median delta t
+		 float y2 = mostCommonDeltaTforHitList(lastHits);
+		 float x2 = 0;
+		 for(int i = lastHits.size() - 1 ; i >= 0 ; i--) {
+			 PanakoMatch hit = lastHits.get(i);
+			 int diff = hit.deltaT();
+			 if(diff == y2) {
+				 x2 = hit.queryTime;
+				 break;
+			 }
+		 }
+		 	 
+		 float slope = (y2-y1)/(x2-x1);
+		 float offset = -x1 * slope + y1;
+		 float timeFactor = 1.0f/(1-slope);
+		 	 
+		 //System.out.printf("slope %f offset %f  timefactor %f  freqfactor %f \n",slope,offset,timeFactor,frequencyFactor);
+		 
+		 //threshold in time bins
+		 double threshold = Config.getFloat(Key.PANAKO_QUERY_RANGE);
+		 
+		 //only continue processing when time factor is reasonable
+		 if(timeFactor > Config.getFloat(Key.PANAKO_MIN_TIME_FACTOR) && timeFactor < Config.getFloat(Key.PANAKO_MAX_TIME_FACTOR) && 
+				 frequencyFactor> Config.getFloat(Key.PANAKO_MIN_FREQ_FACTOR) &&  frequencyFactor < Config.getFloat(Key.PANAKO_MAX_FREQ_FACTOR)	 ) {
+			 List<PanakoMatch> filteredHits = new ArrayList<>();
 			 
-			 //threshold in time bins
-			 double threshold = Config.getFloat(Key.PANAKO_QUERY_RANGE);
+			 hitlist.forEach( hit ->{				 
+				 float yActual = hit.deltaT();
+				 float x = hit.queryTime;
+				 float yPredicted = slope * x + offset;
+				 
+				 //should be within an expected range
+				 boolean yInExpectedRange = Math.abs(yActual-yPredicted) <= threshold ; 
+				 
+				 //if(hit.identifier!= FileUtils.getIdentifier(queryPath))
+					 //System.out.printf("pred: %f  actual: %f   dif abs: %f  threshold %f \n",yPredicted, yActual,Math.abs(yActual-yPredicted), threshold);
+				 
+				 if(yInExpectedRange) {
+					 filteredHits.add(hit);
+				 }
+			 });
 			 
-			 //only continue processing when time factor is reasonable
-			 if(timeFactor > Config.getFloat(Key.PANAKO_MIN_TIME_FACTOR) && timeFactor < Config.getFloat(Key.PANAKO_MAX_TIME_FACTOR) && 
-					 frequencyFactor> Config.getFloat(Key.PANAKO_MIN_FREQ_FACTOR) &&  frequencyFactor < Config.getFloat(Key.PANAKO_MAX_FREQ_FACTOR)	 ) {
-				 List<PanakoMatch> filteredHits = new ArrayList<>();
+			 //ignore resources with too few filtered hits remaining
+			 if(filteredHits.size() > minimumFilteredHits) {
+				 //System.out.println("Matches " + identifier + " matches filtered hits: " + filteredHits.size());
 				 
-				 hitlist.forEach( hit ->{				 
-					 float yActual = hit.deltaT();
-					 float x = hit.queryTime;
-					 float yPredicted = slope * x + offset;
-					 
-					 //should be within an expected range
-					 boolean yInExpectedRange = Math.abs(yActual-yPredicted) <= threshold ; 
-					 
-					 //if(hit.identifier!= FileUtils.getIdentifier(queryPath))
-						 //System.out.printf("pred: %f  actual: %f   dif abs: %f  threshold %f \n",yPredicted, yActual,Math.abs(yActual-yPredicted), threshold);
-					 
-					 if(yInExpectedRange) {
-						 filteredHits.add(hit);
-					 }
-				 });
+				 float minDuration = Config.getFloat(Key.PANAKO_MIN_MATCH_DURATION);
+				 float queryStart = blocksToSeconds(filteredHits.get(0).queryTime);
+				 float queryStop = blocksToSeconds(filteredHits.get(filteredHits.size()-1).queryTime);
+				 float duration = queryStop - queryStart;
 				 
-				 //ignore resources with too few filtered hits remaining
-				 if(filteredHits.size() > minimumFilteredHits) {
-					 //System.out.println("Matches " + identifier + " matches filtered hits: " + filteredHits.size());
+				 if(duration >= minDuration) {
+					 int score = filteredHits.size();
+					
 					 
-					 float minDuration = Config.getFloat(Key.PANAKO_MIN_MATCH_DURATION);
-					 float queryStart = blocksToSeconds(filteredHits.get(0).queryTime);
-					 float queryStop = blocksToSeconds(filteredHits.get(filteredHits.size()-1).queryTime);
-					 float duration = queryStop - queryStart;
+					 float refStart = blocksToSeconds(filteredHits.get(0).matchTime);
+					 float refStop =  blocksToSeconds(filteredHits.get(filteredHits.size()-1).matchTime);
 					 
-					 if(duration >= minDuration) {
-						 int score = filteredHits.size();
-						
-						 
-						 float refStart = blocksToSeconds(filteredHits.get(0).matchTime);
-						 float refStop =  blocksToSeconds(filteredHits.get(filteredHits.size()-1).matchTime);
-						 
-						 //retrieve meta-data
-						 PanakoResourceMetadata metadata = db.getMetadata((long) identifier);
-						 String refPath = "metadata unavailable!";
-						 if(metadata != null )
-							 refPath = metadata.path;
-						 
-						 //Construct a histogram with the number of matches for each second
-						 //Ideally there is a more or less equal number of matches each second
-						 // note that the last second might not be a full second
-						 TreeMap<Integer,Integer> matchesPerSecondHistogram = new TreeMap<>();
-						 for(PanakoMatch hit : filteredHits) {
-							 //if(hit.identifier!= FileUtils.getIdentifier(queryPath))
-								 //System.out.printf("%d %d %d %d %d\n", hit.identifier, hit.matchTime, hit.queryTime, hit.originalHash, hit.matchedNearHash);
-							 float offsetInSec = blocksToSeconds(hit.matchTime) - refStart;
-							 int secondBin = (int) offsetInSec;
-							 if(!matchesPerSecondHistogram.containsKey(secondBin))
-								 matchesPerSecondHistogram.put(secondBin, 0);
-							 matchesPerSecondHistogram.put(secondBin, matchesPerSecondHistogram.get(secondBin)+1);
-						 }
-						
-						 //number of seconds bins
-						 float numberOfMatchingSeconds = (float) Math.ceil(refStop - refStart);
-						 float emptySeconds = numberOfMatchingSeconds - matchesPerSecondHistogram.size();
-						 float percentOfSecondsWithMatches = 1 - (emptySeconds / numberOfMatchingSeconds);
-
-						 if(percentOfSecondsWithMatches >= Config.getFloat(Key.PANAKO_MIN_SEC_WITH_MATCH)){
-						 	QueryResult r = new QueryResult(queryPath,queryStart, queryStop, refPath, "" + identifier, refStart, refStop,  score, timeFactor, frequencyFactor,percentOfSecondsWithMatches);
-						 	queryResults.add(r);
-						 }
+					 //Construct a histogram with the number of matches for each second
+					 //Ideally there is a more or less equal number of matches each second
+					 // note that the last second might not be a full second
+					 TreeMap<Integer,Integer> matchesPerSecondHistogram = new TreeMap<>();
+					 for(PanakoMatch hit : filteredHits) {
+						 //if(hit.identifier!= FileUtils.getIdentifier(queryPath))
+							 //System.out.printf("%d %d %d %d %d\n", hit.identifier, hit.matchTime, hit.queryTime, hit.originalHash, hit.matchedNearHash);
+						 float offsetInSec = blocksToSeconds(hit.matchTime) - refStart;
+						 int secondBin = (int) offsetInSec;
+						 if(!matchesPerSecondHistogram.containsKey(secondBin))
+							 matchesPerSecondHistogram.put(secondBin, 0);
+						 matchesPerSecondHistogram.put(secondBin, matchesPerSecondHistogram.get(secondBin)+1);
+					 }
+					
+					 //number of seconds bins
+					 float numberOfMatchingSeconds = (float) Math.ceil(refStop - refStart);
+					 float emptySeconds = numberOfMatchingSeconds - matchesPerSecondHistogram.size();
+					 float percentOfSecondsWithMatches = 1 - (emptySeconds / numberOfMatchingSeconds);
+
+					 if(percentOfSecondsWithMatches >= Config.getFloat(Key.PANAKO_MIN_SEC_WITH_MATCH)){
+					 	return new QueryResult(queryPath,queryStart, queryStop, null, "" + identifier, refStart, refStop,  score, timeFactor, frequencyFactor,percentOfSecondsWithMatches);
 					 }
 				 }
-			 }			 
-		 });
-		 
-		 if (queryResults.isEmpty()) {
-			 handler.handleEmptyResult(QueryResult.emptyQueryResult(queryPath,0,0));
-		 }else {
-			 //sort results by score desc
-			 queryResults.sort((Comparator<? super QueryResult>) (QueryResult a, QueryResult b) -> Integer.valueOf((int) b.score).compareTo(Integer.valueOf((int) a.score)));
-			 //limit results to max number of results, if needed
-			 List<QueryResult> finalResults = queryResults;
-			 if(queryResults.size()>maxNumberOfResults) {
-				 finalResults = queryResults.subList(0, maxNumberOfResults);
-			 }
-			 //handle the results in order (best score first)
-			 for(QueryResult r : finalResults) {
-				 handler.handleQueryResult(r);
 			 }
-		 }
+		 }			 
+		 return null;
 	}
-	
+
 	@Override
 	public void monitor(String query, int maxNumberOfReqults, Set<Integer> avoid, QueryResultHandler handler) {
+		//the Gaborator transform is only analysed when the audio ends
+		if(StreamMonitor.isStream(query)) {
+			LOG.severe(String.format("Can not monitor stream '%s': live monitoring requires the OLAF strategy", query));
+			return;
+		}
+
 		int overlapInSeconds = Config.getInt(Key.MONITOR_OVERLAP); // 5
 		int stepSizeInSeconds = Config.getInt(Key.MONITOR_STEP_SIZE); //25
 		
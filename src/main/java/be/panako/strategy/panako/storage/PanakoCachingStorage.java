@@ -1,5 +1,6 @@
 package be.panako.strategy.panako.storage;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -54,6 +55,11 @@ public class PanakoCachingStorage implements PanakoStorage{
         return invertedIndex.getMetadata(identifier);
     }
 
+    @Override
+    public Map<Long, PanakoResourceMetadata> getMetadata(Collection<Long> identifiers) {
+        return invertedIndex.getMetadata(identifiers);
+    }
+
     @Override
     public void printStatistics(boolean detailedStats) {
         invertedIndex.printStatistics(detailedStats);
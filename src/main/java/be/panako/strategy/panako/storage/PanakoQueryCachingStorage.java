@@ -0,0 +1,234 @@
+package be.panako.strategy.panako.storage;
+
+import be.panako.util.TinyLFUCache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A query result cache in front of an inverted index.
+ *
+ * Some fingerprint hashes are much more popular than others: silence, applause or a hit song
+ * result in the same hashes over and over again. This front remembers the hits of a range probe
+ * for each query hash. The cached hits are not filtered on resources to avoid, this is done when
+ * they are returned, so one entry serves every query. A probe with a smaller range than the cached
+ * one is served from the cache as well.
+ *
+ * The cache is bounded in size and uses a frequency aware admission policy so that the frequently
+ * queried hashes stay in the cache. Storing or deleting fingerprints invalidates all cached probes
+ * with a range covering the changed hash.
+ */
+public class PanakoQueryCachingStorage implements PanakoStorage {
+
+    private final PanakoStorage invertedIndex;
+    private final TinyLFUCache<Long, CachedProbe> cache;
+
+    private final ThreadLocal<List<Long>> queryQueue;
+    private final ThreadLocal<List<Long>> changedHashes;
+
+    /**
+     * The largest range ever cached, determines which cached probes are invalidated on change.
+     */
+    private final AtomicInteger maxCachedRange;
+
+    /**
+     * Incremented on each invalidation, prevents caching probes that were executed during a change.
+     */
+    private final AtomicLong modifications;
+
+    /**
+     * Create a new query caching front.
+     * @param invertedIndex The actual inverted index storage (key value store).
+     * @param maximumSize The maximum number of cached query hashes.
+     */
+    public PanakoQueryCachingStorage(PanakoStorage invertedIndex, int maximumSize){
+        this.invertedIndex = invertedIndex;
+        this.cache = new TinyLFUCache<>(maximumSize);
+        this.queryQueue = ThreadLocal.withInitial(ArrayList::new);
+        this.changedHashes = ThreadLocal.withInitial(ArrayList::new);
+        this.maxCachedRange = new AtomicInteger(0);
+        this.modifications = new AtomicLong(0);
+    }
+
+    @Override
+    public void storeMetadata(long resourceID, String resourcePath, float duration, int numberOfFingerprints) {
+        invertedIndex.storeMetadata(resourceID,resourcePath,duration,numberOfFingerprints);
+    }
+
+    @Override
+    public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1, int f1) {
+        invertedIndex.addToStoreQueue(fingerprintHash,resourceIdentifier,t1,f1);
+        changedHashes.get().add(fingerprintHash);
+    }
+
+    @Override
+    public void processStoreQueue() {
+        invertedIndex.processStoreQueue();
+        invalidateChangedHashes();
+    }
+
+    @Override
+    public void printStatistics(boolean printDetailedStats) {
+        invertedIndex.printStatistics(printDetailedStats);
+        if(printDetailedStats) {
+            System.out.printf("[Query cache statistics]\n");
+            System.out.printf("=========================\n");
+            System.out.printf("> Cached query hashes:          %d (max %d)\n", cache.size(), cache.maximumSize());
+            System.out.printf("> Cache hits:                   %d\n", cache.hitCount());
+            System.out.printf("> Cache misses:                 %d\n", cache.missCount());
+            System.out.printf("> Hit rate:                     %.2f%%\n", cache.hitRate() * 100);
+            System.out.printf("> Evicted or rejected entries:  %d\n", cache.evictionCount());
+            System.out.printf("=========================\n\n");
+        }
+    }
+
+    /**
+     * @return The ratio of query hashes served from the cache, between zero and one.
+     */
+    public double hitRate(){
+        return cache.hitRate();
+    }
+
+    /**
+     * @return The number of query hashes served from the cache.
+     */
+    public long hitCount(){
+        return cache.hitCount();
+    }
+
+    /**
+     * @return The number of query hashes which were looked up in the inverted index.
+     */
+    public long missCount(){
+        return cache.missCount();
+    }
+
+    @Override
+    public PanakoResourceMetadata getMetadata(long identifier) {
+        return invertedIndex.getMetadata(identifier);
+    }
+
+    @Override
+    public Map<Long, PanakoResourceMetadata> getMetadata(Collection<Long> identifiers) {
+        return invertedIndex.getMetadata(identifiers);
+    }
+
+    @Override
+    public void addToQueryQueue(long queryHash) {
+        queryQueue.get().add(queryHash);
+    }
+
+    @Override
+    public void processQueryQueue(Map<Long, List<PanakoHit>> matchAccumulator, int range) {
+        processQueryQueue(matchAccumulator, range, new HashSet<>());
+    }
+
+    @Override
+    public void processQueryQueue(Map<Long, List<PanakoHit>> matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
+        List<Long> queue = queryQueue.get();
+        if(queue.isEmpty())
+            return;
+
+        List<Long> misses = new ArrayList<>();
+        Set<Long> uniqueMisses = new HashSet<>();
+        for(long queryHash : queue){
+            CachedProbe probe = cache.get(queryHash);
+            if(probe != null && probe.range >= range){
+                probe.addHitsTo(matchAccumulator,queryHash,range,resourcesToAvoid);
+            }else{
+                misses.add(queryHash);
+                if(uniqueMisses.add(queryHash))
+                    invertedIndex.addToQueryQueue(queryHash);
+            }
+        }
+        queue.clear();
+
+        if(misses.isEmpty())
+            return;
+
+        long modificationsBeforeQuery = modifications.get();
+        Map<Long, List<PanakoHit>> fetched = new HashMap<>();
+        invertedIndex.processQueryQueue(fetched,range,Collections.emptySet());
+        maxCachedRange.accumulateAndGet(range,Math::max);
+        boolean mayCache = modificationsBeforeQuery == modifications.get();
+
+        Map<Long, CachedProbe> probes = new HashMap<>();
+        for(long queryHash : misses){
+            CachedProbe probe = probes.get(queryHash);
+            if(probe == null){
+                probe = new CachedProbe(range,fetched.getOrDefault(queryHash,Collections.emptyList()));
+                probes.put(queryHash,probe);
+                if(mayCache)
+                    cache.put(queryHash,probe);
+            }
+            probe.addHitsTo(matchAccumulator,queryHash,range,resourcesToAvoid);
+        }
+    }
+
+    @Override
+    public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1, int f1) {
+        invertedIndex.addToDeleteQueue(fingerprintHash,resourceIdentifier,t1,f1);
+        changedHashes.get().add(fingerprintHash);
+    }
+
+    @Override
+    public void processDeleteQueue() {
+        invertedIndex.processDeleteQueue();
+        invalidateChangedHashes();
+    }
+
+    @Override
+    public void deleteMetadata(long resourceID) {
+        invertedIndex.deleteMetadata(resourceID);
+    }
+
+    @Override
+    public void clear() {
+        invertedIndex.clear();
+        modifications.incrementAndGet();
+        cache.clear();
+    }
+
+    private void invalidateChangedHashes(){
+        List<Long> changed = changedHashes.get();
+        if(changed.isEmpty())
+            return;
+        modifications.incrementAndGet();
+        int range = maxCachedRange.get();
+        for(long hash : changed){
+            for(long queryHash = hash - range ; queryHash <= hash + range ; queryHash++){
+                cache.invalidate(queryHash);
+            }
+        }
+        changed.clear();
+    }
+
+    /**
+     * The unfiltered hits for a query hash and the range used to find them.
+     */
+    private static class CachedProbe {
+        final int range;
+        final List<PanakoHit> hits;
+
+        CachedProbe(int range, List<PanakoHit> hits){
+            this.range = range;
+            this.hits = hits;
+        }
+
+        void addHitsTo(Map<Long, List<PanakoHit>> matchAccumulator, long queryHash, int range, Set<Integer> resourcesToAvoid){
+            for(PanakoHit hit : hits){
+                if(Math.abs(hit.matchedNearHash - queryHash) > range || resourcesToAvoid.contains(hit.resourceID))
+                    continue;
+                matchAccumulator.computeIfAbsent(queryHash, k -> new ArrayList<>()).add(hit);
+            }
+        }
+    }
+}
@@ -35,6 +35,8 @@
 
 package be.panako.strategy.panako.storage;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -78,6 +80,22 @@ public interface PanakoStorage {
 	 */
 	PanakoResourceMetadata getMetadata(long identifier);
 
+	/**
+	 * Return meta-data for a number of identifiers at once. Storage systems which
+	 * fetch several records in one transaction or round trip override this method.
+	 * @param identifiers The internal identifiers.
+	 * @return The meta-data of each identifier which is present, keyed by identifier.
+	 */
+	default Map<Long,PanakoResourceMetadata> getMetadata(Collection<Long> identifiers) {
+		Map<Long,PanakoResourceMetadata> metadata = new HashMap<>();
+		for(long identifier : identifiers) {
+			PanakoResourceMetadata m = getMetadata(identifier);
+			if(m != null)
+				metadata.put(identifier, m);
+		}
+		return metadata;
+	}
+
 	/**
 	 * Print statistics for the storage engine
 	 * @param detailedStats Print in detail or not
@@ -36,13 +36,12 @@
 package be.panako.strategy.panako.storage;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
+import be.panako.strategy.FingerprintBatch;
 import be.panako.util.Config;
 import be.panako.util.FileUtils;
 import be.panako.util.Key;
@@ -80,7 +79,7 @@ public class PanakoStorageFile implements PanakoStorage {
 	}
 	
 	
-	final Map<Long,List<long[]>> storeQueue;
+	final ThreadLocal<FingerprintBatch> storeQueue;
 	final File storeDir;
 
 	/**
@@ -98,7 +97,7 @@ public class PanakoStorageFile implements PanakoStorage {
 		
 		storeDir = new File(folder);
 		
-		storeQueue = new HashMap<Long,List<long[]>>();
+		storeQueue = ThreadLocal.withInitial(FingerprintBatch::new);
 	}
 	
 	
@@ -141,26 +140,21 @@ public class PanakoStorageFile implements PanakoStorage {
 
 
 	public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1,int f1) {
-		long[] data = {fingerprintHash,resourceIdentifier,t1,f1};
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			storeQueue.put(threadID, new ArrayList<long[]>());
-		storeQueue.get(threadID).add(data);
+		storeQueue.get().add(fingerprintHash,resourceIdentifier,t1,f1);
 	}
 
 	/**
-	 * Takes a list of fingerprint data items and turns it into a string
+	 * Takes a batch of fingerprints and turns it into a string
 	 * @param queue The queue with fingerprint data
 	 * @return A formatted string used in the file
 	 */
-	public String storeQueueToString(List<long[]> queue) {		
-		//sort by hash asc
-		//storeQueue.sort((a, b) -> Long.valueOf(a[0]).compareTo(b[0]));
+	public String storeQueueToString(FingerprintBatch queue) {		
 		StringBuilder sb = new StringBuilder();
-		for(long[] data : queue) {
-			for(long element : data) {
-				sb.append(element).append(" ");
-			}
+		for(int i = 0 ; i < queue.size() ; i++) {
+			sb.append(queue.hash(i)).append(" ");
+			sb.append(queue.resourceIdentifier(i)).append(" ");
+			sb.append(queue.t1(i)).append(" ");
+			sb.append(queue.f1(i)).append(" ");
 			sb.append("\n");
 		}
 		
@@ -169,17 +163,11 @@ public class PanakoStorageFile implements PanakoStorage {
 
 	
 	public void processStoreQueue() {
-		if(storeQueue.isEmpty()) return;
-		
-		long threadID = Thread.currentThread().getId();
-		
-		if(!storeQueue.containsKey(threadID)) return;
-		
-		List<long[]> queue = storeQueue.get(threadID);
+		FingerprintBatch queue = storeQueue.get();
 		
 		if (queue.isEmpty()) return;
 		
-		int resourceIdentifier = (int) queue.get(0)[1];
+		int resourceIdentifier = queue.resourceIdentifier(0);
 		
 		// Clears the store queue
 		String fingerprintsAsString = storeQueueToString(queue);
@@ -37,8 +37,9 @@ package be.panako.strategy.panako.storage;
 
 import java.io.File;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -48,13 +49,14 @@ import java.util.Set;
 import org.lmdbjava.Cursor;
 import org.lmdbjava.Dbi;
 import org.lmdbjava.DbiFlags;
-import org.lmdbjava.Env;
 import org.lmdbjava.GetOp;
 import org.lmdbjava.SeekOp;
 import org.lmdbjava.Stat;
 import org.lmdbjava.Txn;
 
-import be.panako.cli.Application;
+import be.panako.strategy.FingerprintBatch;
+import be.panako.strategy.KeyValueBuffers;
+import be.panako.strategy.KeyValueEnvironment;
 import be.panako.util.Config;
 import be.panako.util.FileUtils;
 import be.panako.util.Key;
@@ -93,11 +95,11 @@ public class PanakoStorageKV implements PanakoStorage{
 	
 	final Dbi<ByteBuffer> fingerprints;
 	final Dbi<ByteBuffer> resourceMap;
-	final Env<ByteBuffer> env;
+	final KeyValueEnvironment env;
 	
-	final Map<Long,List<long[]>> storeQueue;
-	final Map<Long,List<long[]>> deleteQueue;
-	final Map<Long,List<Long>> queryQueue;
+	final ThreadLocal<FingerprintBatch> storeQueue;
+	final ThreadLocal<FingerprintBatch> deleteQueue;
+	final ThreadLocal<List<Long>> queryQueue;
 
 	/**
 	 * Create a new storage instance
@@ -113,11 +115,7 @@ public class PanakoStorageKV implements PanakoStorage{
 			throw new RuntimeException("Could not create LMDB folder: " + folder);
 		}
 		
-		env =  org.lmdbjava.Env.create()
-        .setMapSize(1024l * 1024l * 1024l * 1024l)//1 TB max!
-        .setMaxDbs(2)
-        .setMaxReaders(Application.availableProcessors())
-        .open(new File(folder));
+		env = KeyValueEnvironment.open(folder, 2);
 		
 		final String fingerprintName = "panako_fingerprints";
 		fingerprints = env.openDbi(fingerprintName, DbiFlags.MDB_CREATE, DbiFlags.MDB_INTEGERKEY, DbiFlags.MDB_DUPSORT, DbiFlags.MDB_DUPFIXED);
@@ -125,29 +123,21 @@ public class PanakoStorageKV implements PanakoStorage{
 		final String resourceName = "panako_resource_map";		
 		resourceMap = env.openDbi(resourceName,DbiFlags.MDB_CREATE, DbiFlags.MDB_INTEGERKEY);
 		
-		storeQueue = new HashMap<Long,List<long[]>>();
-		deleteQueue = new HashMap<Long,List<long[]>>();
-		queryQueue = new HashMap<Long,List<Long>>();
+		storeQueue = ThreadLocal.withInitial(FingerprintBatch::new);
+		deleteQueue = ThreadLocal.withInitial(FingerprintBatch::new);
+		queryQueue = ThreadLocal.withInitial(ArrayList::new);
 	}
 
 	/**
-	 * Closes the database environment.
+	 * Closes the database environment. With a deferred LMDB_SYNC the data is synced first.
 	 */
 	public void close() {
 		env.close();
 	}
 	
 	public void storeMetadata(long resourceID,String resourcePath,float duration, int fingerprints) {
-		final ByteBuffer key = ByteBuffer.allocateDirect(8);
-		byte[] resourcePathBytes = resourcePath.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-		final ByteBuffer val = ByteBuffer.allocateDirect(resourcePathBytes.length + 16); 
-		key.putLong(resourceID).flip();
-		
-		val.putFloat(duration);
-		val.putInt(fingerprints);
-	    val.put(resourcePathBytes).flip();
-	    
-	    resourceMap.put(key, val);
+		final KeyValueBuffers buffers = KeyValueBuffers.get();
+		env.write(txn -> resourceMap.put(txn, buffers.resourceKey(resourceID), buffers.metadataValue(duration, fingerprints, resourcePath)));
 	}
 	
 
@@ -155,19 +145,11 @@ public class PanakoStorageKV implements PanakoStorage{
 		
 		PanakoResourceMetadata metadata = null;
 	    
-		try (Txn<ByteBuffer> txn = env.txnRead()) {
-			final ByteBuffer key = ByteBuffer.allocateDirect(8);
-			key.putLong(resourceID).flip();
-			
-		    final ByteBuffer found = resourceMap.get(txn, key);
+		try (KeyValueEnvironment.Shared shared = env.shared(); Txn<ByteBuffer> txn = env.txnRead()) {
+		    final ByteBuffer found = resourceMap.get(txn, KeyValueBuffers.get().resourceKey(resourceID));
 		    
 		    if(found != null) {
-		    	metadata = new PanakoResourceMetadata();
-		    	final ByteBuffer fetchedVal = txn.val();
-		    	metadata.duration = fetchedVal.getFloat();
-		    	metadata.numFingerprints = fetchedVal.getInt();
-		    	metadata.path = StandardCharsets.UTF_8.decode(fetchedVal).toString();
-		    	metadata.identifier =(int) resourceID;
+		    	metadata = decodeMetadata(resourceID, found);
 		    }
 		    txn.close();
 		    
@@ -177,51 +159,65 @@ public class PanakoStorageKV implements PanakoStorage{
 		
 		return metadata;    
 	}
+
+	/**
+	 * Fetches the meta-data of all identifiers in a single read transaction.
+	 */
+	@Override
+	public Map<Long,PanakoResourceMetadata> getMetadata(Collection<Long> identifiers) {
+		Map<Long,PanakoResourceMetadata> metadata = new HashMap<>();
+		if(identifiers.isEmpty())
+			return metadata;
+		
+		try (KeyValueEnvironment.Shared shared = env.shared(); Txn<ByteBuffer> txn = env.txnRead()) {
+			final KeyValueBuffers buffers = KeyValueBuffers.get();
+			for(long resourceID : identifiers) {
+				final ByteBuffer found = resourceMap.get(txn, buffers.resourceKey(resourceID));
+				if(found != null)
+					metadata.put(resourceID, decodeMetadata(resourceID, found));
+			}
+			txn.close();
+		}catch(Exception e) {
+			e.printStackTrace();
+		}
+		return metadata;
+	}
+	
+	private static PanakoResourceMetadata decodeMetadata(long resourceID, ByteBuffer value) {
+		PanakoResourceMetadata metadata = new PanakoResourceMetadata();
+		metadata.duration = KeyValueBuffers.duration(value);
+		metadata.numFingerprints = KeyValueBuffers.numberOfFingerprints(value);
+		metadata.path = KeyValueBuffers.path(value);
+		metadata.identifier =(int) resourceID;
+		return metadata;
+	}
 	
 
 	public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1,int f1) {
-		long[] data = {fingerprintHash,resourceIdentifier,t1,f1};
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			storeQueue.put(threadID, new ArrayList<long[]>());
-		storeQueue.get(threadID).add(data);
+		storeQueue.get().add(fingerprintHash,resourceIdentifier,t1,f1);
 	}
 	
 
 	public void processStoreQueue() {
-		if (storeQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			return;
-		
-		List<long[]> queue = storeQueue.get(threadID);
+		FingerprintBatch queue = storeQueue.get();
 		
 		if (queue.isEmpty())
 			return;
 		
-		try (Txn<ByteBuffer> txn = env.txnWrite()) {
-			
-			final ByteBuffer key = ByteBuffer.allocateDirect(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-		    final ByteBuffer val = ByteBuffer.allocateDirect(3*4);
-		    
-		      // A cursor always belongs to a particular Dbi.
-		      final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
-		      
-		      for(long[] data : queue) {
-		    	  key.putLong(data[0]).flip();
-		    	  val.putInt((int) data[1]).putInt((int) data[2]).putInt((int) data[3]).flip();
-		    	  
-		    	  c.put(key, val);
-
-		    	  key.clear();
-		    	  val.clear();
-		      }  
-		            
-		      c.close();
-		      txn.commit();
-		      queue.clear();
+		try {
+			env.write(txn -> {
+				final KeyValueBuffers buffers = KeyValueBuffers.get();
+			    
+			      // A cursor always belongs to a particular Dbi.
+			      final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
+			      
+			      for(int i = 0 ; i < queue.size() ; i++) {
+			    	  c.put(buffers.hashKey(queue.hash(i)), buffers.fingerprintValue(queue.resourceIdentifier(i), queue.t1(i), queue.f1(i)));
+			      }  
+			            
+			      c.close();
+			});
+			queue.clear();
 		    }catch (Exception e) {
 		    	e.printStackTrace();
 		    }
@@ -229,48 +225,34 @@ public class PanakoStorageKV implements PanakoStorage{
 
 	@Override
 	public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1,int f1) {
-		long[] data = {fingerprintHash,resourceIdentifier,t1,f1};
-		long threadID = Thread.currentThread().getId();
-		if(!deleteQueue.containsKey(threadID))
-			deleteQueue.put(threadID, new ArrayList<long[]>());
-		deleteQueue.get(threadID).add(data);
+		deleteQueue.get().add(fingerprintHash,resourceIdentifier,t1,f1);
 	}
 
 	@Override
 	public void processDeleteQueue() {
-		if (storeQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			return;
-		
-		List<long[]> queue = storeQueue.get(threadID);
+		FingerprintBatch queue = deleteQueue.get();
 		
 		if (queue.isEmpty())
 			return;
 		
-		try (Txn<ByteBuffer> txn = env.txnWrite()) {
-			
-			final ByteBuffer key = ByteBuffer.allocateDirect(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-		    final ByteBuffer val = ByteBuffer.allocateDirect(3*4);
-		    
-		      // A cursor always belongs to a particular Dbi.
-		      final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
-		      
-		      for(long[] data : queue) {
-		    	  key.putLong(data[0]).flip();
-		    	  val.putInt((int) data[1]).putInt((int) data[2]).putInt((int) data[3]).flip();
-		    	  if(c.get(key,val,SeekOp.MDB_GET_BOTH)) {
-		    		  c.delete();
-		    	  }
-		    	  key.clear();
-		    	  val.clear();
-		      }  
-		      
-		      c.close();
-		      txn.commit();
-		      queue.clear();
+		try {
+			env.write(txn -> {
+				final KeyValueBuffers buffers = KeyValueBuffers.get();
+			    
+			      // A cursor always belongs to a particular Dbi.
+			      final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
+			      
+			      for(int i = 0 ; i < queue.size() ; i++) {
+			    	  final ByteBuffer key = buffers.hashKey(queue.hash(i));
+			    	  final ByteBuffer val = buffers.fingerprintValue(queue.resourceIdentifier(i), queue.t1(i), queue.f1(i));
+			    	  if(c.get(key,val,SeekOp.MDB_GET_BOTH)) {
+			    		  c.delete();
+			    	  }
+			      }  
+			      
+			      c.close();
+			});
+			queue.clear();
 		    }catch (Exception e) {
 		    	e.printStackTrace();
 		    }
@@ -278,10 +260,7 @@ public class PanakoStorageKV implements PanakoStorage{
 
 	@Override
 	public void addToQueryQueue(long queryHash) {
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			queryQueue.put(threadID, new ArrayList<Long>());
-		queryQueue.get(threadID).add(queryHash);
+		queryQueue.get().add(queryHash);
 	}
 
 	@Override
@@ -292,36 +271,35 @@ public class PanakoStorageKV implements PanakoStorage{
 	@Override
 	public void processQueryQueue(Map<Long,List<PanakoHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
 		
-		if (queryQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			return;
-		
-		List<Long> queue = queryQueue.get(threadID);
+		List<Long> queue = queryQueue.get();
 		
 		if (queue.isEmpty())
 			return;
 		
-		try (Txn<ByteBuffer> txn = env.txnRead()) {
+		try (KeyValueEnvironment.Shared shared = env.shared(); Txn<ByteBuffer> txn = env.txnRead()) {
 			  // A cursor always belongs to a particular Dbi.
 		      final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
 		      
-		      final ByteBuffer keyBuffer = ByteBuffer.allocateDirect(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+		      final KeyValueBuffers buffers = KeyValueBuffers.get();
 		      
-		      for(long originalKey : queue) {
+		      //probe in key order: neighbouring probes visit the same pages of the B-tree
+		      final int queueSize = queue.size();
+		      final long[] sortedQueue = buffers.longs(queueSize);
+		      for(int i = 0 ; i < queueSize ; i++)
+		    	  sortedQueue[i] = queue.get(i);
+		      Arrays.sort(sortedQueue, 0, queueSize);
+
+		      for(int q = 0 ; q < queueSize ; q++) {
+		    	  long originalKey = sortedQueue[q];
 		    	  
 		    	  long startKey = originalKey - range;
 		    	  long stopKey = originalKey + range;
-		    	  
-		    	  keyBuffer.putLong(startKey).flip();
 			      
-			      if(c.get(keyBuffer, GetOp.MDB_SET_RANGE)) {
-			    	  long fingerprintHash =  c.key().order(java.nio.ByteOrder.LITTLE_ENDIAN).getLong();
-		    		  long resourceID = c.val().getInt();
-				      long t = c.val().getInt();
-				      long f = c.val().getInt();
+			      if(c.get(buffers.hashKey(startKey), GetOp.MDB_SET_RANGE)) {
+			    	  long fingerprintHash =  KeyValueBuffers.hash(c.key());
+		    		  long resourceID = KeyValueBuffers.intAt(c.val(), 0);
+				      long t = KeyValueBuffers.intAt(c.val(), 1);
+				      long f = KeyValueBuffers.intAt(c.val(), 2);
 				      
 				      //System.out.printf("Direct match: %d id %d t1 %d f1 %d\n",fingerprintHash , resourceID,t, f);
 				      
@@ -334,10 +312,10 @@ public class PanakoStorageKV implements PanakoStorage{
 				   
 					      while(true) {
 					    	  while(c.seek(SeekOp.MDB_NEXT_DUP)) {
-					    		  fingerprintHash =  c.key().order(java.nio.ByteOrder.LITTLE_ENDIAN).getLong();
-					    		  resourceID = c.val().getInt();
-							      t = c.val().getInt();
-							      f = c.val().getInt();
+					    		  fingerprintHash =  KeyValueBuffers.hash(c.key());
+					    		  resourceID = KeyValueBuffers.intAt(c.val(), 0);
+							      t = KeyValueBuffers.intAt(c.val(), 1);
+							      f = KeyValueBuffers.intAt(c.val(), 2);
 							      //System.out.printf("Dup Hash: %d id %d t1 %d\n",fingerprintHash , resourceID,t);
 							      
 							      if(!resourcesToAvoid.contains((int) resourceID)) {
@@ -348,10 +326,10 @@ public class PanakoStorageKV implements PanakoStorage{
 						      }
 						      
 						      if(c.seek(SeekOp.MDB_NEXT)) {
-						    	  fingerprintHash =  c.key().order(java.nio.ByteOrder.LITTLE_ENDIAN).getLong();
-						    	  resourceID = c.val().getInt();
-							      t = c.val().getInt();
-							      f = c.val().getInt();
+						    	  fingerprintHash =  KeyValueBuffers.hash(c.key());
+						    	  resourceID = KeyValueBuffers.intAt(c.val(), 0);
+							      t = KeyValueBuffers.intAt(c.val(), 1);
+							      f = KeyValueBuffers.intAt(c.val(), 2);
 							      if(fingerprintHash > stopKey)
 							    	  break;
 							      
@@ -382,7 +360,7 @@ public class PanakoStorageKV implements PanakoStorage{
 	public void printStatistics(boolean detailedStats){
 		long entries = 0;
 		final Stat stats;
-	    try (Txn<ByteBuffer> txn = env.txnRead()) {
+	    try (KeyValueEnvironment.Shared shared = env.shared(); Txn<ByteBuffer> txn = env.txnRead()) {
 	      stats = fingerprints.stat(txn);
 	      entries = stats.entries;
 	      
@@ -403,13 +381,10 @@ public class PanakoStorageKV implements PanakoStorage{
 	      txn.close();     
 	    }
 	    
-	    try (Txn<ByteBuffer> txn = env.txnRead()) {
+	    try (KeyValueEnvironment.Shared shared = env.shared(); Txn<ByteBuffer> txn = env.txnRead()) {
 			  // A cursor always belongs to a particular Dbi.
 		      final Cursor<ByteBuffer> c = resourceMap.openCursor(txn);
 		      
-		      final ByteBuffer keyBuffer = ByteBuffer.allocateDirect(8);
-		      keyBuffer.putLong(0l).flip();
-		      
 		      double totalDuration = 0;
 		      long totalPrints = 0;
 		      long totalResources = 0;
@@ -422,10 +397,10 @@ public class PanakoStorageKV implements PanakoStorage{
 		      while(c.seek(SeekOp.MDB_NEXT)) {
 		    	  
 		    	 //long resourceIdentifier =  c.key().getLong();
-			     float duration = c.val().getFloat();
-			     int numFingerprints =  c.val().getInt();
+			     float duration = KeyValueBuffers.duration(c.val());
+			     int numFingerprints =  KeyValueBuffers.numberOfFingerprints(c.val());
 			     float printsPerSecond =  (float) numFingerprints / duration;
-			     String path = StandardCharsets.UTF_8.decode(c.val()).toString();
+			     String path = KeyValueBuffers.path(c.val());
 			     
 			     if(printsPerSecond > maxPrintsPerSecond) {
 			    	 maxPrintsPerSecond = printsPerSecond;
@@ -468,19 +443,17 @@ public class PanakoStorageKV implements PanakoStorage{
 
 	@Override
 	public void deleteMetadata(long resourceID) {	
-		try (Txn<ByteBuffer> txn = env.txnWrite()) {
-			
-			final ByteBuffer key = ByteBuffer.allocateDirect(8);
-			key.putLong(resourceID).flip();
-			
-			final ByteBuffer found = resourceMap.get(txn, key);
-			if(found !=null) {
-				resourceMap.delete(txn, key);
-			}else {
-				//not found, not deleted
-			}
-			
-		    txn.commit();
+		try {
+			env.write(txn -> {
+				final ByteBuffer key = KeyValueBuffers.get().resourceKey(resourceID);
+				
+				final ByteBuffer found = resourceMap.get(txn, key);
+				if(found !=null) {
+					resourceMap.delete(txn, key);
+				}else {
+					//not found, not deleted
+				}
+			});
 		 
 	    }catch (Exception e) {
 	    	e.printStackTrace();
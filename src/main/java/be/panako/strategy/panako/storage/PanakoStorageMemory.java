@@ -77,7 +77,7 @@ public class PanakoStorageMemory implements PanakoStorage {
 	private final TreeMap<Long, List<int[]>> fingerprints;
 	private final HashMap<Long, PanakoResourceMetadata> resourceMap;
 	
-	final Map<Long,List<Long>> queryQueue;
+	final ThreadLocal<List<Long>> queryQueue;
 
 	/**
 	 * Initializes a new memory storage instance.
@@ -85,7 +85,7 @@ public class PanakoStorageMemory implements PanakoStorage {
 	public PanakoStorageMemory() {
 		fingerprints = new TreeMap<>();
 		resourceMap = new HashMap<>();
-		queryQueue = new HashMap<Long,List<Long>>();
+		queryQueue = ThreadLocal.withInitial(ArrayList::new);
 	}
 	
 	@Override
@@ -131,10 +131,7 @@ public class PanakoStorageMemory implements PanakoStorage {
 	}
 	
 	public void addToQueryQueue(long queryHash) {
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			queryQueue.put(threadID, new ArrayList<Long>());
-		queryQueue.get(threadID).add(queryHash);
+		queryQueue.get().add(queryHash);
 	}
 
 	public void processQueryQueue(Map<Long,List<PanakoHit>> matchAccumulator,int range) {
@@ -142,14 +139,7 @@ public class PanakoStorageMemory implements PanakoStorage {
 	}
 	
 	public void processQueryQueue(Map<Long,List<PanakoHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
-		if (queryQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			return;
-		
-		List<Long> queue = queryQueue.get(threadID);
+		List<Long> queue = queryQueue.get();
 		
 		if (queue.isEmpty())
 			return;
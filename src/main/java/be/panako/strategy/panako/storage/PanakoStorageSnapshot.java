@@ -0,0 +1,744 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.panako.storage;
+
+import be.panako.strategy.FingerprintBatch;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Stores fingerprints in memory in sorted, parallel primitive arrays.
+ *
+ * Each entry takes 20 bytes: a hash, a resource identifier, t1 and f1. Stored fingerprints
+ * are sorted in bulk into runs, runs of a similar size are merged so only a logarithmic number of runs
+ * needs to be probed. A range probe is a binary search followed by a sequential scan.
+ *
+ * Deleted entries are not removed from the runs right away: they are kept as tombstones, a sorted
+ * run which queries check for each hit. The runs are compacted, without the deleted entries, when
+ * the snapshot is written or once more than a quarter of the entries is deleted.
+ *
+ * The index is persisted as a single snapshot file with the columns in little endian byte order.
+ * At startup the snapshot is memory mapped and queried in place, which makes opening the index
+ * nearly instant, regardless of its size. The snapshot is written with {@link #writeSnapshot()}, or
+ * at shutdown when the index has changed. Each column is mapped as a single buffer, which limits a
+ * snapshot to {@link #MAX_FINGERPRINTS} fingerprints: 2GB of hashes.
+ */
+public class PanakoStorageSnapshot implements PanakoStorage {
+
+	private final static Logger LOG = Logger.getLogger(PanakoStorageSnapshot.class.getName());
+
+	private static final int MAGIC = 0x504E4B53;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+
+	/**
+	 * The maximum number of fingerprints in a snapshot: the hash column is mapped as a single buffer of at most 2GB.
+	 */
+	public static final int MAX_FINGERPRINTS = Integer.MAX_VALUE / Long.BYTES;
+
+	/**
+	 * The single instance of the storage.
+	 */
+	private static PanakoStorageSnapshot instance;
+
+	/**
+	 * A mutex for synchronization purposes
+	 */
+	private static final Object mutex = new Object();
+
+	/**
+	 * Uses a singleton pattern
+	 * @return Returns or creates a storage instance. This should be a thread
+	 *         safe operation.
+	 */
+	public synchronized static PanakoStorageSnapshot getInstance() {
+		if (instance == null) {
+			synchronized (mutex) {
+				if (instance == null) {
+					instance = new PanakoStorageSnapshot(Config.get(Key.PANAKO_SNAPSHOT_FILE));
+					final PanakoStorageSnapshot storage = instance;
+					Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+						if(storage.isDirty())
+							storage.writeSnapshot();
+					}));
+				}
+			}
+		}
+		return instance;
+	}
+
+	private final String snapshotPath;
+
+	/**
+	 * The sorted runs and tombstones, replaced as a whole on each change so queries never need a lock.
+	 */
+	private volatile State state;
+
+	private final Map<Long, PanakoResourceMetadata> resourceMap;
+	private final ThreadLocal<FingerprintBatch> storeQueue;
+	private final ThreadLocal<FingerprintBatch> deleteQueue;
+	private final ThreadLocal<List<Long>> queryQueue;
+
+	private volatile boolean dirty;
+
+	/**
+	 * Opens a snapshot storage. If the snapshot file exists it is memory mapped.
+	 * @param snapshotPath The path of the snapshot file.
+	 */
+	public PanakoStorageSnapshot(String snapshotPath) {
+		this.snapshotPath = FileUtils.expandHomeDir(snapshotPath);
+		resourceMap = new ConcurrentHashMap<>();
+		storeQueue = ThreadLocal.withInitial(FingerprintBatch::new);
+		deleteQueue = ThreadLocal.withInitial(FingerprintBatch::new);
+		queryQueue = ThreadLocal.withInitial(ArrayList::new);
+		state = State.EMPTY;
+		dirty = false;
+
+		if(new File(this.snapshotPath).exists()) {
+			Run mapped = map(this.snapshotPath, resourceMap);
+			state = State.of(mapped);
+			LOG.info(String.format("Mapped %d fingerprints and %d resources from %s", mapped.size, resourceMap.size(), this.snapshotPath));
+		}
+	}
+
+	@Override
+	public void storeMetadata(long resourceID, String resourcePath, float duration, int fingerprints) {
+		PanakoResourceMetadata r = new PanakoResourceMetadata();
+		r.duration = duration;
+		r.numFingerprints = fingerprints;
+		r.path = resourcePath;
+		r.identifier = (int) resourceID;
+		resourceMap.put(resourceID, r);
+		dirty = true;
+	}
+
+	@Override
+	public PanakoResourceMetadata getMetadata(long identifier) {
+		return resourceMap.get(identifier);
+	}
+
+	@Override
+	public void deleteMetadata(long resourceID) {
+		if(resourceMap.remove(resourceID) != null)
+			dirty = true;
+	}
+
+	@Override
+	public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1, int f1) {
+		storeQueue.get().add(fingerprintHash, resourceIdentifier, t1, f1);
+	}
+
+	@Override
+	public void processStoreQueue() {
+		FingerprintBatch batch = storeQueue.get();
+		if(batch.isEmpty())
+			return;
+		Run run = Run.sorted(batch);
+		batch.clear();
+
+		synchronized (this) {
+			State current = state;
+			List<Run> newRuns = new ArrayList<>();
+			Run tombstones = current.tombstones;
+			long deletedEntries = current.deletedEntries;
+			if(tombstones.size > 0 && run.containsAny(tombstones)) {
+				//deleted entries are stored again: they should not stay hidden
+				Run compacted = Run.compact(current.runs, tombstones);
+				if(compacted.size > 0)
+					newRuns.add(compacted);
+				tombstones = Run.EMPTY;
+				deletedEntries = 0;
+			}else {
+				newRuns.addAll(current.runs);
+			}
+			newRuns.add(run);
+			//merge runs of a similar size, the runs list stays ordered from large to small
+			while(newRuns.size() > 1) {
+				Run last = newRuns.get(newRuns.size() - 1);
+				Run beforeLast = newRuns.get(newRuns.size() - 2);
+				if((long) last.size * 2 < beforeLast.size)
+					break;
+				newRuns.remove(newRuns.size() - 1);
+				newRuns.set(newRuns.size() - 1, Run.merge(beforeLast, last));
+			}
+			state = new State(Collections.unmodifiableList(newRuns), tombstones, deletedEntries);
+			dirty = true;
+		}
+	}
+
+	@Override
+	public void addToQueryQueue(long queryHash) {
+		queryQueue.get().add(queryHash);
+	}
+
+	@Override
+	public void processQueryQueue(Map<Long, List<PanakoHit>> matchAccumulator, int range) {
+		processQueryQueue(matchAccumulator, range, new HashSet<Integer>());
+	}
+
+	@Override
+	public void processQueryQueue(Map<Long, List<PanakoHit>> matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
+		List<Long> queue = queryQueue.get();
+		if (queue.isEmpty())
+			return;
+
+		//sorted probes visit the (mapped) columns in order
+		Collections.sort(queue);
+		State current = state;
+		Run tombstones = current.tombstones;
+		for (long originalKey : queue) {
+			long startKey = originalKey - range;
+			long stopKey = originalKey + range;
+			for(Run run : current.runs) {
+				for(int i = run.lowerBound(startKey); i < run.size ; i++) {
+					long fingerprintHash = run.hashes.get(i);
+					if(fingerprintHash > stopKey)
+						break;
+					int resourceID = run.identifiers.get(i);
+					if(resourcesToAvoid.contains(resourceID))
+						continue;
+					int t1 = run.t1s.get(i);
+					if(tombstones.size > 0 && tombstones.contains(fingerprintHash, resourceID, t1))
+						continue;
+					matchAccumulator.computeIfAbsent(originalKey, k -> new ArrayList<>())
+							.add(new PanakoHit(originalKey, fingerprintHash, t1, resourceID, run.f1s.get(i)));
+				}
+			}
+		}
+		queue.clear();
+	}
+
+	@Override
+	public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1, int f1) {
+		deleteQueue.get().add(fingerprintHash, resourceIdentifier, t1, f1);
+	}
+
+	@Override
+	public void processDeleteQueue() {
+		FingerprintBatch batch = deleteQueue.get();
+		if(batch.isEmpty())
+			return;
+		Run deleted = Run.sorted(batch);
+		batch.clear();
+
+		synchronized (this) {
+			State current = state;
+			//only stored entries which are not deleted yet become tombstones
+			FingerprintBatch newTombstones = new FingerprintBatch();
+			long hiddenEntries = 0;
+			for(int i = 0 ; i < deleted.size ; i++) {
+				if(i > 0 && deleted.compare(i, deleted, i - 1) == 0)
+					continue;
+				long hash = deleted.hashes.get(i);
+				int identifier = deleted.identifiers.get(i);
+				int t1 = deleted.t1s.get(i);
+				if(current.tombstones.contains(hash, identifier, t1))
+					continue;
+				int stored = 0;
+				for(Run run : current.runs)
+					stored += run.count(hash, identifier, t1);
+				if(stored == 0)
+					continue;
+				newTombstones.add(hash, identifier, t1, deleted.f1s.get(i));
+				hiddenEntries += stored;
+			}
+			if(newTombstones.isEmpty())
+				return;
+			Run tombstones = Run.merge(current.tombstones, Run.sorted(newTombstones));
+			State deletedState = new State(current.runs, tombstones, current.deletedEntries + hiddenEntries);
+			//coalesce the deletes: compact only once many entries are deleted
+			if(deletedState.deletedEntries * 4 > deletedState.entries())
+				deletedState = State.of(Run.compact(current.runs, tombstones));
+			state = deletedState;
+			dirty = true;
+		}
+	}
+
+	@Override
+	public void printStatistics(boolean detailedStats) {
+		State current = state;
+		List<Run> currentRuns = current.runs;
+		long entries = 0;
+		long mappedEntries = 0;
+		for(Run run : currentRuns) {
+			entries += run.size;
+			if(run.mapped)
+				mappedEntries += run.size;
+		}
+		if(detailedStats) {
+			System.out.printf("[Snapshot INDEX statistics]\n");
+			System.out.printf("=========================\n");
+			System.out.printf("> Snapshot file:                %s\n", snapshotPath);
+			System.out.printf("> Number of sorted runs:        %d\n", currentRuns.size());
+			System.out.printf("> Number of fingerprints:       %d\n", entries - current.deletedEntries);
+			System.out.printf("> Memory mapped fingerprints:   %d\n", mappedEntries);
+			System.out.printf("> Deleted, not yet compacted:   %d\n", current.deletedEntries);
+			System.out.printf("> Unsaved changes:              %s\n", dirty);
+			System.out.printf("=========================\n\n");
+		}
+
+		double totalDuration = 0;
+		long totalPrints = 0;
+		for(PanakoResourceMetadata r : resourceMap.values()) {
+			totalDuration += r.duration;
+			totalPrints += r.numFingerprints;
+		}
+		System.out.printf("[Store statistics]\n");
+		System.out.printf("=========================\n");
+		System.out.printf("> %d audio files \n", resourceMap.size());
+		System.out.printf("> %.3f seconds of audio\n", totalDuration);
+		System.out.printf("> %d fingerprint hashes \n", totalPrints);
+		System.out.printf("=========================\n\n");
+	}
+
+	/**
+	 * @return True if the index changed since the snapshot was mapped or written.
+	 */
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * @return The total number of stored fingerprints.
+	 */
+	public long size() {
+		State current = state;
+		return current.entries() - current.deletedEntries;
+	}
+
+	/**
+	 * Merges all runs, without the deleted entries, and writes them, together with the metadata, to the
+	 * snapshot file. The file is first written next to the snapshot and then atomically moved in place.
+	 * Afterwards the in memory runs are replaced by a mapping of the new snapshot.
+	 */
+	public synchronized void writeSnapshot() {
+		State current = state;
+		Run all = Run.compact(current.runs, current.tombstones.size > 0 ? current.tombstones : null);
+		if(all.size > MAX_FINGERPRINTS)
+			throw new RuntimeException("Too many fingerprints for a snapshot: " + all.size + ", at most " + MAX_FINGERPRINTS + " are supported");
+		Path target = Paths.get(snapshotPath);
+		Path temporary = Paths.get(snapshotPath + ".tmp");
+		try {
+			if(target.getParent() != null)
+				Files.createDirectories(target.getParent());
+			write(temporary, all, resourceMap);
+			try {
+				Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}catch (IOException e) {
+				Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write snapshot " + snapshotPath, e);
+		}
+		state = State.of(map(snapshotPath, null));
+		dirty = false;
+		LOG.info(String.format("Wrote %d fingerprints and %d resources to %s", all.size, resourceMap.size(), snapshotPath));
+	}
+
+	@Override
+	public synchronized void clear() {
+		state = State.EMPTY;
+		resourceMap.clear();
+		storeQueue.remove();
+		deleteQueue.remove();
+		queryQueue.remove();
+		dirty = false;
+		if(FileUtils.exists(snapshotPath))
+			FileUtils.rm(snapshotPath);
+	}
+
+	private static void write(Path path, Run run, Map<Long, PanakoResourceMetadata> metadata) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			List<PanakoResourceMetadata> resources = new ArrayList<>(metadata.values());
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putLong(run.size);
+			buffer.putInt(resources.size());
+			buffer.putInt(0);
+
+			for(int i = 0 ; i < run.size ; i++) {
+				buffer = flushIfFull(channel, buffer, 8);
+				buffer.putLong(run.hashes.get(i));
+			}
+			IntBuffer[] columns = {run.identifiers, run.t1s, run.f1s};
+			for(IntBuffer column : columns) {
+				for(int i = 0 ; i < run.size ; i++) {
+					buffer = flushIfFull(channel, buffer, 4);
+					buffer.putInt(column.get(i));
+				}
+			}
+			for(PanakoResourceMetadata r : resources) {
+				byte[] pathBytes = r.path.getBytes(StandardCharsets.UTF_8);
+				buffer = flushIfFull(channel, buffer, 20 + pathBytes.length);
+				buffer.putLong(r.identifier);
+				buffer.putFloat((float) r.duration);
+				buffer.putInt(r.numFingerprints);
+				buffer.putInt(pathBytes.length);
+				buffer.put(pathBytes);
+			}
+			buffer.flip();
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(true);
+		}
+	}
+
+	private static ByteBuffer flushIfFull(FileChannel channel, ByteBuffer buffer, int needed) throws IOException {
+		if(buffer.remaining() >= needed)
+			return buffer;
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+		if(buffer.capacity() < needed)
+			buffer = ByteBuffer.allocate(needed).order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	/**
+	 * Maps the columns of a snapshot file and optionally reads the metadata.
+	 */
+	private static Run map(String path, Map<Long, PanakoResourceMetadata> metadata) {
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while(header.hasRemaining() && channel.read(header) >= 0);
+			header.flip();
+			if(header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+				throw new RuntimeException("Not a Panako snapshot: " + path);
+			int version = header.getInt();
+			if(version != VERSION)
+				throw new RuntimeException("Unsupported Panako snapshot version " + version + ": " + path);
+			long count = header.getLong();
+			int metadataCount = header.getInt();
+			if(count > MAX_FINGERPRINTS)
+				throw new RuntimeException("Snapshot too large to map: " + count + " fingerprints in " + path + ", at most " + MAX_FINGERPRINTS + " are supported");
+			int size = (int) count;
+
+			long offset = HEADER_SIZE;
+			LongBuffer hashes = mapColumn(channel, offset, size * 8L).asLongBuffer();
+			offset += size * 8L;
+			IntBuffer identifiers = mapColumn(channel, offset, size * 4L).asIntBuffer();
+			offset += size * 4L;
+			IntBuffer t1s = mapColumn(channel, offset, size * 4L).asIntBuffer();
+			offset += size * 4L;
+			IntBuffer f1s = mapColumn(channel, offset, size * 4L).asIntBuffer();
+			offset += size * 4L;
+
+			if(metadata != null && metadataCount > 0) {
+				ByteBuffer buffer = mapColumn(channel, offset, channel.size() - offset);
+				for(int i = 0 ; i < metadataCount ; i++) {
+					PanakoResourceMetadata r = new PanakoResourceMetadata();
+					r.identifier = buffer.getLong();
+					r.duration = buffer.getFloat();
+					r.numFingerprints = buffer.getInt();
+					byte[] pathBytes = new byte[buffer.getInt()];
+					buffer.get(pathBytes);
+					r.path = new String(pathBytes, StandardCharsets.UTF_8);
+					metadata.put(r.identifier, r);
+				}
+			}
+			return new Run(hashes, identifiers, t1s, f1s, size, true);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not map snapshot " + path, e);
+		}
+	}
+
+	private static ByteBuffer mapColumn(FileChannel channel, long offset, long length) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		return buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * The runs, ordered from large to small, with the tombstones of deleted entries which are still present in the runs.
+	 */
+	private static class State {
+		static final State EMPTY = new State(Collections.emptyList(), Run.EMPTY, 0);
+
+		final List<Run> runs;
+		final Run tombstones;
+		/**
+		 * The number of entries in the runs hidden by the tombstones.
+		 */
+		final long deletedEntries;
+
+		State(List<Run> runs, Run tombstones, long deletedEntries) {
+			this.runs = runs;
+			this.tombstones = tombstones;
+			this.deletedEntries = deletedEntries;
+		}
+
+		static State of(Run run) {
+			return run.size == 0 ? EMPTY : new State(Collections.singletonList(run), Run.EMPTY, 0);
+		}
+
+		/**
+		 * @return The number of entries in the runs, including the deleted ones.
+		 */
+		long entries() {
+			long entries = 0;
+			for(Run run : runs)
+				entries += run.size;
+			return entries;
+		}
+	}
+
+	/**
+	 * A run of fingerprints sorted on hash, resource identifier and t1 in parallel columns. The
+	 * columns are either heap arrays or views on a memory mapped snapshot.
+	 */
+	private static class Run {
+		static final Run EMPTY = new Run(new long[0], new int[0], new int[0], new int[0], 0);
+
+		final LongBuffer hashes;
+		final IntBuffer identifiers;
+		final IntBuffer t1s;
+		final IntBuffer f1s;
+		final int size;
+		final boolean mapped;
+
+		Run(LongBuffer hashes, IntBuffer identifiers, IntBuffer t1s, IntBuffer f1s, int size, boolean mapped) {
+			this.hashes = hashes;
+			this.identifiers = identifiers;
+			this.t1s = t1s;
+			this.f1s = f1s;
+			this.size = size;
+			this.mapped = mapped;
+		}
+
+		Run(long[] hashes, int[] identifiers, int[] t1s, int[] f1s, int size) {
+			this(LongBuffer.wrap(hashes), IntBuffer.wrap(identifiers), IntBuffer.wrap(t1s), IntBuffer.wrap(f1s), size, false);
+		}
+
+		/**
+		 * @return The index of the first entry with a hash equal to or larger than the key.
+		 */
+		int lowerBound(long key) {
+			int low = 0;
+			int high = size;
+			while(low < high) {
+				int mid = (low + high) >>> 1;
+				if(hashes.get(mid) < key)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+
+		int compare(int i, Run other, int j) {
+			int c = Long.compare(hashes.get(i), other.hashes.get(j));
+			if(c == 0)
+				c = Integer.compare(identifiers.get(i), other.identifiers.get(j));
+			if(c == 0)
+				c = Integer.compare(t1s.get(i), other.t1s.get(j));
+			return c;
+		}
+
+		boolean contains(long hash, int identifier, int t1) {
+			for(int i = lowerBound(hash); i < size && hashes.get(i) == hash ; i++) {
+				if(identifiers.get(i) == identifier && t1s.get(i) == t1)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return The number of entries with the hash, resource identifier and t1.
+		 */
+		int count(long hash, int identifier, int t1) {
+			int count = 0;
+			for(int i = lowerBound(hash); i < size && hashes.get(i) == hash ; i++) {
+				if(identifiers.get(i) == identifier && t1s.get(i) == t1)
+					count++;
+			}
+			return count;
+		}
+
+		/**
+		 * @return True if one of the entries of this run is present in the other run.
+		 */
+		boolean containsAny(Run other) {
+			for(int i = 0 ; i < size ; i++) {
+				if(other.contains(hashes.get(i), identifiers.get(i), t1s.get(i)))
+					return true;
+			}
+			return false;
+		}
+
+		static Run sorted(FingerprintBatch batch) {
+			int n = batch.size();
+			long[] hashes = new long[n];
+			int[] identifiers = new int[n];
+			int[] t1s = new int[n];
+			int[] f1s = new int[n];
+			for(int i = 0 ; i < n ; i++) {
+				hashes[i] = batch.hash(i);
+				identifiers[i] = batch.resourceIdentifier(i);
+				t1s[i] = batch.t1(i);
+				f1s[i] = batch.f1(i);
+			}
+			Run run = new Run(hashes, identifiers, t1s, f1s, n);
+			sort(hashes, identifiers, t1s, f1s, 0, n - 1);
+			return run;
+		}
+
+		private static boolean less(long[] h, int[] id, int[] t, int a, long pivotHash, int pivotId, int pivotT) {
+			if(h[a] != pivotHash)
+				return h[a] < pivotHash;
+			if(id[a] != pivotId)
+				return id[a] < pivotId;
+			return t[a] < pivotT;
+		}
+
+		private static boolean greater(long[] h, int[] id, int[] t, int a, long pivotHash, int pivotId, int pivotT) {
+			if(h[a] != pivotHash)
+				return h[a] > pivotHash;
+			if(id[a] != pivotId)
+				return id[a] > pivotId;
+			return t[a] > pivotT;
+		}
+
+		private static void sort(long[] h, int[] id, int[] t, int[] f, int low, int high) {
+			while(high - low > 16) {
+				int mid = (low + high) >>> 1;
+				long pivotHash = h[mid];
+				int pivotId = id[mid];
+				int pivotT = t[mid];
+				int i = low;
+				int j = high;
+				while(i <= j) {
+					while(less(h, id, t, i, pivotHash, pivotId, pivotT)) i++;
+					while(greater(h, id, t, j, pivotHash, pivotId, pivotT)) j--;
+					if(i <= j) {
+						swap(h, id, t, f, i, j);
+						i++;
+						j--;
+					}
+				}
+				//recurse into the smaller part to bound the stack depth
+				if(j - low < high - i) {
+					sort(h, id, t, f, low, j);
+					low = i;
+				}else {
+					sort(h, id, t, f, i, high);
+					high = j;
+				}
+			}
+			for(int i = low + 1 ; i <= high ; i++) {
+				for(int j = i ; j > low && greater(h, id, t, j - 1, h[j], id[j], t[j]) ; j--)
+					swap(h, id, t, f, j, j - 1);
+			}
+		}
+
+		private static void swap(long[] h, int[] id, int[] t, int[] f, int a, int b) {
+			long hash = h[a]; h[a] = h[b]; h[b] = hash;
+			int v = id[a]; id[a] = id[b]; id[b] = v;
+			v = t[a]; t[a] = t[b]; t[b] = v;
+			v = f[a]; f[a] = f[b]; f[b] = v;
+		}
+
+		static Run merge(Run a, Run b) {
+			return compact(List.of(a, b), null);
+		}
+
+		/**
+		 * Merges runs into a single heap run, leaving out the deleted entries.
+		 */
+		static Run compact(List<Run> runs, Run deleted) {
+			long total = 0;
+			for(Run run : runs)
+				total += run.size;
+			if(total > Integer.MAX_VALUE - 8)
+				throw new RuntimeException("Too many fingerprints for a single run: " + total);
+			int n = (int) total;
+			long[] hashes = new long[n];
+			int[] identifiers = new int[n];
+			int[] t1s = new int[n];
+			int[] f1s = new int[n];
+
+			int[] positions = new int[runs.size()];
+			int size = 0;
+			while(true) {
+				int smallest = -1;
+				for(int r = 0 ; r < runs.size() ; r++) {
+					if(positions[r] >= runs.get(r).size)
+						continue;
+					if(smallest == -1 || runs.get(r).compare(positions[r], runs.get(smallest), positions[smallest]) < 0)
+						smallest = r;
+				}
+				if(smallest == -1)
+					break;
+				Run run = runs.get(smallest);
+				int i = positions[smallest]++;
+				long hash = run.hashes.get(i);
+				int identifier = run.identifiers.get(i);
+				int t1 = run.t1s.get(i);
+				if(deleted != null && deleted.contains(hash, identifier, t1))
+					continue;
+				hashes[size] = hash;
+				identifiers[size] = identifier;
+				t1s[size] = t1;
+				f1s[size] = run.f1s.get(i);
+				size++;
+			}
+			return new Run(hashes, identifiers, t1s, f1s, size);
+		}
+	}
+}
@@ -0,0 +1,652 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.pch;
+
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Stores all pitch class histograms in a single binary file with fixed size records.
+ * The file is memory mapped so a query scans the histograms without parsing text files.
+ *
+ * The file starts with a header (a magic number, the version, the number of histogram bins
+ * and the record size) followed by the records. Each record contains the identifier, flags,
+ * the duration, the area (the sum of all bins), the features used by the coarse prefilter,
+ * the histogram and the description.
+ *
+ * Histograms stored as separate text files by earlier versions are imported when the index
+ * does not exist yet.
+ *
+ * Several processes can use the index at the same time: e.g. one process stores while another
+ * queries. Writes take an exclusive lock on the file, reads a shared one. With the lock held the
+ * records appended by other processes are read first. Records deleted by other processes are
+ * skipped by a query since the deleted flag is read from the file. A clear truncates the file:
+ * a process which is still scanning its mapping of the file at that moment fails, so clear the
+ * index only when no queries are running.
+ *
+ * The mapping is read through a {@link Scan}. Within this process a mapping is only unmapped
+ * when no scan reads it anymore: a scan which is still running during a clear keeps its mapping
+ * and reads the truncated part of the file as an error instead of crashing the virtual machine.
+ */
+class PitchClassHistogramIndex {
+
+	private final static Logger LOG = Logger.getLogger(PitchClassHistogramIndex.class.getName());
+
+	/**
+	 * The number of bins in a histogram: one bin per cent.
+	 */
+	static final int HISTOGRAM_SIZE = 1200;
+
+	private static final int MAGIC = 0x50434849;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int DESCRIPTION_SIZE = 254;
+
+	private static final int IDENTIFIER_OFFSET = 0;
+	private static final int FLAGS_OFFSET = 4;
+	private static final int DURATION_OFFSET = 8;
+	private static final int AREA_OFFSET = 12;
+	private static final int FEATURES_OFFSET = 16;
+	private static final int HISTOGRAM_OFFSET = FEATURES_OFFSET + PitchClassHistogramMatcher.NUMBER_OF_FEATURES * 4;
+	private static final int DESCRIPTION_OFFSET = HISTOGRAM_OFFSET + HISTOGRAM_SIZE * 4;
+	private static final int RECORD_SIZE = DESCRIPTION_OFFSET + 2 + DESCRIPTION_SIZE;
+
+	private static final int DELETED_FLAG = 1;
+
+	/**
+	 * A mapped buffer can not exceed 2GB so the file is mapped in chunks of whole records.
+	 */
+	private static final int RECORDS_PER_CHUNK = Integer.MAX_VALUE / RECORD_SIZE;
+
+	private static final String INDEX_FILE_NAME = "pch_index.bin";
+
+	private static PitchClassHistogramIndex instance;
+	private static final Object mutex = new Object();
+
+	/**
+	 * @return Returns or creates an index instance.
+	 */
+	static PitchClassHistogramIndex getInstance(){
+		if(instance == null){
+			synchronized (mutex){
+				if(instance == null){
+					instance = new PitchClassHistogramIndex();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private final String directory;
+	private final String indexFileName;
+	private RandomAccessFile file;
+	private FileChannel channel;
+
+	/**
+	 * The number of records in the file, when it was last read.
+	 */
+	private int numberOfRecords;
+
+	/**
+	 * Maps identifiers to record numbers, for records which are not deleted.
+	 */
+	private final Map<Integer,Integer> records;
+
+	private MappedByteBuffer[] chunks;
+	private int mappedRecords;
+
+	/**
+	 * The number of scans which are not closed yet.
+	 */
+	private int openScans;
+
+	/**
+	 * Chunks which are unmapped once no scan reads them anymore.
+	 */
+	private final List<MappedByteBuffer> retiredChunks;
+
+	private PitchClassHistogramIndex(){
+		directory = FileUtils.expandHomeDir(Config.get(Key.PCH_FILES));
+		indexFileName = FileUtils.combine(directory, INDEX_FILE_NAME);
+		records = new HashMap<>();
+		chunks = new MappedByteBuffer[0];
+		mappedRecords = 0;
+		openScans = 0;
+		retiredChunks = new ArrayList<>();
+		open();
+	}
+
+	private void open(){
+		if(!FileUtils.exists(directory))
+			FileUtils.mkdirs(directory);
+		boolean exists = FileUtils.exists(indexFileName);
+		try {
+			file = new RandomAccessFile(indexFileName, "rw");
+			channel = file.getChannel();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not open pitch class histogram index " + indexFileName, e);
+		}
+		FileLock lock = lock(false);
+		try {
+			if(channel.size() < HEADER_SIZE){
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putInt(HISTOGRAM_SIZE).putInt(RECORD_SIZE).flip();
+				channel.write(header, 0);
+			}else{
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				channel.read(header, 0);
+				header.flip();
+				if(header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != HISTOGRAM_SIZE || header.getInt() != RECORD_SIZE)
+					throw new RuntimeException("Unsupported pitch class histogram index: " + indexFileName);
+			}
+			reread();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not open pitch class histogram index " + indexFileName, e);
+		} finally {
+			unlock(lock);
+		}
+		if(!exists)
+			importTextFiles();
+	}
+
+	/**
+	 * Earlier versions stored each histogram in a text file with the description on the first line.
+	 */
+	private void importTextFiles(){
+		List<String> files = FileUtils.glob(directory, "\\d*.txt", false);
+		if(files.isEmpty())
+			return;
+		PitchClassHistogramMatcher matcher = new PitchClassHistogramMatcher(HISTOGRAM_SIZE);
+		float[] features = new float[PitchClassHistogramMatcher.NUMBER_OF_FEATURES];
+		for(String fileName : files){
+			String[] data = FileUtils.readFile(fileName).split("\n");
+			int[] histogram = new int[HISTOGRAM_SIZE];
+			for(int i = 1 ; i < data.length && i <= HISTOGRAM_SIZE ; i++){
+				histogram[i-1] = Integer.parseInt(data[i].trim());
+			}
+			int identifier = Integer.parseInt(FileUtils.basename(fileName));
+			matcher.features(histogram, features);
+			append(identifier, 0, data[0], histogram, features);
+		}
+		LOG.info(String.format("Imported %d pitch class histograms into %s", files.size(), indexFileName));
+	}
+
+	private static long offset(int record){
+		return HEADER_SIZE + (long) record * RECORD_SIZE;
+	}
+
+	/**
+	 * Locks the index file for other processes. Within this process the methods are synchronized
+	 * so the lock is never requested twice.
+	 * @param shared A shared lock for reads, an exclusive lock for writes.
+	 * @return The lock, to be released when done.
+	 */
+	private FileLock lock(boolean shared){
+		try {
+			return channel.lock(0, Long.MAX_VALUE, shared);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not lock pitch class histogram index " + indexFileName, e);
+		}
+	}
+
+	private void unlock(FileLock lock){
+		try {
+			lock.release();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not unlock pitch class histogram index " + indexFileName, e);
+		}
+	}
+
+	/**
+	 * Reads the records appended since the last call, possibly by another process. If the file
+	 * is shorter than before it was cleared and all records are read again. Call with the file locked.
+	 */
+	private void reread() throws IOException{
+		//a partially written record at the end is ignored
+		int recordsInFile = (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+		if(recordsInFile < numberOfRecords){
+			unmap();
+			records.clear();
+			numberOfRecords = 0;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		for(int record = numberOfRecords ; record < recordsInFile ; record++){
+			buffer.clear();
+			channel.read(buffer, offset(record));
+			buffer.flip();
+			int identifier = buffer.getInt();
+			int flags = buffer.getInt();
+			if((flags & DELETED_FLAG) == 0)
+				records.put(identifier, record);
+		}
+		numberOfRecords = recordsInFile;
+	}
+
+	/**
+	 * Checks the flags in the file: another process can have deleted the record.
+	 */
+	private boolean isDeletedInFile(int record) throws IOException{
+		ByteBuffer flags = ByteBuffer.allocate(4);
+		channel.read(flags, offset(record) + FLAGS_OFFSET);
+		flags.flip();
+		return (flags.getInt() & DELETED_FLAG) != 0;
+	}
+
+	/**
+	 * Returns the record of a histogram which is not deleted, with the file locked.
+	 */
+	private Integer storedRecordOf(int identifier) throws IOException{
+		reread();
+		Integer record = records.get(identifier);
+		if(record != null && isDeletedInFile(record)){
+			records.remove(identifier);
+			record = null;
+		}
+		return record;
+	}
+
+	/**
+	 * Unmaps the file before it is truncated. A mapping is otherwise only released when it is
+	 * garbage collected and truncating a mapped file fails on some systems. Unmapping a chunk
+	 * while another thread reads it crashes the virtual machine, so while scans are open the
+	 * chunks are only retired: the last scan to close unmaps them.
+	 */
+	private void unmap(){
+		retiredChunks.addAll(Arrays.asList(chunks));
+		chunks = new MappedByteBuffer[0];
+		mappedRecords = 0;
+		if(openScans == 0)
+			unmapRetiredChunks();
+	}
+
+	private void unmapRetiredChunks(){
+		if(retiredChunks.isEmpty())
+			return;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			for(MappedByteBuffer chunk : retiredChunks)
+				unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe, chunk);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOG.warning("Could not unmap pitch class histogram index, it is unmapped when garbage collected: " + e.getMessage());
+		}
+		retiredChunks.clear();
+	}
+
+	/**
+	 * Adds a histogram to the index. An earlier histogram with the same identifier is replaced.
+	 * @param identifier The identifier of the audio.
+	 * @param duration The duration of the audio in seconds.
+	 * @param description A description of the audio, truncated if needed.
+	 * @param histogram The histogram.
+	 * @param features The features for the prefilter.
+	 */
+	synchronized void append(int identifier, float duration, String description, int[] histogram, float[] features){
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+		int area = 0;
+		for(int value : histogram)
+			area += value;
+		buffer.putInt(IDENTIFIER_OFFSET, identifier);
+		buffer.putInt(FLAGS_OFFSET, 0);
+		buffer.putFloat(DURATION_OFFSET, duration);
+		buffer.putInt(AREA_OFFSET, area);
+		for(int i = 0 ; i < features.length ; i++)
+			buffer.putFloat(FEATURES_OFFSET + i * 4, features[i]);
+		for(int i = 0 ; i < HISTOGRAM_SIZE ; i++)
+			buffer.putInt(HISTOGRAM_OFFSET + i * 4, histogram[i]);
+		byte[] bytes = truncate(description == null ? "" : description);
+		buffer.putShort(DESCRIPTION_OFFSET, (short) bytes.length);
+		buffer.position(DESCRIPTION_OFFSET + 2);
+		buffer.put(bytes);
+		buffer.clear();
+
+		FileLock lock = lock(false);
+		try {
+			Integer record = storedRecordOf(identifier);
+			if(record != null)
+				markDeleted(identifier, record);
+			long position = offset(numberOfRecords);
+			while(buffer.hasRemaining())
+				position += channel.write(buffer, position);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write to pitch class histogram index " + indexFileName, e);
+		} finally {
+			unlock(lock);
+		}
+		records.put(identifier, numberOfRecords);
+		numberOfRecords++;
+	}
+
+	private static byte[] truncate(String description){
+		byte[] bytes = description.getBytes(StandardCharsets.UTF_8);
+		if(bytes.length <= DESCRIPTION_SIZE)
+			return bytes;
+		//do not cut a multi-byte character in half
+		int length = DESCRIPTION_SIZE;
+		while(length > 0 && (bytes[length] & 0xC0) == 0x80)
+			length--;
+		byte[] truncated = new byte[length];
+		System.arraycopy(bytes, 0, truncated, 0, length);
+		return truncated;
+	}
+
+	/**
+	 * Marks the record of a histogram as deleted.
+	 * @param identifier The identifier of the audio.
+	 * @return True if a histogram was deleted.
+	 */
+	synchronized boolean delete(int identifier){
+		FileLock lock = lock(false);
+		try {
+			Integer record = storedRecordOf(identifier);
+			if(record == null)
+				return false;
+			markDeleted(identifier, record);
+			return true;
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write to pitch class histogram index " + indexFileName, e);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	private void markDeleted(int identifier, int record) throws IOException{
+		ByteBuffer flags = ByteBuffer.allocate(4);
+		flags.putInt(DELETED_FLAG).flip();
+		channel.write(flags, offset(record) + FLAGS_OFFSET);
+		records.remove(identifier);
+	}
+
+	/**
+	 * Removes all histograms from the index.
+	 */
+	synchronized void clear(){
+		FileLock lock = lock(false);
+		try {
+			unmap();
+			channel.truncate(HEADER_SIZE);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not clear pitch class histogram index " + indexFileName, e);
+		} finally {
+			unlock(lock);
+		}
+		records.clear();
+		numberOfRecords = 0;
+	}
+
+	/**
+	 * @param identifier The identifier of the audio.
+	 * @return True if a histogram with the identifier is stored.
+	 */
+	synchronized boolean contains(int identifier){
+		return recordOf(identifier) != -1;
+	}
+
+	/**
+	 * @param identifier The identifier of the audio.
+	 * @return The record number of the histogram or -1 if it is not stored.
+	 */
+	synchronized int recordOf(int identifier){
+		FileLock lock = lock(true);
+		try {
+			Integer record = storedRecordOf(identifier);
+			return record == null ? -1 : record;
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read pitch class histogram index " + indexFileName, e);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * @return The number of stored histograms, without the deleted ones. Histograms deleted by
+	 * another process since they were read are still counted.
+	 */
+	synchronized int size(){
+		FileLock lock = lock(true);
+		try {
+			reread();
+			return records.size();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read pitch class histogram index " + indexFileName, e);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * Maps the records appended since the last call, also those appended by another process.
+	 */
+	private void refresh(){
+		FileLock lock = lock(true);
+		try {
+			reread();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read pitch class histogram index " + indexFileName, e);
+		} finally {
+			unlock(lock);
+		}
+		if(mappedRecords == numberOfRecords)
+			return;
+		int numberOfChunks = (numberOfRecords + RECORDS_PER_CHUNK - 1) / RECORDS_PER_CHUNK;
+		MappedByteBuffer[] mapped = new MappedByteBuffer[numberOfChunks];
+		try {
+			for(int chunk = 0 ; chunk < numberOfChunks ; chunk++){
+				int firstRecord = chunk * RECORDS_PER_CHUNK;
+				int recordsInChunk = Math.min(RECORDS_PER_CHUNK, numberOfRecords - firstRecord);
+				//full chunks mapped earlier do not change
+				if(chunk < chunks.length && chunks[chunk].capacity() == recordsInChunk * RECORD_SIZE)
+					mapped[chunk] = chunks[chunk];
+				else
+					mapped[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, offset(firstRecord), (long) recordsInChunk * RECORD_SIZE);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not map pitch class histogram index " + indexFileName, e);
+		}
+		chunks = mapped;
+		mappedRecords = numberOfRecords;
+	}
+
+	/**
+	 * Maps the records appended since the last call, also those appended by another process,
+	 * and opens a scan of all mapped records. The scan can be read by several threads at once
+	 * and must be closed when done.
+	 * @return A scan of the mapped records.
+	 */
+	synchronized Scan scan(){
+		refresh();
+		openScans++;
+		return new Scan(chunks, mappedRecords);
+	}
+
+	private synchronized void endScan(){
+		openScans--;
+		if(openScans == 0)
+			unmapRetiredChunks();
+	}
+
+	/**
+	 * Reads the records mapped when the scan was opened. The mapping stays valid until the scan is
+	 * closed, even when the index is cleared in the meantime.
+	 */
+	final class Scan implements AutoCloseable {
+
+		private final MappedByteBuffer[] chunks;
+		private final int numberOfRecords;
+		private boolean closed;
+
+		private Scan(MappedByteBuffer[] chunks, int numberOfRecords){
+			this.chunks = chunks;
+			this.numberOfRecords = numberOfRecords;
+			this.closed = false;
+		}
+
+		/**
+		 * @return The number of records which can be read, including deleted ones.
+		 */
+		int size(){
+			return numberOfRecords;
+		}
+
+		/**
+		 * @param identifier The identifier of the audio.
+		 * @return The record number of the histogram or -1 if it is not stored or not part of this scan.
+		 */
+		int recordOf(int identifier){
+			int record = PitchClassHistogramIndex.this.recordOf(identifier);
+			return record < numberOfRecords ? record : -1;
+		}
+
+		private ByteBuffer chunkOf(int record){
+			return chunks[record / RECORDS_PER_CHUNK];
+		}
+
+		/**
+		 * @param record A mapped record number.
+		 * @return True if the record is deleted.
+		 */
+		boolean isDeleted(int record){
+			return (chunkOf(record).getInt(position(record) + FLAGS_OFFSET) & DELETED_FLAG) != 0;
+		}
+
+		/**
+		 * @param record A mapped record number.
+		 * @return The identifier of the audio.
+		 */
+		int identifier(int record){
+			return chunkOf(record).getInt(position(record) + IDENTIFIER_OFFSET);
+		}
+
+		/**
+		 * @param record A mapped record number.
+		 * @return The duration of the audio in seconds.
+		 */
+		float duration(int record){
+			return chunkOf(record).getFloat(position(record) + DURATION_OFFSET);
+		}
+
+		/**
+		 * @param record A mapped record number.
+		 * @return The sum of all histogram bins.
+		 */
+		int area(int record){
+			return chunkOf(record).getInt(position(record) + AREA_OFFSET);
+		}
+
+		/**
+		 * @param record A mapped record number.
+		 * @param features The prefilter features are copied in here.
+		 */
+		void features(int record, float[] features){
+			ByteBuffer chunk = chunkOf(record);
+			int position = position(record) + FEATURES_OFFSET;
+			for(int i = 0 ; i < features.length ; i++)
+				features[i] = chunk.getFloat(position + i * 4);
+		}
+
+		/**
+		 * @param record A mapped record number.
+		 * @param histogram The histogram is copied in here.
+		 */
+		void histogram(int record, int[] histogram){
+			ByteBuffer view = chunkOf(record).duplicate();
+			view.position(position(record) + HISTOGRAM_OFFSET);
+			IntBuffer ints = view.asIntBuffer();
+			ints.get(histogram, 0, HISTOGRAM_SIZE);
+		}
+
+		/**
+		 * @param record A mapped record number.
+		 * @return The description of the audio.
+		 */
+		String description(int record){
+			ByteBuffer view = chunkOf(record).duplicate();
+			view.position(position(record) + DESCRIPTION_OFFSET);
+			int length = view.getShort();
+			byte[] bytes = new byte[length];
+			view.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Closes the scan, the records can not be read anymore.
+		 */
+		@Override
+		public void close(){
+			if(closed)
+				return;
+			closed = true;
+			endScan();
+		}
+	}
+
+	private static int position(int record){
+		return (record % RECORDS_PER_CHUNK) * RECORD_SIZE;
+	}
+
+	/**
+	 * @return The size of the index file in bytes.
+	 */
+	long fileSize(){
+		return new File(indexFileName).length();
+	}
+
+	/**
+	 * @return The path of the index file.
+	 */
+	String fileName(){
+		return indexFileName;
+	}
+}
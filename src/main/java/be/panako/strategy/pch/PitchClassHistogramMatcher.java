@@ -0,0 +1,319 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.pch;
+
+import java.util.Arrays;
+
+/**
+ * Matches pitch class histograms regardless of a circular shift (a transposition).
+ *
+ * The naive approach tries each shift and computes the overlap of the two
+ * histograms: O(n^2) for histograms of n bins. Since min(q,r) is never larger
+ * than sqrt(q*r), the circular cross-correlation of the square roots of the
+ * histograms is an upper bound of the overlap for every shift. This correlation is
+ * computed with an FFT, O(n log n). The exact overlap is then computed for the shifts
+ * in order of decreasing bound, until no remaining shift can beat the best overlap.
+ * The result is the same as the naive approach, but typically only a few shifts
+ * need an exact comparison.
+ *
+ * The FFT handles the non power of two histogram sizes (1200 cents) with a mixed
+ * radix algorithm. An instance keeps its own work buffers so it is not thread safe:
+ * use one instance per thread.
+ */
+public class PitchClassHistogramMatcher {
+
+	/**
+	 * The bounds are rounded up to a multiple of 1/BOUND_SCALE and sorted together with the shift.
+	 */
+	private static final int BOUND_SCALE = 16;
+
+	/**
+	 * The number of magnitude coefficients used as shift invariant features for the prefilter.
+	 */
+	public static final int NUMBER_OF_FEATURES = 16;
+
+	private final int n;
+	private final int[] factors;
+	private final double[] cos;
+	private final double[] sin;
+
+	private final double[] re;
+	private final double[] im;
+	private final double[] scratchRe;
+	private final double[] scratchIm;
+	private final double[] sumRe;
+	private final double[] sumIm;
+
+	private final double[] queryRe;
+	private final double[] queryIm;
+	private int[] query;
+	private int queryArea;
+
+	private final long[] sortedBounds;
+	private final int shiftBits;
+	private long exactComparisons;
+
+	/**
+	 * Create a matcher for histograms with a number of bins.
+	 * @param n The number of bins in each histogram.
+	 */
+	public PitchClassHistogramMatcher(int n){
+		this.n = n;
+		this.factors = factorize(n);
+		cos = new double[n];
+		sin = new double[n];
+		for(int i = 0 ; i < n ; i++){
+			cos[i] = Math.cos(2 * Math.PI * i / n);
+			sin[i] = -Math.sin(2 * Math.PI * i / n);
+		}
+		re = new double[n];
+		im = new double[n];
+		scratchRe = new double[n];
+		scratchIm = new double[n];
+		int maxFactor = 1;
+		for(int f : factors)
+			maxFactor = Math.max(maxFactor, f);
+		sumRe = new double[maxFactor];
+		sumIm = new double[maxFactor];
+		queryRe = new double[n];
+		queryIm = new double[n];
+		sortedBounds = new long[n];
+		shiftBits = 32 - Integer.numberOfLeadingZeros(n);
+	}
+
+	private static int[] factorize(int n){
+		int[] buffer = new int[32];
+		int count = 0;
+		int remaining = n;
+		for(int f : new int[]{4,2,3,5}){
+			while(remaining % f == 0){
+				buffer[count++] = f;
+				remaining /= f;
+			}
+		}
+		for(int f = 7 ; remaining > 1 ; f += 2){
+			while(remaining % f == 0){
+				buffer[count++] = f;
+				remaining /= f;
+			}
+		}
+		int[] factors = new int[count];
+		System.arraycopy(buffer, 0, factors, 0, count);
+		return factors;
+	}
+
+	/**
+	 * Set the query histogram: the next calls to match compare references with this histogram.
+	 * @param query The query histogram.
+	 */
+	public void setQuery(int[] query){
+		this.query = query;
+		queryArea = 0;
+		for(int i = 0 ; i < n ; i++){
+			queryArea += query[i];
+			re[i] = Math.sqrt(query[i]);
+			im[i] = 0;
+		}
+		transform(false);
+		System.arraycopy(re, 0, queryRe, 0, n);
+		System.arraycopy(im, 0, queryIm, 0, n);
+	}
+
+	/**
+	 * Compare a reference histogram with the query histogram.
+	 * @param reference The reference histogram.
+	 * @param referenceArea The sum of all bins of the reference.
+	 * @param result The best overlap (between zero and one) and the corresponding shift in bins are stored in here.
+	 */
+	public void match(int[] reference, int referenceArea, double[] result){
+		match(reference, referenceArea, 0, result);
+	}
+
+	/**
+	 * Compare a reference histogram with the query histogram, when only matches with a minimum
+	 * score are of interest. This is faster since the comparison stops as soon as the bounds show
+	 * that the minimum score can not be reached.
+	 * @param reference The reference histogram.
+	 * @param referenceArea The sum of all bins of the reference.
+	 * @param minimumScore The minimum overlap (between zero and one) of interest.
+	 * @param result The best overlap (between zero and one) and the corresponding shift in bins are
+	 *                  stored in here. If the overlap is below the minimum score, the overlap is zero.
+	 */
+	public void match(int[] reference, int referenceArea, double minimumScore, double[] result){
+		for(int i = 0 ; i < n ; i++){
+			re[i] = Math.sqrt(reference[i]);
+			im[i] = 0;
+		}
+		transform(false);
+		//conj(Q) * R is the spectrum of the circular cross-correlation
+		for(int i = 0 ; i < n ; i++){
+			double r = queryRe[i] * re[i] + queryIm[i] * im[i];
+			double j = queryRe[i] * im[i] - queryIm[i] * re[i];
+			re[i] = r;
+			im[i] = j;
+		}
+		transform(true);
+
+		float maxArea = Math.max(referenceArea, queryArea);
+		double minimumOverlap = minimumScore * maxArea;
+
+		//round the bounds up, with a margin for rounding errors of the transform
+		double margin = 1e-9 * (queryArea + (double) referenceArea) + 1e-6;
+		double maxBound = 0;
+		for(int shift = 0 ; shift < n ; shift++){
+			maxBound = Math.max(maxBound, re[shift] + margin);
+			long bound = (long) Math.ceil((re[shift] + margin) * BOUND_SCALE);
+			sortedBounds[shift] = (Math.max(0, bound) << shiftBits) | shift;
+		}
+		if(maxBound < minimumOverlap){
+			result[0] = 0;
+			result[1] = 0;
+			return;
+		}
+		Arrays.sort(sortedBounds);
+
+		int bestOverlap = -1;
+		int bestShift = 0;
+		long shiftMask = (1L << shiftBits) - 1;
+		for(int i = n - 1 ; i >= 0 ; i--){
+			double bound = (sortedBounds[i] >>> shiftBits) / (double) BOUND_SCALE;
+			if(bound < bestOverlap || bound < minimumOverlap)
+				break;
+			int shift = (int) (sortedBounds[i] & shiftMask);
+			int overlap = overlap(reference, shift);
+			exactComparisons++;
+			if(overlap > bestOverlap || (overlap == bestOverlap && shift < bestShift)){
+				bestOverlap = overlap;
+				bestShift = shift;
+			}
+		}
+		result[0] = maxArea == 0 || bestOverlap < minimumOverlap ? 0 : bestOverlap / maxArea;
+		result[1] = bestShift;
+	}
+
+	/**
+	 * @return The number of shifts for which the exact overlap was computed, since the creation of this matcher.
+	 */
+	public long exactComparisons(){
+		return exactComparisons;
+	}
+
+	private int overlap(int[] reference, int shift){
+		int overlap = 0;
+		int split = n - shift;
+		for(int i = 0 ; i < split ; i++)
+			overlap += Math.min(query[i], reference[i + shift]);
+		for(int i = split ; i < n ; i++)
+			overlap += Math.min(query[i], reference[i - split]);
+		return overlap;
+	}
+
+	/**
+	 * Computes the features for the coarse prefilter: the magnitudes of the first coefficients of
+	 * the spectrum of the histogram, normalized by the area. These do not change when the histogram
+	 * is shifted circularly.
+	 * @param histogram The histogram.
+	 * @param features The features are stored in here.
+	 */
+	public void features(int[] histogram, float[] features){
+		for(int i = 0 ; i < n ; i++){
+			re[i] = histogram[i];
+			im[i] = 0;
+		}
+		transform(false);
+		double area = re[0];
+		for(int k = 0 ; k < features.length ; k++){
+			features[k] = area == 0 ? 0 : (float) (Math.hypot(re[k + 1], im[k + 1]) / area);
+		}
+	}
+
+	/**
+	 * In place transform of the re and im buffers.
+	 */
+	private void transform(boolean inverse){
+		System.arraycopy(re, 0, scratchRe, 0, n);
+		System.arraycopy(im, 0, scratchIm, 0, n);
+		transform(scratchRe, scratchIm, 0, 1, 0, n, 0, inverse);
+		if(inverse){
+			for(int i = 0 ; i < n ; i++){
+				re[i] /= n;
+				im[i] /= n;
+			}
+		}
+	}
+
+	/**
+	 * Recursive decimation in time: transforms the size elements of the scratch buffers starting at
+	 * inOffset with the given stride into re and im at outOffset.
+	 */
+	private void transform(double[] inRe, double[] inIm, int inOffset, int stride, int outOffset, int size, int factorIndex, boolean inverse){
+		if(size == 1){
+			re[outOffset] = inRe[inOffset];
+			im[outOffset] = inIm[inOffset];
+			return;
+		}
+		int p = factors[factorIndex];
+		int m = size / p;
+		for(int q = 0 ; q < p ; q++){
+			transform(inRe, inIm, inOffset + q * stride, stride * p, outOffset + q * m, m, factorIndex + 1, inverse);
+		}
+		//twiddle step for this level: W_size = W_n^(n/size)
+		int twiddleStep = n / size;
+		double sign = inverse ? -1 : 1;
+		for(int k = 0 ; k < m ; k++){
+			for(int q = 0 ; q < p ; q++){
+				int index = outOffset + q * m + k;
+				int t = (q * k * twiddleStep) % n;
+				double wr = cos[t];
+				double wi = sign * sin[t];
+				sumRe[q] = re[index] * wr - im[index] * wi;
+				sumIm[q] = re[index] * wi + im[index] * wr;
+			}
+			for(int j = 0 ; j < p ; j++){
+				double xr = 0;
+				double xi = 0;
+				for(int q = 0 ; q < p ; q++){
+					int t = ((q * j) % p) * (n / p);
+					double wr = cos[t];
+					double wi = sign * sin[t];
+					xr += sumRe[q] * wr - sumIm[q] * wi;
+					xi += sumRe[q] * wi + sumIm[q] * wr;
+				}
+				re[outOffset + j * m + k] = xr;
+				im[outOffset + j * m + k] = xi;
+			}
+		}
+	}
+}
@@ -36,19 +36,26 @@
 package be.panako.strategy.pch;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 
+import be.panako.cli.Application;
 import be.panako.strategy.QueryResult;
 import be.panako.strategy.QueryResultHandler;
 import be.panako.strategy.Strategy;
+import be.panako.util.AudioDecoder;
+import be.panako.util.BoundedPriorityQueue;
 import be.panako.util.Config;
 import be.panako.util.FileUtils;
 import be.panako.util.Key;
 import be.tarsos.dsp.AudioDispatcher;
 import be.tarsos.dsp.AudioEvent;
-import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
 import be.tarsos.dsp.pitch.PitchDetectionHandler;
 import be.tarsos.dsp.pitch.PitchDetectionResult;
 import be.tarsos.dsp.pitch.PitchProcessor;
@@ -60,12 +67,24 @@ import be.tarsos.dsp.util.PitchConverter;
  * (2012) <a href="http://0110.be/files/attachments/415/2012.01.20.fingerprinter.submitted.pdf">A Robust Audio Fingerprinter Based on Pitch Class Histograms: Applications for Ethnic Music Archives</a>, 
  * by Joren Six and Olmo Cornelis in Proceedings of the International Workshop of Folk Music Analysis (FMA 2012)
  * 
+ * The histograms are kept in a memory mapped {@link PitchClassHistogramIndex}. A query
+ * compares its histogram with every reference in parallel, optionally after a coarse
+ * prefilter, and keeps only the best matches.
  * 
  * @author joren
  *
  */
 public class PitchClassHistogramStrategy extends Strategy {
 
+	private final static Logger LOG = Logger.getLogger(PitchClassHistogramStrategy.class.getName());
+
+	/**
+	 * Below this number of references the scan is not split over several threads.
+	 */
+	private static final int MIN_REFERENCES_PER_TASK = 256;
+
+	private static ExecutorService scanExecutor;
+
 	/**
 	 * Create a new instance
 	 */
@@ -76,160 +95,273 @@ public class PitchClassHistogramStrategy extends Strategy {
 	@Override
 	public double store(String resource, String description) {
 		int identifier = FileUtils.getIdentifier(resource);
-		int[] pch = new int[1200];
+		int[] pch = new int[PitchClassHistogramIndex.HISTOGRAM_SIZE];
 		double duration = extractPch(resource, pch);
-		storePch(identifier,description,pch);
+		storePch(identifier,description,(float) duration,pch);
 		return duration;
 	}
 
 	@Override
 	public double delete(String resource) {
-		throw new RuntimeException("Delete is currently not implemented for the PCH strategy");
+		int identifier = FileUtils.getIdentifier(resource);
+		PitchClassHistogramIndex index = PitchClassHistogramIndex.getInstance();
+		float duration;
+		try(PitchClassHistogramIndex.Scan scan = index.scan()){
+			int record = scan.recordOf(identifier);
+			if(record < 0){
+				LOG.warning("Warning: no pitch class histogram stored for " + resource);
+				return 0;
+			}
+			duration = scan.duration(record);
+		}
+		index.delete(identifier);
+		return duration;
 	}
 
 	private double extractPch(String resource, int[] pch){
-		final List<Float> pitchTrack = new ArrayList<Float>();
-		
+		List<double[]> pitchTrack = new ArrayList<>();
+		double duration = extractPitchTrack(resource, pitchTrack);
+		for(double[] estimate : pitchTrack){
+			addToHistogram(estimate[1], pch);
+		}
+		return duration;
+	}
+
+	private static void addToHistogram(double centValue, int[] pch){
+		int roundedCentValue = (int) Math.round(centValue);
+		if(roundedCentValue >= 0 && roundedCentValue < pch.length){
+			pch[roundedCentValue] += 1;
+		}
+	}
+
+	/**
+	 * Decodes the audio once and estimates the pitch of each block.
+	 * @param resource The audio resource.
+	 * @param pitchTrack For each pitched block the time stamp in seconds and the pitch in relative cents is added.
+	 * @return The number of seconds of processed audio.
+	 */
+	private double extractPitchTrack(String resource, final List<double[]> pitchTrack){
 		int sampleRate =  Config.getInt(Key.PCH_SAMPLE_RATE);
 		int step = Config.getInt(Key.PCH_SIZE);
 		int overlap = Config.getInt(Key.PCH_OVERLAP);
 		
-		AudioDispatcher d = AudioDispatcherFactory.fromPipe(resource, sampleRate,step,overlap);
+		AudioDispatcher d = AudioDecoder.fromResource(resource, sampleRate,step,overlap);
 		PitchDetectionHandler handler;
 		handler = new PitchDetectionHandler() {
 			@Override
 			public void handlePitch(PitchDetectionResult pitchDetectionResult,
 					AudioEvent audioEvent) {
 				if(pitchDetectionResult.isPitched()){
-					pitchTrack.add(pitchDetectionResult.getPitch());
+					double centValue = PitchConverter.hertzToRelativeCent(pitchDetectionResult.getPitch());
+					pitchTrack.add(new double[]{audioEvent.getTimeStamp(), centValue});
 				}
 			}
 		};
 		
 		d.addAudioProcessor(new PitchProcessor(PitchEstimationAlgorithm.FFT_YIN,sampleRate, step, handler));
 		d.run();
-		
-		
-		for(float pitch  : pitchTrack){
-			double centValue = PitchConverter.hertzToRelativeCent(pitch);
-			int roundedCentValue = (int) Math.round(centValue);
-			if(roundedCentValue >= 0 && roundedCentValue < 1200){
-				pch[roundedCentValue] += 1;
-			}
-		}
-		return -10;
-		//return d.durationInSeconds();
+		return d.secondsProcessed();
 	}
 	
-	private void storePch(int identifier, String description,int[] pch){
-		StringBuilder sb = new StringBuilder();
-		sb.append(description).append("\n");
-		for(int i : pch){
-			sb.append(i).append("\n");
+	private void storePch(int identifier, String description, float duration, int[] pch){
+		float[] features = new float[PitchClassHistogramMatcher.NUMBER_OF_FEATURES];
+		new PitchClassHistogramMatcher(pch.length).features(pch, features);
+		PitchClassHistogramIndex.getInstance().append(identifier, duration, description, pch, features);
+	}
+
+	/**
+	 * A reference which matches the query.
+	 */
+	private static class Match {
+		final int record;
+		final int identifier;
+		final double score;
+		final int shift;
+
+		Match(int record, int identifier, double score, int shift){
+			this.record = record;
+			this.identifier = identifier;
+			this.score = score;
+			this.shift = shift;
 		}
-		String directory = Config.get(Key.PCH_FILES);
-		directory = FileUtils.expandHomeDir(directory);
-		String fileName = FileUtils.combine(directory,identifier + ".txt");
-		FileUtils.writeFile(sb.toString(), fileName);
 	}
-	
-	private String readPch(int identifier, int[] pch){
-		String directory = Config.get(Key.PCH_FILES);
-		String fileName = FileUtils.combine(directory,identifier + ".txt");
-		
-		String content = FileUtils.readFile(fileName);
-		String[] data = content.split("\n");
-		String description = data[0];
-		for(int i = 1 ; i < data.length ; i++){
-			pch[i-1] = Integer.valueOf(data[i]);
-		}		
-		return description;
+
+	/**
+	 * Better matches have a higher score, equal scores are ordered by identifier.
+	 */
+	private static final Comparator<Match> MATCH_ORDER = Comparator.<Match>comparingDouble(m -> m.score).thenComparing(m -> -(long) m.identifier);
+
+	/**
+	 * A reference which passes the prefilter, closer references have a smaller distance.
+	 */
+	private static class Candidate {
+		final int record;
+		final float distance;
+
+		Candidate(int record, float distance){
+			this.record = record;
+			this.distance = distance;
+		}
 	}
-	
-	private double[] match(int[] query, int[] reference){
-		float maxMatch = 0;
-		int bestShift = 0;
-		int referenceArea = 0;
-		int queryArea = 0;
-		for(int i = 0 ; i < reference.length ; i++){
-			referenceArea += reference[i];
-			queryArea += query[i];
+
+	private static final Comparator<Candidate> CANDIDATE_ORDER = Comparator.<Candidate>comparingDouble(c -> -c.distance).thenComparingInt(c -> -c.record);
+
+	private static synchronized ExecutorService scanExecutor(){
+		if(scanExecutor == null){
+			scanExecutor = Executors.newFixedThreadPool(Application.availableProcessors(), runnable -> {
+				Thread thread = new Thread(runnable, "PCH scan");
+				thread.setDaemon(true);
+				return thread;
+			});
 		}
-		float maxArea = Math.max(referenceArea, queryArea);
-		
-		for(int shift = 0 ; shift < reference.length; shift++){	
-			int overlap = 0;
-			for(int i = 0 ; i < reference.length ; i++){
-				overlap += Math.min(query[i], reference[(i+shift) % reference.length]);
-			}
-			float match = overlap / maxArea;
-			if(match > maxMatch){
-				maxMatch = match;
-				bestShift = shift;
-			}
+		return scanExecutor;
+	}
+
+	/**
+	 * A part of the records to scan.
+	 */
+	private interface ScanTask<T> {
+		BoundedPriorityQueue<T> scan(int from, int to);
+	}
+
+	/**
+	 * Splits the range of records over the available processors and merges the best results of each part.
+	 */
+	private static <T> BoundedPriorityQueue<T> scan(int numberOfRecords, int capacity, Comparator<T> order, ScanTask<T> task){
+		int processors = Application.availableProcessors();
+		int tasks = Math.max(1, Math.min(processors, numberOfRecords / MIN_REFERENCES_PER_TASK));
+		if(tasks == 1)
+			return task.scan(0, numberOfRecords);
+
+		List<Future<BoundedPriorityQueue<T>>> futures = new ArrayList<>();
+		int recordsPerTask = (numberOfRecords + tasks - 1) / tasks;
+		for(int from = 0 ; from < numberOfRecords ; from += recordsPerTask){
+			final int start = from;
+			final int stop = Math.min(numberOfRecords, from + recordsPerTask);
+			futures.add(scanExecutor().submit(() -> task.scan(start, stop)));
 		}
-		double[] result = {maxMatch,bestShift};
-		return result;
+		BoundedPriorityQueue<T> best = new BoundedPriorityQueue<>(capacity, order);
+		try {
+			for(Future<BoundedPriorityQueue<T>> future : futures)
+				best.addAll(future.get());
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Could not scan the pitch class histogram index", e);
+		}
+		return best;
 	}
-	
-	
 
 	@Override
 	public void query(String query, int maxNumberOfResults,Set<Integer> avoid,
 			QueryResultHandler handler) {
 		
-		String directory = Config.get(Key.PCH_FILES);
-		List<String> files = FileUtils.glob(directory, "\\d*.txt", false);
-		
-		int[] queryPch = new int[1200];
-		extractPch(query, queryPch);
-		
-		TreeMap<Double, Integer> scores = new TreeMap<>();
-		TreeMap<Double, Double> shifts = new TreeMap<>();
-		TreeMap<Double, String> descriptions = new TreeMap<>();
-		
-		for(String file : files){
-			int[] referencePch = new int[1200];
-			int identifier = Integer.valueOf(FileUtils.basename(file));
-			String description = readPch(identifier, referencePch);
-			double[] result = match(queryPch,referencePch);
-			double match = result[0];
-			double shift = result[1];
-			double ratio = 100 * PitchConverter.centToRatio(shift);
-			
-			scores.put(match, identifier);
-			shifts.put(match, ratio);
-			descriptions.put(match, description);
+		int[] queryPch = new int[PitchClassHistogramIndex.HISTOGRAM_SIZE];
+		double queryDuration = extractPch(query, queryPch);
+		query(query, queryPch, 0, queryDuration, maxNumberOfResults, avoid, handler);
+	}
+
+	private void query(String query, int[] queryPch, double queryStart, double queryStop, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler){
+		//no results are requested: there is no worst match to compare with
+		if(maxNumberOfResults <= 0)
+			return;
+		PitchClassHistogramIndex index = PitchClassHistogramIndex.getInstance();
+		try(PitchClassHistogramIndex.Scan scan = index.scan()){
+			query(scan, index.size(), query, queryPch, queryStart, queryStop, maxNumberOfResults, avoid, handler);
 		}
-		
-		
-		int handled = 0;
-		for(Double key : scores.descendingKeySet()){
-			if(handled < maxNumberOfResults){
-				int identifier = scores.get(key);
-				String description = descriptions.get(key);
-				double frequencyRatio = shifts.get(key);
-				QueryResult qr = new QueryResult(query,-1, -1, String.valueOf(identifier), description, (int) (key*100) , 0, -1, frequencyRatio,0,0);
-				handler.handleQueryResult(qr);
-				handled++;
+	}
+
+	private void query(PitchClassHistogramIndex.Scan scan, int numberOfHistograms, String query, int[] queryPch, double queryStart, double queryStop, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler){
+		final int numberOfRecords = scan.size();
+
+		//the coarse prefilter compares shift invariant features to select candidates
+		int prefilterSize = Config.getInt(Key.PCH_PREFILTER_SIZE);
+		final int[] candidates;
+		if(prefilterSize > 0 && prefilterSize < numberOfHistograms){
+			final float[] queryFeatures = new float[PitchClassHistogramMatcher.NUMBER_OF_FEATURES];
+			new PitchClassHistogramMatcher(queryPch.length).features(queryPch, queryFeatures);
+			List<Candidate> closest = scan(numberOfRecords, prefilterSize, CANDIDATE_ORDER, (from, to) -> {
+				BoundedPriorityQueue<Candidate> best = new BoundedPriorityQueue<>(prefilterSize, CANDIDATE_ORDER);
+				float[] features = new float[queryFeatures.length];
+				for(int record = from ; record < to ; record++){
+					if(scan.isDeleted(record) || avoid.contains(scan.identifier(record)))
+						continue;
+					scan.features(record, features);
+					float distance = 0;
+					for(int i = 0 ; i < features.length ; i++)
+						distance += Math.abs(features[i] - queryFeatures[i]);
+					best.offer(new Candidate(record, distance));
+				}
+				return best;
+			}).toSortedList();
+			candidates = new int[closest.size()];
+			for(int i = 0 ; i < candidates.length ; i++)
+				candidates[i] = closest.get(i).record;
+		}else{
+			candidates = null;
+		}
+
+		int numberOfCandidates = candidates == null ? numberOfRecords : candidates.length;
+		List<Match> matches = scan(numberOfCandidates, maxNumberOfResults, MATCH_ORDER, (from, to) -> {
+			BoundedPriorityQueue<Match> best = new BoundedPriorityQueue<>(maxNumberOfResults, MATCH_ORDER);
+			PitchClassHistogramMatcher matcher = new PitchClassHistogramMatcher(queryPch.length);
+			matcher.setQuery(queryPch);
+			int[] referencePch = new int[queryPch.length];
+			double[] result = new double[2];
+			for(int i = from ; i < to ; i++){
+				int record = candidates == null ? i : candidates[i];
+				if(scan.isDeleted(record))
+					continue;
+				int identifier = scan.identifier(record);
+				if(avoid.contains(identifier))
+					continue;
+				scan.histogram(record, referencePch);
+				//once k matches are found, only better matches are of interest
+				double minimumScore = best.isFull() ? best.worst().score : 0;
+				matcher.match(referencePch, scan.area(record), minimumScore, result);
+				if(result[0] > 0)
+					best.offer(new Match(record, identifier, result[0], (int) result[1]));
 			}
+			return best;
+		}).toSortedList();
+
+		for(Match match : matches){
+			String description = scan.description(match.record);
+			//the reference is the query shifted up by this number of cents
+			int shift = match.shift > queryPch.length / 2 ? match.shift - queryPch.length : match.shift;
+			double frequencyFactor = PitchConverter.centToRatio(-shift);
+			QueryResult qr = new QueryResult(query, queryStart, queryStop, description, String.valueOf(match.identifier), 0, scan.duration(match.record), match.score * 100, 1.0, frequencyFactor, 1.0);
+			handler.handleQueryResult(qr);
 		}
 	}
 
 	@Override
-	public void monitor(String query, int maxNumberOfReqults,Set<Integer> avoid,
+	public void monitor(String query, int maxNumberOfResults,Set<Integer> avoid,
 			QueryResultHandler handler) {
-		throw new Error("Operation not supported");
-		
+		int overlapInSeconds = Config.getInt(Key.MONITOR_OVERLAP);
+		int stepSizeInSeconds = Config.getInt(Key.MONITOR_STEP_SIZE);
+
+		//decode once, the histogram of each window is built from the pitch track
+		List<double[]> pitchTrack = new ArrayList<>();
+		double totalDuration = extractPitchTrack(query, pitchTrack);
+
+		//Steps: 0-25s ; 20-45s ; 40-65s ...
+		int actualStep = stepSizeInSeconds - overlapInSeconds;
+		int first = 0;
+		for(int t = 0 ; t == 0 || t + overlapInSeconds < totalDuration; t += actualStep){
+			int[] windowPch = new int[PitchClassHistogramIndex.HISTOGRAM_SIZE];
+			double stop = Math.min(t + stepSizeInSeconds, totalDuration);
+			//the pitch track is sorted by time
+			while(first < pitchTrack.size() && pitchTrack.get(first)[0] < t)
+				first++;
+			for(int i = first ; i < pitchTrack.size() && pitchTrack.get(i)[0] < t + stepSizeInSeconds ; i++)
+				addToHistogram(pitchTrack.get(i)[1], windowPch);
+			query(query, windowPch, t, stop, maxNumberOfResults, avoid, handler);
+		}
 	}
 
 	@Override
 	public boolean hasResource(String resource) {
 		int identifier = FileUtils.getIdentifier(resource);
-		String directory = Config.get(Key.PCH_FILES);
-		String fileName = FileUtils.combine(directory,identifier + ".txt");
-		
-		return FileUtils.exists(fileName);
+		return PitchClassHistogramIndex.getInstance().contains(identifier);
 	}
 
 	@Override
@@ -239,8 +371,34 @@ public class PitchClassHistogramStrategy extends Strategy {
 
 	@Override
 	public void printStorageStatistics() {
-		int size = FileUtils.glob(".", "\\d*.txt", false).size();
-		System.out.println("Stored " + size + " files");
+		PitchClassHistogramIndex index = PitchClassHistogramIndex.getInstance();
+		int numberOfRecords;
+		double totalDuration = 0;
+		long totalPitchEstimates = 0;
+		int deleted = 0;
+		try(PitchClassHistogramIndex.Scan scan = index.scan()){
+			numberOfRecords = scan.size();
+			for(int record = 0 ; record < numberOfRecords ; record++){
+				if(scan.isDeleted(record)){
+					deleted++;
+				}else{
+					totalDuration += scan.duration(record);
+					totalPitchEstimates += scan.area(record);
+				}
+			}
+		}
+		int stored = numberOfRecords - deleted;
+		System.out.printf("[PCH storage statistics]\n");
+		System.out.printf("=========================\n");
+		System.out.printf("> Index file:                   %s\n", index.fileName());
+		System.out.printf("> Index file size:              %.1f MB\n", index.fileSize() / (1024.0 * 1024.0));
+		System.out.printf("> Stored histograms:            %d\n", stored);
+		System.out.printf("> Deleted records:              %d\n", deleted);
+		System.out.printf("> Total audio duration:         %.3f (s)\n", totalDuration);
+		System.out.printf("> Pitch estimates:              %d (#)\n", totalPitchEstimates);
+		if(stored > 0)
+			System.out.printf("> Pitch estimates per second:   %.3f (#/s)\n", totalDuration == 0 ? 0 : totalPitchEstimates / totalDuration);
+		System.out.printf("=========================\n\n");
 	}
 	
 	@Override
@@ -250,7 +408,23 @@ public class PitchClassHistogramStrategy extends Strategy {
 
 	@Override
 	public void print(String path, boolean sonicVisualizerOutput, boolean printOnlyEPs) {
-		throw new RuntimeException("Print is currently not implemented for the PCH strategy");
+		List<double[]> pitchTrack = new ArrayList<>();
+		extractPitchTrack(path, pitchTrack);
+		if(printOnlyEPs){
+			System.out.println("Time (s), Pitch (relative cents)");
+			for(double[] estimate : pitchTrack){
+				System.out.printf("%.6f, %.3f\n", estimate[0], estimate[1]);
+			}
+		}else{
+			int[] pch = new int[PitchClassHistogramIndex.HISTOGRAM_SIZE];
+			for(double[] estimate : pitchTrack){
+				addToHistogram(estimate[1], pch);
+			}
+			System.out.println("Pitch class (cents), Count");
+			for(int i = 0 ; i < pch.length ; i++){
+				System.out.printf("%d, %d\n", i, pch[i]);
+			}
+		}
 	}
 
 	/*
@@ -260,12 +434,20 @@ public class PitchClassHistogramStrategy extends Strategy {
 
 	@Override
 	public void clear() {
-		
+		PitchClassHistogramIndex.getInstance().clear();
 	}
 
 	@Override
 	public String metadata(String path) {
-		return null;
+		int identifier = FileUtils.getIdentifier(path);
+		try(PitchClassHistogramIndex.Scan scan = PitchClassHistogramIndex.getInstance().scan()){
+			int record = scan.recordOf(identifier);
+			if(record < 0)
+				return null;
+			float duration = scan.duration(record);
+			int pitchEstimates = scan.area(record);
+			return String.format("%d ; %s ; %.3f (s) ; %d (#) ; %.3f (#/s)", identifier, scan.description(record), duration, pitchEstimates, duration == 0 ? 0 : pitchEstimates / duration);
+		}
 	}
 
 }
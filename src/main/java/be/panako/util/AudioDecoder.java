@@ -0,0 +1,368 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.util;
+
+import be.tarsos.dsp.AudioDispatcher;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import be.tarsos.dsp.io.TarsosDSPAudioInputStream;
+import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Decodes audio resources to mono 16bit PCM at a requested sample rate and returns an audio dispatcher.
+ *
+ * Decoding with the ffmpeg pipe starts a new process for every resource, which dominates the decoding
+ * time of short queries. Formats readable by javax.sound, such as WAV or AIFF, are decoded in the JVM
+ * instead: channels are mixed down and the audio is resampled with a windowed sinc filter. The
+ * {@link Key#DECODER} setting selects the decoder: PIPE always uses the pipe, JAVA always decodes in
+ * the JVM and AUTO uses the JVM for the extensions listed in {@link Key#DECODER_JAVA_EXTENSIONS} and
+ * falls back to the pipe for other resources.
+ */
+public class AudioDecoder {
+
+	private final static Logger LOG = Logger.getLogger(AudioDecoder.class.getName());
+
+	/**
+	 * The number of zero crossings of the resampling filter on each side.
+	 */
+	private static final int FILTER_ZERO_CROSSINGS = 16;
+
+	/**
+	 * The maximum number of filter phases, sample rates with a larger ratio are not resampled in the JVM.
+	 */
+	private static final int MAX_FILTER_PHASES = 4096;
+
+	/**
+	 * Hide default constructor
+	 */
+	private AudioDecoder(){}
+
+	/**
+	 * Decode a complete resource.
+	 * @param resource The path of the audio resource.
+	 * @param sampleRate The requested sample rate.
+	 * @param size The size of the audio blocks in samples.
+	 * @param overlap The overlap of the audio blocks in samples.
+	 * @return An audio dispatcher for the decoded audio.
+	 */
+	public static AudioDispatcher fromResource(String resource, int sampleRate, int size, int overlap){
+		return fromResource(resource, sampleRate, size, overlap, 0, -1);
+	}
+
+	/**
+	 * Decode a resource starting from an offset.
+	 * @param resource The path of the audio resource.
+	 * @param sampleRate The requested sample rate.
+	 * @param size The size of the audio blocks in samples.
+	 * @param overlap The overlap of the audio blocks in samples.
+	 * @param startTimeOffset The start offset in seconds.
+	 * @return An audio dispatcher for the decoded audio.
+	 */
+	public static AudioDispatcher fromResource(String resource, int sampleRate, int size, int overlap, double startTimeOffset){
+		return fromResource(resource, sampleRate, size, overlap, startTimeOffset, -1);
+	}
+
+	/**
+	 * Decode a part of a resource.
+	 * @param resource The path of the audio resource.
+	 * @param sampleRate The requested sample rate.
+	 * @param size The size of the audio blocks in samples.
+	 * @param overlap The overlap of the audio blocks in samples.
+	 * @param startTimeOffset The start offset in seconds.
+	 * @param numberOfSeconds The number of seconds to decode, a negative value decodes until the end.
+	 * @return An audio dispatcher for the decoded audio.
+	 */
+	public static AudioDispatcher fromResource(String resource, int sampleRate, int size, int overlap, double startTimeOffset, double numberOfSeconds){
+		String decoder = Config.get(Key.DECODER).toUpperCase(Locale.ROOT);
+		boolean inJvm = decoder.equals("JAVA") || (decoder.equals("AUTO") && decodesInJvm(resource));
+		if(inJvm) {
+			try {
+				return new AudioDispatcher(open(resource, sampleRate, startTimeOffset, numberOfSeconds), size, overlap);
+			} catch (UnsupportedAudioFileException | IOException | IllegalArgumentException e) {
+				if(decoder.equals("JAVA"))
+					throw new RuntimeException("Could not decode " + resource, e);
+				LOG.info(String.format("Could not decode '%s' in the JVM, falls back to the pipe: %s", resource, e.getMessage()));
+			}
+		}
+		if(startTimeOffset == 0 && numberOfSeconds < 0)
+			return AudioDispatcherFactory.fromPipe(resource, sampleRate, size, overlap);
+		if(numberOfSeconds < 0)
+			return AudioDispatcherFactory.fromPipe(resource, sampleRate, size, overlap, startTimeOffset);
+		return AudioDispatcherFactory.fromPipe(resource, sampleRate, size, overlap, startTimeOffset, numberOfSeconds);
+	}
+
+	/**
+	 * Checks whether an existing resource has one of the extensions decoded in the JVM.
+	 * @param resource The path of the audio resource.
+	 * @return True if the resource is decoded in the JVM when the decoder is AUTO.
+	 */
+	public static boolean decodesInJvm(String resource){
+		String extension = FileUtils.extension(resource).toLowerCase(Locale.ROOT);
+		if(extension.isEmpty() || !new File(resource).isFile())
+			return false;
+		Set<String> extensions = new HashSet<>();
+		for(String e : Config.get(Key.DECODER_JAVA_EXTENSIONS).split(","))
+			extensions.add(e.trim().toLowerCase(Locale.ROOT));
+		return extensions.contains(extension);
+	}
+
+	/**
+	 * Opens a resource with javax.sound and returns a mono 16bit little endian stream at the requested sample rate,
+	 * the same format as the pipe decoder.
+	 * @param resource The path of the audio resource.
+	 * @param sampleRate The requested sample rate.
+	 * @param startTimeOffset The start offset in seconds.
+	 * @param numberOfSeconds The number of seconds to decode, a negative value decodes until the end.
+	 * @return A stream with decoded audio.
+	 * @throws UnsupportedAudioFileException If javax.sound does not support the format.
+	 * @throws IOException If the resource can not be read.
+	 */
+	public static TarsosDSPAudioInputStream open(String resource, int sampleRate, double startTimeOffset, double numberOfSeconds) throws UnsupportedAudioFileException, IOException {
+		AudioInputStream source = AudioSystem.getAudioInputStream(new File(resource));
+		AudioFormat format = source.getFormat();
+		AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16,
+				format.getChannels(), format.getChannels() * 2, format.getSampleRate(), false);
+		if(!pcm.matches(format)) {
+			if(!AudioSystem.isConversionSupported(pcm, format)) {
+				source.close();
+				throw new UnsupportedAudioFileException("No conversion from " + format + " to 16bit PCM");
+			}
+			source = AudioSystem.getAudioInputStream(pcm, source);
+		}
+		int sourceRate = Math.round(pcm.getSampleRate());
+		ResamplingStream stream = new ResamplingStream(source, pcm.getChannels(), sourceRate, sampleRate);
+
+		long startFrame = Math.round(Math.max(0, startTimeOffset) * sourceRate);
+		long bytesToSkip = startFrame * pcm.getFrameSize();
+		while(bytesToSkip > 0) {
+			long skipped = source.skip(bytesToSkip);
+			if(skipped <= 0)
+				break;
+			bytesToSkip -= skipped;
+		}
+		if(numberOfSeconds >= 0)
+			stream.maxOutputSamples = Math.round(numberOfSeconds * sampleRate);
+		return stream;
+	}
+
+	private static int gcd(int a, int b){
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	/**
+	 * Mixes a 16bit little endian stream down to mono and resamples it with a polyphase windowed sinc filter.
+	 */
+	private static class ResamplingStream implements TarsosDSPAudioInputStream {
+
+		private final AudioInputStream source;
+		private final int channels;
+		private final TarsosDSPAudioFormat format;
+
+		private final int upFactor;
+		private final int downFactor;
+		private final int halfTaps;
+		private final float[][] filter;
+
+		private final byte[] sourceBytes;
+		private float[] input;
+		/**
+		 * The absolute index of the first sample in the input buffer.
+		 */
+		private long inputStart;
+		private int inputLength;
+		private boolean sourceFinished;
+
+		private long outputIndex;
+		private long maxOutputSamples = Long.MAX_VALUE;
+
+		ResamplingStream(AudioInputStream source, int channels, int sourceRate, int targetRate) throws UnsupportedAudioFileException {
+			this.source = source;
+			this.channels = channels;
+			this.format = new TarsosDSPAudioFormat(targetRate, 16, 1, true, false);
+			int divisor = gcd(sourceRate, targetRate);
+			upFactor = targetRate / divisor;
+			downFactor = sourceRate / divisor;
+			if(upFactor > MAX_FILTER_PHASES)
+				throw new UnsupportedAudioFileException("Can not resample from " + sourceRate + "Hz to " + targetRate + "Hz");
+
+			if(upFactor == 1 && downFactor == 1) {
+				halfTaps = 1;
+				filter = new float[][]{{1}};
+			} else {
+				//the cut off frequency, in cycles per input sample
+				double ratio = Math.min(1.0, upFactor / (double) downFactor);
+				double cutOff = 0.5 * ratio;
+				halfTaps = (int) Math.ceil(FILTER_ZERO_CROSSINGS / ratio);
+				filter = new float[upFactor][2 * halfTaps];
+				for(int phase = 0 ; phase < upFactor ; phase++) {
+					double fraction = phase / (double) upFactor;
+					double sum = 0;
+					for(int k = 0 ; k < 2 * halfTaps ; k++) {
+						double t = (k - halfTaps + 1) - fraction;
+						double x = 2 * cutOff * t;
+						double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+						//Blackman window over the filter span
+						double w = 0.5 + t / (2.0 * halfTaps);
+						double window = w <= 0 || w >= 1 ? 0 : 0.42 - 0.5 * Math.cos(2 * Math.PI * w) + 0.08 * Math.cos(4 * Math.PI * w);
+						filter[phase][k] = (float) (2 * cutOff * sinc * window);
+						sum += filter[phase][k];
+					}
+					//unit gain for each phase
+					for(int k = 0 ; k < 2 * halfTaps ; k++)
+						filter[phase][k] /= (float) sum;
+				}
+			}
+			sourceBytes = new byte[4096 * channels * 2];
+			input = new float[8192 + 2 * halfTaps];
+		}
+
+		/**
+		 * Makes sure the input buffer contains the samples up to and including the given absolute index,
+		 * or all samples if the source is finished.
+		 */
+		private void fill(long lastNeeded) throws IOException {
+			while(!sourceFinished && inputStart + inputLength <= lastNeeded) {
+				//drop samples which are not needed any more
+				long firstNeeded = (outputIndex * downFactor) / upFactor - halfTaps + 1;
+				int drop = (int) Math.max(0, Math.min(inputLength, firstNeeded - inputStart));
+				if(drop > 0) {
+					System.arraycopy(input, drop, input, 0, inputLength - drop);
+					inputLength -= drop;
+					inputStart += drop;
+				}
+				int read = source.read(sourceBytes, 0, sourceBytes.length);
+				if(read < 0) {
+					sourceFinished = true;
+					break;
+				}
+				int frames = read / (2 * channels);
+				if(inputLength + frames > input.length)
+					input = Arrays.copyOf(input, Math.max(input.length * 2, inputLength + frames));
+				for(int frame = 0 ; frame < frames ; frame++) {
+					float sum = 0;
+					for(int channel = 0 ; channel < channels ; channel++) {
+						int offset = (frame * channels + channel) * 2;
+						sum += (short) ((sourceBytes[offset] & 0xFF) | (sourceBytes[offset + 1] << 8));
+					}
+					input[inputLength++] = sum / (channels * 32768.0f);
+				}
+			}
+		}
+
+		private float sample(long index) {
+			long i = index - inputStart;
+			if(index < 0 || i >= inputLength)
+				return 0;
+			return input[(int) i];
+		}
+
+		/**
+		 * @return The next output sample or NaN at the end of the stream.
+		 */
+		private float next() throws IOException {
+			if(outputIndex >= maxOutputSamples)
+				return Float.NaN;
+			long position = outputIndex * downFactor;
+			long center = position / upFactor;
+			int phase = (int) (position % upFactor);
+			fill(center + halfTaps);
+			if(sourceFinished && center >= inputStart + inputLength)
+				return Float.NaN;
+			float[] taps = filter[phase];
+			long first = center - halfTaps + 1;
+			float value = 0;
+			if(first >= inputStart && first + taps.length <= inputStart + inputLength) {
+				int offset = (int) (first - inputStart);
+				for(int k = 0 ; k < taps.length ; k++)
+					value += input[offset + k] * taps[k];
+			} else {
+				for(int k = 0 ; k < taps.length ; k++)
+					value += sample(first + k) * taps[k];
+			}
+			outputIndex++;
+			return value;
+		}
+
+		@Override
+		public long skip(long bytesToSkip) throws IOException {
+			long skipped = 0;
+			while(skipped + 2 <= bytesToSkip && !Float.isNaN(next()))
+				skipped += 2;
+			return skipped;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int written = 0;
+			while(written + 2 <= len) {
+				float value = next();
+				if(Float.isNaN(value))
+					break;
+				int s = Math.round(value * 32767);
+				s = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, s));
+				b[off + written] = (byte) s;
+				b[off + written + 1] = (byte) (s >> 8);
+				written += 2;
+			}
+			return written == 0 && len >= 2 ? -1 : written;
+		}
+
+		@Override
+		public void close() throws IOException {
+			source.close();
+		}
+
+		@Override
+		public TarsosDSPAudioFormat getFormat() {
+			return format;
+		}
+
+		@Override
+		public long getFrameLength() {
+			return -1;
+		}
+	}
+}
@@ -2,8 +2,10 @@ package be.panako.util;
 
 
 import be.tarsos.dsp.AudioDispatcher;
-import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
 
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
@@ -48,6 +50,17 @@ public class AudioFileUtils {
     public static float audioFileDurationInSeconds(File audioFile){
         String command = Config.get(Key.AUDIO_DURATION_COMMAND);
         String path = audioFile.getAbsolutePath();
+
+        // Files decoded in the JVM have their duration in the header, no need to start a process
+        if(!Config.get(Key.DECODER).equalsIgnoreCase("PIPE") && AudioDecoder.decodesInJvm(path)){
+            try {
+                AudioFileFormat format = AudioSystem.getAudioFileFormat(audioFile);
+                if(format.getFrameLength() != AudioSystem.NOT_SPECIFIED)
+                    return format.getFrameLength() / format.getFormat().getFrameRate();
+            } catch (UnsupportedAudioFileException | IOException e) {
+                LOG.info(String.format("Could not read the audio file header of '%s': %s", path, e.getMessage()));
+            }
+        }
         command = command.replace("%resource%",path);
 
         float duration = -1;
@@ -59,7 +72,7 @@ public class AudioFileUtils {
             LOG.info(String.format("Executed external command '%s' to find duration of %.3f",command,duration));
         }catch (IOException | InterruptedException | NumberFormatException ex){
             // Get the total duration, very inefficiently by decoding the
-            AudioDispatcher d = AudioDispatcherFactory.fromPipe(path, 8000, 2048, 0);
+            AudioDispatcher d = AudioDecoder.fromResource(path, 8000, 2048, 0);
             d.run();
             duration = d.secondsProcessed();
             LOG.warning(String.format("External command for audio duration failed. Decoded audio to find duration of %.3f s for '%s'",duration,path));
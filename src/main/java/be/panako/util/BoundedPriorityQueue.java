@@ -0,0 +1,139 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the k best elements offered to it, according to a comparator. The worst
+ * retained element sits at the head of a min-heap so an element which does not
+ * make the top k is rejected in constant time. This is used to select the
+ * best scoring results out of a large number of candidates without sorting
+ * all of them.
+ *
+ * The queue is not thread safe: when candidates are scored in parallel each
+ * thread fills its own queue and the queues are merged with addAll.
+ *
+ * A queue with a capacity of zero retains nothing: it is always full while
+ * {@link #worst()} returns null.
+ *
+ * @param <T> The type of the elements.
+ */
+public class BoundedPriorityQueue<T> {
+
+	private final int capacity;
+	private final Comparator<? super T> comparator;
+	private final PriorityQueue<T> heap;
+
+	/**
+	 * Create a new bounded priority queue.
+	 * @param capacity The maximum number of elements to keep.
+	 * @param comparator Orders the elements: larger elements are better and are kept.
+	 */
+	public BoundedPriorityQueue(int capacity, Comparator<? super T> comparator){
+		this.capacity = Math.max(0, capacity);
+		this.comparator = comparator;
+		this.heap = new PriorityQueue<>(Math.max(1, Math.min(this.capacity, 1024)), comparator);
+	}
+
+	/**
+	 * Offer an element to the queue.
+	 * @param element The element.
+	 * @return True if the element is retained, false if it is not among the best k elements.
+	 */
+	public boolean offer(T element){
+		if(heap.size() < capacity){
+			heap.add(element);
+			return true;
+		}
+		if(capacity > 0 && comparator.compare(element, heap.peek()) > 0){
+			heap.poll();
+			heap.add(element);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Offers all elements of another queue to this queue.
+	 * @param other The other queue.
+	 * @return This queue, with the best elements of both queues.
+	 */
+	public BoundedPriorityQueue<T> addAll(BoundedPriorityQueue<T> other){
+		for(T element : other.heap)
+			offer(element);
+		return this;
+	}
+
+	/**
+	 * @return The worst element that is retained, or null if the queue is empty, also when the capacity is zero.
+	 */
+	public T worst(){
+		return heap.peek();
+	}
+
+	/**
+	 * @return True if the queue holds k elements: a new element needs to be better than the worst to be retained.
+	 */
+	public boolean isFull(){
+		return heap.size() >= capacity;
+	}
+
+	/**
+	 * @return The number of retained elements.
+	 */
+	public int size(){
+		return heap.size();
+	}
+
+	/**
+	 * @return True if no elements are retained.
+	 */
+	public boolean isEmpty(){
+		return heap.isEmpty();
+	}
+
+	/**
+	 * @return A new list with the retained elements, best first.
+	 */
+	public List<T> toSortedList(){
+		List<T> sorted = new ArrayList<>(heap);
+		sorted.sort(comparator.reversed());
+		return sorted;
+	}
+}
@@ -0,0 +1,373 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.util;
+
+import java.util.Arrays;
+
+/**
+ * An index of event points to pack them into fingerprints. The time and frequency
+ * of each event point are kept in primitive arrays, in order of time and, for equal
+ * times, in order of frequency. For each time step the index of the first event
+ * point is kept as well. This allows to enumerate only the event points in the valid
+ * time-frequency region of another event point: the time steps in the valid time
+ * range are visited and, since each time step is sorted by frequency, a binary
+ * search finds the event points within the valid frequency distance.
+ *
+ * The partners of an event point are determined once and kept, so when packing
+ * triplets the partners of the second event point are not searched again for each
+ * first event point. Partners are enumerated in the order of the index, so the
+ * fingerprints come out in the same order as with a scan over all following event
+ * points. The partners of an event point are only determined when needed, the pack
+ * methods should only be called when all event points within reach are added.
+ *
+ * Event points should be removed from the start of the index once they are packed,
+ * which keeps the index and the partner lists small.
+ */
+public class EventPointIndex {
+
+	/**
+	 * Receives two event points which form a fingerprint.
+	 */
+	public interface PairConsumer {
+		/**
+		 * @param i The index of the first event point.
+		 * @param j The index of the second event point.
+		 */
+		void accept(int i, int j);
+	}
+
+	/**
+	 * Receives three event points which form a fingerprint.
+	 */
+	public interface TripletConsumer {
+		/**
+		 * @param i The index of the first event point.
+		 * @param j The index of the second event point.
+		 * @param k The index of the third event point.
+		 */
+		void accept(int i, int j, int k);
+	}
+
+	private final int minTimeDistance;
+	private final int maxTimeDistance;
+	private final int minFrequencyDistance;
+	private final int maxFrequencyDistance;
+
+	/*
+	 * Event points are identified by the number of event points added before them. Removing
+	 * event points does not change the identifiers, the arrays are only compacted once most of
+	 * their content is removed. The index of an event point is its identifier minus the number
+	 * of removed event points.
+	 */
+	private int added;
+	private int removed;
+	/**
+	 * The identifier of the event point at position zero in the arrays.
+	 */
+	private int arrayBase;
+	private int[] times;
+	private int[] frequencies;
+
+	/**
+	 * For each time step from the base time up to and including the last time, the
+	 * identifier of the first event point at or after that time.
+	 */
+	private int[] timeStarts;
+	private int timeBase;
+	private int lastTime;
+
+	/**
+	 * For each event point the start of its partners in the partner pool and the number of
+	 * partners, or -1 if the partners are not determined yet. Partners are stored by identifier.
+	 */
+	private int[] partnerStarts;
+	private int[] partnerCounts;
+	private int[] partnerPool;
+	private int partnerPoolSize;
+	private int livePartners;
+
+	/**
+	 * Create an empty index.
+	 * @param minTimeDistance The minimum time distance between two consecutive event points of a fingerprint.
+	 * @param maxTimeDistance The maximum time distance between two consecutive event points of a fingerprint.
+	 * @param minFrequencyDistance The minimum (absolute) frequency distance between two consecutive event points.
+	 * @param maxFrequencyDistance The maximum (absolute) frequency distance between two consecutive event points.
+	 */
+	public EventPointIndex(int minTimeDistance, int maxTimeDistance, int minFrequencyDistance, int maxFrequencyDistance){
+		this.minTimeDistance = Math.max(0, minTimeDistance);
+		this.maxTimeDistance = maxTimeDistance;
+		this.minFrequencyDistance = Math.max(0, minFrequencyDistance);
+		this.maxFrequencyDistance = maxFrequencyDistance;
+		times = new int[256];
+		frequencies = new int[256];
+		partnerStarts = new int[256];
+		partnerCounts = new int[256];
+		timeStarts = new int[64];
+		partnerPool = new int[1024];
+		clear();
+	}
+
+	/**
+	 * Add an event point to the end of the index. Event points should be added in order of
+	 * time and, for equal times, in order of frequency.
+	 * @param t The time of the event point.
+	 * @param f The frequency of the event point.
+	 */
+	public void add(int t, int f){
+		if(size() == 0){
+			clear();
+			timeBase = t;
+			lastTime = t - 1;
+		}else{
+			int last = added - 1 - arrayBase;
+			if(t < times[last] || (t == times[last] && f < frequencies[last]))
+				throw new IllegalArgumentException(String.format("Event points should be added in order of time and frequency, (%d,%d) follows (%d,%d)", t, f, times[last], frequencies[last]));
+		}
+		//start the time steps up to and including t
+		if(t > lastTime){
+			int steps = t - timeBase + 1;
+			if(steps > timeStarts.length)
+				timeStarts = Arrays.copyOf(timeStarts, Math.max(steps, timeStarts.length * 2));
+			Arrays.fill(timeStarts, lastTime - timeBase + 1, steps, added);
+			lastTime = t;
+		}
+		int position = added - arrayBase;
+		if(position == times.length){
+			int capacity = times.length * 2;
+			times = Arrays.copyOf(times, capacity);
+			frequencies = Arrays.copyOf(frequencies, capacity);
+			partnerStarts = Arrays.copyOf(partnerStarts, capacity);
+			partnerCounts = Arrays.copyOf(partnerCounts, capacity);
+		}
+		times[position] = t;
+		frequencies[position] = f;
+		partnerCounts[position] = -1;
+		added++;
+	}
+
+	/**
+	 * Remove the first event points from the index. The indexes of the remaining event points shift accordingly.
+	 * @param n The number of event points to remove.
+	 */
+	public void removeFirst(int n){
+		if(n <= 0)
+			return;
+		if(n >= size()){
+			clear();
+			return;
+		}
+		for(int id = removed ; id < removed + n ; id++)
+			livePartners -= Math.max(0, partnerCounts[id - arrayBase]);
+		removed += n;
+
+		//compact the arrays once most of their content is removed
+		int dead = removed - arrayBase;
+		if(dead >= 1024 && dead > size()){
+			int size = size();
+			System.arraycopy(times, dead, times, 0, size);
+			System.arraycopy(frequencies, dead, frequencies, 0, size);
+			System.arraycopy(partnerStarts, dead, partnerStarts, 0, size);
+			System.arraycopy(partnerCounts, dead, partnerCounts, 0, size);
+			arrayBase = removed;
+		}
+		int firstTime = times[removed - arrayBase];
+		int deadSteps = firstTime - timeBase;
+		if(deadSteps >= 1024 && deadSteps > lastTime - firstTime){
+			System.arraycopy(timeStarts, deadSteps, timeStarts, 0, lastTime - firstTime + 1);
+			timeBase = firstTime;
+		}
+		//partners of removed event points are no longer needed
+		if(partnerPoolSize >= 4096 && partnerPoolSize > 2 * livePartners)
+			compactPartnerPool();
+	}
+
+	/**
+	 * Moves the partners of the remaining event points to the front of the pool.
+	 */
+	private void compactPartnerPool(){
+		int[] compacted = new int[Math.max(1024, 2 * livePartners)];
+		int compactedSize = 0;
+		for(int position = removed - arrayBase ; position < added - arrayBase ; position++){
+			if(partnerCounts[position] < 0)
+				continue;
+			System.arraycopy(partnerPool, partnerStarts[position], compacted, compactedSize, partnerCounts[position]);
+			partnerStarts[position] = compactedSize;
+			compactedSize += partnerCounts[position];
+		}
+		partnerPool = compacted;
+		partnerPoolSize = compactedSize;
+	}
+
+	/**
+	 * Remove all event points.
+	 */
+	public void clear(){
+		added = 0;
+		removed = 0;
+		arrayBase = 0;
+		partnerPoolSize = 0;
+		livePartners = 0;
+	}
+
+	/**
+	 * @return The number of event points in the index.
+	 */
+	public int size(){
+		return added - removed;
+	}
+
+	/**
+	 * @param i The index of the event point.
+	 * @return The time of the event point.
+	 */
+	public int time(int i){
+		return times[i + removed - arrayBase];
+	}
+
+	/**
+	 * @param i The index of the event point.
+	 * @return The frequency of the event point.
+	 */
+	public int frequency(int i){
+		return frequencies[i + removed - arrayBase];
+	}
+
+	/**
+	 * @param t A time.
+	 * @return The identifier of the first event point at or after the time.
+	 */
+	private int firstAtOrAfter(int t){
+		if(t > lastTime)
+			return added;
+		if(t <= timeBase)
+			return Math.max(removed, timeStarts[0]);
+		return Math.max(removed, timeStarts[t - timeBase]);
+	}
+
+	/**
+	 * @return The identifier of the first event point in [from,to) with a frequency of at least f.
+	 */
+	private int lowerBound(int from, int to, int f){
+		int lo = from - arrayBase;
+		int hi = to - arrayBase;
+		while(lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if(frequencies[mid] < f)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo + arrayBase;
+	}
+
+	/**
+	 * Determines the event points following an event point which can form a fingerprint
+	 * with it, if this is not done yet.
+	 * @param id The identifier of the event point.
+	 * @return The position of the event point in the arrays.
+	 */
+	private int determinePartners(int id){
+		int position = id - arrayBase;
+		if(partnerCounts[position] >= 0)
+			return position;
+		int t = times[position];
+		int f = frequencies[position];
+		int stop = firstAtOrAfter(t + maxTimeDistance + 1);
+		//at most all event points up to stop are partners
+		int required = partnerPoolSize + stop - id;
+		if(required > partnerPool.length)
+			partnerPool = Arrays.copyOf(partnerPool, Math.max(required, partnerPool.length * 2));
+		int count = 0;
+		int bucketStart = firstAtOrAfter(t + minTimeDistance);
+		while(bucketStart < stop){
+			int bucketTime = times[bucketStart - arrayBase];
+			int bucketStop = Math.min(stop, firstAtOrAfter(bucketTime + 1));
+			//only event points after this one, relevant if the minimum time distance is zero
+			int from = bucketTime == t ? id + 1 : bucketStart;
+			if(minFrequencyDistance == 0){
+				count = collect(lowerBound(from, bucketStop, f - maxFrequencyDistance), bucketStop, f + maxFrequencyDistance, count);
+			}else{
+				count = collect(lowerBound(from, bucketStop, f - maxFrequencyDistance), bucketStop, f - minFrequencyDistance, count);
+				count = collect(lowerBound(from, bucketStop, f + minFrequencyDistance), bucketStop, f + maxFrequencyDistance, count);
+			}
+			bucketStart = bucketStop;
+		}
+		partnerStarts[position] = partnerPoolSize;
+		partnerCounts[position] = count;
+		partnerPoolSize += count;
+		livePartners += count;
+		return position;
+	}
+
+	private int collect(int from, int to, int maxFrequency, int count){
+		int offset = partnerPoolSize + count;
+		for(int id = from ; id < to && frequencies[id - arrayBase] <= maxFrequency ; id++)
+			partnerPool[offset++] = id;
+		return offset - partnerPoolSize;
+	}
+
+	/**
+	 * Enumerates all fingerprints with two event points starting at event point i.
+	 * @param i The index of the first event point.
+	 * @param consumer Receives the fingerprints, in order of the second event point.
+	 */
+	public void packPairs(int i, PairConsumer consumer){
+		int position = determinePartners(i + removed);
+		int start = partnerStarts[position];
+		int stop = start + partnerCounts[position];
+		for(int a = start ; a < stop ; a++)
+			consumer.accept(i, partnerPool[a] - removed);
+	}
+
+	/**
+	 * Enumerates all fingerprints with three event points starting at event point i.
+	 * @param i The index of the first event point.
+	 * @param consumer Receives the fingerprints, in order of the second and then the third event point.
+	 */
+	public void packTriplets(int i, TripletConsumer consumer){
+		int position = determinePartners(i + removed);
+		int start = partnerStarts[position];
+		int stop = start + partnerCounts[position];
+		for(int a = start ; a < stop ; a++){
+			int j = partnerPool[a];
+			int partnerPosition = determinePartners(j);
+			int partnerStart = partnerStarts[partnerPosition];
+			int partnerStop = partnerStart + partnerCounts[partnerPosition];
+			for(int b = partnerStart ; b < partnerStop ; b++)
+				consumer.accept(i, j - removed, partnerPool[b] - removed);
+		}
+	}
+}
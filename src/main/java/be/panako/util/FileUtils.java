@@ -39,7 +39,10 @@ package be.panako.util;
 import java.io.*;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -509,6 +512,51 @@ public final class FileUtils {
 		return fileHash;
 	}
 
+	/**
+	 * A 128 bit content based file hash, as a hexadecimal string. The size of the file and
+	 * three regions of 64K bytes - at the start, the middle and the end of the file - are hashed
+	 * with the 128 bit murmurhash3. Smaller files are hashed completely.
+	 *
+	 * The regions are read with positional reads on a file channel, without seeking, so several
+	 * threads can hash files concurrently.
+	 *
+	 * @param file The file to calculate a hash for.
+	 * @return The hexadecimal 128 bit hash or null if the file is not accessible.
+	 */
+	public static String getFileHash128(File file){
+		final int regionSizeInBytes = 64 * 1024;
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			long fileSizeInBytes = channel.size();
+			long[] regionStarts;
+			if(fileSizeInBytes <= 3L * regionSizeInBytes)
+				regionStarts = new long[]{0};
+			else
+				regionStarts = new long[]{0, fileSizeInBytes / 2 - regionSizeInBytes / 2, fileSizeInBytes - regionSizeInBytes};
+			int regionLength = (int) Math.min(fileSizeInBytes, regionStarts.length == 1 ? 3L * regionSizeInBytes : regionSizeInBytes);
+
+			//the size prefixes the sampled content
+			ByteBuffer data = ByteBuffer.allocate(8 + regionStarts.length * regionLength).order(ByteOrder.LITTLE_ENDIAN);
+			data.putLong(fileSizeInBytes);
+			for(long regionStart : regionStarts){
+				long position = regionStart;
+				int regionEnd = data.position() + regionLength;
+				data.limit(regionEnd);
+				while(data.hasRemaining()){
+					int bytesRead = channel.read(data, position);
+					if(bytesRead < 0)
+						break;
+					position += bytesRead;
+				}
+			}
+			MurmurHash3.LongPair hash = new MurmurHash3.LongPair();
+			MurmurHash3.murmurhash3_x64_128(data.array(), 0, data.position(), 0, hash);
+			return String.format("%016x%016x", hash.val1, hash.val2);
+		} catch (IOException e) {
+			LOG.warning(String.format("Could not determine file hash for '%s': %s", file.getAbsolutePath(), e.getMessage()));
+			return null;
+		}
+	}
+
 	/**
 	 * Checks the size of a file.
 	 * @param file the file to check.
@@ -0,0 +1,234 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * An append-only journal of the resources stored by a batch ingest. Each completed resource
+ * is appended as an "identifier;path" line and flushed, so a batch ingest which is interrupted
+ * can resume and skip all completed files without opening them again.
+ *
+ * A line which was only partially written when the JVM stopped is removed when the journal is opened.
+ *
+ * The journal also keeps track of the throughput of the current run to report progress and an
+ * estimate of the remaining time.
+ *
+ * @author Joren Six
+ */
+public class IngestJournal {
+	private final static Logger LOG = Logger.getLogger(IngestJournal.class.getName());
+
+	private final String path;
+	private final Set<String> completedPaths;
+	private final int resumedResources;
+	private final Writer writer;
+
+	private final StopWatch watch;
+	private int resourcesToProcess;
+	private int processedResources;
+	private double processedAudioSeconds;
+
+	/**
+	 * Opens a journal and reads the resources it already contains. The journal file is created
+	 * if it does not exist.
+	 * @param path The path of the journal file.
+	 */
+	public IngestJournal(String path){
+		this.path = FileUtils.expandHomeDir(path);
+		this.completedPaths = new HashSet<>();
+		File file = new File(this.path);
+		File parent = file.getAbsoluteFile().getParentFile();
+		if(parent != null && !parent.exists())
+			FileUtils.mkdirs(parent.getAbsolutePath());
+
+		if(file.exists()) {
+			truncatePartialLine(file);
+			readJournal(file);
+		}
+		resumedResources = completedPaths.size();
+
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new RuntimeException("Could not open ingest journal " + this.path, e);
+		}
+
+		watch = new StopWatch();
+		resourcesToProcess = 0;
+		processedResources = 0;
+		processedAudioSeconds = 0;
+		if(resumedResources > 0)
+			LOG.info(String.format("Resuming from journal '%s': %d resources already stored", this.path, resumedResources));
+	}
+
+	private void readJournal(File file){
+		try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))){
+			String line;
+			while((line = reader.readLine()) != null) {
+				int separator = line.indexOf(';');
+				if(separator > 0 && separator < line.length() - 1)
+					completedPaths.add(line.substring(separator + 1));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read ingest journal " + file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Removes a line which was only partially written, e.g. when the JVM stopped while writing.
+	 */
+	private static void truncatePartialLine(File file){
+		try(RandomAccessFile f = new RandomAccessFile(file, "rw")){
+			long length = f.length();
+			long end = length;
+			while(end > 0) {
+				f.seek(end - 1);
+				if(f.read() == '\n')
+					break;
+				end--;
+			}
+			if(end != length) {
+				LOG.warning(String.format("Ignoring a partially written line at the end of ingest journal '%s'", file.getAbsolutePath()));
+				f.setLength(end);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not repair ingest journal " + file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * @return The path of the journal file.
+	 */
+	public String getPath(){
+		return path;
+	}
+
+	/**
+	 * @return The absolute paths of the resources in the journal.
+	 */
+	public Set<String> completedPaths(){
+		return Collections.unmodifiableSet(completedPaths);
+	}
+
+	/**
+	 * Checks the journal for a resource, without accessing the resource itself.
+	 * @param resourcePath The path of the resource.
+	 * @return True if the resource is already stored according to the journal.
+	 */
+	public synchronized boolean isCompleted(String resourcePath){
+		return completedPaths.contains(new File(resourcePath).getAbsolutePath());
+	}
+
+	/**
+	 * @return The number of resources which were in the journal when it was opened.
+	 */
+	public int resumedResources(){
+		return resumedResources;
+	}
+
+	/**
+	 * Sets the number of resources to process in this run, used to estimate the remaining time.
+	 * @param resourcesToProcess The number of resources to process.
+	 */
+	public synchronized void setResourcesToProcess(int resourcesToProcess){
+		this.resourcesToProcess = resourcesToProcess;
+	}
+
+	/**
+	 * Appends a stored resource to the journal.
+	 * @param identifier The identifier of the resource.
+	 * @param resourcePath The path of the resource.
+	 * @param audioSeconds The duration of the resource in seconds.
+	 */
+	public synchronized void completed(String identifier, String resourcePath, double audioSeconds){
+		String absolutePath = new File(resourcePath).getAbsolutePath();
+		try {
+			writer.write(identifier + ";" + absolutePath + "\n");
+			writer.flush();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write to ingest journal " + path, e);
+		}
+		completedPaths.add(absolutePath);
+		processedResources++;
+		processedAudioSeconds += audioSeconds;
+	}
+
+	/**
+	 * @return The number of resources processed in this run.
+	 */
+	public synchronized int processedResources(){
+		return processedResources;
+	}
+
+	/**
+	 * @return A line with the progress, throughput and estimated remaining time of this run.
+	 */
+	public synchronized String progress(){
+		double seconds = Math.max(watch.timePassed(TimeUnit.SECONDS), 0.001);
+		double resourcesPerSecond = processedResources / seconds;
+		int remaining = Math.max(0, resourcesToProcess - processedResources);
+		String eta = processedResources == 0 ? "unknown" : StopWatch.formattedToString(remaining / resourcesPerSecond);
+		return String.format(Locale.US, "Stored %d/%d resources (%d resumed from journal), %.2f resources/s, %.1f s audio/s, ETA %s",
+				processedResources, resourcesToProcess, resumedResources, resourcesPerSecond, processedAudioSeconds / seconds, eta);
+	}
+
+	/**
+	 * Closes the journal file.
+	 */
+	public synchronized void close(){
+		try {
+			writer.close();
+		} catch (IOException e) {
+			LOG.warning("Could not close ingest journal " + path + ": " + e.getMessage());
+		}
+	}
+}
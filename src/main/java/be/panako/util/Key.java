@@ -47,6 +47,18 @@ public enum Key{
 	 * performance gain.
 	 */
 	CHECK_DUPLICATE_FILE_NAMES("TRUE"), 
+
+	/**
+	 * An append-only journal of the files stored by the store command. Files in the
+	 * journal are skipped without accessing them, so an interrupted batch store resumes
+	 * quickly. Leave empty to store without a journal.
+	 */
+	STORE_JOURNAL(""),
+
+	/**
+	 * The interval, in seconds, between progress reports of a journaled store.
+	 */
+	STORE_PROGRESS_INTERVAL(30),
 	
 	/**
 	 * The maximum file size (in MB) of files that are stored. Default is 6000 megabytes.
@@ -63,12 +75,54 @@ public enum Key{
 	 * 25-5=20 seconds.
 	 */
 	MONITOR_OVERLAP(5),
+
+	/**
+	 * Monitor files as a live stream at real time speed, to test live
+	 * monitoring offline.
+	 */
+	MONITOR_REAL_TIME("FALSE"),
+
+	/**
+	 * The number of threads which extract fingerprints for all
+	 * streams of a monitor service.
+	 */
+	MONITOR_SERVICE_THREADS(2),
+
+	/**
+	 * The time, in milliseconds, a monitor service waits before
+	 * polling its streams again when none of them had new audio.
+	 */
+	MONITOR_SERVICE_POLL_INTERVAL(10),
+
+	/**
+	 * The seconds of audio of a stream a monitor service reads ahead of
+	 * extraction. A stream with more pending audio is not read until
+	 * extraction catches up.
+	 */
+	MONITOR_SERVICE_MAX_PENDING_AUDIO(10),
+
+	/**
+	 * The number of closed windows of all streams which wait for a query
+	 * in a monitor service. If queries can not keep up, the oldest waiting
+	 * window is dropped.
+	 */
+	MONITOR_SERVICE_MAX_WAITING_WINDOWS(256),
 	
 	/**
 	 * Enabling the ffmpeg pipe allows support for almost all audio formats in the
-	 * known universe. When disabled Panako supports 16bit mono WAV.
+	 * known universe. JAVA decodes with javax.sound in the JVM, which avoids starting
+	 * a process for each resource. AUTO decodes the extensions listed in
+	 * DECODER_JAVA_EXTENSIONS in the JVM and uses the pipe for other formats: PIPE|JAVA|AUTO
+	 * The pipe is the default, JVM decoding is opt-in since its resampler differs from
+	 * the one of ffmpeg: prints extracted with AUTO or JAVA may differ slightly from
+	 * prints stored with the pipe, so switch before building an index.
 	 */
 	DECODER("PIPE"),
+
+	/**
+	 * The comma separated extensions of the audio files decoded in the JVM when the decoder is AUTO.
+	 */
+	DECODER_JAVA_EXTENSIONS("wav,wave,aif,aiff,aifc,au,snd"),
 	
 	/**
 	 * The pipe command environment
@@ -109,6 +163,69 @@ public enum Key{
 	 * available processors are used.
 	 */
 	AVAILABLE_PROCESSORS("1"),
+
+	/**
+	 * How the store, query, monitor and delete tasks are executed, PLATFORM|VIRTUAL.
+	 * With PLATFORM a fixed pool of AVAILABLE_PROCESSORS threads runs the tasks. With VIRTUAL
+	 * each task runs on a virtual thread, so tasks blocked on decoding or storage I/O do not
+	 * hold a core, while fingerprint extraction is bounded to AVAILABLE_PROCESSORS concurrent
+	 * extractions. VIRTUAL falls back to PLATFORM on a JDK without virtual threads.
+	 */
+	EXECUTION_MODE("PLATFORM"),
+
+	/**
+	 * The maximum number of tasks in flight when EXECUTION_MODE is VIRTUAL.
+	 */
+	MAX_TASKS_IN_FLIGHT(64),
+
+	/**
+	 * The initial size, in MB, of the memory map of an LMDB store. The map grows
+	 * when it is full. A store never shrinks below the size of its data file.
+	 */
+	LMDB_MAP_SIZE_MB(1024 * 1024),
+
+	/**
+	 * The size, in MB, up to which the memory map of an LMDB store grows.
+	 */
+	LMDB_MAX_MAP_SIZE_MB(16 * 1024 * 1024),
+
+	/**
+	 * The number of LMDB reader slots, the maximum number of concurrent read transactions.
+	 * With zero there are enough slots for all tasks in flight.
+	 */
+	LMDB_MAX_READERS(0),
+
+	/**
+	 * Let the operating system read ahead in the LMDB data file. Switch this off for random
+	 * probes in a store which is larger than memory.
+	 */
+	LMDB_READ_AHEAD("TRUE"),
+
+	/**
+	 * How LMDB syncs commits to disk, SYNC|NOMETASYNC|NOSYNC. NOMETASYNC and NOSYNC are meant
+	 * for bulk loads: an operating system crash may lose the last commits, the store is synced
+	 * when it is closed or when the program exits.
+	 */
+	LMDB_SYNC("SYNC"),
+
+	/**
+	 * Write to LMDB via a writable memory map. This is faster for bulk loads but the data
+	 * file takes the full size of the map.
+	 */
+	LMDB_WRITE_MAP("FALSE"),
+
+	/**
+	 * The number of threads hashing files concurrently when deduplicating with file hashes.
+	 * Hashing waits on storage rather than on the processor: on network storage more threads
+	 * than processors hide the latency.
+	 */
+	FILE_HASH_THREADS(16),
+
+	/**
+	 * When a query results in more candidate matches than this number, the
+	 * candidates are verified in parallel.
+	 */
+	PARALLEL_VERIFICATION_THRESHOLD(500),
 	
 	/**
 	 * The strategy (algorithm) to use, OLAF|PANAKO|PCH.
@@ -142,6 +259,12 @@ public enum Key{
 	 * Take audio buffers with a 2048 sample size
 	 */
 	PCH_SIZE(2048),
+	/**
+	 * The number of references which pass the coarse, shift invariant prefilter
+	 * and are compared exactly with the query. Zero or less disables the prefilter
+	 * so every reference is compared exactly.
+	 */
+	PCH_PREFILTER_SIZE(0),
 
 
 	///////////////////OLAF config
@@ -179,6 +302,90 @@ public enum Key{
 	 * Check if there are cached fingerprints and use them.
 	 */
 	OLAF_USE_CACHED_PRINTS("TRUE"),
+	/**
+	 * Cache the hits of frequently queried fingerprint hashes in memory,
+	 * in front of the inverted index.
+	 */
+	OLAF_QUERY_CACHE("FALSE"),
+	/**
+	 * The maximum number of query hashes kept in the query cache.
+	 */
+	OLAF_QUERY_CACHE_SIZE(100000),
+	/**
+	 * Keep the meta-data of frequently matched resources in memory,
+	 * in front of the storage.
+	 */
+	OLAF_METADATA_CACHE("TRUE"),
+	/**
+	 * The maximum number of resources kept in the meta-data cache.
+	 */
+	OLAF_METADATA_CACHE_SIZE(10000),
+	/**
+	 * Merge the index probes of queries running in parallel into a single
+	 * sorted sweep of the inverted index.
+	 */
+	OLAF_QUERY_COALESCE("FALSE"),
+	/**
+	 * The time, in microseconds, a sweep waits for other queries to join.
+	 */
+	OLAF_QUERY_COALESCE_WINDOW(200),
+	/**
+	 * The file with the stop list: hashes which are stored too often to be useful during a query.
+	 * The stop list is created with the prune command.
+	 */
+	OLAF_STOP_LIST_FILE("~/.panako/dbs/olaf_stop_list.txt"),
+	/**
+	 * Skip query hits with a hash on the stop list, if the stop list file exists.
+	 */
+	OLAF_USE_STOP_LIST("TRUE"),
+	/**
+	 * Hashes which are stored at least this many times end up on the stop list.
+	 */
+	OLAF_STOP_LIST_MIN_COUNT(5000),
+	/**
+	 * The number of fingerprints the deduplication keeps in memory. When there are
+	 * more, sorted runs of fingerprints are written to temporary files and merged.
+	 */
+	OLAF_DEDUP_PRINTS_IN_MEMORY(50_000_000),
+	/**
+	 * During deduplication, fingerprints with a hash shared by more than this number of
+	 * fingerprints are not paired: like hashes on the stop list they only add random hits.
+	 */
+	OLAF_DEDUP_MAX_HASH_FREQUENCY(200),
+	/**
+	 * The number of threads used to extract the fingerprints of a single audio file. With more
+	 * than one thread the audio is split into overlapping segments which are extracted in parallel.
+	 * This helps when storing a few long files: many files are already stored in parallel.
+	 */
+	OLAF_EXTRACTION_THREADS(1),
+	/**
+	 * The length, in seconds, of a segment extracted by one of the OLAF_EXTRACTION_THREADS.
+	 */
+	OLAF_EXTRACTION_SEGMENT_SIZE(60),
+	/**
+	 * Probe the index while the query is decoded and stop as soon as a match is found
+	 * with OLAF_PROGRESSIVE_QUERY_MIN_SCORE filtered hits and OLAF_PROGRESSIVE_QUERY_MIN_COVERAGE.
+	 * Short confident answers are returned faster, but only the first match is guaranteed to be found.
+	 */
+	OLAF_PROGRESSIVE_QUERY("FALSE"),
+	/**
+	 * The number of seconds of query audio between two probes of a progressive query.
+	 */
+	OLAF_PROGRESSIVE_QUERY_STEP(2),
+	/**
+	 * The minimum number of filtered hits of a confident match.
+	 */
+	OLAF_PROGRESSIVE_QUERY_MIN_SCORE(50),
+	/**
+	 * The minimum ratio of seconds with matching fingerprints of a confident match.
+	 */
+	OLAF_PROGRESSIVE_QUERY_MIN_COVERAGE(0.5),
+	/**
+	 * The way fingerprint components are packed into a hash, see OlafHashLayout. The layout is
+	 * recorded next to the index, in a PostgreSQL index and in the stop list: use the rehash command
+	 * to convert an existing index.
+	 */
+	OLAF_HASH_LAYOUT(1),
 	/**
 	 * The sample rate to use for the Olaf algorithm.
 	 * If audio with lower sample rate is used it is upsampled!
@@ -365,6 +572,33 @@ public enum Key{
 	 */
 	PANAKO_QUERY_RANGE(2),
 
+	/**
+	 * Next to the hash of each query fingerprint, also probe the variants of the hash
+	 * which are most likely stored for a distorted version of the fingerprint.
+	 */
+	PANAKO_MULTI_PROBE("FALSE"),
+
+	/**
+	 * The maximum number of variants probed for each query fingerprint.
+	 */
+	PANAKO_MULTI_PROBE_VARIANTS(4),
+
+	/**
+	 * Frequencies, in bins, which are within this margin of each other or of the border of
+	 * a quantization cell are considered borderline for multi probe queries.
+	 */
+	PANAKO_MULTI_PROBE_FREQUENCY_MARGIN(1),
+
+	/**
+	 * Magnitudes which differ less than this fraction are considered borderline for multi probe queries.
+	 */
+	PANAKO_MULTI_PROBE_MAGNITUDE_MARGIN(0.1),
+
+	/**
+	 * Time differences, in blocks, within this margin of each other are considered borderline for multi probe queries.
+	 */
+	PANAKO_MULTI_PROBE_TIME_MARGIN(1),
+
 	/**
 	 * Before filtering hits in the matching step, a true positive match should have at least this amount of hits
 	 */
@@ -423,11 +657,17 @@ public enum Key{
 	PANAKO_MIN_MATCH_DURATION(5),
 	
 	/**
-	 * The storage to use: MEM|LMDB
-	 * Stands for Memory, files on disk or the LMDB key-value store
+	 * The storage to use: MEM|LMDB|FILE|SNAPSHOT
+	 * Stands for Memory, the LMDB key-value store, files on disk or a memory mapped snapshot of sorted arrays
 	 */
 	PANAKO_STORAGE("LMDB"),
 
+	/**
+	 * The snapshot file of the sorted array storage, memory mapped at startup. A snapshot holds
+	 * at most 268 435 455 fingerprints: each column is mapped as a single buffer of at most 2GB.
+	 */
+	PANAKO_SNAPSHOT_FILE("~/.panako/dbs/panako_snapshot.bin"),
+
 	/**
 	 * Folder to store the lmdb databese
 	 */
@@ -444,6 +684,15 @@ public enum Key{
 	 * Use the cached fingerprints to skip fingerprint extraction if possible
 	 */
 	PANAKO_USE_CACHED_PRINTS("TRUE"),
+	/**
+	 * Cache the hits of frequently queried fingerprint hashes in memory,
+	 * in front of the inverted index.
+	 */
+	PANAKO_QUERY_CACHE("FALSE"),
+	/**
+	 * The maximum number of query hashes kept in the query cache.
+	 */
+	PANAKO_QUERY_CACHE_SIZE(100000),
 	/**
 	 * Use the default (CPU based JGaborator) Event point extractor or use CUDA/MPS for event point
 	 * extraction. The python server needs to be running if set to true.
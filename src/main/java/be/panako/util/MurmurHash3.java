@@ -26,7 +26,10 @@ public final class MurmurHash3 {
 
     /** 128 bits of state */
     public static final class LongPair {
-        private LongPair(){}
+        /**
+         * Create a pair to place a 128-bit hash in.
+         */
+        public LongPair(){}
         /**
          * First 64 bits of the 128-bit hash
          */
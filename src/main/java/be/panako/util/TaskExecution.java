@@ -0,0 +1,334 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import be.panako.cli.Application;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.AudioProcessor;
+
+/**
+ * Decides how the store, query, monitor and delete tasks are executed.
+ *
+ * By default a fixed pool of platform threads runs the tasks, one per available processor.
+ * In the virtual execution mode each task runs on its own virtual thread. Such tasks spend most
+ * of their life waiting on the decoder pipe or on storage I/O, which does not hold a core on a
+ * virtual thread. The CPU heavy fingerprint extraction is bounded separately with
+ * {@link #beginExtraction()} and {@link #endExtraction()} so that many files can be in flight
+ * without oversubscribing the cores. Only the signal processing holds a permit: an audio
+ * processor wrapped with {@link #boundedExtraction(AudioProcessor)} holds it per audio block, so
+ * reading the decoder pipe does not, and storage I/O triggered while extracting is run with
+ * {@link #outsideExtraction(Runnable)}.
+ *
+ * Virtual threads are looked up by reflection: the source level of Panako predates them and
+ * on older JDKs the mode falls back to platform threads.
+ *
+ * @author Joren Six
+ */
+public final class TaskExecution {
+	private final static Logger LOG = Logger.getLogger(TaskExecution.class.getName());
+
+	private static Semaphore extractionPermits = null;
+	private static int extractionPermitCount = 0;
+
+	/**
+	 * The permit held by the current thread, so the permit is returned to the semaphore it was taken from.
+	 */
+	private static final ThreadLocal<Permit> heldPermit = new ThreadLocal<>();
+
+	private static ExecutorService extractionWorkers = null;
+
+	private static boolean virtualThreadsChecked = false;
+	private static Method virtualThreadFactory = null;
+
+	private TaskExecution(){}
+
+	/**
+	 * @return True if tasks run on virtual threads: virtual threads are configured and supported by the JDK.
+	 */
+	public static boolean virtualThreads(){
+		return "VIRTUAL".equalsIgnoreCase(Config.get(Key.EXECUTION_MODE).trim()) && virtualThreadFactory() != null;
+	}
+
+	/**
+	 * @return The maximum number of tasks in flight at the same time.
+	 */
+	public static int maxTasksInFlight(){
+		if(!virtualThreads())
+			return Application.availableProcessors();
+		return Math.max(Application.availableProcessors(), Config.getInt(Key.MAX_TASKS_IN_FLIGHT));
+	}
+
+	/**
+	 * Creates an executor for store, query, monitor or delete tasks. In the virtual mode
+	 * submitting a task blocks while the maximum number of tasks is in flight.
+	 * @return A new executor, to shut down by the caller.
+	 */
+	public static ExecutorService newTaskExecutor(){
+		if(virtualThreads())
+			return new BoundedExecutor(newVirtualThreadExecutor(), maxTasksInFlight());
+		return Executors.newFixedThreadPool(Application.availableProcessors());
+	}
+
+	/**
+	 * Waits for a permit to extract fingerprints. Only bounds extraction in the virtual mode,
+	 * platform thread pools are already sized to the number of available processors.
+	 * Always pair with {@link #endExtraction()} in a finally block. A thread which already
+	 * holds a permit does not wait for a second one.
+	 */
+	public static void beginExtraction(){
+		Permit permit = heldPermit.get();
+		if(permit != null) {
+			permit.depth++;
+			return;
+		}
+		Semaphore permits = extractionPermits();
+		if(permits == null)
+			return;
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting to extract fingerprints", e);
+		}
+		heldPermit.set(new Permit(permits));
+	}
+
+	/**
+	 * Releases the permit acquired by {@link #beginExtraction()}.
+	 */
+	public static void endExtraction(){
+		Permit permit = heldPermit.get();
+		if(permit == null)
+			return;
+		if(permit.depth > 0) {
+			permit.depth--;
+			return;
+		}
+		heldPermit.remove();
+		permit.semaphore.release();
+	}
+
+	/**
+	 * Runs a task which does not need a core, e.g. flushing fingerprints to storage, without the
+	 * extraction permit of the current thread. The permit is acquired again afterwards.
+	 * @param task The task to run.
+	 */
+	public static void outsideExtraction(Runnable task){
+		Permit permit = heldPermit.get();
+		if(permit == null) {
+			task.run();
+			return;
+		}
+		heldPermit.remove();
+		permit.semaphore.release();
+		try {
+			task.run();
+		}finally {
+			permit.semaphore.acquireUninterruptibly();
+			heldPermit.set(permit);
+		}
+	}
+
+	/**
+	 * Wraps the audio processor which extracts fingerprints so that it holds an extraction permit,
+	 * see {@link #beginExtraction()}, while it processes a block. Decoding the next block happens
+	 * without a permit.
+	 * @param processor The fingerprint extractor.
+	 * @return The processor, or a bounded processor in the virtual mode.
+	 */
+	public static AudioProcessor boundedExtraction(final AudioProcessor processor){
+		if(!virtualThreads())
+			return processor;
+		return new AudioProcessor() {
+			@Override
+			public boolean process(AudioEvent audioEvent) {
+				beginExtraction();
+				try {
+					return processor.process(audioEvent);
+				}finally {
+					endExtraction();
+				}
+			}
+
+			@Override
+			public void processingFinished() {
+				beginExtraction();
+				try {
+					processor.processingFinished();
+				}finally {
+					endExtraction();
+				}
+			}
+		};
+	}
+
+	/**
+	 * A pool of daemon threads, one per available processor, shared by all tasks for the CPU heavy
+	 * parts of a single task, e.g. the segments of a long audio file. A part should not wait for
+	 * another part submitted to this pool.
+	 * @return The shared executor, not to be shut down by the caller.
+	 */
+	public static synchronized ExecutorService extractionWorkers(){
+		if(extractionWorkers == null){
+			extractionWorkers = Executors.newFixedThreadPool(Application.availableProcessors(), runnable -> {
+				Thread thread = new Thread(runnable, "Extraction worker");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return extractionWorkers;
+	}
+
+	private static synchronized Semaphore extractionPermits(){
+		if(!virtualThreads())
+			return null;
+		int processors = Application.availableProcessors();
+		//the configuration may change, e.g. between tests, keep the permits in sync
+		if(extractionPermits == null || extractionPermitCount != processors) {
+			extractionPermits = new Semaphore(processors, true);
+			extractionPermitCount = processors;
+		}
+		return extractionPermits;
+	}
+
+	private static synchronized Method virtualThreadFactory(){
+		if(!virtualThreadsChecked){
+			virtualThreadsChecked = true;
+			try {
+				Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				//on some JDKs virtual threads are a preview feature which is disabled by default
+				((ExecutorService) m.invoke(null)).shutdown();
+				virtualThreadFactory = m;
+			} catch (NoSuchMethodException e) {
+				LOG.warning("Virtual threads are not supported by this JDK, tasks run on platform threads.");
+			} catch (IllegalAccessException | InvocationTargetException | UnsupportedOperationException e) {
+				LOG.warning("Virtual threads are not available, tasks run on platform threads: " + e.getMessage());
+			}
+		}
+		return virtualThreadFactory;
+	}
+
+	private static ExecutorService newVirtualThreadExecutor(){
+		try {
+			return (ExecutorService) virtualThreadFactory().invoke(null);
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new RuntimeException("Could not create a virtual thread executor", e);
+		}
+	}
+
+	/**
+	 * Delegates to an executor but blocks submitters while the maximum number of tasks is in flight.
+	 */
+	private static class BoundedExecutor extends AbstractExecutorService {
+		private final ExecutorService delegate;
+		private final Semaphore inFlight;
+
+		BoundedExecutor(ExecutorService delegate, int maxTasksInFlight){
+			this.delegate = delegate;
+			this.inFlight = new Semaphore(maxTasksInFlight);
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			try {
+				inFlight.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted while waiting for a task slot", e);
+			}
+			try {
+				delegate.execute(() -> {
+					try {
+						command.run();
+					} finally {
+						inFlight.release();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				inFlight.release();
+				throw e;
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			delegate.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return delegate.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return delegate.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return delegate.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return delegate.awaitTermination(timeout, unit);
+		}
+	}
+
+	/**
+	 * An extraction permit and the number of nested {@link #beginExtraction()} calls on top of it.
+	 */
+	private static final class Permit {
+		final Semaphore semaphore;
+		int depth = 0;
+
+		Permit(Semaphore semaphore){
+			this.semaphore = semaphore;
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size bounded, concurrent and frequency aware cache. The design follows the
+ * W-TinyLFU policy: new entries enter a small LRU window. When the window
+ * overflows its least recently used entry competes with the least recently used
+ * entry of the main region. Only the one which is requested most often -
+ * according to a compact count-min sketch - is kept. This makes the cache
+ * resistant to scans: a burst of one-off keys does not flush the frequently used
+ * entries.
+ *
+ * To allow concurrent access the cache is split in a number of independently
+ * locked stripes, each with its own window, main region and frequency sketch.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class TinyLFUCache<K,V> {
+
+	private final Stripe<K,V>[] stripes;
+	private final int stripeMask;
+	private final int maximumSize;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+
+	/**
+	 * Create a new cache which holds at most the given amount of entries.
+	 * @param maximumSize The maximum number of entries in the cache.
+	 */
+	@SuppressWarnings("unchecked")
+	public TinyLFUCache(int maximumSize){
+		if(maximumSize <= 0)
+			throw new IllegalArgumentException("The maximum size of the cache should be positive, is " + maximumSize);
+		this.maximumSize = maximumSize;
+		// small caches are not worth striping
+		int numberOfStripes = Integer.highestOneBit(Math.max(1,Math.min(64,maximumSize / 256)));
+		stripes = new Stripe[numberOfStripes];
+		for(int i = 0 ; i < numberOfStripes ; i++){
+			stripes[i] = new Stripe<>(Math.max(1,maximumSize/numberOfStripes));
+		}
+		stripeMask = numberOfStripes - 1;
+		hits = new LongAdder();
+		misses = new LongAdder();
+		evictions = new LongAdder();
+	}
+
+	private static int spread(Object key){
+		int h = key.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private Stripe<K,V> stripeFor(int spreadHash){
+		return stripes[(spreadHash >>> 8) & stripeMask];
+	}
+
+	/**
+	 * Returns the cached value for the key and records the access.
+	 * @param key The key to look for.
+	 * @return The cached value or null if the key is not present in the cache.
+	 */
+	public V get(K key){
+		int h = spread(key);
+		V value = stripeFor(h).get(key,h);
+		if(value == null)
+			misses.increment();
+		else
+			hits.increment();
+		return value;
+	}
+
+	/**
+	 * Offer a value to the cache. The value is only kept when the admission
+	 * policy deems it more valuable than the entry it would replace.
+	 * @param key The key.
+	 * @param value The value, not null.
+	 */
+	public void put(K key, V value){
+		evictions.add(stripeFor(spread(key)).put(key,value));
+	}
+
+	/**
+	 * Remove the key from the cache, if present.
+	 * @param key The key to remove.
+	 */
+	public void invalidate(K key){
+		stripeFor(spread(key)).invalidate(key);
+	}
+
+	/**
+	 * Remove all entries from the cache. The statistics are kept.
+	 */
+	public void clear(){
+		for(Stripe<K,V> stripe : stripes)
+			stripe.clear();
+	}
+
+	/**
+	 * @return The current number of entries in the cache.
+	 */
+	public int size(){
+		int size = 0;
+		for(Stripe<K,V> stripe : stripes)
+			size += stripe.size();
+		return size;
+	}
+
+	/**
+	 * @return The maximum number of entries in the cache.
+	 */
+	public int maximumSize(){
+		return maximumSize;
+	}
+
+	/**
+	 * @return The number of lookups which returned a value.
+	 */
+	public long hitCount(){
+		return hits.sum();
+	}
+
+	/**
+	 * @return The number of lookups which did not return a value.
+	 */
+	public long missCount(){
+		return misses.sum();
+	}
+
+	/**
+	 * @return The number of entries evicted or rejected by the admission policy.
+	 */
+	public long evictionCount(){
+		return evictions.sum();
+	}
+
+	/**
+	 * @return The ratio of lookups which returned a value, between zero and one.
+	 */
+	public double hitRate(){
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : h / (double) total;
+	}
+
+	private static class Stripe<K,V>{
+		private final LinkedHashMap<K,V> window;
+		private final LinkedHashMap<K,V> main;
+		private final int windowSize;
+		private final int mainSize;
+		private final FrequencySketch sketch;
+
+		Stripe(int capacity){
+			windowSize = Math.max(1, capacity / 100);
+			mainSize = Math.max(1, capacity - windowSize);
+			window = new LinkedHashMap<>(16,0.75f,true);
+			main = new LinkedHashMap<>(16,0.75f,true);
+			sketch = new FrequencySketch(capacity);
+		}
+
+		synchronized V get(K key, int spreadHash){
+			sketch.increment(spreadHash);
+			V value = window.get(key);
+			if(value == null)
+				value = main.get(key);
+			return value;
+		}
+
+		/**
+		 * @return The number of evicted or rejected entries.
+		 */
+		synchronized int put(K key, V value){
+			if(main.containsKey(key)){
+				main.put(key,value);
+				return 0;
+			}
+			window.put(key,value);
+			if(window.size() <= windowSize)
+				return 0;
+
+			// the window overflows: its eldest entry becomes a candidate for the main region
+			Iterator<Map.Entry<K,V>> windowIterator = window.entrySet().iterator();
+			Map.Entry<K,V> candidate = windowIterator.next();
+			windowIterator.remove();
+			if(main.size() < mainSize){
+				main.put(candidate.getKey(),candidate.getValue());
+				return 0;
+			}
+			K victim = main.keySet().iterator().next();
+			if(sketch.frequency(spread(candidate.getKey())) > sketch.frequency(spread(victim))){
+				main.remove(victim);
+				main.put(candidate.getKey(),candidate.getValue());
+			}
+			return 1;
+		}
+
+		synchronized void invalidate(K key){
+			window.remove(key);
+			main.remove(key);
+		}
+
+		synchronized void clear(){
+			window.clear();
+			main.clear();
+		}
+
+		synchronized int size(){
+			return window.size() + main.size();
+		}
+	}
+
+	/**
+	 * A count-min sketch with four rows of small saturating counters. To let
+	 * the sketch follow changes in popularity all counters are halved periodically.
+	 */
+	private static class FrequencySketch{
+		private static final int[] SEEDS = {0x97CB3127, 0xB0A0E1F3, 0x3E5A6F15, 0xC2B2AE35};
+		private static final int MAX_COUNT = 15;
+		private final byte[][] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int capacity){
+			int width = Integer.highestOneBit(Math.max(16, capacity) * 2 - 1);
+			table = new byte[SEEDS.length][width];
+			mask = width - 1;
+			sampleSize = 10 * Math.max(16, capacity);
+		}
+
+		private int index(int spreadHash, int row){
+			int h = (spreadHash + SEEDS[row]) * SEEDS[row];
+			return (h ^ (h >>> 17)) & mask;
+		}
+
+		void increment(int spreadHash){
+			for(int row = 0 ; row < table.length ; row++){
+				int i = index(spreadHash,row);
+				if(table[row][i] < MAX_COUNT)
+					table[row][i]++;
+			}
+			if(++additions == sampleSize)
+				age();
+		}
+
+		int frequency(int spreadHash){
+			int frequency = MAX_COUNT;
+			for(int row = 0 ; row < table.length ; row++)
+				frequency = Math.min(frequency, table[row][index(spreadHash,row)]);
+			return frequency;
+		}
+
+		private void age(){
+			for(byte[] row : table)
+				for(int i = 0 ; i < row.length ; i++)
+					row[i] = (byte) (row[i] >> 1);
+			additions = additions / 2;
+		}
+	}
+}
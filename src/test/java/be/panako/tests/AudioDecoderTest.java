@@ -0,0 +1,169 @@
+package be.panako.tests;
+
+import be.panako.util.AudioDecoder;
+import be.panako.util.AudioFileUtils;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.tarsos.dsp.io.TarsosDSPAudioInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AudioDecoderTest {
+
+    private String originalDecoder;
+
+    @BeforeEach
+    void setUp() {
+        originalDecoder = Config.get(Key.DECODER);
+        //JVM decoding is opt-in, the default decoder is the pipe
+        Config.set(Key.DECODER, "AUTO");
+    }
+
+    @AfterEach
+    void tearDown() {
+        Config.set(Key.DECODER, originalDecoder);
+    }
+
+    private static File writeSine(Path folder, String name, float sampleRate, int channels, double seconds, double frequency) throws IOException {
+        int frames = (int) (sampleRate * seconds);
+        byte[] data = new byte[frames * channels * 2];
+        for (int i = 0; i < frames; i++) {
+            short s = (short) Math.round(0.5 * 32767 * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+            for (int c = 0; c < channels; c++) {
+                int offset = (i * channels + c) * 2;
+                data[offset] = (byte) s;
+                data[offset + 1] = (byte) (s >> 8);
+            }
+        }
+        AudioFormat format = new AudioFormat(sampleRate, 16, channels, true, false);
+        File file = new File(folder.toFile(), name);
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data), format, frames), AudioFileFormat.Type.WAVE, file);
+        return file;
+    }
+
+    private static float[] decode(File file, int sampleRate, double start, double seconds) throws Exception {
+        TarsosDSPAudioInputStream stream = AudioDecoder.open(file.getAbsolutePath(), sampleRate, start, seconds);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = stream.read(buffer, 0, buffer.length)) > 0)
+            out.write(buffer, 0, read);
+        stream.close();
+        byte[] bytes = out.toByteArray();
+        float[] samples = new float[bytes.length / 2];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = (short) ((bytes[2 * i] & 0xFF) | (bytes[2 * i + 1] << 8)) / 32768f;
+        return samples;
+    }
+
+    private static double rms(float[] samples, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++)
+            sum += samples[i] * samples[i];
+        return Math.sqrt(sum / (to - from));
+    }
+
+    private static int zeroCrossings(float[] samples) {
+        int crossings = 0;
+        for (int i = 1; i < samples.length; i++)
+            if ((samples[i - 1] < 0) != (samples[i] < 0))
+                crossings++;
+        return crossings;
+    }
+
+    @Test
+    void testResampling(@TempDir Path folder) throws Exception {
+        File file = writeSine(folder, "sine.wav", 44100, 2, 30, 440);
+        float[] samples = decode(file, 16000, 10, 10);
+        assertEquals(160000, samples.length, 1);
+        assertEquals(0.5 / Math.sqrt(2), rms(samples, 1000, samples.length - 1000), 0.01);
+        assertEquals(440 * 2 * 10, zeroCrossings(samples), 4);
+
+        //a tone above the new nyquist frequency is filtered instead of aliased
+        File high = writeSine(folder, "high.wav", 44100, 1, 2, 10000);
+        float[] filtered = decode(high, 16000, 0, -1);
+        assertEquals(32000, filtered.length, 1);
+        assertTrue(rms(filtered, 1000, filtered.length - 1000) < 0.01, "Tones above nyquist should be removed");
+
+        File low = writeSine(folder, "low.wav", 8000, 1, 2, 440);
+        float[] upsampled = decode(low, 16000, 0, -1);
+        assertEquals(32000, upsampled.length, 1);
+        assertEquals(0.5 / Math.sqrt(2), rms(upsampled, 1000, upsampled.length - 1000), 0.01);
+    }
+
+    @Test
+    void testSameSampleRate(@TempDir Path folder) throws Exception {
+        File file = writeSine(folder, "sine.wav", 16000, 1, 5, 1000);
+        float[] samples = decode(file, 16000, 1, 2);
+        assertEquals(32000, samples.length);
+        for (int i = 0; i < samples.length; i++) {
+            float expected = (short) Math.round(0.5 * 32767 * Math.sin(2 * Math.PI * 1000 * (i + 16000) / 16000.0)) / 32768f;
+            assertEquals(expected, samples[i], 1.5 / 32768);
+        }
+        assertEquals(5.0f, AudioFileUtils.audioFileDurationInSeconds(file), 0.001);
+    }
+
+    @Test
+    void testDecodesInJvm(@TempDir Path folder) throws IOException {
+        File file = writeSine(folder, "sine.wav", 16000, 1, 1, 1000);
+        assertTrue(AudioDecoder.decodesInJvm(file.getAbsolutePath()));
+        assertFalse(AudioDecoder.decodesInJvm(new File(folder.toFile(), "missing.wav").getAbsolutePath()));
+        assertFalse(AudioDecoder.decodesInJvm(new File(folder.toFile(), "query.mp3").getAbsolutePath()));
+    }
+
+    @Test
+    void testDecodeLatency(@TempDir Path folder) throws Exception {
+        File file = writeSine(folder, "sine.wav", 44100, 2, 60, 440);
+        int runs = 20;
+        decode(file, 16000, 20, 10);
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++)
+            decode(file, 16000, 20, 10);
+        double jvmLatency = (System.nanoTime() - start) / 1e6 / runs;
+
+        String command = Config.get(Key.DECODER_PIPE_COMMAND)
+                .replace("%input_seeking%", "20").replace("%number_of_seconds%", "-t 10")
+                .replace("%resource%", file.getAbsolutePath()).replace("%sample_rate%", "16000")
+                .replace("%channels%", "1");
+        double pipeLatency = Double.NaN;
+        try {
+            start = System.nanoTime();
+            for (int i = 0; i < runs; i++)
+                runPipe(command);
+            pipeLatency = (System.nanoTime() - start) / 1e6 / runs;
+        } catch (IOException e) {
+            //no pipe decoder available
+        }
+        System.out.printf("Decoding a 10s clip: %.2fms in the JVM, %.2fms with the pipe%n", jvmLatency, pipeLatency);
+    }
+
+    private static void runPipe(String command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(Config.get(Key.DECODER_PIPE_ENVIRONMENT), Config.get(Key.DECODER_PIPE_ENVIRONMENT_ARG), command).start();
+        byte[] buffer = new byte[4096];
+        long total = 0;
+        try (InputStream in = process.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) > 0)
+                total += read;
+        }
+        if (process.waitFor() != 0 || total == 0)
+            throw new IOException("Pipe decoder failed");
+    }
+}
@@ -0,0 +1,283 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.OlafEventPoint;
+import be.panako.util.EventPointIndex;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventPointIndexTest {
+
+    private static final int MIN_TIME_DISTANCE = 2;
+    private static final int MAX_TIME_DISTANCE = 33;
+    private static final int MIN_FREQUENCY_DISTANCE = 1;
+    private static final int MAX_FREQUENCY_DISTANCE = 128;
+    private static final int NUMBER_OF_BINS = 512;
+
+    /**
+     * Random event points in order of time and frequency, with a number of event points per time step.
+     * @return The times and frequencies of the event points.
+     */
+    private int[][] eventPoints(int timeSteps, int eventPointsPerStep, long seed){
+        Random r = new Random(seed);
+        int[] times = new int[timeSteps * eventPointsPerStep];
+        int[] frequencies = new int[times.length];
+        int n = 0;
+        for(int t = 0 ; t < timeSteps ; t++){
+            //time steps without event points
+            if(r.nextInt(10) == 0)
+                continue;
+            TreeSet<Integer> bins = new TreeSet<>();
+            int count = 1 + r.nextInt(eventPointsPerStep);
+            while(bins.size() < count)
+                bins.add(r.nextInt(NUMBER_OF_BINS));
+            for(int f : bins){
+                times[n] = t;
+                frequencies[n] = f;
+                n++;
+            }
+        }
+        return new int[][]{Arrays.copyOf(times, n), Arrays.copyOf(frequencies, n)};
+    }
+
+    /**
+     * The scan over all following event points, as used before the index.
+     */
+    private long naiveTriplets(int[] t, int[] f, int from, int to, int minT, int maxT, int minF, int maxF, long[] checksum){
+        long count = 0;
+        for(int i = from ; i < to ; i++){
+            for(int j = i + 1 ; j < to ; j++){
+                int tDiff = t[j] - t[i];
+                int fDiff = Math.abs(f[j] - f[i]);
+                if(tDiff > maxT) break;
+                if(tDiff < minT) continue;
+                if(fDiff < minF) continue;
+                if(fDiff > maxF) continue;
+                for(int k = j + 1 ; k < to ; k++){
+                    tDiff = t[k] - t[j];
+                    fDiff = Math.abs(f[k] - f[j]);
+                    if(tDiff > maxT) break;
+                    if(tDiff < minT) continue;
+                    if(fDiff < minF) continue;
+                    if(fDiff > maxF) continue;
+                    checksum[0] = checksum[0] * 31 + i * 1_000_003L + j * 1009L + k;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private long indexedTriplets(EventPointIndex index, int offset, long[] checksum){
+        long[] count = {0};
+        for(int i = 0 ; i < index.size() ; i++){
+            index.packTriplets(i, (a, b, c) -> {
+                checksum[0] = checksum[0] * 31 + (a + offset) * 1_000_003L + (b + offset) * 1009L + (c + offset);
+                count[0]++;
+            });
+        }
+        return count[0];
+    }
+
+    private EventPointIndex index(int[][] points, int minT, int maxT, int minF, int maxF){
+        EventPointIndex index = new EventPointIndex(minT, maxT, minF, maxF);
+        for(int i = 0 ; i < points[0].length ; i++)
+            index.add(points[0][i], points[1][i]);
+        return index;
+    }
+
+    @Test
+    void testTripletsEqualScan(){
+        int[][] points = eventPoints(2_000, 6, 0L);
+        int[][] distances = {{2, 33, 1, 128}, {0, 10, 0, 40}, {1, 5, 30, 60}};
+        for(int[] d : distances){
+            long[] expected = {0};
+            long expectedCount = naiveTriplets(points[0], points[1], 0, points[0].length, d[0], d[1], d[2], d[3], expected);
+            long[] actual = {0};
+            long actualCount = indexedTriplets(index(points, d[0], d[1], d[2], d[3]), 0, actual);
+            assertTrue(expectedCount > 0);
+            assertEquals(expectedCount, actualCount, "The same number of fingerprints should be packed");
+            assertEquals(expected[0], actual[0], "The same fingerprints should be packed in the same order");
+        }
+    }
+
+    @Test
+    void testPairsEqualScan(){
+        int[][] points = eventPoints(1_000, 6, 1L);
+        EventPointIndex index = index(points, MIN_TIME_DISTANCE, MAX_TIME_DISTANCE, MIN_FREQUENCY_DISTANCE, MAX_FREQUENCY_DISTANCE);
+        int[] t = points[0];
+        int[] f = points[1];
+        for(int i = 0 ; i < t.length ; i++){
+            StringBuilder expected = new StringBuilder();
+            for(int j = i + 1 ; j < t.length ; j++){
+                int tDiff = t[j] - t[i];
+                int fDiff = Math.abs(f[j] - f[i]);
+                if(tDiff > MAX_TIME_DISTANCE) break;
+                if(tDiff < MIN_TIME_DISTANCE || fDiff < MIN_FREQUENCY_DISTANCE || fDiff > MAX_FREQUENCY_DISTANCE) continue;
+                expected.append(j).append(',');
+            }
+            StringBuilder actual = new StringBuilder();
+            index.packPairs(i, (a, b) -> actual.append(b).append(','));
+            assertEquals(expected.toString(), actual.toString());
+        }
+    }
+
+    @Test
+    void testRemoveFirst(){
+        int[][] points = eventPoints(1_000, 6, 2L);
+        int n = points[0].length;
+        EventPointIndex index = index(points, MIN_TIME_DISTANCE, MAX_TIME_DISTANCE, MIN_FREQUENCY_DISTANCE, MAX_FREQUENCY_DISTANCE);
+        //remove event points in chunks which do not align with time steps
+        int removed = 0;
+        for(int chunk : new int[]{3, 17, 1, 250, 9}){
+            index.removeFirst(chunk);
+            removed += chunk;
+            assertEquals(n - removed, index.size());
+            assertEquals(points[0][removed], index.time(0));
+            assertEquals(points[1][removed], index.frequency(0));
+
+            long[] expected = {0};
+            long expectedCount = naiveTriplets(points[0], points[1], removed, n, MIN_TIME_DISTANCE, MAX_TIME_DISTANCE, MIN_FREQUENCY_DISTANCE, MAX_FREQUENCY_DISTANCE, expected);
+            long[] actual = {0};
+            long actualCount = indexedTriplets(index, removed, actual);
+            assertEquals(expectedCount, actualCount);
+            assertEquals(expected[0], actual[0]);
+        }
+    }
+
+    @Test
+    void testStreamingPacking(){
+        int[][] points = eventPoints(20_000, 4, 4L);
+        int[] t = points[0];
+        int[] f = points[1];
+        long[] expected = {0};
+        long expectedCount = naiveTriplets(t, f, 0, t.length, MIN_TIME_DISTANCE, MAX_TIME_DISTANCE, MIN_FREQUENCY_DISTANCE, MAX_FREQUENCY_DISTANCE, expected);
+
+        //add event points time step by time step, pack and remove the ones which are complete
+        EventPointIndex index = new EventPointIndex(MIN_TIME_DISTANCE, MAX_TIME_DISTANCE, MIN_FREQUENCY_DISTANCE, MAX_FREQUENCY_DISTANCE);
+        long[] actual = {0};
+        long[] actualCount = {0};
+        int[] packed = {0};
+        int next = 0;
+        for(int time = 0 ; time <= t[t.length - 1] + 2 * MAX_TIME_DISTANCE ; time++){
+            while(next < t.length && t[next] == time){
+                index.add(t[next], f[next]);
+                next++;
+            }
+            int completed = 0;
+            while(completed < index.size() && index.time(completed) + 2 * MAX_TIME_DISTANCE <= time){
+                index.packTriplets(completed, (a, b, c) -> {
+                    actual[0] = actual[0] * 31 + (a + packed[0]) * 1_000_003L + (b + packed[0]) * 1009L + (c + packed[0]);
+                    actualCount[0]++;
+                });
+                completed++;
+            }
+            index.removeFirst(completed);
+            packed[0] += completed;
+        }
+        assertEquals(t.length, packed[0]);
+        assertEquals(expectedCount, actualCount[0]);
+        assertEquals(expected[0], actual[0]);
+    }
+
+    @Test
+    void testUnorderedEventPointsAreRejected(){
+        EventPointIndex index = new EventPointIndex(MIN_TIME_DISTANCE, MAX_TIME_DISTANCE, MIN_FREQUENCY_DISTANCE, MAX_FREQUENCY_DISTANCE);
+        index.add(10, 100);
+        index.add(10, 120);
+        try{
+            index.add(10, 50);
+        }catch(IllegalArgumentException e){
+            return;
+        }
+        throw new AssertionError("An event point added out of order should be rejected");
+    }
+
+    /**
+     * The scan over a list of event point objects, as used before the index.
+     */
+    private long listScanTriplets(List<OlafEventPoint> eventPoints){
+        long count = 0;
+        for(int i = 0 ; i < eventPoints.size() ; i++){
+            int t1 = eventPoints.get(i).t;
+            int f1 = eventPoints.get(i).f;
+            for(int j = i + 1 ; j < eventPoints.size() ; j++){
+                int t2 = eventPoints.get(j).t;
+                int f2 = eventPoints.get(j).f;
+                int tDiff = t2 - t1;
+                int fDiff = Math.abs(f1 - f2);
+                if(tDiff > MAX_TIME_DISTANCE) break;
+                if(tDiff < MIN_TIME_DISTANCE) continue;
+                if(fDiff < MIN_FREQUENCY_DISTANCE) continue;
+                if(fDiff > MAX_FREQUENCY_DISTANCE) continue;
+                for(int k = j + 1 ; k < eventPoints.size() ; k++){
+                    int t3 = eventPoints.get(k).t;
+                    int f3 = eventPoints.get(k).f;
+                    tDiff = t3 - t2;
+                    fDiff = Math.abs(f2 - f3);
+                    if(tDiff > MAX_TIME_DISTANCE) break;
+                    if(tDiff < MIN_TIME_DISTANCE) continue;
+                    if(fDiff < MIN_FREQUENCY_DISTANCE) continue;
+                    if(fDiff > MAX_FREQUENCY_DISTANCE) continue;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Test
+    void testDenseEventPointsEqualScan(){
+        int[][] points = eventPoints(300, 10, 4L);
+        List<OlafEventPoint> eventPoints = new ArrayList<>();
+        for(int i = 0 ; i < points[0].length ; i++)
+            eventPoints.add(new OlafEventPoint(points[0][i], points[1][i], 1.0f));
+        EventPointIndex index = index(points, MIN_TIME_DISTANCE, MAX_TIME_DISTANCE, MIN_FREQUENCY_DISTANCE, MAX_FREQUENCY_DISTANCE);
+        long[] count = {0};
+        for(int i = 0 ; i < index.size() ; i++)
+            index.packTriplets(i, (a, b, c) -> count[0]++);
+        assertEquals(listScanTriplets(eventPoints), count[0]);
+    }
+
+    /**
+     * Benchmark on dense event points, as extracted from dense music: many event points for each time step.
+     * This benchmark only runs with the slowTest task.
+     */
+    @Test
+    @Tag("slow")
+    void testDenseMusicBenchmark(){
+        int[][] points = eventPoints(4_000, 10, 3L);
+        List<OlafEventPoint> eventPoints = new ArrayList<>();
+        for(int i = 0 ; i < points[0].length ; i++)
+            eventPoints.add(new OlafEventPoint(points[0][i], points[1][i], 1.0f));
+
+        long[] counts = new long[2];
+        long[] times = new long[2];
+        //the first round warms up the JIT
+        for(int round = 0 ; round < 2 ; round++){
+            long start = System.nanoTime();
+            counts[0] = listScanTriplets(eventPoints);
+            times[0] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            EventPointIndex index = index(points, MIN_TIME_DISTANCE, MAX_TIME_DISTANCE, MIN_FREQUENCY_DISTANCE, MAX_FREQUENCY_DISTANCE);
+            long[] count = {0};
+            for(int i = 0 ; i < index.size() ; i++)
+                index.packTriplets(i, (a, b, c) -> count[0]++);
+            counts[1] = count[0];
+            times[1] = System.nanoTime() - start;
+        }
+
+        assertEquals(counts[0], counts[1]);
+        System.out.printf("Packed %d fingerprints from %d event points: scan %.1fms, index %.1fms%n",
+                counts[1], eventPoints.size(), times[0] / 1e6, times[1] / 1e6);
+    }
+}
@@ -0,0 +1,64 @@
+package be.panako.tests;
+
+import be.panako.util.IngestJournal;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IngestJournalTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void testResume() {
+        String journalPath = folder.resolve("journal.txt").toString();
+        IngestJournal journal = new IngestJournal(journalPath);
+        journal.setResourcesToProcess(3);
+        journal.completed("1", "/music/1.mp3", 180);
+        journal.completed("2", "/music/a;b.mp3", 200);
+        assertEquals(2, journal.processedResources());
+        assertTrue(journal.progress().contains("2/3"), journal.progress());
+        journal.close();
+
+        //the files themselves do not exist, the journal alone decides
+        IngestJournal resumed = new IngestJournal(journalPath);
+        assertEquals(2, resumed.resumedResources());
+        assertTrue(resumed.isCompleted("/music/1.mp3"));
+        assertTrue(resumed.isCompleted("/music/a;b.mp3"));
+        assertFalse(resumed.isCompleted("/music/3.mp3"));
+        resumed.close();
+    }
+
+    @Test
+    void testPartiallyWrittenLineIsIgnored() throws IOException {
+        String journalPath = folder.resolve("journal.txt").toString();
+        IngestJournal journal = new IngestJournal(journalPath);
+        journal.completed("1", "/music/1.mp3", 180);
+        journal.close();
+
+        //the JVM stopped while writing a line
+        Files.write(new File(journalPath).toPath(), "2;/music/2.m".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        IngestJournal resumed = new IngestJournal(journalPath);
+        assertEquals(1, resumed.resumedResources());
+        assertFalse(resumed.isCompleted("/music/2.m"));
+        resumed.completed("2", "/music/2.mp3", 120);
+        resumed.close();
+
+        IngestJournal again = new IngestJournal(journalPath);
+        assertEquals(2, again.resumedResources());
+        assertTrue(again.isCompleted("/music/2.mp3"));
+        again.close();
+    }
+}
@@ -0,0 +1,144 @@
+package be.panako.tests;
+
+import be.panako.strategy.KeyValueBuffers;
+import be.panako.strategy.olaf.storage.OlafHit;
+import be.panako.strategy.olaf.storage.OlafResourceMetadata;
+import be.panako.strategy.olaf.storage.OlafStorageKV;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyValueBuffersTest {
+
+    private static final int NUMBER_OF_HASHES = 20_000;
+
+    private final Map<Key,String> originalConfig = new HashMap<>();
+    private String folder;
+
+    @BeforeEach
+    void setUp() {
+        folder = FileUtils.combine(FileUtils.temporaryDirectory(),"olaf_key_value_buffers_test");
+        removeStore();
+        originalConfig.put(Key.OLAF_LMDB_FOLDER, Config.get(Key.OLAF_LMDB_FOLDER));
+        Config.set(Key.OLAF_LMDB_FOLDER, folder);
+    }
+
+    private void removeStore(){
+        FileUtils.rm(FileUtils.combine(folder,"data.mdb"));
+        FileUtils.rm(FileUtils.combine(folder,"lock.mdb"));
+        FileUtils.rm(folder);
+    }
+
+    @AfterEach
+    void tearDown() {
+        originalConfig.forEach(Config::set);
+        removeStore();
+    }
+
+    @Test
+    void testBuffersAreReusedAndDecodedInPlace(){
+        KeyValueBuffers buffers = KeyValueBuffers.get();
+        ByteBuffer key = buffers.hashKey(-123456789L);
+        assertSame(key, buffers.hashKey(42L));
+        assertEquals(42L, KeyValueBuffers.hash(key));
+        assertEquals(0, key.position());
+        assertEquals(8, key.remaining());
+
+        //a big endian view of the same bytes decodes to the same hash and keeps its order
+        ByteBuffer bigEndian = key.duplicate().order(ByteOrder.BIG_ENDIAN);
+        assertEquals(42L, KeyValueBuffers.hash(bigEndian));
+        assertEquals(ByteOrder.BIG_ENDIAN, bigEndian.order());
+
+        ByteBuffer val = buffers.fingerprintValue(7, 8, 9);
+        assertEquals(12, val.remaining());
+        assertEquals(9, KeyValueBuffers.intAt(val, 2));
+        val = buffers.fingerprintValue(7, 8);
+        assertEquals(8, val.remaining());
+        assertEquals(7, KeyValueBuffers.intAt(val, 0));
+        assertEquals(8, KeyValueBuffers.intAt(val, 1));
+        assertEquals(0, val.position());
+
+        ByteBuffer metadata = buffers.metadataValue(12.5f, 300, "/short");
+        assertEquals(12.5f, KeyValueBuffers.duration(metadata));
+        assertEquals(300, KeyValueBuffers.numberOfFingerprints(metadata));
+        assertEquals("/short", KeyValueBuffers.path(metadata));
+        assertEquals(0, metadata.position());
+
+        //the meta-data buffer grows for long paths
+        String longPath = "/" + "\u00e9".repeat(1000);
+        metadata = buffers.metadataValue(1, 2, longPath);
+        assertEquals(longPath, KeyValueBuffers.path(metadata));
+    }
+
+    @Test
+    void testProbesDoNotAllocate(){
+        OlafStorageKV storage = new OlafStorageKV();
+        try {
+            for(int i = 1 ; i <= NUMBER_OF_HASHES ; i++)
+                storage.addToStoreQueue(i * 16L, i % 100, i);
+            storage.processStoreQueue();
+            storage.storeMetadata(5L, "/test/path", 100, 2000);
+
+            OlafResourceMetadata metadata = storage.getMetadata(5L);
+            assertEquals("/test/path", metadata.path);
+            assertEquals(2000, metadata.numFingerprints);
+
+            Map<Long,List<OlafHit>> matchAccumulator = new HashMap<>();
+            Set<Integer> resourcesToAvoid = new HashSet<>();
+            //the hits are decoded correctly
+            probe(storage, matchAccumulator, resourcesToAvoid, 1000, 0);
+            assertEquals(1000, matchAccumulator.size());
+            OlafHit hit = matchAccumulator.get(16L * 10).get(0);
+            assertEquals(16L * 10, hit.matchedNearHash);
+            assertEquals(10, hit.resourceID);
+            assertEquals(10, hit.t);
+            matchAccumulator.clear();
+
+            //misses only measure the probe itself, not the hits it returns
+            for(int i = 0 ; i < 5 ; i++)
+                probe(storage, matchAccumulator, resourcesToAvoid, NUMBER_OF_HASHES, 8);
+            long few = probe(storage, matchAccumulator, resourcesToAvoid, 1000, 8);
+            long many = probe(storage, matchAccumulator, resourcesToAvoid, NUMBER_OF_HASHES, 8);
+            assertTrue(matchAccumulator.isEmpty());
+
+            double bytesPerProbe = (many - few) / (double) (NUMBER_OF_HASHES - 1000);
+            System.out.printf("Allocated per probe: %.3f bytes (%d bytes for 1000 probes, %d bytes for %d probes)%n",
+                    bytesPerProbe, few, many, NUMBER_OF_HASHES);
+            assertTrue(bytesPerProbe < 1, "A probe should not allocate, allocated bytes per probe: " + bytesPerProbe);
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * Probes the first hashes with an offset and returns the bytes allocated by the probes.
+     */
+    private static long probe(OlafStorageKV storage, Map<Long,List<OlafHit>> matchAccumulator, Set<Integer> resourcesToAvoid, int numberOfProbes, long offset){
+        for(int i = 1 ; i <= numberOfProbes ; i++)
+            storage.addToQueryQueue(i * 16L + offset);
+        long before = allocatedBytes();
+        storage.processQueryQueue(matchAccumulator, 2, resourcesToAvoid);
+        return allocatedBytes() - before;
+    }
+
+    private static long allocatedBytes(){
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
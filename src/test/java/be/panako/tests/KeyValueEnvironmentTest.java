@@ -0,0 +1,173 @@
+package be.panako.tests;
+
+import be.panako.strategy.KeyValueBuffers;
+import be.panako.strategy.KeyValueEnvironment;
+import be.panako.strategy.olaf.storage.OlafHit;
+import be.panako.strategy.olaf.storage.OlafStorageKV;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyValueEnvironmentTest {
+
+    private static final int NUMBER_OF_PRINTS = 200_000;
+    private static final int BATCH_SIZE = 10_000;
+    private static final int NUMBER_OF_QUERIES = 50_000;
+
+    private final Map<Key,String> originalConfig = new HashMap<>();
+    private String folder;
+
+    @BeforeEach
+    void setUp() {
+        folder = FileUtils.combine(FileUtils.temporaryDirectory(),"lmdb_environment_test");
+        removeStore();
+        FileUtils.mkdirs(folder);
+        configure(Key.OLAF_LMDB_FOLDER, folder);
+        configure(Key.LMDB_MAP_SIZE_MB, "1");
+        configure(Key.LMDB_MAX_MAP_SIZE_MB, "256");
+        configure(Key.LMDB_MAX_READERS, "0");
+        configure(Key.LMDB_READ_AHEAD, "TRUE");
+        configure(Key.LMDB_SYNC, "SYNC");
+        configure(Key.LMDB_WRITE_MAP, "FALSE");
+    }
+
+    private void configure(Key key, String value){
+        originalConfig.putIfAbsent(key, Config.get(key));
+        Config.set(key, value);
+    }
+
+    private void removeStore(){
+        FileUtils.rm(FileUtils.combine(folder,"data.mdb"));
+        FileUtils.rm(FileUtils.combine(folder,"lock.mdb"));
+        FileUtils.rm(folder);
+    }
+
+    @AfterEach
+    void tearDown() {
+        originalConfig.forEach(Config::set);
+        removeStore();
+    }
+
+    @Test
+    void testMapGrowsWhenFull(){
+        long written = 0;
+        try (KeyValueEnvironment env = KeyValueEnvironment.open(folder, 1)) {
+            Dbi<ByteBuffer> db = env.openDbi("test", DbiFlags.MDB_CREATE, DbiFlags.MDB_INTEGERKEY);
+            long initialMapSize = env.mapSize();
+            for(int batch = 0 ; batch < 10 ; batch++){
+                final int first = batch * BATCH_SIZE;
+                env.write(txn -> {
+                    KeyValueBuffers buffers = KeyValueBuffers.get();
+                    for(int i = first ; i < first + BATCH_SIZE ; i++)
+                        db.put(txn, buffers.hashKey(i), buffers.fingerprintValue(i, -i));
+                });
+                written += BATCH_SIZE;
+            }
+            assertTrue(env.mapSize() > initialMapSize, "The map should have grown from " + initialMapSize);
+
+            long count = 0;
+            try (KeyValueEnvironment.Shared shared = env.shared(); Txn<ByteBuffer> txn = env.txnRead()) {
+                Cursor<ByteBuffer> c = db.openCursor(txn);
+                while(c.next()) {
+                    assertEquals(count, KeyValueBuffers.hash(c.key()));
+                    assertEquals(-count, KeyValueBuffers.intAt(c.val(), 1));
+                    count++;
+                }
+                c.close();
+            }
+            assertEquals(written, count);
+        }
+    }
+
+    @Test
+    void testUnknownSyncMode(){
+        Config.set(Key.LMDB_SYNC, "SOMETIMES");
+        assertThrows(RuntimeException.class, () -> KeyValueEnvironment.open(folder, 1));
+    }
+
+    private static final String[][] SETTINGS = {
+            {"defaults", "TRUE", "SYNC", "FALSE"},
+            {"no read ahead", "FALSE", "SYNC", "FALSE"},
+            {"NOMETASYNC", "TRUE", "NOMETASYNC", "FALSE"},
+            {"NOSYNC", "TRUE", "NOSYNC", "FALSE"},
+            {"write map", "TRUE", "SYNC", "TRUE"},
+            {"write map, NOSYNC", "TRUE", "NOSYNC", "TRUE"},
+    };
+
+    /**
+     * Ingests and queries fingerprints in a fresh store with a tuning option.
+     * @return The ingest and query duration in seconds.
+     */
+    private double[] ingestAndQuery(String[] setting, int numberOfPrints, int batchSize, int numberOfQueries){
+        removeStore();
+        FileUtils.mkdirs(folder);
+        Config.set(Key.LMDB_READ_AHEAD, setting[1]);
+        Config.set(Key.LMDB_SYNC, setting[2]);
+        Config.set(Key.LMDB_WRITE_MAP, setting[3]);
+
+        OlafStorageKV storage = new OlafStorageKV();
+        try {
+            long start = System.nanoTime();
+            for(int i = 1 ; i <= numberOfPrints ; i++){
+                storage.addToStoreQueue(i * 16L, i % 1000, i);
+                if(i % batchSize == 0)
+                    storage.processStoreQueue();
+            }
+            storage.processStoreQueue();
+            double ingestSeconds = (System.nanoTime() - start) / 1e9;
+
+            Map<Long, List<OlafHit>> matchAccumulator = new HashMap<>();
+            start = System.nanoTime();
+            for(int q = 0 ; q < numberOfQueries ; q++)
+                storage.addToQueryQueue((1 + (q * 7919L) % numberOfPrints) * 16L);
+            storage.processQueryQueue(matchAccumulator, 2, new HashSet<>());
+            double querySeconds = (System.nanoTime() - start) / 1e9;
+
+            assertEquals(numberOfQueries, matchAccumulator.size(), "Every query should match with " + setting[0]);
+            return new double[]{ingestSeconds, querySeconds};
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    void testTuningOptions(){
+        for(String[] setting : SETTINGS)
+            ingestAndQuery(setting, 5_000, 1_000, 1_000);
+    }
+
+    /**
+     * Ingests and queries the same fingerprints with each tuning option and prints the throughput.
+     * This benchmark only runs with the slowTest task.
+     */
+    @Test
+    @Tag("slow")
+    void testTuningMatrix(){
+        System.out.printf("%-20s %15s %15s%n", "LMDB setting", "ingest (fp/s)", "query (q/s)");
+        //the first run warms up the JIT and is not reported
+        for(int run = -1 ; run < SETTINGS.length ; run++){
+            String[] setting = SETTINGS[Math.max(0, run)];
+            double[] seconds = ingestAndQuery(setting, NUMBER_OF_PRINTS, BATCH_SIZE, NUMBER_OF_QUERIES);
+            if(run >= 0)
+                System.out.printf("%-20s %15.0f %15.0f%n", setting[0], NUMBER_OF_PRINTS / seconds[0], NUMBER_OF_QUERIES / seconds[1]);
+        }
+    }
+}
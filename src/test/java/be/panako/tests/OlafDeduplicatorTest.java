@@ -0,0 +1,162 @@
+package be.panako.tests;
+
+import be.panako.strategy.QueryResult;
+import be.panako.strategy.QueryResultHandler;
+import be.panako.strategy.olaf.OlafDeduplicator;
+import be.panako.strategy.olaf.OlafStrategy;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OlafDeduplicatorTest {
+
+    private static final int UNIQUE_FILES = 12;
+    private static final int SECONDS = 20;
+    //file index of the original of each injected duplicate
+    private static final int[] DUPLICATED = {1, 4, 7, 10};
+
+    @TempDir
+    static Path folder;
+
+    private static List<String> catalogue;
+    private static Set<String> expectedPairs;
+
+    private final Map<Key,String> originalConfig = new HashMap<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Map<Key,String> config = new HashMap<>();
+        config.put(Key.OLAF_CACHE_TO_FILE, "FALSE");
+        config.put(Key.OLAF_USE_CACHED_PRINTS, "FALSE");
+        config.put(Key.OLAF_EXTRACTION_THREADS, "1");
+        //decode the test files in the JVM, ffmpeg is not needed
+        config.put(Key.DECODER, "JAVA");
+        config.forEach((key, value) -> {
+            originalConfig.put(key, Config.get(key));
+            Config.set(key, value);
+        });
+        if(catalogue == null)
+            createCatalogue();
+    }
+
+    @AfterEach
+    void tearDown() {
+        originalConfig.forEach(Config::set);
+    }
+
+    /**
+     * Noise with a melody which differs for each seed, so that there are event points everywhere.
+     */
+    private static float[] syntheticAudio(int seconds, long seed){
+        int sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+        Random r = new Random(seed);
+        double[] melody = new double[16];
+        for(int i = 0 ; i < melody.length ; i++)
+            melody[i] = 200 + r.nextInt(1800);
+        float[] samples = new float[seconds * sampleRate];
+        for(int i = 0 ; i < samples.length ; i++){
+            double t = i / (double) sampleRate;
+            samples[i] = (float) (0.3 * r.nextGaussian()
+                    + 0.5 * Math.sin(2 * Math.PI * melody[(int) (t * 4) % melody.length] * t)
+                    + 0.2 * Math.sin(2 * Math.PI * melody[(int) (t * 3 + 5) % melody.length] * t));
+        }
+        return samples;
+    }
+
+    private static String write(String name, float[] samples) throws IOException {
+        int sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+        byte[] data = new byte[samples.length * 2];
+        for(int i = 0 ; i < samples.length ; i++){
+            short s = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(samples[i] * 0.5 * 32768)));
+            data[2 * i] = (byte) s;
+            data[2 * i + 1] = (byte) (s >> 8);
+        }
+        AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+        File file = new File(folder.toFile(), name);
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data), format, samples.length), AudioFileFormat.Type.WAVE, file);
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Unique files and, for some of them, a duplicate: a louder excerpt preceded by other audio.
+     */
+    private static void createCatalogue() throws IOException {
+        int sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+        catalogue = new ArrayList<>();
+        expectedPairs = new HashSet<>();
+        List<float[]> originals = new ArrayList<>();
+        for(int i = 0 ; i < UNIQUE_FILES ; i++){
+            float[] samples = syntheticAudio(SECONDS, i);
+            originals.add(samples);
+            catalogue.add(write("unique_" + i + ".wav", samples));
+        }
+        for(int original : DUPLICATED){
+            float[] intro = syntheticAudio(3, 100 + original);
+            int excerptStart = 2 * sampleRate + 123;
+            float[] duplicate = new float[intro.length + originals.get(original).length - excerptStart];
+            System.arraycopy(intro, 0, duplicate, 0, intro.length);
+            for(int i = excerptStart ; i < originals.get(original).length ; i++)
+                duplicate[intro.length + i - excerptStart] = originals.get(original)[i] * 1.3f;
+            catalogue.add(write("duplicate_of_" + original + ".wav", duplicate));
+            expectedPairs.add(catalogue.get(original) + " " + catalogue.get(catalogue.size() - 1));
+        }
+    }
+
+    private static Set<String> deduplicate(OlafDeduplicator deduplicator){
+        Set<String> pairs = new HashSet<>();
+        deduplicator.deduplicate(catalogue, new QueryResultHandler() {
+            @Override
+            public void handleQueryResult(QueryResult result) {
+                pairs.add(result.queryPath + " " + result.refPath);
+            }
+
+            @Override
+            public void handleEmptyResult(QueryResult result) {
+            }
+        });
+        return pairs;
+    }
+
+    @Test
+    void testInjectedDuplicatesAreFound() {
+        OlafDeduplicator deduplicator = new OlafDeduplicator(new OlafStrategy());
+        Set<String> pairs = deduplicate(deduplicator);
+        assertEquals(expectedPairs, pairs);
+        assertEquals(0, deduplicator.getNumberOfSpilledRuns());
+        assertEquals(catalogue.size(), deduplicator.getNumberOfFiles());
+        System.out.println(deduplicator.statistics());
+    }
+
+    @Test
+    void testSpilledIndexGivesTheSameDuplicates() {
+        originalConfig.put(Key.OLAF_DEDUP_PRINTS_IN_MEMORY, Config.get(Key.OLAF_DEDUP_PRINTS_IN_MEMORY));
+        Config.set(Key.OLAF_DEDUP_PRINTS_IN_MEMORY, "50");
+        OlafDeduplicator deduplicator = new OlafDeduplicator(new OlafStrategy());
+        Set<String> pairs = deduplicate(deduplicator);
+        assertEquals(expectedPairs, pairs);
+        assertTrue(deduplicator.getNumberOfSpilledRuns() > 1, "Expected spilled runs, got " + deduplicator.getNumberOfSpilledRuns());
+        System.out.println(deduplicator.statistics());
+    }
+}
@@ -0,0 +1,69 @@
+package be.panako.tests;
+
+import be.panako.strategy.FingerprintBatch;
+import be.panako.strategy.olaf.OlafEventPointProcessor;
+import be.panako.strategy.olaf.OlafFingerprint;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OlafEventPointProcessorTest {
+
+    private static final int NUMBER_OF_FRAMES = 3000;
+
+    /**
+     * Feeds the same noise to the processor, frame by frame.
+     * @return The maximum number of event points kept in memory at once.
+     */
+    private int process(OlafEventPointProcessor processor){
+        int size = Config.getInt(Key.OLAF_SIZE);
+        AudioEvent event = new AudioEvent(new TarsosDSPAudioFormat(Config.getInt(Key.OLAF_SAMPLE_RATE), 16, 1, true, false));
+        Random r = new Random(0L);
+        int maxEventPoints = 0;
+        for(int frame = 0 ; frame < NUMBER_OF_FRAMES ; frame++){
+            float[] buffer = new float[size];
+            for(int i = 0 ; i < size ; i++)
+                buffer[i] = (float) r.nextGaussian();
+            event.setFloatBuffer(buffer);
+            processor.process(event);
+            maxEventPoints = Math.max(maxEventPoints, processor.getEventPoints().size());
+        }
+        processor.processingFinished();
+        return maxEventPoints;
+    }
+
+    @Test
+    void testStreamedFingerprintsEqualCollectedFingerprints(){
+        int size = Config.getInt(Key.OLAF_SIZE);
+
+        OlafEventPointProcessor collecting = new OlafEventPointProcessor(size);
+        int collectedEventPoints = process(collecting);
+        List<OlafFingerprint> expected = collecting.getFingerprints();
+
+        FingerprintBatch streamed = new FingerprintBatch(16);
+        OlafEventPointProcessor streaming = new OlafEventPointProcessor(size, streamed.sinkFor(7));
+        int maxStreamingEventPoints = process(streaming);
+
+        assertTrue(expected.size() > 0, "Noise should result in fingerprints");
+        assertEquals(expected.size(), streamed.size(), "Streaming should result in the same number of fingerprints");
+        for(int i = 0 ; i < expected.size() ; i++){
+            OlafFingerprint a = expected.get(i);
+            assertEquals(a.hash(), streamed.hash(i));
+            assertEquals(a.t1, streamed.t1(i));
+            assertEquals(a.f1, streamed.f1(i));
+            assertEquals(7, streamed.resourceIdentifier(i));
+        }
+        assertEquals(expected.get(expected.size() - 1).t3, streaming.getLastFingerprintTime());
+        assertTrue(streaming.getFingerprints().isEmpty(), "Streamed fingerprints should not be kept");
+        assertTrue(maxStreamingEventPoints < collectedEventPoints / 10,
+                "Streaming should keep few event points in memory: " + maxStreamingEventPoints + " of " + collectedEventPoints);
+    }
+}
@@ -0,0 +1,244 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.OlafFingerprint;
+import be.panako.strategy.olaf.OlafHashLayout;
+import be.panako.strategy.olaf.OlafStopList;
+import be.panako.strategy.olaf.OlafStrategy;
+import be.panako.strategy.olaf.storage.OlafHit;
+import be.panako.strategy.olaf.storage.OlafStorageKV;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OlafHashLayoutTest {
+
+    private String originalLmdbFolder;
+    private String originalLayout;
+    private String originalCacheFolder;
+    private String originalStopListFile;
+    private String originalStorage;
+    private Path temporaryFolder;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        originalLmdbFolder = Config.get(Key.OLAF_LMDB_FOLDER);
+        originalLayout = Config.get(Key.OLAF_HASH_LAYOUT);
+        originalCacheFolder = Config.get(Key.OLAF_CACHE_FOLDER);
+        originalStopListFile = Config.get(Key.OLAF_STOP_LIST_FILE);
+        originalStorage = Config.get(Key.OLAF_STORAGE);
+        temporaryFolder = Files.createTempDirectory("olaf_hash_layout");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Config.set(Key.OLAF_LMDB_FOLDER, originalLmdbFolder);
+        Config.set(Key.OLAF_HASH_LAYOUT, originalLayout);
+        Config.set(Key.OLAF_CACHE_FOLDER, originalCacheFolder);
+        Config.set(Key.OLAF_STOP_LIST_FILE, originalStopListFile);
+        Config.set(Key.OLAF_STORAGE, originalStorage);
+        try (Stream<Path> paths = Files.walk(temporaryFolder)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * The hash as it was calculated before layouts were introduced.
+     */
+    private static long originalHash(int t1, int f1, float m1, int t2, int f2, float m2, int t3, int f3, float m3){
+        long f1LargerThanF2 = f1 > f2 ? 1 : 0;
+        long f2LargerThanF3 = f2 > f3 ? 1 : 0;
+        long f3LargerThanF1 = f3 > f1 ? 1 : 0;
+        long m1LargerThanm2 = m1 > m2 ? 1 : 0;
+        long m2LargerThanm3 = m2 > m3 ? 1 : 0;
+        long m3LargerThanm1 = m3 > m1 ? 1 : 0;
+        long dt1t2LargerThant3t2 = (t2 - t1) > (t3 - t2) ? 1 : 0;
+        long df1f2LargerThanf3f2 = Math.abs(f2 - f1) > Math.abs(f3 - f2) ? 1 : 0;
+        long f1Range = (f1 >> 1);
+        long df2f1 = (Math.abs(f2 - f1) >> 2);
+        long df3f2 = (Math.abs(f3 - f2) >> 2);
+        long diffT = t3 - t1;
+        return ((diffT & 63) << 0) + (f1LargerThanF2 << 6) + (f2LargerThanF3 << 7) + (f3LargerThanF1 << 8)
+                + (m1LargerThanm2 << 9) + (m2LargerThanm3 << 10) + (m3LargerThanm1 << 11)
+                + (dt1t2LargerThant3t2 << 12) + (df1f2LargerThanf3f2 << 13) + ((f1Range & 255) << 14)
+                + ((df2f1 & 63) << 22) + ((df3f2 & 63) << 28);
+    }
+
+    @Test
+    void testLayouts(){
+        Random r = new Random(0L);
+        for(int i = 0 ; i < 100_000 ; i++){
+            int t1 = r.nextInt(1000), t2 = t1 + 2 + r.nextInt(32), t3 = t2 + 2 + r.nextInt(32);
+            int f1 = 9 + r.nextInt(500), f2 = Math.max(9, Math.min(511, f1 + r.nextInt(257) - 128)), f3 = Math.max(9, Math.min(511, f2 + r.nextInt(257) - 128));
+            float m1 = r.nextFloat(), m2 = r.nextFloat(), m3 = r.nextFloat();
+
+            long v1 = OlafFingerprint.hash(OlafHashLayout.V1, t1, f1, m1, t2, f2, m2, t3, f3, m3);
+            long v2 = OlafFingerprint.hash(OlafHashLayout.V2, t1, f1, m1, t2, f2, m2, t3, f3, m3);
+            assertEquals(originalHash(t1, f1, m1, t2, f2, m2, t3, f3, m3), v1, "Layout 1 should be the original layout");
+            assertEquals(v2, OlafHashLayout.convert(v1, OlafHashLayout.V1, OlafHashLayout.V2));
+            assertEquals(v1, OlafHashLayout.convert(v2, OlafHashLayout.V2, OlafHashLayout.V1));
+            assertTrue(v2 >= 0 && v2 < (1L << 34));
+
+            //in layout 2 the coarse frequency determines the most significant bits
+            assertEquals((f1 >> 1) >> 1, v2 >> 27);
+        }
+    }
+
+    @Test
+    void testRecordedLayout(){
+        String folder = temporaryFolder.resolve("index").toString();
+        Config.set(Key.OLAF_HASH_LAYOUT, "2");
+        assertEquals(-1, OlafHashLayout.recorded(folder));
+        OlafHashLayout.check(folder);
+        assertEquals(2, OlafHashLayout.recorded(folder));
+
+        Config.set(Key.OLAF_HASH_LAYOUT, "1");
+        assertThrows(RuntimeException.class, () -> OlafHashLayout.check(folder));
+
+        //an index without a record uses the original layout
+        String existing = temporaryFolder.resolve("existing").toString();
+        FileUtils.mkdirs(existing);
+        FileUtils.writeFile("data", FileUtils.combine(existing, "data.mdb"));
+        assertEquals(OlafHashLayout.V1, OlafHashLayout.recorded(existing));
+    }
+
+    @Test
+    void testRehash(){
+        String folder = temporaryFolder.resolve("index").toString();
+        String stopListFile = temporaryFolder.resolve("stop_list.txt").toString();
+        Config.set(Key.OLAF_STORAGE, "LMDB");
+        Config.set(Key.OLAF_HASH_LAYOUT, "1");
+        Config.set(Key.OLAF_CACHE_FOLDER, temporaryFolder.resolve("cache").toString());
+        Config.set(Key.OLAF_STOP_LIST_FILE, stopListFile);
+
+        long v1 = OlafHashLayout.hash(OlafHashLayout.V1, 100, 3, 5, 20, 77);
+        long v2 = OlafHashLayout.convert(v1, OlafHashLayout.V1, OlafHashLayout.V2);
+        OlafStorageKV index = open(folder);
+        index.addToStoreQueue(v1, 1, 10);
+        index.processStoreQueue();
+        index.close();
+        OlafHashLayout.check(folder);
+        //the stop list was already created with the new layout, the index was not
+        Map<Long,Integer> stopHashes = new HashMap<>();
+        stopHashes.put(v2, 1000);
+        new OlafStopList(stopHashes).write(stopListFile, OlafHashLayout.V2);
+
+        new OlafStrategy().rehash(OlafHashLayout.V2);
+        assertEquals(OlafHashLayout.V2, OlafHashLayout.recorded(folder));
+        assertEquals(OlafHashLayout.V1, OlafHashLayout.recorded(folder + "_layout1"));
+        assertEquals(OlafHashLayout.V2, OlafStopList.layout(stopListFile));
+        assertTrue(OlafStopList.read(stopListFile).contains(v2), "A stop list with the new layout is not converted again");
+
+        index = open(folder);
+        index.addToQueryQueue(v2);
+        Map<Long, List<OlafHit>> matchAccumulator = new HashMap<>();
+        index.processQueryQueue(matchAccumulator, 0, new HashSet<>());
+        index.close();
+        assertEquals(1, matchAccumulator.get(v2).size());
+
+        //converting back also converts the stop list
+        new OlafStrategy().rehash(OlafHashLayout.V1);
+        assertEquals(OlafHashLayout.V1, OlafStopList.layout(stopListFile));
+        assertTrue(OlafStopList.read(stopListFile).contains(v1));
+    }
+
+    /**
+     * Minor and major page faults of this process, only available on Linux.
+     */
+    private static long pageFaults(){
+        try {
+            String[] stat = new String(Files.readAllBytes(new File("/proc/self/stat").toPath())).split("\\) ")[1].split(" ");
+            return Long.parseLong(stat[7]) + Long.parseLong(stat[9]);
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static OlafStorageKV open(String folder){
+        Config.set(Key.OLAF_LMDB_FOLDER, folder);
+        return new OlafStorageKV();
+    }
+
+    /**
+     * Stores the same synthetic fingerprints with both layouts, the second index is created with the rehash
+     * of the first, and reports the page faults of the same queries. This benchmark builds a large index and
+     * only runs with the slowTest task.
+     */
+    @Test
+    @Tag("slow")
+    void testPageFaultsPerQuery(){
+        Assumptions.assumeTrue(pageFaults() >= 0, "Page faults are not available");
+        int numberOfReferences = 400;
+        int printsPerReference = 4000;
+        int numberOfQueries = 200;
+        int printsPerQuery = 300;
+
+        //fingerprint components: low frequencies are more common
+        Random r = new Random(1L);
+        long[][] components = new long[numberOfReferences * printsPerReference][];
+        for(int i = 0 ; i < components.length ; i++){
+            long f1 = Math.min(511, 9 + (long) (-80 * Math.log(1 - r.nextDouble())));
+            components[i] = new long[]{f1 >> 1, r.nextInt(32), r.nextInt(32), 4 + r.nextInt(60), r.nextInt(256)};
+        }
+
+        String v1Folder = temporaryFolder.resolve("v1").toString();
+        String v2Folder = temporaryFolder.resolve("v2").toString();
+        OlafStorageKV v1 = open(v1Folder);
+        for(int i = 0 ; i < components.length ; i++){
+            long[] c = components[i];
+            v1.addToStoreQueue(OlafHashLayout.hash(OlafHashLayout.V1, c[0], c[1], c[2], c[3], c[4]), i / printsPerReference, i % printsPerReference);
+            if(i % printsPerReference == printsPerReference - 1)
+                v1.processStoreQueue();
+        }
+        v1.close();
+        long rehashed = OlafStorageKV.rehash(v1Folder, v2Folder, hash -> OlafHashLayout.convert(hash, OlafHashLayout.V1, OlafHashLayout.V2));
+        assertEquals(components.length, rehashed);
+
+        for(int layout : new int[]{OlafHashLayout.V1, OlafHashLayout.V2}){
+            //a fresh mapping of the index
+            OlafStorageKV index = open(layout == OlafHashLayout.V1 ? v1Folder : v2Folder);
+            Random queries = new Random(2L);
+            long totalHits = 0;
+            long faultsBefore = pageFaults();
+            long start = System.nanoTime();
+            for(int q = 0 ; q < numberOfQueries ; q++){
+                int reference = queries.nextInt(numberOfReferences);
+                int offset = reference * printsPerReference + queries.nextInt(printsPerReference - printsPerQuery);
+                for(int i = offset ; i < offset + printsPerQuery ; i++){
+                    long[] c = components[i];
+                    index.addToQueryQueue(OlafHashLayout.hash(layout, c[0], c[1], c[2], c[3], c[4]));
+                }
+                Map<Long, List<OlafHit>> matchAccumulator = new HashMap<>();
+                index.processQueryQueue(matchAccumulator, 2, new HashSet<>());
+                long referenceHits = matchAccumulator.values().stream().flatMap(List::stream).filter(h -> h.resourceID == reference).count();
+                assertTrue(referenceHits >= printsPerQuery, "Each query print should be found");
+                totalHits += matchAccumulator.values().stream().mapToLong(List::size).sum();
+            }
+            long faults = pageFaults() - faultsBefore;
+            long nanos = System.nanoTime() - start;
+            index.close();
+            System.out.printf("Hash layout %d: %.1f page faults per query, %.1f hits per query, %.2fms per query%n",
+                    layout, faults / (double) numberOfQueries, totalHits / (double) numberOfQueries, nanos / 1e6 / numberOfQueries);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.storage.OlafMetadataCachingStorage;
+import be.panako.strategy.olaf.storage.OlafResourceMetadata;
+import be.panako.strategy.olaf.storage.OlafStorageKV;
+import be.panako.strategy.olaf.storage.OlafStorageMemory;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class OlafMetadataCachingStorageTest {
+
+    private final Map<Key,String> originalConfig = new HashMap<>();
+    private String folder;
+
+    /**
+     * Counts the single and batch meta-data lookups which reach the storage.
+     */
+    private static class CountingStorage extends OlafStorageMemory {
+        final AtomicInteger lookups = new AtomicInteger();
+        final AtomicInteger batchLookups = new AtomicInteger();
+
+        @Override
+        public OlafResourceMetadata getMetadata(long identifier) {
+            lookups.incrementAndGet();
+            return super.getMetadata(identifier);
+        }
+
+        @Override
+        public Map<Long, OlafResourceMetadata> getMetadata(Collection<Long> identifiers) {
+            batchLookups.incrementAndGet();
+            Map<Long, OlafResourceMetadata> metadata = new HashMap<>();
+            for(long identifier : identifiers){
+                OlafResourceMetadata m = super.getMetadata(identifier);
+                if(m != null)
+                    metadata.put(identifier, m);
+            }
+            return metadata;
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        folder = FileUtils.combine(FileUtils.temporaryDirectory(),"olaf_metadata_cache_test");
+        removeStore();
+        originalConfig.put(Key.OLAF_LMDB_FOLDER, Config.get(Key.OLAF_LMDB_FOLDER));
+        Config.set(Key.OLAF_LMDB_FOLDER, folder);
+    }
+
+    private void removeStore(){
+        FileUtils.rm(FileUtils.combine(folder,"data.mdb"));
+        FileUtils.rm(FileUtils.combine(folder,"lock.mdb"));
+        FileUtils.rm(folder);
+    }
+
+    @AfterEach
+    void tearDown() {
+        originalConfig.forEach(Config::set);
+        removeStore();
+    }
+
+    @Test
+    void testBatchLookupAndCaching(){
+        CountingStorage storage = new CountingStorage();
+        OlafMetadataCachingStorage cache = new OlafMetadataCachingStorage(storage, 100);
+        for(int i = 1 ; i <= 50 ; i++)
+            cache.storeMetadata(i, "/path/" + i, i, 10 * i);
+
+        List<Long> candidates = Arrays.asList(1L, 2L, 3L, 50L, 77L);
+        Map<Long, OlafResourceMetadata> metadata = cache.getMetadata(candidates);
+        assertEquals(4, metadata.size());
+        assertEquals("/path/50", metadata.get(50L).path);
+        assertFalse(metadata.containsKey(77L));
+        assertEquals(1, storage.batchLookups.get());
+
+        //the found meta-data is cached, the missing identifier is looked up again
+        cache.getMetadata(candidates);
+        assertEquals(2, storage.batchLookups.get());
+        assertEquals("/path/2", cache.getMetadata(2L).path);
+        assertEquals(0, storage.lookups.get());
+        cache.getMetadata(Arrays.asList(1L, 2L));
+        assertEquals(2, storage.batchLookups.get());
+
+        //a change via the front invalidates the cached meta-data
+        cache.storeMetadata(2L, "/moved/2", 2, 20);
+        assertEquals("/moved/2", cache.getMetadata(2L).path);
+        assertEquals(1, storage.lookups.get());
+        //the memory storage keeps deleted meta-data, the lookup should reach it nonetheless
+        cache.deleteMetadata(3L);
+        cache.getMetadata(3L);
+        assertEquals(2, storage.lookups.get());
+    }
+
+    @Test
+    void testKeyValueStoreBatchLookup(){
+        OlafStorageKV storage = new OlafStorageKV();
+        try {
+            for(int i = 1 ; i <= 20 ; i++)
+                storage.storeMetadata(i, "/path/" + i, i, 10 * i);
+            Map<Long, OlafResourceMetadata> metadata = storage.getMetadata(Arrays.asList(5L, 20L, 21L));
+            assertEquals(2, metadata.size());
+            assertEquals("/path/20", metadata.get(20L).path);
+            assertEquals(200, metadata.get(20L).numFingerprints);
+            assertEquals(5, metadata.get(5L).identifier);
+            assertEquals(5, metadata.get(5L).duration, 0.0001);
+        } finally {
+            storage.close();
+        }
+    }
+}
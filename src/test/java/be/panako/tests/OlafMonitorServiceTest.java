@@ -0,0 +1,257 @@
+package be.panako.tests;
+
+import be.panako.strategy.QueryResult;
+import be.panako.strategy.QueryResultHandler;
+import be.panako.strategy.olaf.OlafEventPointProcessor;
+import be.panako.strategy.olaf.OlafMonitorService;
+import be.panako.strategy.olaf.OlafStrategy;
+import be.panako.strategy.olaf.storage.OlafStorage;
+import be.panako.strategy.olaf.storage.OlafStorageMemory;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OlafMonitorServiceTest {
+
+    private static final int NUMBER_OF_STREAMS = 8;
+    private static final int REFERENCE_SECONDS = 30;
+    private static final int REFERENCE_ID_OFFSET = 7_000_000;
+    //the streams are played faster than real time to keep the test short
+    private static final double SPEED = 8;
+
+    private final Map<Key,String> originalConfig = new HashMap<>();
+    private OlafStorage index;
+
+    @BeforeEach
+    void setUp() {
+        Map<Key,String> config = new HashMap<>();
+        config.put(Key.OLAF_STORAGE, "MEM");
+        config.put(Key.OLAF_CACHE_TO_FILE, "FALSE");
+        config.put(Key.OLAF_QUERY_CACHE, "FALSE");
+        config.put(Key.OLAF_USE_STOP_LIST, "FALSE");
+        config.put(Key.MONITOR_STEP_SIZE, "10");
+        config.put(Key.MONITOR_OVERLAP, "5");
+        config.put(Key.MONITOR_SERVICE_THREADS, "2");
+        config.put(Key.MONITOR_SERVICE_POLL_INTERVAL, "5");
+        config.forEach((key, value) -> {
+            originalConfig.put(key, Config.get(key));
+            Config.set(key, value);
+        });
+        index = OlafStorageMemory.getInstance();
+    }
+
+    @AfterEach
+    void tearDown() {
+        index.clear();
+        originalConfig.forEach((key, value) -> Config.set(key, value));
+    }
+
+    /**
+     * Noise with a melody which differs for each seed, so that there are event points everywhere.
+     */
+    private float[] syntheticAudio(int seconds, long seed){
+        int sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+        Random r = new Random(seed);
+        double[] melody = new double[16];
+        for(int i = 0 ; i < melody.length ; i++)
+            melody[i] = 200 + r.nextInt(1800);
+        float[] samples = new float[seconds * sampleRate];
+        for(int i = 0 ; i < samples.length ; i++){
+            double t = i / (double) sampleRate;
+            samples[i] = (float) (0.3 * r.nextGaussian()
+                    + 0.5 * Math.sin(2 * Math.PI * melody[(int) (t * 4) % melody.length] * t)
+                    + 0.2 * Math.sin(2 * Math.PI * melody[(int) (t * 3 + 5) % melody.length] * t));
+        }
+        return samples;
+    }
+
+    private void storeReference(int id, float[] samples){
+        int sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+        int size = Config.getInt(Key.OLAF_SIZE);
+        int stepSize = Config.getInt(Key.OLAF_STEP_SIZE);
+        final int[] numberOfPrints = new int[1];
+        OlafEventPointProcessor processor = new OlafEventPointProcessor(size, (hash, t1, f1) -> {
+            index.addToStoreQueue(hash, id, t1);
+            numberOfPrints[0]++;
+        });
+        AudioEvent event = new AudioEvent(new TarsosDSPAudioFormat(sampleRate, 16, 1, true, false));
+        float[] frame = new float[size];
+        for(int from = 0 ; from + size <= samples.length ; from += stepSize){
+            System.arraycopy(samples, from, frame, 0, size);
+            event.setFloatBuffer(frame);
+            processor.process(event);
+        }
+        processor.processingFinished();
+        index.processStoreQueue();
+        index.storeMetadata(id, "reference-" + id, samples.length / (float) sampleRate, numberOfPrints[0]);
+    }
+
+    private static byte[] pcm(float[] samples){
+        byte[] bytes = new byte[samples.length * 2];
+        for(int i = 0 ; i < samples.length ; i++){
+            short s = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(samples[i] * 32768)));
+            bytes[2 * i] = (byte) s;
+            bytes[2 * i + 1] = (byte) (s >> 8);
+        }
+        return bytes;
+    }
+
+    /**
+     * The samples as decoded from 16bit PCM, as a reference decoded from a file.
+     */
+    private static float[] quantize(float[] samples){
+        byte[] bytes = pcm(samples);
+        float[] quantized = new float[samples.length];
+        for(int i = 0 ; i < samples.length ; i++)
+            quantized[i] = ((short) ((bytes[2 * i + 1] << 8) | (bytes[2 * i] & 0xFF))) / 32768f;
+        return quantized;
+    }
+
+    /**
+     * Monitors streams from input streams which block, as the monitor command does. The streams are read
+     * as fast as the service can take them.
+     */
+    @Test
+    void testBlockingStreams() throws InterruptedException {
+        int stepSize = Config.getInt(Key.OLAF_STEP_SIZE);
+        OlafMonitorService service = new OlafMonitorService(new OlafStrategy(), 1, new HashSet<>());
+        List<List<String>> detections = new ArrayList<>();
+        List<OlafMonitorService.Channel> channels = new ArrayList<>();
+        for(int i = 0 ; i < 2 ; i++){
+            float[] reference = quantize(syntheticAudio(20, 100 + i));
+            storeReference(REFERENCE_ID_OFFSET + 100 + i, reference);
+            float[] unknown = syntheticAudio(3, 2000 + i);
+            float[] stream = new float[unknown.length / stepSize * stepSize + reference.length];
+            System.arraycopy(unknown, 0, stream, 0, unknown.length / stepSize * stepSize);
+            System.arraycopy(reference, 0, stream, unknown.length / stepSize * stepSize, reference.length);
+
+            List<String> detected = Collections.synchronizedList(new ArrayList<>());
+            detections.add(detected);
+            channels.add(service.addStream("stream-" + i, OlafMonitorService.fromBlockingInputStream("stream-" + i, new ByteArrayInputStream(pcm(stream))), new QueryResultHandler() {
+                @Override
+                public void handleQueryResult(QueryResult result) {
+                    detected.add(result.refIdentifier);
+                }
+
+                @Override
+                public void handleEmptyResult(QueryResult result) {
+                }
+            }));
+        }
+        assertTimeoutPreemptively(Duration.ofSeconds(60), service::awaitStreams, "The streams should end");
+        service.shutdown();
+
+        for(int i = 0 ; i < 2 ; i++){
+            assertTrue(channels.get(i).isDone());
+            assertTrue(channels.get(i).getNumberOfQueriedWindows() >= 3, "Expected windows every 5s for stream " + i);
+            assertTrue(detections.get(i).contains(String.valueOf(REFERENCE_ID_OFFSET + 100 + i)), "Stream " + i + " should be detected, got " + detections.get(i));
+        }
+    }
+
+    /**
+     * This benchmark only runs with the slowTest task.
+     */
+    @Test
+    @Tag("slow")
+    void testConcurrentStreams() throws InterruptedException {
+        int sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+        int stepSize = Config.getInt(Key.OLAF_STEP_SIZE);
+
+        List<byte[]> streams = new ArrayList<>();
+        for(int i = 0 ; i < NUMBER_OF_STREAMS ; i++){
+            float[] reference = quantize(syntheticAudio(REFERENCE_SECONDS, i));
+            storeReference(REFERENCE_ID_OFFSET + i, reference);
+            //a stream starts with unknown audio, aligned to the analysis frames, followed by the reference
+            float[] unknown = syntheticAudio(3 + i % 3, 1000 + i);
+            float[] stream = new float[unknown.length / stepSize * stepSize + reference.length];
+            System.arraycopy(unknown, 0, stream, 0, unknown.length / stepSize * stepSize);
+            System.arraycopy(reference, 0, stream, unknown.length / stepSize * stepSize, reference.length);
+            streams.add(pcm(stream));
+        }
+
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpuStart = os.getProcessCpuTime();
+        long start = System.nanoTime();
+
+        OlafMonitorService service = new OlafMonitorService(new OlafStrategy(), 1, new HashSet<>());
+        List<List<String>> detections = new ArrayList<>();
+        List<OlafMonitorService.Channel> channels = new ArrayList<>();
+        double streamSeconds = 0;
+        for(int i = 0 ; i < NUMBER_OF_STREAMS ; i++){
+            List<String> detected = Collections.synchronizedList(new ArrayList<>());
+            detections.add(detected);
+            QueryResultHandler handler = new QueryResultHandler() {
+                @Override
+                public void handleQueryResult(QueryResult result) {
+                    detected.add(result.refIdentifier);
+                }
+
+                @Override
+                public void handleEmptyResult(QueryResult result) {
+                }
+            };
+            byte[] stream = streams.get(i);
+            streamSeconds += stream.length / 2.0 / sampleRate;
+            channels.add(service.addStream("stream-" + i, OlafMonitorService.atRealTime(new ByteArrayInputStream(stream), SPEED), handler));
+        }
+        service.awaitStreams();
+        service.shutdown();
+
+        double cpuSeconds = (os.getProcessCpuTime() - cpuStart) / 1e9;
+        double wallSeconds = (System.nanoTime() - start) / 1e9;
+
+        for(int s = 0 ; s < NUMBER_OF_STREAMS ; s++){
+            final int i = s;
+            List<String> detected = detections.get(i);
+            assertTrue(channels.get(i).isDone());
+            assertTrue(channels.get(i).getNumberOfQueriedWindows() >= 6, "Expected windows every 5s for stream " + i);
+            assertTrue(detected.contains(String.valueOf(REFERENCE_ID_OFFSET + i)), "Stream " + i + " should be detected, got " + detected);
+            long correct = detected.stream().filter(identifier -> identifier.equals(String.valueOf(REFERENCE_ID_OFFSET + i))).count();
+            assertTrue(correct * 2 > detected.size(), "The reference of stream " + i + " should be detected most, got " + detected);
+        }
+        assertTrue(service.getNumberOfBatches() <= service.getNumberOfQueriedWindows());
+
+        System.out.printf("Monitored %d streams (%.0fs of audio at %.0fx real time) in %.1fs: %d windows in %d batches, %.2fms CPU per stream second, latency %.1fms average, %.1fms max%n",
+                NUMBER_OF_STREAMS, streamSeconds, SPEED, wallSeconds, service.getNumberOfQueriedWindows(), service.getNumberOfBatches(),
+                cpuSeconds * 1000 / streamSeconds, service.getAverageLatency() * 1000, service.getMaximumLatency() * 1000);
+    }
+
+    @Test
+    void testShutdownReleasesWaitingThreads() {
+        OlafMonitorService service = new OlafMonitorService(new OlafStrategy(), 1, new HashSet<>());
+        //a stream which never ends and never has audio
+        OlafMonitorService.Channel channel = service.addStream("silent", new OlafMonitorService.Source() {
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                return 0;
+            }
+
+            @Override
+            public void close() throws IOException {
+            }
+        }, null);
+        service.shutdown();
+        assertTimeoutPreemptively(Duration.ofSeconds(10), service::awaitStreams, "Waiting for streams should end when the service stops");
+        assertTrue(channel.isDone());
+    }
+}
@@ -0,0 +1,343 @@
+package be.panako.tests;
+
+import be.panako.strategy.QueryResult;
+import be.panako.strategy.QueryResultHandler;
+import be.panako.strategy.olaf.OlafMatch;
+import be.panako.strategy.olaf.OlafProgressiveQuery;
+import be.panako.strategy.olaf.OlafStopList;
+import be.panako.strategy.olaf.OlafStrategy;
+import be.panako.strategy.olaf.storage.OlafStorage;
+import be.panako.strategy.olaf.storage.OlafStorageMemory;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OlafProgressiveQueryTest {
+
+    private static final int NUMBER_OF_REFERENCES = 100;
+    private static final int REFERENCE_BLOCKS = 120 * 125;
+    private static final int PRINTS_PER_BLOCK_DIVIDER = 4;
+
+    @TempDir
+    Path folder;
+
+    private final Map<Key,String> originalConfig = new HashMap<>();
+    private OlafStorage index;
+    private long[][] referenceHashes;
+
+    @BeforeEach
+    void setUp() {
+        for(Key key : new Key[]{Key.OLAF_PROGRESSIVE_QUERY, Key.OLAF_PROGRESSIVE_QUERY_STEP, Key.OLAF_PROGRESSIVE_QUERY_MIN_SCORE,
+                Key.OLAF_PROGRESSIVE_QUERY_MIN_COVERAGE, Key.OLAF_CACHE_TO_FILE, Key.OLAF_USE_CACHED_PRINTS, Key.OLAF_STOP_LIST_FILE, Key.DECODER})
+            originalConfig.put(key, Config.get(key));
+
+        index = new OlafStorageMemory();
+        Random r = new Random(0L);
+        referenceHashes = new long[NUMBER_OF_REFERENCES][REFERENCE_BLOCKS / PRINTS_PER_BLOCK_DIVIDER];
+        for(int id = 0 ; id < NUMBER_OF_REFERENCES ; id++){
+            for(int i = 0 ; i < referenceHashes[id].length ; i++){
+                referenceHashes[id][i] = (r.nextLong() >>> 24) & ~7L;
+                index.addToStoreQueue(referenceHashes[id][i], id, i * PRINTS_PER_BLOCK_DIVIDER);
+            }
+        }
+        index.processStoreQueue();
+    }
+
+    @AfterEach
+    void tearDown() {
+        originalConfig.forEach((key, value) -> Config.set(key, value));
+    }
+
+    /**
+     * A 30 second query: a part of a reference where most prints are lost, mixed with noise.
+     */
+    private long[][] query(Random r, int id, int startBlock){
+        List<long[]> prints = new ArrayList<>();
+        for(int t = 0 ; t < 30 * 125 ; t++){
+            if(t % PRINTS_PER_BLOCK_DIVIDER == 0 && r.nextDouble() < 0.2)
+                prints.add(new long[]{referenceHashes[id][(startBlock + t) / PRINTS_PER_BLOCK_DIVIDER], t});
+            if(r.nextDouble() < 0.2)
+                prints.add(new long[]{(r.nextLong() >>> 24) | 1L, t});
+        }
+        return prints.toArray(new long[0][]);
+    }
+
+    /**
+     * Keeps the hits with the most common time difference.
+     */
+    private static QueryResult verify(Map.Entry<Integer,List<OlafMatch>> candidate){
+        Map<Integer,Integer> countPerDeltaT = new HashMap<>();
+        for(OlafMatch hit : candidate.getValue())
+            countPerDeltaT.merge(hit.deltaT(), 1, Integer::sum);
+        int deltaT = countPerDeltaT.entrySet().stream().max(Map.Entry.comparingByValue()).get().getKey();
+        Set<Integer> seconds = new HashSet<>();
+        int score = 0, start = Integer.MAX_VALUE, stop = 0;
+        for(OlafMatch hit : candidate.getValue()){
+            if(hit.deltaT() == deltaT){
+                score++;
+                start = Math.min(start, hit.queryTime);
+                stop = Math.max(stop, hit.queryTime);
+                seconds.add(hit.queryTime / 125);
+            }
+        }
+        if(score < 5)
+            return null;
+        double coverage = seconds.size() / Math.max(1.0, Math.ceil((stop - start) / 125.0));
+        return new QueryResult("query", start / 125.0, stop / 125.0, null, "" + candidate.getKey(), 0, 0, score, 1, 1, coverage);
+    }
+
+    private OlafProgressiveQuery run(long[][] prints){
+        return run(prints, new OlafStopList(new HashMap<>()));
+    }
+
+    private OlafProgressiveQuery run(long[][] prints, OlafStopList stopList){
+        OlafProgressiveQuery query = new OlafProgressiveQuery(index, stopList, new HashSet<>(), 5,
+                OlafProgressiveQueryTest::verify, null);
+        for(long[] print : prints){
+            query.accept(print[0], (int) print[1], 0);
+            if(query.isConfident())
+                break;
+        }
+        return query;
+    }
+
+    @Test
+    void testUnconfidentQueryEqualsFullQuery(){
+        Random r = new Random(1L);
+        long[][] prints = query(r, 7, 3000);
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_MIN_SCORE, "1000000");
+
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_STEP, "10000");
+        OlafProgressiveQuery full = run(prints);
+        List<QueryResult> expected = full.finish();
+        assertEquals(1, full.getNumberOfProbes());
+
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_STEP, "2");
+        OlafProgressiveQuery progressive = run(prints);
+        List<QueryResult> actual = progressive.finish();
+        assertFalse(progressive.isConfident());
+        assertTrue(progressive.getNumberOfProbes() > 10);
+
+        assertEquals(expected.size(), actual.size());
+        assertEquals("7", expected.get(0).refIdentifier);
+        for(int i = 0 ; i < expected.size() ; i++){
+            assertEquals(expected.get(i).refIdentifier, actual.get(i).refIdentifier);
+            assertEquals(expected.get(i).score, actual.get(i).score);
+        }
+    }
+
+    @Test
+    void testRepeatedHashesEqualFullQuery(){
+        Random r = new Random(4L);
+        long[][] prints = query(r, 7, 3000);
+        //most prints return 40 seconds later: the hits of a hash use the time of its last print
+        List<long[]> repeated = new ArrayList<>(Arrays.asList(prints));
+        for(int i = 0 ; i < prints.length ; i++)
+            if(i % 5 < 3)
+                repeated.add(new long[]{prints[i][0], prints[i][1] + 40 * 125});
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_MIN_SCORE, "1000000");
+
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_STEP, "10000");
+        List<QueryResult> expected = run(repeated.toArray(new long[0][])).finish();
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_STEP, "2");
+        List<QueryResult> actual = run(repeated.toArray(new long[0][])).finish();
+
+        assertEquals("7", expected.get(0).refIdentifier);
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0 ; i < expected.size() ; i++){
+            assertEquals(expected.get(i).refIdentifier, actual.get(i).refIdentifier);
+            assertEquals(expected.get(i).score, actual.get(i).score);
+            assertEquals(expected.get(i).queryStart, actual.get(i).queryStart);
+            assertEquals(expected.get(i).queryStop, actual.get(i).queryStop);
+        }
+    }
+
+    /**
+     * A few seconds of noise with a melody, repeated: the same hashes return in each repetition.
+     */
+    private String writeLoop(String name, long seed, int repetitions, double noise) throws IOException {
+        int sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+        Random r = new Random(seed);
+        double[] melody = new double[12];
+        for(int i = 0 ; i < melody.length ; i++)
+            melody[i] = 200 + r.nextInt(1800);
+        double[] loop = new double[3 * sampleRate];
+        for(int i = 0 ; i < loop.length ; i++){
+            double t = i / (double) sampleRate;
+            loop[i] = 0.15 * r.nextGaussian() + 0.25 * Math.sin(2 * Math.PI * melody[(int) (t * 4) % melody.length] * t);
+        }
+        Random noiseGenerator = new Random(seed + 100);
+        byte[] data = new byte[repetitions * loop.length * 2];
+        for(int i = 0 ; i < data.length / 2 ; i++){
+            double sample = loop[i % loop.length] + noise * noiseGenerator.nextGaussian();
+            short s = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample * 32768)));
+            data[2 * i] = (byte) s;
+            data[2 * i + 1] = (byte) (s >> 8);
+        }
+        AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+        File file = new File(folder.toFile(), name);
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data), format, data.length / 2), AudioFileFormat.Type.WAVE, file);
+        return file.getAbsolutePath();
+    }
+
+    private static List<QueryResult> query(OlafStrategy strategy, String query){
+        List<QueryResult> results = new ArrayList<>();
+        strategy.query(query, 5, new HashSet<>(), new QueryResultHandler() {
+            @Override
+            public void handleQueryResult(QueryResult result) {
+                results.add(result);
+            }
+
+            @Override
+            public void handleEmptyResult(QueryResult result) {
+            }
+        });
+        return results;
+    }
+
+    @Test
+    void testUnconfidentQueryEqualsQueryOfAudio() throws IOException {
+        Config.set(Key.OLAF_CACHE_TO_FILE, "FALSE");
+        Config.set(Key.OLAF_USE_CACHED_PRINTS, "FALSE");
+        Config.set(Key.OLAF_STOP_LIST_FILE, new File(folder.toFile(), "stop_list.txt").getAbsolutePath());
+        //decode the test files in the JVM, ffmpeg is not needed
+        Config.set(Key.DECODER, "JAVA");
+        OlafStrategy strategy = new OlafStrategy(new OlafStorageMemory());
+        String first = writeLoop("1.wav", 1, 6, 0);
+        strategy.store(first, "first");
+        strategy.store(writeLoop("2.wav", 2, 6, 0), "second");
+        String query = writeLoop("query.wav", 1, 5, 0.02);
+
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY, "FALSE");
+        List<QueryResult> expected = query(strategy, query);
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY, "TRUE");
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_STEP, "2");
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_MIN_SCORE, "1000000");
+        List<QueryResult> actual = query(strategy, query);
+
+        assertFalse(expected.isEmpty());
+        assertEquals(first, expected.get(0).refPath);
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0 ; i < expected.size() ; i++){
+            assertEquals(expected.get(i).refIdentifier, actual.get(i).refIdentifier);
+            assertEquals(expected.get(i).score, actual.get(i).score);
+            assertEquals(expected.get(i).queryStart, actual.get(i).queryStart);
+            assertEquals(expected.get(i).queryStop, actual.get(i).queryStop);
+            assertEquals(expected.get(i).refStart, actual.get(i).refStart);
+            assertEquals(expected.get(i).refStop, actual.get(i).refStop);
+        }
+    }
+
+    @Test
+    void testConfidentQueryStopsEarly(){
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_STEP, "2");
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_MIN_SCORE, "40");
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_MIN_COVERAGE, "0.5");
+
+        Random r = new Random(5L);
+        for(int i = 0 ; i < 10 ; i++){
+            int id = r.nextInt(NUMBER_OF_REFERENCES);
+            OlafProgressiveQuery progressive = run(query(r, id, r.nextInt(REFERENCE_BLOCKS - 30 * 125)));
+            List<QueryResult> results = progressive.finish();
+            assertTrue(progressive.isConfident(), "Query " + i + " should be confident");
+            assertEquals("" + id, results.get(0).refIdentifier);
+            assertTrue(progressive.getLastPrintTime() < 30 * 125 - 1, "A confident query should stop early");
+        }
+    }
+
+    /**
+     * This benchmark only runs with the slowTest task.
+     */
+    @Test
+    @Tag("slow")
+    void testTimeToFirstMatch(){
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_STEP, "2");
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_MIN_SCORE, "40");
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_MIN_COVERAGE, "0.5");
+
+        Random r = new Random(2L);
+        int numberOfQueries = 200;
+        double[] queryTimes = new double[numberOfQueries];
+        double[] progressiveMillis = new double[numberOfQueries];
+        double[] fullMillis = new double[numberOfQueries];
+        for(int i = 0 ; i < numberOfQueries ; i++){
+            int id = r.nextInt(NUMBER_OF_REFERENCES);
+            long[][] prints = query(r, id, r.nextInt(REFERENCE_BLOCKS - 30 * 125));
+
+            long start = System.nanoTime();
+            OlafProgressiveQuery progressive = run(prints);
+            List<QueryResult> results = progressive.finish();
+            progressiveMillis[i] = (System.nanoTime() - start) / 1e6;
+            assertTrue(progressive.isConfident(), "Query " + i + " should be confident");
+            assertEquals("" + id, results.get(0).refIdentifier);
+            queryTimes[i] = progressive.getLastPrintTime() / 125.0;
+
+            Config.set(Key.OLAF_PROGRESSIVE_QUERY_STEP, "10000");
+            start = System.nanoTime();
+            List<QueryResult> fullResults = run(prints).finish();
+            fullMillis[i] = (System.nanoTime() - start) / 1e6;
+            assertEquals("" + id, fullResults.get(0).refIdentifier);
+            Config.set(Key.OLAF_PROGRESSIVE_QUERY_STEP, "2");
+        }
+        Arrays.sort(queryTimes);
+        Arrays.sort(progressiveMillis);
+        Arrays.sort(fullMillis);
+        System.out.printf("Seconds of query audio until the first match: p50 %.1fs, p90 %.1fs, max %.1fs (of 30s)%n",
+                percentile(queryTimes, 0.5), percentile(queryTimes, 0.9), queryTimes[numberOfQueries - 1]);
+        System.out.printf("Progressive query time: p50 %.2fms, p90 %.2fms; full query time: p50 %.2fms, p90 %.2fms%n",
+                percentile(progressiveMillis, 0.5), percentile(progressiveMillis, 0.9), percentile(fullMillis, 0.5), percentile(fullMillis, 0.9));
+        assertTrue(percentile(queryTimes, 0.5) < 20, "Most queries should stop early");
+    }
+
+    @Test
+    void testStopListOnlySkipsStopHashes(){
+        Config.set(Key.OLAF_PROGRESSIVE_QUERY_STEP, "10000");
+        Random r = new Random(3L);
+        long[][] prints = query(r, 7, 3000);
+
+        //stop hashes near, but not equal to, the hashes of the reference do not hide it
+        Map<Long,Integer> nearHashes = new HashMap<>();
+        for(long hash : referenceHashes[7])
+            nearHashes.put(hash + 1, 1000);
+        List<QueryResult> results = run(prints, new OlafStopList(nearHashes)).finish();
+        assertEquals("7", results.get(0).refIdentifier);
+
+        //the hits with a stop hash are skipped
+        Map<Long,Integer> exactHashes = new HashMap<>();
+        for(long hash : referenceHashes[7])
+            exactHashes.put(hash, 1000);
+        results = run(prints, new OlafStopList(exactHashes)).finish();
+        for(QueryResult result : results)
+            assertFalse("7".equals(result.refIdentifier));
+    }
+
+    private static double percentile(double[] sorted, double p){
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+}
@@ -0,0 +1,130 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.storage.OlafHit;
+import be.panako.strategy.olaf.storage.OlafQueryCachingStorage;
+import be.panako.strategy.olaf.storage.OlafStorage;
+import be.panako.strategy.olaf.storage.OlafStorageMemory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OlafQueryCachingStorageTest {
+
+    private static final int NUMBER_OF_HASHES = 20_000;
+    private static final int RANGE = 2;
+
+    OlafStorage index;
+
+    @BeforeEach
+    void setUp() {
+        index = new OlafStorageMemory();
+        Random r = new Random(0L);
+        for(int i = 0 ; i < NUMBER_OF_HASHES ; i++){
+            long hash = i * 8L;
+            //popular hashes have many postings
+            int postings = i < 100 ? 200 : 1 + r.nextInt(4);
+            for(int j = 0 ; j < postings ; j++)
+                index.addToStoreQueue(hash, r.nextInt(1000), r.nextInt(100_000));
+        }
+        index.processStoreQueue();
+    }
+
+    /**
+     * A workload where hash popularity follows a Zipf distribution.
+     */
+    private long[] skewedWorkload(int numberOfQueries, int hashesPerQuery){
+        double[] cumulative = new double[NUMBER_OF_HASHES];
+        double sum = 0;
+        for(int i = 0 ; i < NUMBER_OF_HASHES ; i++){
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        Random r = new Random(1L);
+        long[] workload = new long[numberOfQueries * hashesPerQuery];
+        for(int i = 0 ; i < workload.length ; i++){
+            int rank = Arrays.binarySearch(cumulative, r.nextDouble() * sum);
+            rank = rank < 0 ? -rank - 1 : rank;
+            workload[i] = rank * 8L + r.nextInt(3) - 1;
+        }
+        return workload;
+    }
+
+    /**
+     * Replays the workload and returns the number of hits and a checksum of the hits.
+     */
+    private long[] replay(OlafStorage storage, long[] workload, int hashesPerQuery, Set<Integer> resourcesToAvoid){
+        long numberOfHits = 0;
+        long checksum = 0;
+        for(int i = 0 ; i < workload.length ; i += hashesPerQuery){
+            Map<Long, List<OlafHit>> matchAccumulator = new HashMap<>();
+            for(int j = i ; j < i + hashesPerQuery ; j++)
+                storage.addToQueryQueue(workload[j]);
+            storage.processQueryQueue(matchAccumulator, RANGE, resourcesToAvoid);
+            for(List<OlafHit> hits : matchAccumulator.values()){
+                for(OlafHit hit : hits){
+                    numberOfHits++;
+                    checksum += hit.originalHash * 31 + hit.matchedNearHash * 17 + hit.resourceID * 7L + hit.t;
+                }
+            }
+        }
+        return new long[]{numberOfHits, checksum};
+    }
+
+    @Test
+    void testCachedResultsEqualUncachedResults(){
+        int hashesPerQuery = 300;
+        long[] workload = skewedWorkload(500, hashesPerQuery);
+        Set<Integer> resourcesToAvoid = new HashSet<>();
+        resourcesToAvoid.add(7);
+
+        long start = System.nanoTime();
+        long[] expected = replay(index, workload, hashesPerQuery, resourcesToAvoid);
+        long uncachedTime = System.nanoTime() - start;
+
+        OlafQueryCachingStorage cached = new OlafQueryCachingStorage(index, 2_000);
+        start = System.nanoTime();
+        long[] actual = replay(cached, workload, hashesPerQuery, resourcesToAvoid);
+        long cachedTime = System.nanoTime() - start;
+
+        assertEquals(expected[0], actual[0], "Cached and uncached hit counts should be equal");
+        assertEquals(expected[1], actual[1], "Cached and uncached hits should be equal");
+        assertTrue(cached.hitRate() > 0.5, "A skewed workload should be mostly served from the cache, hit rate is " + cached.hitRate());
+
+        System.out.printf("Replayed %d probes: uncached %.1fms, cached %.1fms, hit rate %.1f%%%n",
+                workload.length, uncachedTime / 1e6, cachedTime / 1e6, cached.hitRate() * 100);
+    }
+
+    @Test
+    void testStoreInvalidatesCachedProbes(){
+        OlafQueryCachingStorage cached = new OlafQueryCachingStorage(index, 1_000);
+        long queryHash = 16L;
+        Map<Long, List<OlafHit>> before = new HashMap<>();
+        cached.addToQueryQueue(queryHash);
+        cached.processQueryQueue(before, RANGE, new HashSet<>());
+
+        //store a print within range of the cached query hash
+        cached.addToStoreQueue(queryHash + 1, 123456, 77);
+        cached.processStoreQueue();
+
+        Map<Long, List<OlafHit>> after = new HashMap<>();
+        cached.addToQueryQueue(queryHash);
+        cached.processQueryQueue(after, RANGE, new HashSet<>());
+        assertEquals(before.get(queryHash).size() + 1, after.get(queryHash).size(), "A newly stored print should be found");
+
+        //a smaller range is served from the cache, without the out of range hit
+        Map<Long, List<OlafHit>> exact = new HashMap<>();
+        cached.addToQueryQueue(queryHash);
+        cached.processQueryQueue(exact, 0, new HashSet<>());
+        assertEquals(before.get(queryHash).stream().filter(h -> h.matchedNearHash == queryHash).count(), exact.get(queryHash).size());
+    }
+}
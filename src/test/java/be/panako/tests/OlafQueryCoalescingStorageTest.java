@@ -0,0 +1,130 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.storage.OlafHit;
+import be.panako.strategy.olaf.storage.OlafQueryCoalescingStorage;
+import be.panako.strategy.olaf.storage.OlafStorage;
+import be.panako.strategy.olaf.storage.OlafStorageMemory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OlafQueryCoalescingStorageTest {
+
+    private static final int NUMBER_OF_HASHES = 20_000;
+    private static final int NUMBER_OF_QUERIES = 400;
+    private static final int HASHES_PER_QUERY = 300;
+    private static final int THREADS = 8;
+
+    OlafStorage index;
+
+    @BeforeEach
+    void setUp() {
+        index = new OlafStorageMemory();
+        Random r = new Random(0L);
+        for(int i = 0 ; i < NUMBER_OF_HASHES ; i++){
+            long hash = i * 8L;
+            int postings = 1 + r.nextInt(4);
+            for(int j = 0 ; j < postings ; j++)
+                index.addToStoreQueue(hash, r.nextInt(1000), r.nextInt(100_000));
+        }
+        index.processStoreQueue();
+    }
+
+    private long[] query(Random r){
+        long[] hashes = new long[HASHES_PER_QUERY];
+        for(int i = 0 ; i < hashes.length ; i++)
+            hashes[i] = r.nextInt(NUMBER_OF_HASHES) * 8L + r.nextInt(3) - 1;
+        return hashes;
+    }
+
+    /**
+     * Runs the query and returns the number of hits and a checksum of the hits.
+     */
+    private static long[] run(OlafStorage storage, long[] hashes, int range, Set<Integer> resourcesToAvoid){
+        Map<Long, List<OlafHit>> matchAccumulator = new HashMap<>();
+        for(long hash : hashes)
+            storage.addToQueryQueue(hash);
+        storage.processQueryQueue(matchAccumulator, range, resourcesToAvoid);
+        long numberOfHits = 0;
+        long checksum = 0;
+        for(Map.Entry<Long, List<OlafHit>> entry : matchAccumulator.entrySet()){
+            for(OlafHit hit : entry.getValue()){
+                numberOfHits++;
+                checksum += entry.getKey() * 13 + hit.originalHash * 31 + hit.matchedNearHash * 17 + hit.resourceID * 7L + hit.t;
+            }
+        }
+        return new long[]{numberOfHits, checksum};
+    }
+
+    @Test
+    void testCoalescedResultsEqualSeparateResults() throws Exception {
+        Random r = new Random(1L);
+        long[][] queries = new long[NUMBER_OF_QUERIES][];
+        int[] ranges = new int[NUMBER_OF_QUERIES];
+        List<Set<Integer>> avoid = new ArrayList<>();
+        for(int q = 0 ; q < NUMBER_OF_QUERIES ; q++){
+            queries[q] = query(r);
+            //mostly the same range, some queries need a separate sweep
+            ranges[q] = q % 10 == 0 ? 1 : 2;
+            Set<Integer> resourcesToAvoid = new HashSet<>();
+            resourcesToAvoid.add(q % 1000);
+            avoid.add(resourcesToAvoid);
+        }
+
+        long[][] expected = new long[NUMBER_OF_QUERIES][];
+        long start = System.nanoTime();
+        for(int q = 0 ; q < NUMBER_OF_QUERIES ; q++)
+            expected[q] = run(index, queries[q], ranges[q], avoid.get(q));
+        long separateTime = System.nanoTime() - start;
+
+        OlafQueryCoalescingStorage coalescing = new OlafQueryCoalescingStorage(index, 200);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<long[]>> actual = new ArrayList<>();
+        start = System.nanoTime();
+        for(int q = 0 ; q < NUMBER_OF_QUERIES ; q++){
+            final int query = q;
+            actual.add(executor.submit(() -> run(coalescing, queries[query], ranges[query], avoid.get(query))));
+        }
+        for(int q = 0 ; q < NUMBER_OF_QUERIES ; q++){
+            long[] result = actual.get(q).get();
+            assertEquals(expected[q][0], result[0], "Hit count of query " + q);
+            assertEquals(expected[q][1], result[1], "Hits of query " + q);
+        }
+        long coalescedTime = System.nanoTime() - start;
+        executor.shutdown();
+
+        assertEquals(NUMBER_OF_QUERIES, coalescing.queryCount());
+        assertTrue(coalescing.sweepCount() < NUMBER_OF_QUERIES, "Concurrent queries should share sweeps, sweeps: " + coalescing.sweepCount());
+
+        System.out.printf("%d queries: separate %.1fms, coalesced on %d threads %.1fms, %.1f queries per sweep%n",
+                NUMBER_OF_QUERIES, separateTime / 1e6, THREADS, coalescedTime / 1e6, coalescing.queriesPerSweep());
+    }
+
+    @Test
+    void testSingleQuery(){
+        OlafQueryCoalescingStorage coalescing = new OlafQueryCoalescingStorage(index, 0);
+        long[] hashes = query(new Random(2L));
+        long[] expected = run(index, hashes, 2, new HashSet<>());
+        long[] actual = run(coalescing, hashes, 2, new HashSet<>());
+        assertEquals(expected[0], actual[0]);
+        assertEquals(expected[1], actual[1]);
+        assertEquals(1, coalescing.sweepCount());
+
+        //an empty query does not sweep
+        run(coalescing, new long[0], 2, new HashSet<>());
+        assertEquals(1, coalescing.sweepCount());
+    }
+}
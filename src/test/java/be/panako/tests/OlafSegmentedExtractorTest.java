@@ -0,0 +1,180 @@
+package be.panako.tests;
+
+import be.panako.strategy.FingerprintBatch;
+import be.panako.strategy.olaf.OlafEventPointProcessor;
+import be.panako.strategy.olaf.OlafSegmentedExtractor;
+import be.panako.util.AudioDecoder;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.tarsos.dsp.AudioDispatcher;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OlafSegmentedExtractorTest {
+
+    private static final float SEGMENT_SIZE = 3;
+
+    private String originalDecoder;
+
+    @BeforeEach
+    void setUp() {
+        originalDecoder = Config.get(Key.DECODER);
+        //decode the test file in the JVM, ffmpeg is not needed
+        Config.set(Key.DECODER, "JAVA");
+    }
+
+    @AfterEach
+    void tearDown() {
+        Config.set(Key.DECODER, originalDecoder);
+    }
+
+    /**
+     * Noise with a few tones, so that there are event points everywhere.
+     */
+    private float[] syntheticAudio(int seconds){
+        int sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+        Random r = new Random(0L);
+        float[] samples = new float[seconds * sampleRate + 777];
+        for(int i = 0 ; i < samples.length ; i++){
+            double t = i / (double) sampleRate;
+            samples[i] = (float) (0.3 * r.nextGaussian()
+                    + 0.5 * Math.sin(2 * Math.PI * (440 + 40 * Math.floor(t * 4 % 8)) * t)
+                    + 0.2 * Math.sin(2 * Math.PI * 1250 * t));
+        }
+        return samples;
+    }
+
+    private static File writeWav(Path folder, float[] samples) throws IOException {
+        byte[] data = new byte[samples.length * 2];
+        for(int i = 0 ; i < samples.length ; i++){
+            short s = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(samples[i] * 0.5 * 32767)));
+            data[2 * i] = (byte) s;
+            data[2 * i + 1] = (byte) (s >> 8);
+        }
+        AudioFormat format = new AudioFormat(Config.getInt(Key.OLAF_SAMPLE_RATE), 16, 1, true, false);
+        File file = new File(folder.toFile(), "noise_and_tones.wav");
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data), format, samples.length), AudioFileFormat.Type.WAVE, file);
+        return file;
+    }
+
+    private static class Result {
+        final FingerprintBatch prints = new FingerprintBatch();
+        int lastFingerprintTime;
+        long nanos;
+    }
+
+    private Result extract(float[] samples, int threads, float segmentSizeInSeconds){
+        Result result = new Result();
+        long start = System.nanoTime();
+        result.lastFingerprintTime = new OlafSegmentedExtractor(threads, segmentSizeInSeconds)
+                .extract(samples, result.prints.sinkFor(0));
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private Result extract(File file, int threads){
+        Result result = new Result();
+        long start = System.nanoTime();
+        result.lastFingerprintTime = new OlafSegmentedExtractor(threads, SEGMENT_SIZE)
+                .extract(file.getAbsolutePath(), result.prints.sinkFor(0));
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * The sequential extraction of the OLAF strategy: a single event point processor on an audio dispatcher.
+     */
+    private Result extractSequentially(File file){
+        int size = Config.getInt(Key.OLAF_SIZE);
+        int overlap = size - Config.getInt(Key.OLAF_STEP_SIZE);
+        Result result = new Result();
+        long start = System.nanoTime();
+        AudioDispatcher d = AudioDecoder.fromResource(file.getAbsolutePath(), Config.getInt(Key.OLAF_SAMPLE_RATE), size, overlap);
+        OlafEventPointProcessor eventPointProcessor = new OlafEventPointProcessor(size, result.prints.sinkFor(0));
+        d.addAudioProcessor(eventPointProcessor);
+        d.run();
+        result.lastFingerprintTime = eventPointProcessor.getLastFingerprintTime();
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    @Test
+    void testSegmentedExtractionEqualsSequentialExtraction(@TempDir Path folder) throws IOException {
+        File file = writeWav(folder, syntheticAudio(40));
+
+        Result expected = extractSequentially(file);
+        assertTrue(expected.prints.size() > 50, "Expected many prints, got " + expected.prints.size());
+        //the prints are spread over many segments
+        int segmentFrames = Math.round(SEGMENT_SIZE * Config.getInt(Key.OLAF_SAMPLE_RATE) / Config.getInt(Key.OLAF_STEP_SIZE));
+        Set<Integer> segmentsWithPrints = new HashSet<>();
+        for(int i = 0 ; i < expected.prints.size() ; i++)
+            segmentsWithPrints.add(expected.prints.t1(i) / segmentFrames);
+        assertTrue(segmentsWithPrints.size() >= 10, "Expected prints in many segments, got " + segmentsWithPrints.size());
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        for(int threads : new int[]{1, 2, 4, Math.max(8, processors)}){
+            Result actual = extract(file, threads);
+            assertEquals(expected.prints.size(), actual.prints.size(), "Number of prints with " + threads + " threads");
+            for(int i = 0 ; i < expected.prints.size() ; i++){
+                assertEquals(expected.prints.hash(i), actual.prints.hash(i), "Hash of print " + i);
+                assertEquals(expected.prints.t1(i), actual.prints.t1(i), "t1 of print " + i);
+                assertEquals(expected.prints.f1(i), actual.prints.f1(i), "f1 of print " + i);
+            }
+            assertEquals(expected.lastFingerprintTime, actual.lastFingerprintTime);
+        }
+    }
+
+    /**
+     * Compares the time of the segmented extraction with the sequential extraction. This benchmark
+     * only runs with the slowTest task.
+     */
+    @Test
+    @Tag("slow")
+    void testSegmentedExtractionSpeed(@TempDir Path folder) throws IOException {
+        File file = writeWav(folder, syntheticAudio(60));
+
+        //warm up
+        extract(file, 2);
+
+        Result expected = extractSequentially(file);
+        int processors = Runtime.getRuntime().availableProcessors();
+        for(int threads : new int[]{1, 2, 4, Math.max(8, processors)}){
+            Result actual = extract(file, threads);
+            assertEquals(expected.prints.size(), actual.prints.size(), "Number of prints with " + threads + " threads");
+            System.out.printf("Segmented extraction of %d prints with %d threads: %.1fms, sequential %.1fms, speed-up %.2f%n",
+                    actual.prints.size(), threads, actual.nanos / 1e6, expected.nanos / 1e6, expected.nanos / (double) actual.nanos);
+        }
+    }
+
+    @Test
+    void testShortAudio(){
+        for(int length : new int[]{0, 100, 1024, 1025, 20_000}){
+            float[] samples = new float[length];
+            Random r = new Random(length);
+            for(int i = 0 ; i < length ; i++)
+                samples[i] = (float) r.nextGaussian();
+            Result expected = extract(samples, 1, Float.MAX_VALUE);
+            Result actual = extract(samples, 4, 1);
+            assertEquals(expected.prints.size(), actual.prints.size(), "Number of prints for " + length + " samples");
+            assertEquals(expected.lastFingerprintTime, actual.lastFingerprintTime);
+        }
+    }
+}
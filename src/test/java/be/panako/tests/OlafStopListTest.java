@@ -0,0 +1,189 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.OlafHashLayout;
+import be.panako.strategy.olaf.OlafStopList;
+import be.panako.strategy.olaf.storage.OlafHit;
+import be.panako.strategy.olaf.storage.OlafQueryCachingStorage;
+import be.panako.strategy.olaf.storage.OlafStorage;
+import be.panako.strategy.olaf.storage.OlafStorageKV;
+import be.panako.strategy.olaf.storage.OlafStorageMemory;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OlafStopListTest {
+
+    private static OlafStopList stopList(long... hashesAndCounts){
+        Map<Long,Integer> frequentHashes = new HashMap<>();
+        for(int i = 0 ; i < hashesAndCounts.length ; i += 2)
+            frequentHashes.put(hashesAndCounts[i], (int) hashesAndCounts[i + 1]);
+        return new OlafStopList(frequentHashes);
+    }
+
+    /**
+     * Stores the hash 1000 often, its neighbours 999 and 1001 a few times and 5000 once.
+     */
+    private static OlafStorage index(OlafStorage index){
+        for(int t = 0 ; t < 50 ; t++)
+            index.addToStoreQueue(1000, 1, t);
+        for(int t = 0 ; t < 3 ; t++){
+            index.addToStoreQueue(999, 2, t);
+            index.addToStoreQueue(1001, 3, t);
+        }
+        index.addToStoreQueue(5000, 4, 0);
+        index.processStoreQueue();
+        return index;
+    }
+
+    private static Map<Long,List<OlafHit>> query(OlafStorage index, OlafStopList stopList, long... queryHashes){
+        for(long queryHash : queryHashes)
+            index.addToQueryQueue(queryHash);
+        Map<Long,List<OlafHit>> matchAccumulator = new TreeMap<>();
+        index.processQueryQueue(matchAccumulator, 2, new HashSet<>(), stopList);
+        return matchAccumulator;
+    }
+
+    private static Set<Long> matchedHashes(Map<Long,List<OlafHit>> matchAccumulator){
+        Set<Long> matched = new TreeSet<>();
+        matchAccumulator.values().forEach(hits -> hits.forEach(hit -> matched.add(hit.matchedNearHash)));
+        return matched;
+    }
+
+    @Test
+    void testBuild(){
+        OlafStopList stopList = stopList(30, 7, -5, 2, 10, 11);
+        assertEquals(3, stopList.size());
+        assertEquals(20, stopList.numberOfFingerprints());
+        assertEquals(11, stopList.maxCount());
+        for(long hash : new long[]{-5, 10, 30})
+            assertTrue(stopList.contains(hash) && stopList.test(hash));
+        for(long hash : new long[]{-6, 0, 11, 29, 31})
+            assertFalse(stopList.contains(hash) || stopList.test(hash));
+
+        OlafStopList empty = new OlafStopList(new HashMap<>());
+        assertEquals(0, empty.size());
+        assertEquals(0, empty.maxCount());
+        assertFalse(empty.contains(0));
+    }
+
+    @Test
+    void testConvertMergesCounts(){
+        OlafStopList converted = stopList(10, 1, 11, 2, 20, 4).convert(hash -> hash / 2);
+        assertEquals(2, converted.size());
+        assertTrue(converted.contains(5));
+        assertTrue(converted.contains(10));
+        assertFalse(converted.contains(11));
+        assertEquals(7, converted.numberOfFingerprints());
+        assertEquals(4, converted.maxCount());
+    }
+
+    @Test
+    void testWriteRead(@TempDir File folder){
+        String path = new File(folder, "stop_list.txt").getAbsolutePath();
+        assertEquals(0, OlafStopList.read(path).size(), "A missing stop list file is an empty stop list");
+
+        assertEquals(-1, OlafStopList.layout(path));
+        stopList(Long.MAX_VALUE, 3, -42, 9, 7, 100).write(path, OlafHashLayout.V2);
+        assertEquals(OlafHashLayout.V2, OlafStopList.layout(path));
+        OlafStopList read = OlafStopList.read(path);
+        assertEquals(3, read.size());
+        assertTrue(read.contains(Long.MAX_VALUE) && read.contains(-42) && read.contains(7));
+        assertEquals(112, read.numberOfFingerprints());
+        assertEquals(100, read.maxCount());
+
+        //a stop list without a record uses the original layout
+        FileUtils.writeFile("7 100\n", path);
+        assertEquals(OlafHashLayout.V1, OlafStopList.layout(path));
+        assertEquals(1, OlafStopList.read(path).size());
+    }
+
+    @Test
+    void testPruneFrequentHashes(){
+        OlafStorage index = index(new OlafStorageMemory());
+        OlafStopList stopList = new OlafStopList(index.frequentHashes(10));
+        assertEquals(1, stopList.size());
+        assertTrue(stopList.contains(1000));
+        assertEquals(50, stopList.numberOfFingerprints());
+
+        assertEquals(3, new OlafStopList(index.frequentHashes(3)).size());
+        assertEquals(4, new OlafStopList(index.frequentHashes(1)).size());
+    }
+
+    @Test
+    void testScanSkipsStopHashes(){
+        OlafStorage index = index(new OlafStorageMemory());
+        OlafStopList stopList = new OlafStopList(index.frequentHashes(10));
+
+        //the near hashes of a stop hash are still found
+        Map<Long,List<OlafHit>> matchAccumulator = query(index, stopList, 1000, 5000);
+        assertEquals(new TreeSet<>(List.of(999L, 1001L, 5000L)), matchedHashes(matchAccumulator));
+        assertEquals(6, matchAccumulator.get(1000L).size());
+
+        //a query hash with only stop hashes in range has no hits
+        index.addToStoreQueue(2000, 5, 0);
+        for(int t = 0 ; t < 20 ; t++)
+            index.addToStoreQueue(2001, 6, t);
+        index.processStoreQueue();
+        OlafStopList stopListWith2001 = new OlafStopList(index.frequentHashes(10));
+        assertTrue(query(index, stopListWith2001, 2003).isEmpty());
+        assertEquals(new TreeSet<>(List.of(2000L)), matchedHashes(query(index, stopListWith2001, 2001)));
+    }
+
+    @Test
+    void testKeyValueScanSkipsStopHashes(@TempDir File folder){
+        String originalFolder = Config.get(Key.OLAF_LMDB_FOLDER);
+        Config.set(Key.OLAF_LMDB_FOLDER, folder.getAbsolutePath());
+        OlafStorageKV index = new OlafStorageKV();
+        try {
+            index(index);
+            OlafStopList stopList = new OlafStopList(index.frequentHashes(10));
+            assertEquals(1, stopList.size());
+            Map<Long,List<OlafHit>> matchAccumulator = query(index, stopList, 1000, 1002, 5000);
+            assertEquals(new TreeSet<>(List.of(999L, 1001L, 5000L)), matchedHashes(matchAccumulator));
+            assertEquals(6, matchAccumulator.get(1000L).size());
+            assertEquals(3, matchAccumulator.get(1002L).size());
+            assertEquals(56, query(index, new OlafStopList(new HashMap<>()), 1000).get(1000L).size());
+        } finally {
+            index.close();
+            Config.set(Key.OLAF_LMDB_FOLDER, originalFolder);
+        }
+    }
+
+    @Test
+    void testCachedProbesRespectStopHashes(){
+        OlafQueryCachingStorage index = (OlafQueryCachingStorage) index(new OlafQueryCachingStorage(new OlafStorageMemory(), 100));
+        OlafStopList stopList = new OlafStopList(index.frequentHashes(10));
+
+        //cache the probe without skipped hashes, it also serves a probe with a stop list
+        index.addToQueryQueue(1000);
+        Map<Long,List<OlafHit>> all = new TreeMap<>();
+        index.processQueryQueue(all, 2, new HashSet<>());
+        assertEquals(56, all.get(1000L).size());
+        assertEquals(new TreeSet<>(List.of(999L, 1001L)), matchedHashes(query(index, stopList, 1000)));
+        assertEquals(1, index.hitCount());
+
+        //a probe cached with a stop list does not serve a probe without it
+        index.clear();
+        index(index);
+        assertEquals(6, query(index, stopList, 1000).get(1000L).size());
+        index.addToQueryQueue(1000);
+        all = new TreeMap<>();
+        index.processQueryQueue(all, 2, new HashSet<>());
+        assertEquals(56, all.get(1000L).size());
+    }
+}
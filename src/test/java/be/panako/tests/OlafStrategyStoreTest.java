@@ -0,0 +1,138 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.OlafStrategy;
+import be.panako.strategy.olaf.storage.OlafStorageKV;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OlafStrategyStoreTest {
+
+    @TempDir
+    Path folder;
+
+    private final Map<Key,String> originalConfig = new HashMap<>();
+    private FailingStorage storage;
+
+    /**
+     * Writes the fingerprints to the index every 50 prints and fails after a number of prints.
+     */
+    private static class FailingStorage extends OlafStorageKV {
+        int failAt = Integer.MAX_VALUE;
+        int queued = 0;
+        int written = 0;
+
+        @Override
+        public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1) {
+            if(queued == failAt)
+                throw new RuntimeException("Store failed on purpose");
+            super.addToStoreQueue(fingerprintHash, resourceIdentifier, t1);
+            queued++;
+            if(queued % 50 == 0) {
+                super.processStoreQueue();
+                written = queued;
+            }
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        Map<Key,String> config = new HashMap<>();
+        config.put(Key.OLAF_LMDB_FOLDER, new File(folder.toFile(), "lmdb").getAbsolutePath());
+        config.put(Key.OLAF_CACHE_TO_FILE, "FALSE");
+        config.put(Key.OLAF_USE_CACHED_PRINTS, "FALSE");
+        config.put(Key.OLAF_EXTRACTION_THREADS, "1");
+        //decode the test files in the JVM, ffmpeg is not needed
+        config.put(Key.DECODER, "JAVA");
+        config.forEach((key, value) -> {
+            originalConfig.put(key, Config.get(key));
+            Config.set(key, value);
+        });
+        storage = new FailingStorage();
+    }
+
+    @AfterEach
+    void tearDown() {
+        storage.close();
+        originalConfig.forEach(Config::set);
+    }
+
+    /**
+     * Noise with a melody which differs for each seed, so that there are event points everywhere.
+     */
+    private String write(String name, int seconds, long seed) throws IOException {
+        int sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+        Random r = new Random(seed);
+        double[] melody = new double[16];
+        for(int i = 0 ; i < melody.length ; i++)
+            melody[i] = 200 + r.nextInt(1800);
+        byte[] data = new byte[seconds * sampleRate * 2];
+        for(int i = 0 ; i < data.length / 2 ; i++){
+            double t = i / (double) sampleRate;
+            double sample = 0.15 * r.nextGaussian() + 0.25 * Math.sin(2 * Math.PI * melody[(int) (t * 4) % melody.length] * t);
+            short s = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample * 32768)));
+            data[2 * i] = (byte) s;
+            data[2 * i + 1] = (byte) (s >> 8);
+        }
+        AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+        File file = new File(folder.toFile(), name);
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data), format, data.length / 2), AudioFileFormat.Type.WAVE, file);
+        return file.getAbsolutePath();
+    }
+
+    private long numberOfFingerprints(){
+        long total = 0;
+        for(int count : storage.frequentHashes(1).values())
+            total += count;
+        return total;
+    }
+
+    @Test
+    void testFailedStoreLeavesNoFingerprints() throws IOException {
+        OlafStrategy strategy = new OlafStrategy(storage);
+        String first = write("1.wav", 20, 1);
+        strategy.store(first, "first");
+        long storedPrints = numberOfFingerprints();
+        assertTrue(storedPrints > 200, "The test audio should result in a few hundred fingerprints");
+        assertNotNull(storage.getMetadata(FileUtils.getIdentifier(first)));
+
+        //fail halfway the second file, after several batches are written
+        String second = write("2.wav", 20, 2);
+        storage.queued = 0;
+        storage.failAt = (int) storedPrints / 2;
+        assertThrows(RuntimeException.class, () -> strategy.store(second, "second"));
+        assertTrue(storage.written >= 100, "Fingerprints should be written before the failure");
+
+        assertEquals(storedPrints, numberOfFingerprints(), "Only the fingerprints of the first file should remain");
+        assertNull(storage.getMetadata(FileUtils.getIdentifier(second)));
+        assertNotNull(storage.getMetadata(FileUtils.getIdentifier(first)));
+
+        //once the storage works again the file is stored completely
+        storage.failAt = Integer.MAX_VALUE;
+        strategy.store(second, "second");
+        assertTrue(numberOfFingerprints() > storedPrints);
+        assertNotNull(storage.getMetadata(FileUtils.getIdentifier(second)));
+    }
+}
@@ -0,0 +1,125 @@
+package be.panako.tests;
+
+import be.panako.strategy.panako.PanakoFingerprint;
+import be.panako.strategy.panako.PanakoMultiProbe;
+import be.panako.strategy.panako.storage.PanakoHit;
+import be.panako.strategy.panako.storage.PanakoStorageMemory;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PanakoMultiProbeTest {
+
+    private static final int QUERY_RANGE = 2;
+
+    private static PanakoFingerprint randomPrint(Random r, int t1){
+        int t2 = t1 + 2 + r.nextInt(29);
+        int t3 = t2 + 2 + r.nextInt(29);
+        int f1 = 9 + r.nextInt(490);
+        int f2 = Math.max(9, Math.min(510, f1 + r.nextInt(121) - 60));
+        int f3 = Math.max(9, Math.min(510, f2 + r.nextInt(121) - 60));
+        return new PanakoFingerprint(t1, f1, (float) r.nextDouble(), t2, f2, (float) r.nextDouble(), t3, f3, (float) r.nextDouble());
+    }
+
+    /**
+     * Small frequency, magnitude and timing deviations, as caused by noise and compression.
+     */
+    private static PanakoFingerprint distort(Random r, PanakoFingerprint p){
+        int t2 = Math.max(p.t1 + 1, jitter(r, p.t2, 0.1));
+        int t3 = Math.max(t2 + 1, jitter(r, p.t3, 0.1));
+        return new PanakoFingerprint(
+                p.t1, jitter(r, p.f1, 0.3), p.m1 * (float) (1 + 0.05 * r.nextGaussian()),
+                t2, jitter(r, p.f2, 0.3), p.m2 * (float) (1 + 0.05 * r.nextGaussian()),
+                t3, jitter(r, p.f3, 0.3), p.m3 * (float) (1 + 0.05 * r.nextGaussian()));
+    }
+
+    private static int jitter(Random r, int value, double probability){
+        return r.nextDouble() < probability ? value + (r.nextBoolean() ? 1 : -1) : value;
+    }
+
+    @Test
+    void testProbes(){
+        PanakoMultiProbe multiProbe = new PanakoMultiProbe(6, 1, 0.1f, 1, QUERY_RANGE);
+        long[] probes = new long[multiProbe.maxProbes()];
+        Random r = new Random(0L);
+        for(int i = 0 ; i < 10_000 ; i++){
+            PanakoFingerprint print = randomPrint(r, i);
+            int n = multiProbe.probes(print, probes);
+            assertEquals(print.hash(), probes[0]);
+            assertTrue(n >= 1 && n <= multiProbe.maxProbes());
+            Set<Long> unique = new HashSet<>();
+            for(int j = 0 ; j < n ; j++){
+                assertTrue(unique.add(probes[j]), "Probes should be unique");
+                if(j > 0)
+                    assertTrue(Math.abs(probes[j] - probes[0]) > 2 * QUERY_RANGE, "Variants should not overlap with the query range");
+            }
+        }
+        //fingerprints without event points have no variants
+        assertEquals(1, multiProbe.probes(new PanakoFingerprint(12345L, 1, 1), probes));
+    }
+
+    /**
+     * Stores random fingerprints and queries distorted versions of them, with and without multi probe.
+     */
+    @Test
+    void testRecallUnderDistortion(){
+        PanakoStorageMemory index = new PanakoStorageMemory();
+        Random r = new Random(1L);
+        int numberOfPrints = 200_000;
+        PanakoFingerprint[] references = new PanakoFingerprint[numberOfPrints];
+        for(int i = 0 ; i < numberOfPrints ; i++){
+            references[i] = randomPrint(r, i);
+            index.addToStoreQueue(references[i].hash(), i % 100, i, references[i].f1);
+        }
+        index.processStoreQueue();
+
+        int numberOfQueries = 20_000;
+        PanakoFingerprint[] queries = new PanakoFingerprint[numberOfQueries];
+        for(int i = 0 ; i < numberOfQueries ; i++)
+            queries[i] = distort(r, references[i]);
+
+        int[] plain = recall(index, queries, new PanakoMultiProbe(0, 1, 0.1f, 1, QUERY_RANGE), QUERY_RANGE);
+        int[] widerRange = recall(index, queries, new PanakoMultiProbe(0, 1, 0.1f, 1, 8), 8);
+        int[] multiProbe = recall(index, queries, new PanakoMultiProbe(4, 1, 0.1f, 1, QUERY_RANGE), QUERY_RANGE);
+
+        System.out.printf("Recall under distortion: plain %.1f%% (%d keys), query range 8 %.1f%% (%d keys), multi probe %.1f%% (%d keys)%n",
+                100.0 * plain[0] / numberOfQueries, plain[1],
+                100.0 * widerRange[0] / numberOfQueries, widerRange[1],
+                100.0 * multiProbe[0] / numberOfQueries, multiProbe[1]);
+        assertTrue(multiProbe[0] > plain[0] * 1.1, "Multi probe should find clearly more distorted prints");
+        assertTrue(multiProbe[0] > widerRange[0], "Multi probe should find more distorted prints than a wider query range");
+    }
+
+    /**
+     * @return The number of queries which find their reference print and the number of keys probed.
+     */
+    private int[] recall(PanakoStorageMemory index, PanakoFingerprint[] queries, PanakoMultiProbe multiProbe, int range){
+        long[] probes = new long[multiProbe.maxProbes()];
+        Map<Long, Set<Integer>> queryTimesPerProbe = new HashMap<>();
+        for(PanakoFingerprint query : queries){
+            int n = multiProbe.probes(query, probes);
+            for(int i = 0 ; i < n ; i++){
+                if(queryTimesPerProbe.computeIfAbsent(probes[i], k -> new HashSet<>()).add(query.t1) && queryTimesPerProbe.get(probes[i]).size() == 1)
+                    index.addToQueryQueue(probes[i]);
+            }
+        }
+        Map<Long, List<PanakoHit>> matchAccumulator = new HashMap<>();
+        index.processQueryQueue(matchAccumulator, range);
+
+        Set<Integer> found = new HashSet<>();
+        matchAccumulator.forEach((probe, hits) -> {
+            for(PanakoHit hit : hits)
+                if(queryTimesPerProbe.get(probe).contains(hit.t))
+                    found.add(hit.t);
+        });
+        return new int[]{found.size(), queryTimesPerProbe.size() * (2 * range + 1)};
+    }
+}
@@ -0,0 +1,166 @@
+package be.panako.tests;
+
+import be.panako.strategy.panako.storage.PanakoHit;
+import be.panako.strategy.panako.storage.PanakoStorage;
+import be.panako.strategy.panako.storage.PanakoStorageMemory;
+import be.panako.strategy.panako.storage.PanakoStorageSnapshot;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PanakoStorageSnapshotTest {
+
+    private static final int RANGE = 2;
+
+    private static long[][] randomPrints(Random r, int resources, int printsPerResource){
+        long[][] prints = new long[resources * printsPerResource][];
+        int index = 0;
+        for(int id = 1 ; id <= resources ; id++){
+            for(int i = 0 ; i < printsPerResource ; i++){
+                //a small hash space to get plenty of collisions and near hits
+                prints[index++] = new long[]{r.nextInt(200_000), id, r.nextInt(10_000), r.nextInt(512)};
+            }
+        }
+        return prints;
+    }
+
+    private static void store(PanakoStorage storage, long[][] prints, int from, int to){
+        for(int i = from ; i < to ; i++)
+            storage.addToStoreQueue(prints[i][0], (int) prints[i][1], (int) prints[i][2], (int) prints[i][3]);
+        storage.processStoreQueue();
+    }
+
+    private static List<String> query(PanakoStorage storage, long[] queryHashes, Set<Integer> avoid){
+        for(long hash : queryHashes)
+            storage.addToQueryQueue(hash);
+        Map<Long, List<PanakoHit>> hits = new HashMap<>();
+        storage.processQueryQueue(hits, RANGE, avoid);
+        List<String> flattened = new ArrayList<>();
+        for(List<PanakoHit> list : hits.values())
+            for(PanakoHit hit : list)
+                flattened.add(hit.originalHash + ":" + hit.matchedNearHash + ":" + hit.resourceID + ":" + hit.t + ":" + hit.f);
+        Collections.sort(flattened);
+        return flattened;
+    }
+
+    private static long[] queryHashes(Random r, long[][] prints, int n){
+        long[] hashes = new long[n];
+        for(int i = 0 ; i < n ; i++)
+            hashes[i] = prints[r.nextInt(prints.length)][0] + r.nextInt(2 * RANGE + 1) - RANGE;
+        return hashes;
+    }
+
+    @Test
+    void testQueriesMatchMemoryStorage(@TempDir Path folder){
+        Random r = new Random(0L);
+        long[][] prints = randomPrints(r, 50, 2_000);
+        String snapshotPath = new File(folder.toFile(), "snapshot.bin").getAbsolutePath();
+
+        PanakoStorageMemory memory = new PanakoStorageMemory();
+        PanakoStorageSnapshot snapshot = new PanakoStorageSnapshot(snapshotPath);
+        //several store batches of different sizes result in several sorted runs
+        int[] bounds = {0, 30_000, 31_000, 60_000, 60_100, 90_000, prints.length};
+        for(int b = 0 ; b < bounds.length - 1 ; b++){
+            store(memory, prints, bounds[b], bounds[b + 1]);
+            store(snapshot, prints, bounds[b], bounds[b + 1]);
+        }
+        for(int id = 1 ; id <= 50 ; id++)
+            snapshot.storeMetadata(id, "resource_" + id + ".mp3", 180.5f, 2_000);
+        assertEquals(prints.length, snapshot.size());
+        assertTrue(snapshot.isDirty());
+
+        long[] queryHashes = queryHashes(r, prints, 5_000);
+        List<String> expected = query(memory, queryHashes, Set.of());
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, query(snapshot, queryHashes, Set.of()));
+        assertEquals(query(memory, queryHashes, Set.of(3, 7)), query(snapshot, queryHashes, Set.of(3, 7)));
+
+        snapshot.writeSnapshot();
+        assertFalse(snapshot.isDirty());
+        assertEquals(expected, query(snapshot, queryHashes, Set.of()));
+
+        long start = System.nanoTime();
+        PanakoStorageSnapshot reopened = new PanakoStorageSnapshot(snapshotPath);
+        long openTime = System.nanoTime() - start;
+        assertEquals(prints.length, reopened.size());
+        assertNotNull(reopened.getMetadata(7));
+        assertEquals("resource_7.mp3", reopened.getMetadata(7).path);
+        assertEquals(2_000, reopened.getMetadata(7).numFingerprints);
+
+        start = System.nanoTime();
+        assertEquals(expected, query(reopened, queryHashes, Set.of()));
+        long queryTime = System.nanoTime() - start;
+        System.out.printf("Opened snapshot of %d prints in %.2fms, %.2fus per range probe%n",
+                prints.length, openTime / 1e6, queryTime / 1e3 / queryHashes.length);
+
+        //stores on top of a mapped snapshot
+        long[][] extra = randomPrints(new Random(1L), 1, 500);
+        store(memory, extra, 0, extra.length);
+        store(reopened, extra, 0, extra.length);
+        assertEquals(query(memory, queryHashes, Set.of()), query(reopened, queryHashes, Set.of()));
+    }
+
+    @Test
+    void testDelete(@TempDir Path folder){
+        Random r = new Random(2L);
+        long[][] prints = randomPrints(r, 3, 1_000);
+        PanakoStorageSnapshot snapshot = new PanakoStorageSnapshot(new File(folder.toFile(), "snapshot.bin").getAbsolutePath());
+        store(snapshot, prints, 0, prints.length);
+        snapshot.writeSnapshot();
+
+        //delete the second resource from the mapped snapshot, in small batches
+        int inBatch = 0;
+        for(long[] print : prints) {
+            if(print[1] == 2) {
+                snapshot.addToDeleteQueue(print[0], 2, (int) print[2], (int) print[3]);
+                if(++inBatch % 100 == 0)
+                    snapshot.processDeleteQueue();
+            }
+        }
+        snapshot.processDeleteQueue();
+        assertEquals(2_000, snapshot.size());
+
+        long[] queryHashes = new long[prints.length];
+        for(int i = 0 ; i < prints.length ; i++)
+            queryHashes[i] = prints[i][0];
+        for(String hit : query(snapshot, queryHashes, Set.of()))
+            assertFalse(hit.split(":")[2].equals("2"), "Deleted resource should not match");
+
+        //a deleted resource which is stored again matches again
+        List<long[]> second = new ArrayList<>();
+        for(long[] print : prints)
+            if(print[1] == 2)
+                second.add(print);
+        store(snapshot, second.toArray(new long[0][]), 0, second.size());
+        assertEquals(3_000, snapshot.size());
+        List<String> expected = query(snapshot, queryHashes, Set.of());
+        assertTrue(expected.stream().anyMatch(hit -> hit.split(":")[2].equals("2")));
+
+        //the deleted entries are left out of the snapshot file
+        for(long[] print : second)
+            snapshot.addToDeleteQueue(print[0], 2, (int) print[2], (int) print[3]);
+        snapshot.processDeleteQueue();
+        snapshot.writeSnapshot();
+        PanakoStorageSnapshot reopened = new PanakoStorageSnapshot(new File(folder.toFile(), "snapshot.bin").getAbsolutePath());
+        assertEquals(2_000, reopened.size());
+        assertEquals(query(snapshot, queryHashes, Set.of()), query(reopened, queryHashes, Set.of()));
+
+        snapshot.clear();
+        assertEquals(0, snapshot.size());
+        assertTrue(query(snapshot, queryHashes, Set.of()).isEmpty());
+    }
+}
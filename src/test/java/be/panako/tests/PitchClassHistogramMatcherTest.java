@@ -0,0 +1,170 @@
+package be.panako.tests;
+
+import be.panako.strategy.pch.PitchClassHistogramMatcher;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PitchClassHistogramMatcherTest {
+
+    private static final int SIZE = 1200;
+
+    /**
+     * The straightforward match: tries every shift.
+     */
+    private static double[] naiveMatch(int[] query, int[] reference){
+        int bestOverlap = -1;
+        int bestShift = 0;
+        int referenceArea = 0;
+        int queryArea = 0;
+        for(int i = 0 ; i < SIZE ; i++){
+            referenceArea += reference[i];
+            queryArea += query[i];
+        }
+        for(int shift = 0 ; shift < SIZE ; shift++){
+            int overlap = 0;
+            for(int i = 0 ; i < SIZE ; i++)
+                overlap += Math.min(query[i], reference[(i + shift) % SIZE]);
+            if(overlap > bestOverlap){
+                bestOverlap = overlap;
+                bestShift = shift;
+            }
+        }
+        return new double[]{bestOverlap / (float) Math.max(referenceArea, queryArea), bestShift};
+    }
+
+    /**
+     * A histogram with a few peaks, like the pitch classes of a tonal piece.
+     */
+    private static int[] histogram(Random r){
+        int[] histogram = new int[SIZE];
+        int peaks = 3 + r.nextInt(5);
+        for(int p = 0 ; p < peaks ; p++){
+            int center = r.nextInt(SIZE);
+            int height = 20 + r.nextInt(200);
+            for(int d = -30 ; d <= 30 ; d++)
+                histogram[Math.floorMod(center + d, SIZE)] += (int) (height * Math.exp(-d * d / 100.0));
+        }
+        for(int i = 0 ; i < SIZE ; i++)
+            histogram[i] += r.nextInt(3);
+        return histogram;
+    }
+
+    @Test
+    void testMatchEqualsNaiveMatchForShiftedHistograms(){
+        Random r = new Random(0L);
+        PitchClassHistogramMatcher matcher = new PitchClassHistogramMatcher(SIZE);
+        double[] result = new double[2];
+        for(int test = 0 ; test < 20 ; test++){
+            int[] query = histogram(r);
+            int shift = r.nextInt(SIZE);
+            int[] reference = new int[SIZE];
+            for(int i = 0 ; i < SIZE ; i++)
+                reference[(i + shift) % SIZE] = query[i] + r.nextInt(4);
+            int referenceArea = 0;
+            for(int value : reference)
+                referenceArea += value;
+
+            matcher.setQuery(query);
+            matcher.match(reference, referenceArea, result);
+            double[] expected = naiveMatch(query, reference);
+            assertEquals(expected[0], result[0], 1e-6, "The overlap should equal the naive overlap");
+            assertEquals(shift, (int) result[1], "The shift should be found");
+        }
+    }
+
+    @Test
+    void testMatchEqualsNaiveMatchForUnrelatedHistograms(){
+        Random r = new Random(1L);
+        PitchClassHistogramMatcher matcher = new PitchClassHistogramMatcher(SIZE);
+        double[] result = new double[2];
+        for(int test = 0 ; test < 50 ; test++){
+            int[] query = histogram(r);
+            int[] reference = histogram(r);
+            int referenceArea = 0;
+            for(int value : reference)
+                referenceArea += value;
+
+            double[] expected = naiveMatch(query, reference);
+            matcher.setQuery(query);
+            matcher.match(reference, referenceArea, result);
+
+            assertEquals(expected[0], result[0], 1e-6, "The overlap should equal the naive overlap");
+            assertEquals(expected[1], result[1], "The shift should equal the naive shift");
+        }
+    }
+
+    /**
+     * Compares the time of the naive match with the matcher. This benchmark only runs with the slowTest task.
+     */
+    @Test
+    @Tag("slow")
+    void testMatchSpeed(){
+        Random r = new Random(1L);
+        PitchClassHistogramMatcher matcher = new PitchClassHistogramMatcher(SIZE);
+        double[] result = new double[2];
+        int numberOfMatches = 500;
+        long naiveTime = 0;
+        long matcherTime = 0;
+        for(int test = 0 ; test < numberOfMatches ; test++){
+            int[] query = histogram(r);
+            int[] reference = histogram(r);
+            int referenceArea = 0;
+            for(int value : reference)
+                referenceArea += value;
+
+            long start = System.nanoTime();
+            naiveMatch(query, reference);
+            naiveTime += System.nanoTime() - start;
+            start = System.nanoTime();
+            matcher.setQuery(query);
+            matcher.match(reference, referenceArea, result);
+            matcherTime += System.nanoTime() - start;
+        }
+        System.out.printf("Naive match %.1fms, FFT match %.1fms, %.1f exact comparisons per match%n",
+                naiveTime / 1e6, matcherTime / 1e6, matcher.exactComparisons() / (double) numberOfMatches);
+    }
+
+    @Test
+    void testMinimumScoreSkipsWeakMatches(){
+        Random r = new Random(3L);
+        PitchClassHistogramMatcher matcher = new PitchClassHistogramMatcher(SIZE);
+        double[] result = new double[2];
+        int[] query = histogram(r);
+        matcher.setQuery(query);
+        for(int test = 0 ; test < 20 ; test++){
+            int[] reference = histogram(r);
+            int referenceArea = 0;
+            for(int value : reference)
+                referenceArea += value;
+            double[] expected = naiveMatch(query, reference);
+            double minimumScore = 0.1 + r.nextDouble() * 0.5;
+            matcher.match(reference, referenceArea, minimumScore, result);
+            if(expected[0] >= minimumScore){
+                assertEquals(expected[0], result[0], 1e-6, "A match above the minimum should be found");
+                assertEquals(expected[1], result[1]);
+            }else{
+                assertEquals(0, result[0], "A match below the minimum should be reported as zero");
+            }
+        }
+    }
+
+    @Test
+    void testFeaturesAreShiftInvariant(){
+        Random r = new Random(2L);
+        PitchClassHistogramMatcher matcher = new PitchClassHistogramMatcher(SIZE);
+        int[] histogram = histogram(r);
+        int[] shifted = new int[SIZE];
+        for(int i = 0 ; i < SIZE ; i++)
+            shifted[(i + 345) % SIZE] = histogram[i];
+        float[] features = new float[PitchClassHistogramMatcher.NUMBER_OF_FEATURES];
+        float[] shiftedFeatures = new float[PitchClassHistogramMatcher.NUMBER_OF_FEATURES];
+        matcher.features(histogram, features);
+        matcher.features(shifted, shiftedFeatures);
+        for(int i = 0 ; i < features.length ; i++)
+            assertEquals(features[i], shiftedFeatures[i], 1e-4);
+    }
+}
@@ -0,0 +1,221 @@
+package be.panako.tests;
+
+import be.panako.strategy.QueryResult;
+import be.panako.strategy.QueryResultHandler;
+import be.panako.strategy.pch.PitchClassHistogramStrategy;
+import be.panako.util.BoundedPriorityQueue;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PitchClassHistogramStrategyTest {
+
+    //a major triad, a cluster of semitones and a fourth with a tritone: different pitch class histograms
+    private static final double[] FIRST = {220.0, 277.18, 329.63};
+    private static final double[] SECOND = {261.63, 277.18, 293.66};
+    private static final double[] THIRD = {196.0, 261.63, 369.99};
+
+    @TempDir
+    Path folder;
+
+    private final Map<Key,String> originalConfig = new HashMap<>();
+    private PitchClassHistogramStrategy strategy;
+
+    @BeforeEach
+    void setUp() {
+        Map<Key,String> config = new HashMap<>();
+        //the index is created once, in the same folder for each test
+        config.put(Key.PCH_FILES, FileUtils.combine(FileUtils.temporaryDirectory(), "pch_strategy_test"));
+        config.put(Key.MONITOR_STEP_SIZE, "10");
+        config.put(Key.MONITOR_OVERLAP, "2");
+        //decode the test files in the JVM, ffmpeg is not needed
+        config.put(Key.DECODER, "JAVA");
+        config.forEach((key, value) -> {
+            originalConfig.put(key, Config.get(key));
+            Config.set(key, value);
+        });
+        strategy = new PitchClassHistogramStrategy();
+        strategy.clear();
+    }
+
+    @AfterEach
+    void tearDown() {
+        strategy.clear();
+        originalConfig.forEach(Config::set);
+    }
+
+    /**
+     * Tones which follow each other every half second, with a bit of noise.
+     */
+    private static float[] tones(double[] frequencies, int seconds, long seed){
+        int sampleRate = Config.getInt(Key.PCH_SAMPLE_RATE);
+        Random r = new Random(seed);
+        float[] samples = new float[seconds * sampleRate];
+        double phase = 0;
+        for(int i = 0 ; i < samples.length ; i++){
+            double frequency = frequencies[(i / (sampleRate / 2)) % frequencies.length];
+            phase += 2 * Math.PI * frequency / sampleRate;
+            samples[i] = (float) (0.6 * Math.sin(phase) + 0.01 * r.nextGaussian());
+        }
+        return samples;
+    }
+
+    private String write(String name, float[]... parts) throws IOException {
+        int sampleRate = Config.getInt(Key.PCH_SAMPLE_RATE);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int numberOfSamples = 0;
+        for(float[] samples : parts){
+            for(float sample : samples){
+                short s = (short) Math.round(sample * 32767);
+                data.write(s);
+                data.write(s >> 8);
+            }
+            numberOfSamples += samples.length;
+        }
+        AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+        File file = new File(folder.toFile(), name);
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data.toByteArray()), format, numberOfSamples), AudioFileFormat.Type.WAVE, file);
+        return file.getAbsolutePath();
+    }
+
+    private static QueryResultHandler collect(List<QueryResult> results){
+        return new QueryResultHandler() {
+            @Override
+            public void handleQueryResult(QueryResult result) {
+                results.add(result);
+            }
+
+            @Override
+            public void handleEmptyResult(QueryResult result) {
+            }
+        };
+    }
+
+    private List<QueryResult> query(String query, int maxNumberOfResults){
+        List<QueryResult> results = new ArrayList<>();
+        strategy.query(query, maxNumberOfResults, new HashSet<>(), collect(results));
+        return results;
+    }
+
+    private void storeReferences() throws IOException {
+        strategy.store(write("1.wav", tones(FIRST, 12, 1)), "first");
+        strategy.store(write("2.wav", tones(SECOND, 12, 2)), "second");
+        strategy.store(write("3.wav", tones(THIRD, 12, 3)), "third");
+    }
+
+    @Test
+    void testQueryAndDelete() throws IOException {
+        storeReferences();
+        String query = write("query.wav", tones(FIRST, 8, 4));
+        List<QueryResult> results = query(query, 3);
+        assertFalse(results.isEmpty());
+        assertEquals("1", results.get(0).refIdentifier);
+        assertEquals("first", results.get(0).refPath);
+
+        assertTrue(strategy.hasResource(new File(folder.toFile(), "1.wav").getAbsolutePath()));
+        assertEquals(12, strategy.delete(new File(folder.toFile(), "1.wav").getAbsolutePath()), 0.1);
+        assertFalse(strategy.hasResource(new File(folder.toFile(), "1.wav").getAbsolutePath()));
+        assertEquals(0, strategy.delete(new File(folder.toFile(), "1.wav").getAbsolutePath()), "A deleted histogram can not be deleted again");
+        for(QueryResult result : query(query, 3))
+            assertFalse("1".equals(result.refIdentifier), "A deleted reference should not match");
+
+        //storing it again makes it match again
+        strategy.store(write("1.wav", tones(FIRST, 12, 1)), "first again");
+        assertEquals("first again", query(query, 3).get(0).refPath);
+    }
+
+    @Test
+    void testNoResultsRequested() throws IOException {
+        storeReferences();
+        assertTrue(query(write("query.wav", tones(FIRST, 8, 4)), 0).isEmpty());
+
+        BoundedPriorityQueue<Integer> none = new BoundedPriorityQueue<>(0, Comparator.naturalOrder());
+        assertFalse(none.offer(1));
+        assertTrue(none.isFull());
+        assertNull(none.worst());
+        assertTrue(none.toSortedList().isEmpty());
+    }
+
+    @Test
+    void testClear() throws IOException {
+        storeReferences();
+        String query = write("query.wav", tones(SECOND, 8, 4));
+        assertEquals("2", query(query, 3).get(0).refIdentifier);
+
+        strategy.clear();
+        assertTrue(query(query, 3).isEmpty());
+        assertFalse(strategy.hasResource(new File(folder.toFile(), "2.wav").getAbsolutePath()));
+        assertNull(strategy.metadata(new File(folder.toFile(), "2.wav").getAbsolutePath()));
+
+        //the cleared index is used again
+        strategy.store(write("2.wav", tones(SECOND, 12, 2)), "second");
+        assertEquals("2", query(query, 3).get(0).refIdentifier);
+    }
+
+    @Test
+    void testMonitor() throws IOException {
+        storeReferences();
+        //ten seconds of each reference, the windows are 10 seconds long with a step of 8 seconds
+        String query = write("monitor.wav", tones(FIRST, 10, 5), tones(THIRD, 10, 6));
+        List<QueryResult> results = new ArrayList<>();
+        strategy.monitor(query, 1, new HashSet<>(), collect(results));
+
+        assertEquals(3, results.size());
+        assertEquals(0, results.get(0).queryStart, 0.001);
+        assertEquals(10, results.get(0).queryStop, 0.1);
+        assertEquals("1", results.get(0).refIdentifier);
+        assertEquals(8, results.get(1).queryStart, 0.001);
+        assertEquals(16, results.get(2).queryStart, 0.001);
+        assertEquals(20, results.get(2).queryStop, 0.1);
+        assertEquals("3", results.get(2).refIdentifier);
+    }
+
+    @Test
+    void testStatistics() throws IOException {
+        storeReferences();
+        strategy.delete(new File(folder.toFile(), "2.wav").getAbsolutePath());
+
+        String metadata = strategy.metadata(new File(folder.toFile(), "3.wav").getAbsolutePath());
+        assertTrue(metadata.matches("3 ; third ; 1[12]\\.\\d{3} \\(s\\) ; \\d+ \\(#\\) ; .*"), metadata);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream standardOut = System.out;
+        System.setOut(new PrintStream(output, true));
+        try {
+            strategy.printStorageStatistics();
+        } finally {
+            System.setOut(standardOut);
+        }
+        String statistics = output.toString();
+        assertTrue(statistics.matches("(?s).*Stored histograms:\\s+2\n.*"), statistics);
+        assertTrue(statistics.matches("(?s).*Deleted records:\\s+1\n.*"), statistics);
+        assertTrue(statistics.matches("(?s).*Total audio duration:\\s+2[34]\\.\\d{3} \\(s\\).*"), statistics);
+    }
+}
@@ -0,0 +1,97 @@
+package be.panako.tests;
+
+import be.panako.strategy.FingerprintBatch;
+import be.panako.strategy.StreamMonitor;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamMonitorTest {
+
+    //8ms analysis frames, as OLAF
+    private static final double SECONDS_PER_FRAME = 128 / 16000.0;
+
+    private static int frame(double seconds) {
+        return (int) Math.round(seconds / SECONDS_PER_FRAME);
+    }
+
+    @Test
+    void testWindows() {
+        List<double[]> windows = Collections.synchronizedList(new ArrayList<>());
+        StreamMonitor monitor = new StreamMonitor(SECONDS_PER_FRAME, 10, 5, (window, start, stop) -> {
+            double first = window.t1(0) * SECONDS_PER_FRAME;
+            double last = window.t1(window.size() - 1) * SECONDS_PER_FRAME;
+            windows.add(new double[]{start, stop, window.size(), first, last});
+        }, false);
+
+        //a print every 10 frames for 32 seconds
+        for (int t1 = 0; t1 < frame(32); t1 += 10)
+            monitor.accept(t1 * 31L, t1, 100);
+        monitor.finish();
+
+        assertEquals(6, monitor.getNumberOfQueriedWindows());
+        assertEquals(0, monitor.getNumberOfDroppedWindows());
+        double[][] expected = {{0, 10}, {5, 15}, {10, 20}, {15, 25}, {20, 30}};
+        for (int i = 0; i < expected.length; i++) {
+            double[] window = windows.get(i);
+            assertEquals(expected[i][0], window[0], 1e-9);
+            assertEquals(expected[i][1], window[1], 1e-9);
+            assertTrue(window[3] >= window[0] && window[4] < window[1], "Prints should be inside the window");
+            assertEquals(10 / (SECONDS_PER_FRAME * 10), window[2], 2);
+        }
+        //the last partial window covers the end of the stream
+        double[] last = windows.get(5);
+        assertTrue(last[1] > 32 - SECONDS_PER_FRAME * 10 && last[4] >= 31.9);
+    }
+
+    @Test
+    void testDropsWindowsOfLiveStream() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<Double> stops = Collections.synchronizedList(new ArrayList<>());
+        StreamMonitor monitor = new StreamMonitor(SECONDS_PER_FRAME, 2, 1, (window, start, stop) -> {
+            stops.add(stop);
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, true);
+
+        //the first query blocks, so the stream should not wait for queries: windows close at
+        //2, 3, ... 19 seconds, the first one runs, the last one waits and the others are dropped
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            for (int t1 = 0; t1 < frame(20); t1 += 5)
+                monitor.accept(t1, t1, 0);
+        }, "Accepting prints should not wait for a blocked query");
+        assertEquals(16, monitor.getNumberOfDroppedWindows());
+
+        blocked.countDown();
+        monitor.finish();
+
+        //the last partial window, closed by finish, may drop the waiting window
+        assertTrue(monitor.getNumberOfDroppedWindows() <= 17);
+        assertEquals(19, monitor.getNumberOfQueriedWindows() + monitor.getNumberOfDroppedWindows());
+        assertEquals(monitor.getNumberOfQueriedWindows(), stops.size());
+        assertEquals(2.0, stops.get(0), 1e-9);
+        assertEquals(20.0, stops.get(stops.size() - 1), 1e-9);
+        for (int i = 1; i < stops.size(); i++)
+            assertTrue(stops.get(i) > stops.get(i - 1), "Windows should be queried in order");
+    }
+
+    @Test
+    void testIsStream() {
+        assertTrue(StreamMonitor.isStream("DEFAULT_MICROPHONE"));
+        assertTrue(StreamMonitor.isStream("-"));
+        assertTrue(StreamMonitor.isStream("http://radio.example.com/stream.mp3"));
+        assertFalse(StreamMonitor.isStream("/data/recording.mp3"));
+    }
+}
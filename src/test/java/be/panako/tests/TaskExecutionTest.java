@@ -0,0 +1,179 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.storage.OlafHit;
+import be.panako.strategy.olaf.storage.OlafStorage;
+import be.panako.strategy.olaf.storage.OlafStorageMemory;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.panako.util.TaskExecution;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.AudioProcessor;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TaskExecutionTest {
+
+    private static final int NUMBER_OF_TASKS = 200;
+    private static final int HASHES_PER_TASK = 50;
+
+    private final Map<Key,String> originalConfig = new HashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        Map<Key,String> config = new HashMap<>();
+        config.put(Key.EXECUTION_MODE, "VIRTUAL");
+        config.put(Key.AVAILABLE_PROCESSORS, "2");
+        config.put(Key.MAX_TASKS_IN_FLIGHT, "16");
+        config.forEach((key, value) -> {
+            originalConfig.put(key, Config.get(key));
+            Config.set(key, value);
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        originalConfig.forEach(Config::set);
+    }
+
+    @Test
+    void testConcurrentTasksKeepSeparateQueryQueues() throws Exception {
+        OlafStorage index = new OlafStorageMemory();
+        for(int task = 0 ; task < NUMBER_OF_TASKS ; task++)
+            for(int i = 0 ; i < HASHES_PER_TASK ; i++)
+                index.addToStoreQueue(hash(task, i), task, i);
+        index.processStoreQueue();
+
+        ExecutorService executor = TaskExecution.newTaskExecutor();
+        List<Future<Integer>> results = new ArrayList<>();
+        for(int task = 0 ; task < NUMBER_OF_TASKS ; task++){
+            final int resource = task;
+            results.add(executor.submit(() -> {
+                Map<Long, List<OlafHit>> matchAccumulator = new HashMap<>();
+                for(int i = 0 ; i < HASHES_PER_TASK ; i++) {
+                    index.addToQueryQueue(hash(resource, i));
+                    //give other tasks the chance to fill their queue in between
+                    Thread.yield();
+                }
+                index.processQueryQueue(matchAccumulator, 0, new HashSet<>());
+                int hits = 0;
+                for(List<OlafHit> hitList : matchAccumulator.values())
+                    for(OlafHit hit : hitList) {
+                        assertEquals(resource, hit.resourceID, "Hit of another task");
+                        hits++;
+                    }
+                return hits;
+            }));
+        }
+        for(Future<Integer> result : results)
+            assertEquals(HASHES_PER_TASK, result.get().intValue());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    }
+
+    @Test
+    void testExtractionIsBoundedToAvailableProcessors() throws Exception {
+        AtomicInteger extracting = new AtomicInteger();
+        AtomicInteger maxExtracting = new AtomicInteger();
+
+        ExecutorService executor = TaskExecution.newTaskExecutor();
+        for(int task = 0 ; task < 32 ; task++){
+            executor.submit(() -> {
+                TaskExecution.beginExtraction();
+                try {
+                    maxExtracting.accumulateAndGet(extracting.incrementAndGet(), Math::max);
+                    Thread.sleep(2);
+                    extracting.decrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    TaskExecution.endExtraction();
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        //with platform threads the pool itself is sized to the available processors
+        assertTrue(maxExtracting.get() <= 2, "Concurrent extractions: " + maxExtracting.get());
+        assertTrue(TaskExecution.maxTasksInFlight() >= 2);
+    }
+
+    @Test
+    void testOnlySignalProcessingHoldsPermits() throws Exception {
+        //twice as many extractions as permits, they can only meet while they hold no permit
+        int tasks = 4;
+        CountDownLatch reading = new CountDownLatch(tasks);
+        CountDownLatch flushing = new CountDownLatch(tasks);
+        AtomicInteger extracting = new AtomicInteger();
+        AtomicInteger maxExtracting = new AtomicInteger();
+        AtomicBoolean met = new AtomicBoolean(true);
+
+        List<Thread> threads = new ArrayList<>();
+        for(int task = 0 ; task < tasks ; task++){
+            AudioProcessor processor = TaskExecution.boundedExtraction(new AudioProcessor() {
+                private int blocks = 0;
+
+                @Override
+                public boolean process(AudioEvent audioEvent) {
+                    maxExtracting.accumulateAndGet(extracting.incrementAndGet(), Math::max);
+                    extracting.decrementAndGet();
+                    //a flush of the store queue while extracting
+                    if(++blocks == 2)
+                        TaskExecution.outsideExtraction(() -> met.compareAndSet(true, meet(flushing)));
+                    return true;
+                }
+
+                @Override
+                public void processingFinished() {
+                }
+            });
+            Thread thread = new Thread(() -> {
+                AudioEvent event = new AudioEvent(new TarsosDSPAudioFormat(16000, 16, 1, true, false));
+                event.setFloatBuffer(new float[128]);
+                processor.process(event);
+                //reading the next block from the decoder
+                met.compareAndSet(true, meet(reading));
+                processor.process(event);
+                processor.processingFinished();
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for(Thread thread : threads)
+            thread.join();
+        assertTrue(met.get(), "Decoding and flushing should not hold an extraction permit");
+        //without virtual threads the extraction is not bounded by permits
+        if(TaskExecution.virtualThreads())
+            assertTrue(maxExtracting.get() <= 2, "Concurrent extractions: " + maxExtracting.get());
+    }
+
+    private static boolean meet(CountDownLatch latch){
+        latch.countDown();
+        try {
+            return latch.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static long hash(int task, int i){
+        return (task * (long) HASHES_PER_TASK + i) * 16L;
+    }
+}
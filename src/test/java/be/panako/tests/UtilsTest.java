@@ -6,11 +6,17 @@ import be.panako.util.Config;
 import be.panako.util.FileUtils;
 import be.panako.util.Key;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 
 public class UtilsTest {
@@ -52,4 +58,33 @@ public class UtilsTest {
         assertNotEquals(expectedHash,calculatedHash,"Other files should have a hash different from " + expectedHash);
     }
 
+    @Test
+    void testFileHash128(@TempDir Path folder) throws IOException {
+        Random r = new Random(0);
+        byte[] large = new byte[1_000_000];
+        r.nextBytes(large);
+        File a = folder.resolve("a.bin").toFile();
+        File copy = folder.resolve("copy.bin").toFile();
+        Files.write(a.toPath(), large);
+        Files.write(copy.toPath(), large);
+        String hash = FileUtils.getFileHash128(a);
+        assertEquals(32, hash.length());
+        assertEquals(hash, FileUtils.getFileHash128(copy), "Equal content should have an equal hash");
+
+        //a change in one of the hashed regions, at the end of the file
+        large[large.length - 1]++;
+        File changed = folder.resolve("changed.bin").toFile();
+        Files.write(changed.toPath(), large);
+        assertNotEquals(hash, FileUtils.getFileHash128(changed));
+
+        //small files are hashed completely, the size is part of the hash
+        File small = folder.resolve("small.bin").toFile();
+        Files.write(small.toPath(), new byte[]{1, 2, 3});
+        File smaller = folder.resolve("smaller.bin").toFile();
+        Files.write(smaller.toPath(), new byte[]{1, 2});
+        assertNotEquals(FileUtils.getFileHash128(small), FileUtils.getFileHash128(smaller));
+
+        assertNull(FileUtils.getFileHash128(folder.resolve("missing.bin").toFile()));
+    }
+
 }